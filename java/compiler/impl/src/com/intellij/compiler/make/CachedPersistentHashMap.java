@@ -31,7 +31,9 @@ import java.io.IOException;
  */
 public class CachedPersistentHashMap<Key, Value> extends PersistentHashMap<Key, Value> {
   private static final Logger LOG = Logger.getInstance("#com.intellij.compiler.make.CachedPersistentHashMap");
+  // guarded by myEnumerator, like the rest of the map state: PersistentHashMap.doGet() is called without the lock held
   protected final SLRUMap<Key, Value> myCache;
+  private int myInvalidationCount;
 
   public CachedPersistentHashMap(File file, KeyDescriptor<Key> keyDescriptor, DataExternalizer<Value> valDescriptor, final int cacheSize) throws IOException {
     super(file, keyDescriptor, valDescriptor);
@@ -55,23 +57,34 @@ public class CachedPersistentHashMap<Key, Value> extends PersistentHashMap<Key,
 
   @Override
   protected void doPut(Key key, Value value) throws IOException {
-    myCache.remove(key);
+    invalidate(key);
     super.doPut(key, value);
   }
 
   @Override
   protected void doAppendData(Key key, ValueDataAppender appender) throws IOException {
-    myCache.remove(key);
+    invalidate(key);
     super.doAppendData(key, appender);
   }
 
   @Nullable
   protected Value doGet(Key key) throws IOException {
-    Value value = myCache.get(key);
-    if (value == null) {
-      value = super.doGet(key);
+    final int invalidationCount;
+    synchronized (myEnumerator) {
+      final Value value = myCache.get(key);
       if (value != null) {
-        myCache.put(key, value);
+        return value;
+      }
+      invalidationCount = myInvalidationCount;
+    }
+
+    final Value value = super.doGet(key);
+    if (value != null) {
+      synchronized (myEnumerator) {
+        // the value read may be already stale if the key was changed or the cache was cleared while it was being read
+        if (invalidationCount == myInvalidationCount) {
+          myCache.put(key, value);
+        }
       }
     }
     return value;
@@ -85,7 +98,7 @@ public class CachedPersistentHashMap<Key, Value> extends PersistentHashMap<Key,
 
   @Override
   protected void doRemove(Key key) throws IOException {
-    myCache.remove(key);
+    invalidate(key);
     super.doRemove(key);
   }
 
@@ -109,7 +122,13 @@ public class CachedPersistentHashMap<Key, Value> extends PersistentHashMap<Key,
     }
   }
 
+  private void invalidate(Key key) {
+    myInvalidationCount++;
+    myCache.remove(key);
+  }
+
   private void clearCache() {
+    myInvalidationCount++;
     myCache.clear();
   }
 }
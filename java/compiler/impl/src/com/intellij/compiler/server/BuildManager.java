@@ -712,6 +712,17 @@ public class BuildManager implements ApplicationComponent{
     if (Registry.is("compiler.process.use.external.javac")) {
       cmdLine.addParameter("-D"+ GlobalOptions.USE_EXTERNAL_JAVAC_OPTION);
     }
+    if (Registry.is("compiler.process.parallel")) {
+      cmdLine.addParameter("-D" + GlobalOptions.COMPILE_PARALLEL_OPTION + "=true");
+      final int maxThreads = Registry.intValue("compiler.process.parallel.max.threads");
+      if (maxThreads > 0) {
+        cmdLine.addParameter("-D" + GlobalOptions.COMPILE_PARALLEL_MAX_THREADS_OPTION + "=" + maxThreads);
+      }
+    }
+    final int javacWorkers = Registry.intValue("compiler.process.javac.workers");
+    if (javacWorkers > 1 && !Registry.is("compiler.process.use.external.javac")) {
+      cmdLine.addParameter("-D" + GlobalOptions.JAVAC_WORKERS_COUNT_OPTION + "=" + javacWorkers);
+    }
     final String host = NetUtils.getLocalHostString();
     cmdLine.addParameter("-D"+ GlobalOptions.HOSTNAME_OPTION + "=" + host);
 
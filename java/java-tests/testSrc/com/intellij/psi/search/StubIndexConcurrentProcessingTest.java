@@ -0,0 +1,95 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.search;
+
+import com.intellij.psi.PsiField;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.impl.java.stubs.index.JavaStubIndexKeys;
+import com.intellij.psi.stubs.StubIndex;
+import com.intellij.testFramework.fixtures.LightCodeInsightFixtureTestCase;
+import com.intellij.util.Processor;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StubIndexConcurrentProcessingTest extends LightCodeInsightFixtureTestCase {
+  private static final int CLASSES_COUNT = 50;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    for (int i = 0; i < CLASSES_COUNT; i++) {
+      myFixture.addClass("class Foo" + i + " { void foo() {} int bar; }");
+    }
+  }
+
+  public void testConcurrentProcessingFindsAllElements() {
+    final GlobalSearchScope scope = GlobalSearchScope.projectScope(getProject());
+    final Collection<PsiMethod> expected = StubIndex.getInstance().get(JavaStubIndexKeys.METHODS, "foo", getProject(), scope);
+    assertEquals(CLASSES_COUNT, expected.size());
+
+    final Set<PsiMethod> found = Collections.synchronizedSet(new HashSet<PsiMethod>());
+    assertTrue(StubIndex.getInstance().processConcurrently(JavaStubIndexKeys.METHODS, "foo", getProject(), scope, new Processor<PsiMethod>() {
+      @Override
+      public boolean process(PsiMethod method) {
+        assertTrue(found.add(method));
+        return true;
+      }
+    }));
+    assertEquals(new HashSet<PsiMethod>(expected), found);
+  }
+
+  public void testConcurrentProcessingStops() {
+    final GlobalSearchScope scope = GlobalSearchScope.projectScope(getProject());
+    final AtomicInteger processed = new AtomicInteger();
+    assertFalse(StubIndex.getInstance().processConcurrently(JavaStubIndexKeys.METHODS, "foo", getProject(), scope, new Processor<PsiMethod>() {
+      @Override
+      public boolean process(PsiMethod method) {
+        processed.incrementAndGet();
+        return false;
+      }
+    }));
+    // only the files already being processed by other threads may still be processed
+    assertTrue(String.valueOf(processed.get()), processed.get() < CLASSES_COUNT);
+  }
+
+  public void testMaxCount() {
+    final GlobalSearchScope scope = GlobalSearchScope.projectScope(getProject());
+    final Collection<PsiMethod> all = StubIndex.getInstance().get(JavaStubIndexKeys.METHODS, "foo", getProject(), scope);
+
+    final Collection<PsiMethod> some = StubIndex.getInstance().get(JavaStubIndexKeys.METHODS, "foo", getProject(), scope, 5);
+    assertEquals(5, some.size());
+    assertEquals(5, new HashSet<PsiMethod>(some).size());
+    assertTrue(all.containsAll(some));
+
+    assertEquals(CLASSES_COUNT, StubIndex.getInstance().get(JavaStubIndexKeys.METHODS, "foo", getProject(), scope, 100).size());
+    assertEmpty(StubIndex.getInstance().get(JavaStubIndexKeys.METHODS, "foo", getProject(), scope, 0));
+  }
+
+  public void testShortNamesCacheRespectsMaxCount() {
+    final GlobalSearchScope scope = GlobalSearchScope.projectScope(getProject());
+    final PsiShortNamesCache cache = PsiShortNamesCache.getInstance(getProject());
+    final PsiMethod[] methods = cache.getMethodsByNameIfNotMoreThan("foo", scope, 5);
+    assertEquals(5, methods.length);
+    // the lookup is sequential, so the same elements are found every time
+    assertOrderedEquals(methods, cache.getMethodsByNameIfNotMoreThan("foo", scope, 5));
+    assertEquals(CLASSES_COUNT, cache.getMethodsByNameIfNotMoreThan("foo", scope, 100).length);
+
+    final PsiField[] fields = cache.getFieldsByNameIfNotMoreThan("bar", scope, 5);
+    assertEquals(5, fields.length);
+    assertEquals(5, new HashSet<PsiField>(Arrays.asList(fields)).size());
+  }
+}
@@ -11,4 +11,8 @@ public interface GlobalOptions {
   String PING_INTERVAL_MS_OPTION = "server.ping.interval";
   String GENERATE_CLASSPATH_INDEX_OPTION = "generate.classpath.index";
   String MAX_SIMULTANEOUS_BUILDS_OPTION = "max.simultaneous.builds";
+  String COMPILE_PARALLEL_OPTION = "compile.parallel";
+  String COMPILE_PARALLEL_MAX_THREADS_OPTION = "compile.parallel.max.threads";
+  String JAVAC_WORKERS_COUNT_OPTION = "compile.javac.workers";
+  String LIBRARY_CLASS_CACHE_SIZE_MB_OPTION = "library.class.cache.size.mb";
 }
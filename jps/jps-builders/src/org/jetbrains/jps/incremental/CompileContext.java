@@ -1,5 +1,6 @@
 package org.jetbrains.jps.incremental;
 
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.util.io.FileUtil;
@@ -31,6 +32,7 @@ import java.util.*;
  */
 public class CompileContext extends UserDataHolderBase implements MessageHandler{
   private static final String CANCELED_MESSAGE = "The build has been canceled";
+  private static final Set<Key> ourChunkLocalKeys = Collections.synchronizedSet(new HashSet<Key>());
   private final CompileScope myScope;
   private final boolean myIsMake;
   private final boolean myIsProjectRebuild;
@@ -38,7 +40,7 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   private final ProjectChunks myTestChunks;
   private final MessageHandler myDelegateMessageHandler;
   private volatile boolean myCompilingTests = false;
-  private final Set<Pair<Module, DirtyMarkScope>> myNonIncrementalModules = new HashSet<Pair<Module, DirtyMarkScope>>();
+  private final Set<Pair<Module, DirtyMarkScope>> myNonIncrementalModules;
 
   private final ProjectPaths myProjectPaths;
   private volatile boolean myErrorsFound = false;
@@ -47,9 +49,10 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   private final Timestamps myTimestamps;
   private final Map<String, String> myBuilderParams;
   private final CanceledStatus myCancelStatus;
-  private float myDone = -1.0f;
-  private EventDispatcher<BuildListener> myListeners = EventDispatcher.create(BuildListener.class);
-  private Map<Module, AnnotationProcessingProfile> myAnnotationProcessingProfileMap;
+  private volatile float myDone = -1.0f;
+  private final EventDispatcher<BuildListener> myListeners;
+  private volatile Map<Module, AnnotationProcessingProfile> myAnnotationProcessingProfileMap;
+  @Nullable private final CompileContext myParent;
 
   public CompileContext(CompileScope scope,
                         ProjectDescriptor pd, boolean isMake,
@@ -72,6 +75,64 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
     myDelegateMessageHandler = delegateMessageHandler;
     final Project project = scope.getProject();
     myProjectPaths = new ProjectPaths(project);
+    myNonIncrementalModules = Collections.synchronizedSet(new HashSet<Pair<Module, DirtyMarkScope>>());
+    myListeners = EventDispatcher.create(BuildListener.class);
+    myParent = null;
+  }
+
+  private CompileContext(@NotNull CompileContext parent) {
+    myProjectDescriptor = parent.myProjectDescriptor;
+    myTimestamps = parent.myTimestamps;
+    myBuilderParams = parent.myBuilderParams;
+    myCancelStatus = parent.myCancelStatus;
+    myCompilationStartStamp = parent.myCompilationStartStamp;
+    myScope = parent.myScope;
+    myIsProjectRebuild = parent.myIsProjectRebuild;
+    myIsMake = parent.myIsMake;
+    myProductionChunks = parent.myProductionChunks;
+    myTestChunks = parent.myTestChunks;
+    myDelegateMessageHandler = parent.myDelegateMessageHandler;
+    myProjectPaths = parent.myProjectPaths;
+    myNonIncrementalModules = parent.myNonIncrementalModules;
+    myListeners = parent.myListeners;
+    myCompilingTests = parent.myCompilingTests;
+    myDone = parent.myDone;
+    myParent = parent;
+  }
+
+  /**
+   * Creates a context for building a single chunk concurrently with other chunks. The chunk context shares the build state with
+   * this context, except the user data stored with keys created by {@link #createChunkLocalKey(String)}.
+   */
+  CompileContext createChunkContext() {
+    return new CompileContext(this);
+  }
+
+  /**
+   * Data stored with such key is visible only within the context of the chunk being built
+   */
+  public static <T> Key<T> createChunkLocalKey(String name) {
+    final Key<T> key = Key.create(name);
+    ourChunkLocalKeys.add(key);
+    return key;
+  }
+
+  @Override
+  public <T> T getUserData(@NotNull Key<T> key) {
+    if (myParent != null && !ourChunkLocalKeys.contains(key)) {
+      return myParent.getUserData(key);
+    }
+    return super.getUserData(key);
+  }
+
+  @Override
+  public <T> void putUserData(@NotNull Key<T> key, @Nullable T value) {
+    if (myParent != null && !ourChunkLocalKeys.contains(key)) {
+      myParent.putUserData(key, value);
+    }
+    else {
+      super.putUserData(key, value);
+    }
   }
 
   public Project getProject() {
@@ -109,6 +170,9 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
 
   @NotNull
   public AnnotationProcessingProfile getAnnotationProcessingProfile(Module module) {
+    if (myParent != null) {
+      return myParent.getAnnotationProcessingProfile(module);
+    }
     final CompilerConfiguration compilerConfig = getProject().getCompilerConfiguration();
     Map<Module, AnnotationProcessingProfile> map = myAnnotationProcessingProfileMap;
     if (map == null) {
@@ -155,7 +219,7 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   }
 
   public void markDirty(final ModuleChunk chunk) throws IOException {
-    myProjectDescriptor.fsState.clearContextRoundData();
+    myProjectDescriptor.fsState.clearContextRoundData(chunk);
     final Set<Module> modules = chunk.getModules();
     for (Module module : modules) {
       markDirtyFiles(module, myTimestamps, true, isCompilingTests()? DirtyMarkScope.TESTS : DirtyMarkScope.PRODUCTION, null);
@@ -267,7 +331,7 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   }
 
   void beforeCompileRound(@NotNull ModuleChunk chunk) {
-    myProjectDescriptor.fsState.beforeNextRoundStart();
+    myProjectDescriptor.fsState.beforeNextRoundStart(chunk);
   }
 
   public void onChunkBuildStart(ModuleChunk chunk) {
@@ -276,12 +340,12 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
 
   void onChunkBuildComplete(@NotNull ModuleChunk chunk) throws IOException {
     final boolean compilingTests = isCompilingTests();
-    myProjectDescriptor.fsState.clearContextRoundData();
-    myProjectDescriptor.fsState.clearContextChunk();
+    myProjectDescriptor.fsState.clearContextRoundData(chunk);
+    myProjectDescriptor.fsState.clearContextChunk(chunk);
 
     final BuildDataManager dataManager = getDataManager();
     try {
-      if (!myErrorsFound && !myCancelStatus.isCanceled()) {
+      if (!errorsDetected() && !myCancelStatus.isCanceled()) {
         final DirtyMarkScope dirtyScope = compilingTests ? DirtyMarkScope.TESTS : DirtyMarkScope.PRODUCTION;
         boolean marked = false;
         for (Module module : chunk.getModules()) {
@@ -326,6 +390,9 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   public void processMessage(BuildMessage msg) {
     if (msg.getKind() == BuildMessage.Kind.ERROR) {
       myErrorsFound = true;
+      if (myParent != null) {
+        myParent.myErrorsFound = true;
+      }
     }
     if (msg instanceof ProgressMessage) {
       ((ProgressMessage)msg).setDone(myDone);
@@ -340,7 +407,7 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   }
 
   public boolean errorsDetected() {
-    return myErrorsFound;
+    return myParent != null ? myParent.errorsDetected() : myErrorsFound;
   }
 
   public void processFilesToRecompile(ModuleChunk chunk, FileProcessor processor) throws IOException {
@@ -454,6 +521,9 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
 
   public void setDone(float done) {
     myDone = done;
+    if (myParent != null) {
+      myParent.setDone(done);
+    }
     //processMessage(new ProgressMessage("", done));
   }
 
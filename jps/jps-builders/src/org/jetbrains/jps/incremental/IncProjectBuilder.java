@@ -33,7 +33,9 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -46,6 +48,10 @@ public class IncProjectBuilder {
   public static final String COMPILE_SERVER_NAME = "COMPILE SERVER";
   private static final String CLASSPATH_INDEX_FINE_NAME = "classpath.index";
   private static final boolean GENERATE_CLASSPATH_INDEX = "true".equals(System.getProperty(GlobalOptions.GENERATE_CLASSPATH_INDEX_OPTION));
+  private static final boolean PARALLEL_BUILD_ENABLED = "true".equals(System.getProperty(GlobalOptions.COMPILE_PARALLEL_OPTION));
+  private static final int MAX_BUILDER_THREADS = Math.max(1, Integer.parseInt(System.getProperty(
+    GlobalOptions.COMPILE_PARALLEL_MAX_THREADS_OPTION, String.valueOf(Runtime.getRuntime().availableProcessors())
+  )));
 
   private final ProjectDescriptor myProjectDescriptor;
   private final BuilderRegistry myBuilderRegistry;
@@ -66,7 +72,7 @@ public class IncProjectBuilder {
   private float myModulesProcessed = 0.0f;
   private final float myTotalModulesWork;
   private final int myTotalModuleLevelBuilderCount;
-  private final List<Future> myAsyncTasks = new ArrayList<Future>();
+  private final List<Future> myAsyncTasks = Collections.synchronizedList(new ArrayList<Future>());
   private final Timestamps myTimestamps;
 
   public IncProjectBuilder(ProjectDescriptor pd,
@@ -180,7 +186,7 @@ public class IncProjectBuilder {
     }
   }
 
-  private float updateFractionBuilderFinished(final float delta) {
+  private synchronized float updateFractionBuilderFinished(final float delta) {
     myModulesProcessed += delta;
     return myModulesProcessed / myTotalModulesWork;
   }
@@ -404,6 +410,10 @@ public class IncProjectBuilder {
   }
 
   private void buildChunks(CompileContext context, ProjectChunks chunks) throws ProjectBuildException {
+    if (PARALLEL_BUILD_ENABLED && MAX_BUILDER_THREADS > 1) {
+      new ParallelChunksBuilder(context, chunks).build();
+      return;
+    }
     final CompileScope scope = context.getScope();
     for (ModuleChunk chunk : chunks.getChunkList()) {
       if (scope.isAffected(chunk)) {
@@ -451,7 +461,7 @@ public class IncProjectBuilder {
           throw new ProjectBuildException(e);
         }
         finally {
-          final Collection<RootDescriptor> tempRoots = context.getRootsIndex().clearTempRoots();
+          final Collection<RootDescriptor> tempRoots = context.getRootsIndex().clearTempRoots(chunk);
           if (!tempRoots.isEmpty()) {
             final Set<File> rootFiles = new HashSet<File>();
             for (RootDescriptor rd : tempRoots) {
@@ -648,9 +658,9 @@ public class IncProjectBuilder {
           if (buildResult == ModuleLevelBuilder.ExitCode.ADDITIONAL_PASS_REQUIRED) {
             if (!nextPassRequired) {
               // recalculate basis
-              myModulesProcessed -= (buildersPassed * modulesInChunk) / stageCount;
+              final float processedBefore = (buildersPassed * modulesInChunk) / stageCount;
               stageCount += myTotalModuleLevelBuilderCount;
-              myModulesProcessed += (buildersPassed * modulesInChunk) / stageCount;
+              updateFractionBuilderFinished((buildersPassed * modulesInChunk) / stageCount - processedBefore);
             }
             nextPassRequired = true;
           }
@@ -662,7 +672,7 @@ public class IncProjectBuilder {
                 // forcibly mark all files in the chunk dirty
                 context.markDirty(chunk);
                 // reverting to the beginning
-                myModulesProcessed -= (buildersPassed * modulesInChunk) / stageCount;
+                updateFractionBuilderFinished(-(buildersPassed * modulesInChunk) / stageCount);
                 stageCount = myTotalModuleLevelBuilderCount;
                 buildersPassed = 0;
                 nextPassRequired = true;
@@ -750,4 +760,133 @@ public class IncProjectBuilder {
       throw new ProjectBuildException(e);
     }
   }
+
+  /**
+   * Builds chunks of a single phase (production or tests) on a bounded number of threads. A chunk is started only after
+   * all the chunks it depends on are built; each chunk is built with its own chunk context.
+   */
+  private class ParallelChunksBuilder {
+    private final CompileContext myContext;
+    private final ProjectChunks myChunks;
+    private final Map<ModuleChunk, Set<ModuleChunk>> myPendingDependencies = new HashMap<ModuleChunk, Set<ModuleChunk>>();
+    private final Map<ModuleChunk, List<ModuleChunk>> myDependents = new HashMap<ModuleChunk, List<ModuleChunk>>();
+    private final LinkedList<ModuleChunk> myReadyChunks = new LinkedList<ModuleChunk>();
+    private final BlockingQueue<Pair<ModuleChunk, Throwable>> myFinishedChunks = new LinkedBlockingQueue<Pair<ModuleChunk, Throwable>>();
+
+    private ParallelChunksBuilder(CompileContext context, ProjectChunks chunks) {
+      myContext = context;
+      myChunks = chunks;
+    }
+
+    public void build() throws ProjectBuildException {
+      collectAffectedChunks();
+
+      Throwable error = null;
+      int running = 0;
+      while (true) {
+        while (error == null && running < MAX_BUILDER_THREADS && !myReadyChunks.isEmpty()) {
+          submit(myReadyChunks.removeFirst());
+          running++;
+        }
+        if (running == 0) {
+          break;
+        }
+
+        final Pair<ModuleChunk, Throwable> finished;
+        try {
+          finished = myFinishedChunks.take();
+        }
+        catch (InterruptedException e) {
+          throw new ProjectBuildException(e);
+        }
+        running--;
+
+        if (finished.second != null) {
+          // do not start new chunks, wait for the running ones to finish
+          if (error == null) {
+            error = finished.second;
+          }
+          continue;
+        }
+        final List<ModuleChunk> dependents = myDependents.get(finished.first);
+        if (dependents != null) {
+          for (ModuleChunk dependent : dependents) {
+            final Set<ModuleChunk> pending = myPendingDependencies.get(dependent);
+            pending.remove(finished.first);
+            if (pending.isEmpty()) {
+              myReadyChunks.add(dependent);
+            }
+          }
+        }
+      }
+
+      if (error instanceof ProjectBuildException) {
+        throw (ProjectBuildException)error;
+      }
+      if (error instanceof RuntimeException) {
+        throw (RuntimeException)error;
+      }
+      if (error instanceof Error) {
+        throw (Error)error;
+      }
+      if (error != null) {
+        throw new ProjectBuildException(error);
+      }
+    }
+
+    private void collectAffectedChunks() {
+      final CompileScope scope = myContext.getScope();
+      final ClasspathKind kind = ClasspathKind.compile(myContext.isCompilingTests());
+      for (ModuleChunk chunk : myChunks.getChunkList()) {
+        if (!scope.isAffected(chunk)) {
+          // chunks that are not affected are considered built
+          final float fraction = updateFractionBuilderFinished(chunk.getModules().size());
+          myContext.setDone(fraction);
+          continue;
+        }
+        final Set<ModuleChunk> dependencies = new HashSet<ModuleChunk>();
+        for (Module module : chunk.getModules()) {
+          for (ClasspathItem item : module.getClasspath(kind)) {
+            if (item instanceof Module) {
+              final ModuleChunk dependency = myChunks.findChunk((Module)item);
+              // chunk list is topologically sorted, so dependencies are already registered if they are affected
+              if (dependency != null && dependency != chunk && myPendingDependencies.containsKey(dependency)) {
+                dependencies.add(dependency);
+              }
+            }
+          }
+        }
+        myPendingDependencies.put(chunk, dependencies);
+        if (dependencies.isEmpty()) {
+          myReadyChunks.add(chunk);
+        }
+        for (ModuleChunk dependency : dependencies) {
+          List<ModuleChunk> dependents = myDependents.get(dependency);
+          if (dependents == null) {
+            dependents = new ArrayList<ModuleChunk>();
+            myDependents.put(dependency, dependents);
+          }
+          dependents.add(chunk);
+        }
+      }
+    }
+
+    private void submit(final ModuleChunk chunk) {
+      SharedThreadPool.INSTANCE.execute(new Runnable() {
+        @Override
+        public void run() {
+          Throwable error = null;
+          try {
+            buildChunk(myContext.createChunkContext(), chunk);
+          }
+          catch (Throwable e) {
+            error = e;
+          }
+          finally {
+            myFinishedChunks.offer(Pair.create(chunk, error));
+          }
+        }
+      });
+    }
+  }
 }
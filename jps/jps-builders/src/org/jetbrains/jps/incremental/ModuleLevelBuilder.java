@@ -25,8 +25,8 @@ import java.util.*;
 public abstract class ModuleLevelBuilder extends Builder {
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.Builder");
 
-  private static final Key<Set<File>> ALL_AFFECTED_FILES_KEY = Key.create("_all_affected_files_");
-  private static final Key<Set<File>> ALL_COMPILED_FILES_KEY = Key.create("_all_compiled_files_");
+  private static final Key<Set<File>> ALL_AFFECTED_FILES_KEY = CompileContext.createChunkLocalKey("_all_affected_files_");
+  private static final Key<Set<File>> ALL_COMPILED_FILES_KEY = CompileContext.createChunkLocalKey("_all_compiled_files_");
   static final Key<Callbacks.ConstantAffectionResolver> CONSTANT_SEARCH_SERVICE = Key.create("_constant_search_service_");
 
   private final BuilderCategory myCategory;
@@ -71,13 +71,24 @@ public abstract class ModuleLevelBuilder extends Builder {
     if (context.errorsDetected()) {
       return false;
     }
+    final Mappings globalMappings = context.getDataManager().getMappings();
+    // chunks may be built in parallel, the differentiate-integrate sequence should not interleave with other chunks
+    synchronized (globalMappings) {
+      return doUpdateMappings(context, globalMappings, delta, chunk, filesToCompile, successfullyCompiled);
+    }
+  }
+
+  private static boolean doUpdateMappings(CompileContext context,
+                                          final Mappings globalMappings,
+                                          final Mappings delta,
+                                          ModuleChunk chunk,
+                                          Collection<File> filesToCompile,
+                                          Collection<File> successfullyCompiled) throws IOException {
     try {
       boolean additionalPassRequired = false;
 
       final Set<String> removedPaths = getRemovedPaths(context, chunk);
 
-      final Mappings globalMappings = context.getDataManager().getMappings();
-
       if (!context.isProjectRebuild()) {
         if (context.shouldDifferentiate(chunk, context.isCompilingTests())) {
           context.processMessage(new ProgressMessage("Checking dependencies"));
@@ -4,20 +4,24 @@ import com.intellij.openapi.util.io.FileUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.Module;
+import org.jetbrains.jps.ModuleChunk;
 import org.jetbrains.jps.PathUtil;
 import org.jetbrains.jps.Project;
 import org.jetbrains.jps.incremental.fs.RootDescriptor;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * @author Eugene Zhuravlev
  *         Date: 1/11/12
  */
 public class ModuleRootsIndex {
-  private final Map<File, RootDescriptor> myRootToModuleMap = new HashMap<File, RootDescriptor>();
-  private final Map<Module, List<RootDescriptor>> myModuleToRootsMap = new HashMap<Module, List<RootDescriptor>>();
+  // temp roots may be associated and cleared while other chunks are being built
+  private final Map<File, RootDescriptor> myRootToModuleMap = new ConcurrentHashMap<File, RootDescriptor>();
+  private final Map<Module, List<RootDescriptor>> myModuleToRootsMap = new ConcurrentHashMap<Module, List<RootDescriptor>>();
   private final Map<String, Module> myNameToModuleMap = new HashMap<String, Module>();
   private final int myTotalModuleCount;
   private final Set<File> myExcludedRoots = new HashSet<File>();
@@ -32,7 +36,7 @@ public class ModuleRootsIndex {
 
       List<RootDescriptor> moduleRoots = myModuleToRootsMap.get(module);
       if (moduleRoots == null) {
-        moduleRoots = new ArrayList<RootDescriptor>();
+        moduleRoots = new CopyOnWriteArrayList<RootDescriptor>();
         myModuleToRootsMap.put(module, moduleRoots);
       }
       Set<String> generatedRoots = module.getGeneratedSourceRoots();
@@ -79,14 +83,14 @@ public class ModuleRootsIndex {
   }
 
   @NotNull
-  public RootDescriptor associateRoot(File root, Module module, boolean isTestRoot, final boolean isForGeneratedSources, final boolean isTemp) {
+  public synchronized RootDescriptor associateRoot(File root, Module module, boolean isTestRoot, final boolean isForGeneratedSources, final boolean isTemp) {
     final RootDescriptor d = myRootToModuleMap.get(root);
     if (d != null) {
       return d;
     }
     List<RootDescriptor> moduleRoots = myModuleToRootsMap.get(module);
     if (moduleRoots == null) {
-      moduleRoots = new ArrayList<RootDescriptor>();
+      moduleRoots = new CopyOnWriteArrayList<RootDescriptor>();
       myModuleToRootsMap.put(module, moduleRoots);
     }
     final RootDescriptor descriptor = new RootDescriptor(module.getName(), root, isTestRoot, isForGeneratedSources, isTemp);
@@ -96,19 +100,20 @@ public class ModuleRootsIndex {
   }
 
   @NotNull
-  public Collection<RootDescriptor> clearTempRoots() {
+  public synchronized Collection<RootDescriptor> clearTempRoots(ModuleChunk chunk) {
     final Set<RootDescriptor> toRemove = new HashSet<RootDescriptor>();
-    for (Iterator<Map.Entry<File, RootDescriptor>> iterator = myRootToModuleMap.entrySet().iterator(); iterator.hasNext(); ) {
-      Map.Entry<File, RootDescriptor> entry = iterator.next();
-      final RootDescriptor rd = entry.getValue();
-      if (rd.isTemp) {
-        toRemove.add(rd);
-        iterator.remove();
+    for (Module module : chunk.getModules()) {
+      final List<RootDescriptor> moduleRoots = myModuleToRootsMap.get(module);
+      if (moduleRoots != null) {
+        for (RootDescriptor rd : moduleRoots) {
+          if (rd.isTemp) {
+            toRemove.add(rd);
+            myRootToModuleMap.remove(rd.root);
+          }
+        }
+        moduleRoots.removeAll(toRemove);
       }
     }
-    for (Map.Entry<Module, List<RootDescriptor>> entry : myModuleToRootsMap.entrySet()) {
-      entry.getValue().removeAll(toRemove);
-    }
     return toRemove;
   }
 
@@ -15,7 +15,7 @@ import java.util.*;
  *         Date: 10/20/11
  */
 public class Utils {
-  public static final Key<Map<String, Collection<String>>> REMOVED_SOURCES_KEY = Key.create("_removed_sources_");
+  public static final Key<Map<String, Collection<String>>> REMOVED_SOURCES_KEY = CompileContext.createChunkLocalKey("_removed_sources_");
   private static volatile File ourSystemRoot = new File(System.getProperty("user.home", ".idea-build"));
 
   private Utils() {
@@ -12,9 +12,9 @@ import org.jetbrains.jps.incremental.storage.Timestamps;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Eugene Zhuravlev
@@ -22,9 +22,8 @@ import java.util.Set;
  */
 public class BuildFSState extends FSState {
 
-  private final Set<String> myContextModules = new HashSet<String>();
-  private volatile FilesDelta myCurrentRoundDelta;
-  private volatile FilesDelta myLastRoundDelta;
+  // module name -> round data of the chunk being built; several chunks can be built at the same time
+  private final Map<String, ChunkRoundData> myContextModules = new ConcurrentHashMap<String, ChunkRoundData>();
 
   // when true, will always determine dirty files by scanning FS and comparing timestamps
   // alternatively, when false, after first scan will rely on extarnal notifications about changes
@@ -46,7 +45,8 @@ public class BuildFSState extends FSState {
 
   @Override
   public Map<File, Set<File>> getSourcesToRecompile(final String moduleName, boolean forTests) {
-    final FilesDelta lastRoundDelta = myLastRoundDelta;
+    final ChunkRoundData data = myContextModules.get(moduleName);
+    final FilesDelta lastRoundDelta = data != null ? data.myLastRoundDelta : null;
     if (lastRoundDelta != null) {
       return lastRoundDelta.getSourcesToRecompile(forTests);
     }
@@ -55,12 +55,7 @@ public class BuildFSState extends FSState {
 
   @Override
   public boolean markDirty(File file, final RootDescriptor rd, @Nullable Timestamps tsStorage) throws IOException {
-    final FilesDelta roundDelta = myCurrentRoundDelta;
-    if (roundDelta != null) {
-      if (myContextModules.contains(rd.module)) {
-        roundDelta.markRecompile(rd.root, rd.isTestRoot, file);
-      }
-    }
+    markRoundRecompile(file, rd);
     return super.markDirty(file, rd, tsStorage);
   }
 
@@ -68,43 +63,60 @@ public class BuildFSState extends FSState {
   public boolean markDirtyIfNotDeleted(File file, final RootDescriptor rd, @Nullable Timestamps tsStorage) throws IOException {
     final boolean marked = super.markDirtyIfNotDeleted(file, rd, tsStorage);
     if (marked) {
-      final FilesDelta roundDelta = myCurrentRoundDelta;
+      markRoundRecompile(file, rd);
+    }
+    return marked;
+  }
+
+  private void markRoundRecompile(File file, RootDescriptor rd) {
+    final ChunkRoundData data = myContextModules.get(rd.module);
+    if (data != null) {
+      final FilesDelta roundDelta = data.myCurrentRoundDelta;
       if (roundDelta != null) {
-        if (myContextModules.contains(rd.module)) {
-          roundDelta.markRecompile(rd.root, rd.isTestRoot, file);
-        }
+        roundDelta.markRecompile(rd.root, rd.isTestRoot, file);
       }
     }
-    return marked;
   }
 
   public void clearAll() {
-    clearContextRoundData();
-    clearContextChunk();
+    myContextModules.clear();
     myInitialProductionScanPerformed.clear();
     myInitialTestsScanPerformed.clear();
     super.clearAll();
   }
 
-  public void clearContextRoundData() {
-    myCurrentRoundDelta = null;
-    myLastRoundDelta = null;
+  public void clearContextRoundData(ModuleChunk chunk) {
+    final ChunkRoundData data = getRoundData(chunk);
+    if (data != null) {
+      data.myCurrentRoundDelta = null;
+      data.myLastRoundDelta = null;
+    }
   }
 
-  public void clearContextChunk() {
-    myContextModules.clear();
+  public void clearContextChunk(ModuleChunk chunk) {
+    for (Module module : chunk.getModules()) {
+      myContextModules.remove(module.getName());
+    }
   }
 
   public void setContextChunk(ModuleChunk chunk) {
-    myContextModules.clear();
+    final ChunkRoundData data = new ChunkRoundData();
     for (Module module : chunk.getModules()) {
-      myContextModules.add(module.getName());
+      myContextModules.put(module.getName(), data);
     }
   }
 
-  public void beforeNextRoundStart() {
-    myLastRoundDelta = myCurrentRoundDelta;
-    myCurrentRoundDelta = new FilesDelta();
+  public void beforeNextRoundStart(ModuleChunk chunk) {
+    final ChunkRoundData data = getRoundData(chunk);
+    if (data != null) {
+      data.myLastRoundDelta = data.myCurrentRoundDelta;
+      data.myCurrentRoundDelta = new FilesDelta();
+    }
+  }
+
+  @Nullable
+  private ChunkRoundData getRoundData(ModuleChunk chunk) {
+    return myContextModules.get(chunk.representativeModule().getName());
   }
 
   public boolean processFilesToRecompile(CompileContext context, final Module module, final FileProcessor processor) throws IOException {
@@ -165,4 +177,9 @@ public class BuildFSState extends FSState {
     }
     return marked;
   }
+
+  private static class ChunkRoundData {
+    volatile FilesDelta myCurrentRoundDelta;
+    volatile FilesDelta myLastRoundDelta;
+  }
 }
@@ -29,6 +29,7 @@ import org.jetbrains.ether.dependencyView.Mappings;
 import org.jetbrains.jps.*;
 import org.jetbrains.jps.api.GlobalOptions;
 import org.jetbrains.jps.api.RequestFuture;
+import org.jetbrains.jps.api.SharedThreadPool;
 import org.jetbrains.jps.incremental.*;
 import org.jetbrains.jps.incremental.fs.RootDescriptor;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
@@ -59,6 +60,9 @@ public class JavaBuilder extends ModuleLevelBuilder {
   private static final String JAVA_EXTENSION = ".java";
   private static final String FORM_EXTENSION = ".form";
   public static final boolean USE_EMBEDDED_JAVAC = System.getProperty(GlobalOptions.USE_EXTERNAL_JAVAC_OPTION) == null;
+  private static final int JAVAC_WORKERS_COUNT = Integer.parseInt(System.getProperty(GlobalOptions.JAVAC_WORKERS_COUNT_OPTION, "0"));
+  private static final JavacWorkerPool ourJavacWorkerPool =
+    USE_EMBEDDED_JAVAC && JAVAC_WORKERS_COUNT > 1 ? new JavacWorkerPool(JAVAC_WORKERS_COUNT, SharedThreadPool.INSTANCE) : null;
   private static final Key<Integer> JAVA_COMPILER_VERSION_KEY = Key.create("_java_compiler_version_");
   private static final Set<String> FILTERED_OPTIONS = new HashSet<String>(Arrays.<String>asList(
     "-target", "-proc:none", "-proc:only"
@@ -78,7 +82,7 @@ public class JavaBuilder extends ModuleLevelBuilder {
     }
   };
 
-  private static final Key<Callbacks.Backend> DELTA_MAPPINGS_CALLBACK_KEY = Key.create("_dependency_data_");
+  private static final Key<Callbacks.Backend> DELTA_MAPPINGS_CALLBACK_KEY = CompileContext.createChunkLocalKey("_dependency_data_");
   private final Executor myTaskRunner;
   private int myTasksInProgress = 0;
   private final Object myCounterLock = new Object();
@@ -418,7 +422,28 @@ public class JavaBuilder extends ModuleLevelBuilder {
     final ClassProcessingConsumer classesConsumer = new ClassProcessingConsumer(context, outputSink);
     try {
       final boolean rc;
-      if (USE_EMBEDDED_JAVAC) {
+      if (ourJavacWorkerPool != null) {
+        // when the sources are split between workers, every worker finds the rest of chunk sources on the source path
+        final Set<File> chunkSourceRoots = new LinkedHashSet<File>();
+        final ModuleRootsIndex index = context.getRootsIndex();
+        for (Module module : modules) {
+          for (RootDescriptor rd : index.getModuleRoots(module)) {
+            if (rd.isTestRoot == context.isCompilingTests()) {
+              chunkSourceRoots.add(rd.root);
+            }
+          }
+        }
+        final JavacWorkerPool.Result result = ourJavacWorkerPool.compile(
+          options, files, classpath, platformCp, sourcePath, chunkSourceRoots, outs, diagnosticSink, classesConsumer,
+          context.getCancelStatus()
+        );
+        LOG.info("Compiled " + result.getFilesCount() + " java files of module " + getChunkPresentableName(chunk) + " in " +
+                 result.getShardsCount() + " shard(s), " + result.getColdShardsCount() + " of them cold: " + result.getTime() + " ms" +
+                 "; average time per file: cold " + formatFileTime(ourJavacWorkerPool.getAverageColdFileTime()) +
+                 ", warm " + formatFileTime(ourJavacWorkerPool.getAverageWarmFileTime()));
+        rc = result.isSuccessful();
+      }
+      else if (USE_EMBEDDED_JAVAC) {
         rc = JavacMain.compile(
           options, files, classpath, platformCp, sourcePath, outs, diagnosticSink, classesConsumer, context.getCancelStatus()
         );
@@ -442,6 +467,10 @@ public class JavaBuilder extends ModuleLevelBuilder {
     }
   }
 
+  private static String formatFileTime(double time) {
+    return time < 0 ? "n/a" : String.format(Locale.US, "%.1f ms", time);
+  }
+
   private void ensurePendingTasksCompleted() {
     synchronized (myCounterLock) {
       while (myTasksInProgress > 0) {
@@ -475,7 +504,7 @@ public class JavaBuilder extends ModuleLevelBuilder {
     });
   }
 
-  private static JavacServerClient ensureJavacServerLaunched(CompileContext context) throws Exception {
+  private static synchronized JavacServerClient ensureJavacServerLaunched(CompileContext context) throws Exception {
     final ExternalJavacDescriptor descriptor = ExternalJavacDescriptor.KEY.get(context);
     if (descriptor != null) {
       return descriptor.client;
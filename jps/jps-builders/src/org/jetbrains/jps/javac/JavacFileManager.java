@@ -170,6 +170,16 @@ class JavacFileManager extends ForwardingJavaFileManager<StandardJavaFileManager
     return getStdManager().getJavaFileObjectsFromFiles(files);
   }
 
+  @Override
+  public void flush() {
+    try {
+      super.flush();
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   @Override
   public void close() {
     try {
@@ -1,5 +1,6 @@
 package org.jetbrains.jps.javac;
 
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.SystemInfo;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jps.api.CanceledStatus;
@@ -14,6 +15,7 @@ import java.util.*;
  *         Date: 1/21/12
  */
 public class JavacMain {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.javac.JavacMain");
   private static final boolean IS_VM_6_VERSION = System.getProperty("java.version", "1.6").contains("1.6");
   private static final Set<String> FILTERED_OPTIONS = new HashSet<String>(Arrays.<String>asList(
     "-d", "-classpath", "-cp", "-bootclasspath"
@@ -32,11 +34,32 @@ public class JavacMain {
                                 final OutputFileConsumer outputSink,
                                 CanceledStatus canceledStatus) {
     final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    return compile(options, sources, classpath, platformClasspath, sourcePath, outputDirToRoots, outConsumer, outputSink, canceledStatus,
+                   compiler, createStandardFileManager(compiler, outConsumer), false, true);
+  }
 
+  /**
+   * @param reuseFileManager if true, the standard file manager is only flushed after the compilation so that it can be used again;
+   *                         otherwise it is closed
+   * @param implicitClasses  whether class files should be generated for the sources found on the source path
+   */
+  static boolean compile(Collection<String> options,
+                         final Collection<File> sources,
+                         Collection<File> classpath,
+                         Collection<File> platformClasspath,
+                         Collection<File> sourcePath,
+                         Map<File, Set<File>> outputDirToRoots,
+                         final DiagnosticOutputConsumer outConsumer,
+                         final OutputFileConsumer outputSink,
+                         CanceledStatus canceledStatus,
+                         @NotNull JavaCompiler compiler,
+                         @NotNull StandardJavaFileManager stdManager,
+                         boolean reuseFileManager,
+                         boolean implicitClasses) {
     for (File outputDir : outputDirToRoots.keySet()) {
       outputDir.mkdirs();
     }
-    final JavacFileManager fileManager = new JavacFileManager(new ContextImpl(compiler, outConsumer, outputSink, canceledStatus));
+    final JavacFileManager fileManager = new JavacFileManager(new ContextImpl(stdManager, outConsumer, outputSink, canceledStatus));
 
     fileManager.handleOption("-bootclasspath", Collections.singleton("").iterator()); // this will clear cached stuff
     fileManager.handleOption("-extdirs", Collections.singleton("").iterator()); // this will clear cached stuff
@@ -66,7 +89,7 @@ public class JavacMain {
     };
 
     try {
-      final Collection<String> _options = prepareOptions(options);
+      final Collection<String> _options = prepareOptions(options, implicitClasses);
       final JavaCompiler.CompilationTask task = compiler.getTask(
         out, fileManager, outConsumer, _options, null, fileManager.toJavaFileObjects(sources)
       );
@@ -83,12 +106,33 @@ public class JavacMain {
       outConsumer.report(new PlainMessageDiagnostic(Diagnostic.Kind.ERROR, e.getMessage()));
     }
     finally {
-      fileManager.close();
+      if (reuseFileManager) {
+        fileManager.flush();
+      }
+      else {
+        fileManager.close();
+      }
     }
     return false;
   }
 
-  private static boolean isAnnotationProcessingEnabled(final Collection<String> options) {
+  static StandardJavaFileManager createStandardFileManager(@NotNull JavaCompiler compiler,
+                                                           @NotNull DiagnosticListener<? super JavaFileObject> diagnosticListener) {
+    final Class<StandardJavaFileManager> optimizedManagerClass = ClasspathBootstrap.getOptimizedFileManagerClass();
+    if (optimizedManagerClass != null) {
+      try {
+        return optimizedManagerClass.newInstance();
+      }
+      catch (Throwable e) {
+        if (SystemInfo.isWindows) {
+          LOG.info("Failed to load JPS optimized file manager for javac", e);
+        }
+      }
+    }
+    return compiler.getStandardFileManager(diagnosticListener, Locale.US, null);
+  }
+
+  static boolean isAnnotationProcessingEnabled(final Collection<String> options) {
     for (String option : options) {
       if ("-proc:none".equals(option)) {
         return false;
@@ -97,9 +141,9 @@ public class JavacMain {
     return true;
   }
 
-  private static Collection<String> prepareOptions(final Collection<String> options) {
+  private static Collection<String> prepareOptions(final Collection<String> options, boolean implicitClasses) {
     final List<String> result = new ArrayList<String>();
-    result.add("-implicit:class");
+    result.add(implicitClasses ? "-implicit:class" : "-implicit:none");
     boolean skip = false;
     for (String option : options) {
       if (FILTERED_OPTIONS.contains(option)) {
@@ -122,31 +166,14 @@ public class JavacMain {
     private final OutputFileConsumer myOutputFileSink;
     private final CanceledStatus myCanceledStatus;
 
-    public ContextImpl(@NotNull JavaCompiler compiler,
+    public ContextImpl(@NotNull StandardJavaFileManager stdManager,
                        @NotNull DiagnosticOutputConsumer outConsumer,
                        @NotNull OutputFileConsumer sink,
                        CanceledStatus canceledStatus) {
+      myStdManager = stdManager;
       myOutConsumer = outConsumer;
       myOutputFileSink = sink;
       myCanceledStatus = canceledStatus;
-      StandardJavaFileManager stdManager = null;
-      final Class<StandardJavaFileManager> optimizedManagerClass = ClasspathBootstrap.getOptimizedFileManagerClass();
-      if (optimizedManagerClass != null) {
-        try {
-          stdManager = optimizedManagerClass.newInstance();
-        }
-        catch (Throwable e) {
-          if (SystemInfo.isWindows) {
-            System.err.println("Failed to load JPS optimized file manager for javac: " + e.getMessage());
-          }
-        }
-      }
-      if (stdManager != null) {
-        myStdManager = stdManager;
-      }
-      else {
-        myStdManager = compiler.getStandardFileManager(outConsumer, Locale.US, null);
-      }
     }
 
     public boolean isCanceled() {
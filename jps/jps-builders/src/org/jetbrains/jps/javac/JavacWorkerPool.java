@@ -0,0 +1,406 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.javac;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.CanceledStatus;
+
+import javax.tools.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of in-process javac workers. Every worker keeps its standard file manager with already opened classpath archives
+ * between compilations, so only the first compilation performed by a worker ("cold") pays for opening and indexing the archives.
+ * <p/>
+ * Sources of a compilation are sharded by packages and the shards are compiled concurrently by different workers. Each shard
+ * sees the source roots of the chunk on its source path and generates classes only for its own sources. Diagnostics and output
+ * files of the shards are buffered and reported after all shards are compiled, in the order of the shards and without duplicate
+ * diagnostics. A compilation which is not split compiles with the given source path and options only.
+ */
+public class JavacWorkerPool {
+  private static final int MIN_FILES_PER_SHARD = 10;
+
+  private final int myWorkersCount;
+  private final BlockingQueue<Worker> myIdleWorkers;
+  private final Executor myExecutor;
+
+  private final AtomicLong myColdFilesCount = new AtomicLong();
+  private final AtomicLong myColdTime = new AtomicLong();
+  private final AtomicLong myWarmFilesCount = new AtomicLong();
+  private final AtomicLong myWarmTime = new AtomicLong();
+
+  public JavacWorkerPool(int workersCount, @NotNull Executor executor) {
+    myWorkersCount = Math.max(1, workersCount);
+    myExecutor = executor;
+    myIdleWorkers = new ArrayBlockingQueue<Worker>(myWorkersCount);
+    for (int i = 0; i < myWorkersCount; i++) {
+      myIdleWorkers.add(new Worker());
+    }
+  }
+
+  public int getWorkersCount() {
+    return myWorkersCount;
+  }
+
+  @NotNull
+  public Result compile(final Collection<String> options,
+                        final Collection<File> sources,
+                        final Collection<File> classpath,
+                        final Collection<File> platformClasspath,
+                        final Collection<File> sourcePath,
+                        final Collection<File> chunkSourceRoots,
+                        final Map<File, Set<File>> outputDirToRoots,
+                        final DiagnosticOutputConsumer outConsumer,
+                        final OutputFileConsumer outputSink,
+                        final CanceledStatus canceledStatus) throws Exception {
+    final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    final List<List<File>> shards = JavacMain.isAnnotationProcessingEnabled(options)?
+                                    Collections.<List<File>>singletonList(new ArrayList<File>(sources)) :
+                                    splitByPackages(sources, myWorkersCount);
+    final boolean sharded = shards.size() > 1;
+    final Collection<File> shardSourcePath;
+    final BufferingFileConsumer bufferingSink;
+    if (sharded) {
+      // sources of the other shards are found on the source path and compiled without generating classes (-implicit:none);
+      // outputs are saved after all shards complete, so no shard reads a class file being written by another one
+      shardSourcePath = new LinkedHashSet<File>(sourcePath);
+      shardSourcePath.addAll(chunkSourceRoots);
+      bufferingSink = new BufferingFileConsumer();
+    }
+    else {
+      shardSourcePath = sourcePath;
+      bufferingSink = null;
+    }
+
+    final List<ShardTask> tasks = new ArrayList<ShardTask>(shards.size());
+    final List<FutureTask<Boolean>> futures = new ArrayList<FutureTask<Boolean>>(shards.size());
+    for (final List<File> shardSources : shards) {
+      final ShardTask task = new ShardTask(sharded? new BufferingOutputConsumer(outConsumer) : outConsumer) {
+        @Override
+        protected boolean compile(@NotNull StandardJavaFileManager fileManager) {
+          return JavacMain.compile(options, shardSources, classpath, platformClasspath, shardSourcePath, outputDirToRoots,
+                                   getOutputConsumer(), bufferingSink != null ? bufferingSink : outputSink, canceledStatus, compiler,
+                                   fileManager, true, !sharded);
+        }
+      };
+      task.myFilesCount = shardSources.size();
+      tasks.add(task);
+      futures.add(new FutureTask<Boolean>(task));
+    }
+
+    for (int i = 1; i < futures.size(); i++) {
+      myExecutor.execute(futures.get(i));
+    }
+    boolean success = true;
+    Throwable error = null;
+    for (FutureTask<Boolean> future : futures) {
+      future.run(); // does nothing if the task has already been started by the executor
+      try {
+        success &= future.get();
+      }
+      catch (ExecutionException e) {
+        success = false;
+        if (error == null) {
+          error = e.getCause();
+        }
+      }
+    }
+
+    if (sharded) {
+      for (OutputFileObject fileObject : bufferingSink.getFiles()) {
+        outputSink.save(fileObject);
+      }
+      final Set<String> reported = new HashSet<String>();
+      for (ShardTask task : tasks) {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : ((BufferingOutputConsumer)task.getOutputConsumer()).getDiagnostics()) {
+          if (reported.add(getDiagnosticKey(diagnostic))) {
+            outConsumer.report(diagnostic);
+          }
+        }
+      }
+    }
+    if (error instanceof Exception) {
+      throw (Exception)error;
+    }
+    if (error instanceof Error) {
+      throw (Error)error;
+    }
+
+    int coldShards = 0;
+    long time = 0;
+    for (ShardTask task : tasks) {
+      if (task.myCold) {
+        coldShards++;
+      }
+      time = Math.max(time, task.myTime);
+    }
+    return new Result(success, sources.size(), tasks.size(), coldShards, time);
+  }
+
+  /**
+   * @return average time of compiling a single file in milliseconds by workers that had to open a new file manager, or -1 if there were no such compilations
+   */
+  public double getAverageColdFileTime() {
+    final long count = myColdFilesCount.get();
+    return count == 0 ? -1 : (double)myColdTime.get() / count;
+  }
+
+  /**
+   * @return average time of compiling a single file in milliseconds by workers that reused their file managers, or -1 if there were no such compilations
+   */
+  public double getAverageWarmFileTime() {
+    final long count = myWarmFilesCount.get();
+    return count == 0 ? -1 : (double)myWarmTime.get() / count;
+  }
+
+  static List<List<File>> splitByPackages(Collection<File> sources, int maxShardsCount) {
+    final Map<File, List<File>> packages = new LinkedHashMap<File, List<File>>();
+    for (File source : sources) {
+      final File dir = source.getParentFile();
+      List<File> files = packages.get(dir);
+      if (files == null) {
+        files = new ArrayList<File>();
+        packages.put(dir, files);
+      }
+      files.add(source);
+    }
+
+    final int shardsCount = Math.min(maxShardsCount, Math.min(packages.size(), sources.size() / MIN_FILES_PER_SHARD));
+    if (shardsCount < 2) {
+      return Collections.<List<File>>singletonList(new ArrayList<File>(sources));
+    }
+
+    final List<List<File>> packageFiles = new ArrayList<List<File>>(packages.values());
+    Collections.sort(packageFiles, new Comparator<List<File>>() {
+      public int compare(List<File> o1, List<File> o2) {
+        return o2.size() - o1.size();
+      }
+    });
+    final List<List<File>> shards = new ArrayList<List<File>>(shardsCount);
+    for (int i = 0; i < shardsCount; i++) {
+      shards.add(new ArrayList<File>());
+    }
+    for (List<File> files : packageFiles) {
+      List<File> smallest = shards.get(0);
+      for (List<File> shard : shards) {
+        if (shard.size() < smallest.size()) {
+          smallest = shard;
+        }
+      }
+      smallest.addAll(files);
+    }
+    return shards;
+  }
+
+  private static String getDiagnosticKey(Diagnostic<? extends JavaFileObject> diagnostic) {
+    final JavaFileObject source = diagnostic.getSource();
+    return diagnostic.getKind() + ":" + (source != null ? source.toUri() : "") + ":" + diagnostic.getPosition() + ":" +
+           diagnostic.getMessage(Locale.US);
+  }
+
+  public static class Result {
+    private final boolean mySuccessful;
+    private final int myFilesCount;
+    private final int myShardsCount;
+    private final int myColdShardsCount;
+    private final long myTime;
+
+    Result(boolean successful, int filesCount, int shardsCount, int coldShardsCount, long time) {
+      mySuccessful = successful;
+      myFilesCount = filesCount;
+      myShardsCount = shardsCount;
+      myColdShardsCount = coldShardsCount;
+      myTime = time;
+    }
+
+    public boolean isSuccessful() {
+      return mySuccessful;
+    }
+
+    public int getFilesCount() {
+      return myFilesCount;
+    }
+
+    public int getShardsCount() {
+      return myShardsCount;
+    }
+
+    public int getColdShardsCount() {
+      return myColdShardsCount;
+    }
+
+    /**
+     * @return time of the longest shard compilation in milliseconds, excluding the time spent waiting for a free worker
+     */
+    public long getTime() {
+      return myTime;
+    }
+  }
+
+  private abstract class ShardTask implements Callable<Boolean> {
+    private final DiagnosticOutputConsumer myOutputConsumer;
+    private int myFilesCount;
+    private boolean myCold;
+    private long myTime;
+
+    ShardTask(DiagnosticOutputConsumer outputConsumer) {
+      myOutputConsumer = outputConsumer;
+    }
+
+    DiagnosticOutputConsumer getOutputConsumer() {
+      return myOutputConsumer;
+    }
+
+    protected abstract boolean compile(@NotNull StandardJavaFileManager fileManager);
+
+    public Boolean call() throws Exception {
+      final Worker worker = myIdleWorkers.take();
+      boolean completed = false;
+      try {
+        final long start = System.currentTimeMillis();
+        myCold = worker.prepare(ToolProvider.getSystemJavaCompiler(), myOutputConsumer);
+        final boolean result = compile(worker.getFileManager());
+        myTime = System.currentTimeMillis() - start;
+        (myCold ? myColdFilesCount : myWarmFilesCount).addAndGet(myFilesCount);
+        (myCold ? myColdTime : myWarmTime).addAndGet(myTime);
+        completed = true;
+        return result;
+      }
+      finally {
+        worker.release(completed);
+        myIdleWorkers.add(worker);
+      }
+    }
+  }
+
+  private static class Worker implements DiagnosticListener<JavaFileObject> {
+    private final Map<File, Long> myArchiveStamps = new HashMap<File, Long>();
+    @Nullable
+    private StandardJavaFileManager myFileManager;
+    private volatile DiagnosticListener<? super JavaFileObject> myListener;
+
+    /**
+     * @return true if a new file manager had to be created
+     */
+    boolean prepare(@NotNull JavaCompiler compiler, @NotNull DiagnosticListener<? super JavaFileObject> listener) {
+      myListener = listener;
+      if (myFileManager != null && !hasChangedArchives()) {
+        return false;
+      }
+      dispose();
+      myFileManager = JavacMain.createStandardFileManager(compiler, this);
+      return true;
+    }
+
+    @NotNull
+    StandardJavaFileManager getFileManager() {
+      assert myFileManager != null;
+      return myFileManager;
+    }
+
+    void release(boolean reusable) {
+      myListener = null;
+      if (reusable && myFileManager != null) {
+        rememberArchives(myFileManager.getLocation(StandardLocation.CLASS_PATH));
+        rememberArchives(myFileManager.getLocation(StandardLocation.PLATFORM_CLASS_PATH));
+      }
+      else {
+        dispose();
+      }
+    }
+
+    void dispose() {
+      myArchiveStamps.clear();
+      if (myFileManager != null) {
+        try {
+          myFileManager.close();
+        }
+        catch (IOException ignored) {
+        }
+        myFileManager = null;
+      }
+    }
+
+    public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+      final DiagnosticListener<? super JavaFileObject> listener = myListener;
+      if (listener != null) {
+        listener.report(diagnostic);
+      }
+    }
+
+    private boolean hasChangedArchives() {
+      for (Map.Entry<File, Long> entry : myArchiveStamps.entrySet()) {
+        if (entry.getKey().lastModified() != entry.getValue()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void rememberArchives(@Nullable Iterable<? extends File> path) {
+      if (path != null) {
+        for (File file : path) {
+          if (!myArchiveStamps.containsKey(file) && file.isFile()) {
+            myArchiveStamps.put(file, file.lastModified());
+          }
+        }
+      }
+    }
+  }
+
+  private static class BufferingFileConsumer implements OutputFileConsumer {
+    private final List<OutputFileObject> myFiles = Collections.synchronizedList(new ArrayList<OutputFileObject>());
+
+    List<OutputFileObject> getFiles() {
+      return myFiles;
+    }
+
+    public void save(@NotNull OutputFileObject fileObject) {
+      myFiles.add(fileObject);
+    }
+  }
+
+  private static class BufferingOutputConsumer implements DiagnosticOutputConsumer {
+    private final DiagnosticOutputConsumer myDelegate;
+    private final List<Diagnostic<? extends JavaFileObject>> myDiagnostics =
+      Collections.synchronizedList(new ArrayList<Diagnostic<? extends JavaFileObject>>());
+
+    BufferingOutputConsumer(DiagnosticOutputConsumer delegate) {
+      myDelegate = delegate;
+    }
+
+    List<Diagnostic<? extends JavaFileObject>> getDiagnostics() {
+      return myDiagnostics;
+    }
+
+    public void outputLineAvailable(String line) {
+      myDelegate.outputLineAvailable(line);
+    }
+
+    public void registerImports(String className, Collection<String> imports, Collection<String> staticImports) {
+      myDelegate.registerImports(className, imports, staticImports);
+    }
+
+    public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+      myDiagnostics.add(diagnostic);
+    }
+  }
+}
@@ -4,6 +4,7 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.sun.tools.javac.util.*;
 import com.sun.tools.javac.util.List;
+import org.jetbrains.jps.server.LibraryClassCache;
 
 import javax.lang.model.SourceVersion;
 import javax.tools.FileObject;
@@ -18,6 +19,8 @@ import java.nio.CharBuffer;
 import java.nio.charset.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * WARNING: Loaded via reflection, do not delete
@@ -59,6 +62,14 @@ class OptimizedFileManager extends DefaultFileManager {
     return getFileForInput(location, name);
   }
 
+  @Override
+  public void flush() {
+    // sources and output directories may change before the manager is used for the next compilation
+    myContentCache.clear();
+    myIsFile.clear();
+    super.flush();
+  }
+
   @Override
   public Iterable<? extends JavaFileObject> getJavaFileObjectsFromFiles(Iterable<? extends File> files) {
     java.util.List<InputFileObject> result;
@@ -120,7 +131,7 @@ class OptimizedFileManager extends DefaultFileManager {
   private void collectFromArchive(File root, Archive archive, String relativePath, Set<JavaFileObject.Kind> kinds, boolean recurse, ListBuffer<JavaFileObject> result) {
     if (archive == null) {
       try {
-        archive = openArchive(root);
+        archive = openLibraryArchive(root);
       }
       catch (IOException ex) {
         log.error("error.reading.file", root, ex.getLocalizedMessage());
@@ -220,7 +231,7 @@ class OptimizedFileManager extends DefaultFileManager {
       if (isFile) {
         if (archive == null) {
           try {
-            archive = openArchive(root);
+            archive = openLibraryArchive(root);
           }
           catch (IOException ex) {
             log.error("error.reading.file", root, ex.getLocalizedMessage());
@@ -403,6 +414,165 @@ class OptimizedFileManager extends DefaultFileManager {
     }
   }
 
+  private Archive openLibraryArchive(File root) throws IOException {
+    final LibraryClassCache cache = LibraryClassCache.getInstance();
+    if (cache == null) {
+      return openArchive(root);
+    }
+    final Archive archive = new CachedArchive(cache, cache.getJar(root));
+    myArchives.put(root, archive);
+    return archive;
+  }
+
+  /**
+   * Archive backed by the listing and class file contents kept in {@link LibraryClassCache} between build sessions,
+   * the jar itself is opened only to read contents missing in the cache.
+   */
+  private class CachedArchive implements Archive {
+    private final LibraryClassCache myCache;
+    private final LibraryClassCache.Jar myJar;
+    private Set<String> mySubdirectories;
+    private ZipFile myZipFile;
+
+    CachedArchive(LibraryClassCache cache, LibraryClassCache.Jar jar) {
+      myCache = cache;
+      myJar = jar;
+    }
+
+    public boolean contains(String name) {
+      return myJar.contains(toJarPath(name));
+    }
+
+    public JavaFileObject getFileObject(String subdirectory, String file) {
+      return new CachedArchiveFileObject(this, toJarPath(subdirectory) + file, file);
+    }
+
+    public List<String> getFiles(String subdirectory) {
+      final String[] files = myJar.getFiles(toJarPath(subdirectory));
+      return files != null ? List.from(files) : null;
+    }
+
+    public Set<String> getSubdirectories() {
+      if (mySubdirectories == null) {
+        final Set<String> result = new HashSet<String>();
+        for (String directory : myJar.getDirectories()) {
+          result.add(myUseZipFileIndex ? directory.replace('/', File.separatorChar) : directory);
+        }
+        mySubdirectories = result;
+      }
+      return mySubdirectories;
+    }
+
+    public synchronized void close() throws IOException {
+      if (myZipFile != null) {
+        myZipFile.close();
+        myZipFile = null;
+      }
+    }
+
+    byte[] getContent(String path) throws IOException {
+      byte[] content = myCache.getContent(myJar, path);
+      if (content == null) {
+        synchronized (this) {
+          if (myZipFile == null) {
+            myZipFile = new ZipFile(myJar.getFile());
+          }
+          final ZipEntry entry = myZipFile.getEntry(path);
+          if (entry == null) {
+            throw new FileNotFoundException(myJar.getFile().getPath() + "(" + path + ")");
+          }
+          final InputStream in = myZipFile.getInputStream(entry);
+          try {
+            final long size = entry.getSize();
+            content = size >= 0 ? FileUtil.loadBytes(in, (int)size) : FileUtil.loadBytes(in);
+          }
+          finally {
+            in.close();
+          }
+        }
+        myCache.putContent(myJar, path, content);
+      }
+      return content;
+    }
+
+    private String toJarPath(String name) {
+      return name.replace('\\', '/');
+    }
+  }
+
+  private class CachedArchiveFileObject extends BaseFileObject {
+    private final CachedArchive myArchive;
+    private final String myPath;
+    private final String myName;
+
+    CachedArchiveFileObject(CachedArchive archive, String path, String name) {
+      myArchive = archive;
+      myPath = path;
+      myName = name;
+    }
+
+    public InputStream openInputStream() throws IOException {
+      return new ByteArrayInputStream(myArchive.getContent(myPath));
+    }
+
+    public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    public OutputStream openOutputStream() throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    public Writer openWriter() throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Deprecated
+    public String getName() {
+      return myName;
+    }
+
+    public boolean isNameCompatible(String cn, JavaFileObject.Kind kind) {
+      return myName.equals(cn + kind.extension);
+    }
+
+    /** @deprecated see bug 6410637 */
+    @Deprecated
+    public String getPath() {
+      return myArchive.myJar.getFile().getPath() + "(" + myPath + ")";
+    }
+
+    public long getLastModified() {
+      return myArchive.myJar.getFile().lastModified();
+    }
+
+    public boolean delete() {
+      throw new UnsupportedOperationException();
+    }
+
+    public CharBuffer getCharContent(boolean ignoreEncodingErrors) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof CachedArchiveFileObject)) {
+        return false;
+      }
+      final CachedArchiveFileObject o = (CachedArchiveFileObject)other;
+      return myArchive.myJar.getFile().equals(o.myArchive.myJar.getFile()) && myPath.equals(o.myPath);
+    }
+
+    @Override
+    public int hashCode() {
+      return myArchive.myJar.getFile().hashCode() * 31 + myPath.hashCode();
+    }
+
+    public URI toUri() {
+      return URI.create("jar:" + myArchive.myJar.getFile().toURI() + "!/" + myPath);
+    }
+  }
+
   private ByteBuffer makeByteBuffer(InputStream in) throws IOException {
     int limit = in.available();
     if (limit < 1024) {
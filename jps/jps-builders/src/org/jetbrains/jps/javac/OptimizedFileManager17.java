@@ -37,6 +37,13 @@ class OptimizedFileManager17 extends com.sun.tools.javac.file.JavacFileManager {
     myArchives = (Map<File, Archive>) archivesField.get(this);
   }
 
+  @Override
+  public void flush() {
+    // output directories may be created or deleted before the manager is used for the next compilation
+    myIsFile.clear();
+    super.flush();
+  }
+
   @Override
   public Iterable<? extends JavaFileObject> getJavaFileObjectsFromFiles(Iterable<? extends File> files) {
     java.util.List<InputFileObject> result;
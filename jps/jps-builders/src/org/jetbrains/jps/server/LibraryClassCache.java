@@ -0,0 +1,237 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Cache of library jars shared by all build sessions of the server process. Directory listings of the jars are kept on heap,
+ * contents of the class files are kept in direct buffers. Both are evicted in LRU order: listings when there are more than
+ * {@link #MAX_JARS_COUNT} jars, contents when their total size exceeds the configured limit.
+ * <p/>
+ * Jars are identified by path, timestamp and length, so a modified jar is read anew and the data of its previous version
+ * is evicted eventually.
+ */
+public class LibraryClassCache {
+  private static final int MAX_JARS_COUNT = 1000;
+
+  private static volatile LibraryClassCache ourInstance;
+
+  private final long myMaxContentSize;
+  private long myContentSize;
+  private final LinkedHashMap<File, Jar> myJars = new LinkedHashMap<File, Jar>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<File, Jar> eldest) {
+      return size() > MAX_JARS_COUNT;
+    }
+  };
+  private final LinkedHashMap<ContentKey, ByteBuffer> myContents = new LinkedHashMap<ContentKey, ByteBuffer>(1024, 0.75f, true);
+  private long myHitsCount;
+  private long myMissesCount;
+
+  public LibraryClassCache(long maxContentSize) {
+    myMaxContentSize = maxContentSize;
+  }
+
+  /**
+   * @param maxContentSize max total size of cached class files in bytes, zero or negative value disables the cache
+   */
+  public static void init(long maxContentSize) {
+    ourInstance = maxContentSize > 0 ? new LibraryClassCache(maxContentSize) : null;
+  }
+
+  @Nullable
+  public static LibraryClassCache getInstance() {
+    return ourInstance;
+  }
+
+  @NotNull
+  public Jar getJar(@NotNull File file) throws IOException {
+    final long timestamp = file.lastModified();
+    final long length = file.length();
+    synchronized (this) {
+      final Jar jar = myJars.get(file);
+      if (jar != null && jar.myTimestamp == timestamp && jar.myLength == length) {
+        return jar;
+      }
+    }
+    // reading of the listing may take a while, so it is done outside of the lock; concurrent readers of the same jar
+    // will produce equal listings
+    final Jar jar = new Jar(file, timestamp, length);
+    synchronized (this) {
+      myJars.put(file, jar);
+    }
+    return jar;
+  }
+
+  @Nullable
+  public byte[] getContent(@NotNull Jar jar, @NotNull String path) {
+    final ByteBuffer buffer;
+    synchronized (this) {
+      buffer = myContents.get(new ContentKey(jar, path));
+      if (buffer == null) {
+        myMissesCount++;
+        return null;
+      }
+      myHitsCount++;
+    }
+    final byte[] bytes = new byte[buffer.capacity()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  public void putContent(@NotNull Jar jar, @NotNull String path, @NotNull byte[] content) {
+    if (content.length > myMaxContentSize) {
+      return;
+    }
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+    buffer.put(content).flip();
+    synchronized (this) {
+      final ByteBuffer previous = myContents.put(new ContentKey(jar, path), buffer);
+      if (previous != null) {
+        myContentSize -= previous.capacity();
+      }
+      myContentSize += content.length;
+      final Iterator<ByteBuffer> iterator = myContents.values().iterator();
+      while (myContentSize > myMaxContentSize && iterator.hasNext()) {
+        myContentSize -= iterator.next().capacity();
+        iterator.remove();
+      }
+    }
+  }
+
+  public synchronized long getContentSize() {
+    return myContentSize;
+  }
+
+  public synchronized long getHitsCount() {
+    return myHitsCount;
+  }
+
+  public synchronized long getMissesCount() {
+    return myMissesCount;
+  }
+
+  public synchronized void clear() {
+    myJars.clear();
+    myContents.clear();
+    myContentSize = 0;
+  }
+
+  /**
+   * Listing of a particular version of a jar. Directory names use '/' as a separator and end with it, the root directory is
+   * represented by an empty string.
+   */
+  public static final class Jar {
+    private final File myFile;
+    private final long myTimestamp;
+    private final long myLength;
+    private final Map<String, String[]> myDirectories;
+
+    private Jar(File file, long timestamp, long length) throws IOException {
+      myFile = file;
+      myTimestamp = timestamp;
+      myLength = length;
+
+      final Map<String, List<String>> directories = new HashMap<String, List<String>>();
+      final ZipFile zipFile = new ZipFile(file);
+      try {
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+          final String name = entries.nextElement().getName();
+          final int index = name.lastIndexOf('/');
+          final String directory = name.substring(0, index + 1);
+          List<String> files = directories.get(directory);
+          if (files == null) {
+            files = new ArrayList<String>();
+            directories.put(directory, files);
+          }
+          if (index + 1 < name.length()) {
+            files.add(name.substring(index + 1));
+          }
+        }
+      }
+      finally {
+        zipFile.close();
+      }
+
+      myDirectories = new HashMap<String, String[]>(directories.size());
+      for (Map.Entry<String, List<String>> entry : directories.entrySet()) {
+        final List<String> files = entry.getValue();
+        final String[] array = files.toArray(new String[files.size()]);
+        Arrays.sort(array);
+        myDirectories.put(entry.getKey(), array);
+      }
+    }
+
+    @NotNull
+    public File getFile() {
+      return myFile;
+    }
+
+    @NotNull
+    public Set<String> getDirectories() {
+      return Collections.unmodifiableSet(myDirectories.keySet());
+    }
+
+    @Nullable
+    public String[] getFiles(@NotNull String directory) {
+      return myDirectories.get(directory);
+    }
+
+    public boolean contains(@NotNull String path) {
+      final int index = path.lastIndexOf('/');
+      final String[] files = myDirectories.get(path.substring(0, index + 1));
+      return files != null && Arrays.binarySearch(files, path.substring(index + 1)) >= 0;
+    }
+  }
+
+  private static final class ContentKey {
+    private final File myFile;
+    private final long myTimestamp;
+    private final long myLength;
+    private final String myPath;
+
+    ContentKey(Jar jar, String path) {
+      // the key should not retain the listing of the jar
+      myFile = jar.myFile;
+      myTimestamp = jar.myTimestamp;
+      myLength = jar.myLength;
+      myPath = path;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ContentKey)) return false;
+      final ContentKey key = (ContentKey)o;
+      return myTimestamp == key.myTimestamp && myLength == key.myLength && myFile.equals(key.myFile) && myPath.equals(key.myPath);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myFile.hashCode() + myPath.hashCode();
+    }
+  }
+}
@@ -35,9 +35,11 @@ public class Server {
   public static final String SERVER_SUCCESS_START_MESSAGE = "Compile Server started successfully. Listening on port: ";
   public static final String SERVER_ERROR_START_MESSAGE = "Error starting Compile Server: ";
   private static final String LOG_FILE_NAME = "log.xml";
+  private static final int DEFAULT_LIBRARY_CLASS_CACHE_SIZE_MB = 64;
 
   private static final long PING_INTERVAL;
   private static final int MAX_SIMULTANEOUS_BUILD_SESSIONS;
+  private static final int LIBRARY_CLASS_CACHE_SIZE_MB;
   static {
     long ping = -1L;
     try {
@@ -57,6 +59,14 @@ public class Server {
     catch (NumberFormatException ignored) {
     }
     MAX_SIMULTANEOUS_BUILD_SESSIONS = builds;
+
+    int cacheSize = DEFAULT_LIBRARY_CLASS_CACHE_SIZE_MB;
+    try {
+      cacheSize = Integer.parseInt(System.getProperty(GlobalOptions.LIBRARY_CLASS_CACHE_SIZE_MB_OPTION, String.valueOf(cacheSize)));
+    }
+    catch (NumberFormatException ignored) {
+    }
+    LIBRARY_CLASS_CACHE_SIZE_MB = cacheSize;
   }
 
   private final ChannelGroup myAllOpenChannels = new DefaultChannelGroup("compile-server");
@@ -209,6 +219,7 @@ public class Server {
       initLoggers();
       server.start(port);
       ServerState.getInstance().setKeepTempCachesInMemory(System.getProperty(GlobalOptions.USE_MEMORY_TEMP_CACHE_OPTION) != null);
+      LibraryClassCache.init((long)LIBRARY_CLASS_CACHE_SIZE_MB * 1024 * 1024);
 
       System.out.println("Server classpath: " + System.getProperty("java.class.path"));
       System.err.println(SERVER_SUCCESS_START_MESSAGE + port);
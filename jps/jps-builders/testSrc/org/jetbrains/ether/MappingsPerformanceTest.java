@@ -0,0 +1,216 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.ether;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.asm4.ClassWriter;
+import org.jetbrains.asm4.MethodVisitor;
+import org.jetbrains.asm4.Opcodes;
+import org.jetbrains.ether.dependencyView.Callbacks;
+import org.jetbrains.ether.dependencyView.Mappings;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Replays compilation of a generated project against {@link Mappings}: the full build with packages of the project compiled
+ * concurrently as separate chunks, and then incremental builds changing signatures of methods used by other classes.
+ */
+public class MappingsPerformanceTest extends TestCase {
+  private static final int PACKAGES_COUNT = 16;
+  private static final int CLASSES_PER_PACKAGE = 200;
+  private static final int DEPENDENCIES_PER_CLASS = 5;
+  private static final int CHANGED_CLASSES_PER_PACKAGE = 20;
+
+  private File myRoot;
+  private Mappings myMappings;
+  private int[][] myDependencies;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRoot = FileUtil.createTempDirectory("mappings", "perf");
+    myMappings = new Mappings(myRoot, false);
+
+    final Random random = new Random(239);
+    final int classesCount = PACKAGES_COUNT * CLASSES_PER_PACKAGE;
+    myDependencies = new int[classesCount][];
+    for (int i = 0; i < classesCount; i++) {
+      myDependencies[i] = new int[DEPENDENCIES_PER_CLASS];
+      for (int j = 0; j < DEPENDENCIES_PER_CLASS; j++) {
+        myDependencies[i][j] = random.nextInt(classesCount);
+      }
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myMappings.close();
+      FileUtil.delete(myRoot);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testReplayBuild() throws Exception {
+    compileConcurrently(PACKAGES_COUNT, new ChunkCompiler() {
+      @Override
+      public void compile(int pkg) {
+        final Mappings delta = myMappings.createDelta();
+        final Callbacks.Backend callback = delta.getCallback();
+        for (int i = 0; i < CLASSES_PER_PACKAGE; i++) {
+          associate(callback, pkg * CLASSES_PER_PACKAGE + i, false);
+        }
+        // the same as ModuleLevelBuilder.updateMappings does
+        synchronized (myMappings) {
+          myMappings.differentiateOnRebuild(delta);
+          myMappings.integrate(delta);
+        }
+      }
+    });
+
+    // every package is a chunk of its own
+    replayIncrementalBuild(PACKAGES_COUNT, 0);
+    // all changed classes belong to the same chunk
+    replayIncrementalBuild(1, CHANGED_CLASSES_PER_PACKAGE);
+  }
+
+  private void replayIncrementalBuild(final int chunksCount, final int firstChanged) throws Exception {
+    final Set<Integer> changed = new HashSet<Integer>();
+    for (int pkg = 0; pkg < PACKAGES_COUNT; pkg++) {
+      for (int i = firstChanged; i < firstChanged + CHANGED_CLASSES_PER_PACKAGE; i++) {
+        changed.add(pkg * CLASSES_PER_PACKAGE + i);
+      }
+    }
+    final Set<File> expectedAffected = new HashSet<File>();
+    for (int cls = 0; cls < myDependencies.length; cls++) {
+      for (int dependency : myDependencies[cls]) {
+        if (changed.contains(dependency) && !changed.contains(cls)) {
+          expectedAffected.add(getSourceFile(cls));
+        }
+      }
+    }
+
+    final Set<File> actualAffected = Collections.synchronizedSet(new HashSet<File>());
+    compileConcurrently(chunksCount, new ChunkCompiler() {
+      @Override
+      public void compile(int chunk) {
+        final Mappings delta = myMappings.createDelta();
+        final Callbacks.Backend callback = delta.getCallback();
+        final List<File> compiled = new ArrayList<File>();
+        for (int pkg = chunk; pkg < PACKAGES_COUNT; pkg += chunksCount) {
+          for (int i = firstChanged; i < firstChanged + CHANGED_CLASSES_PER_PACKAGE; i++) {
+            final int cls = pkg * CLASSES_PER_PACKAGE + i;
+            associate(callback, cls, true);
+            compiled.add(getSourceFile(cls));
+          }
+        }
+        final Set<File> affected = new HashSet<File>();
+        synchronized (myMappings) {
+          assertTrue(myMappings.differentiateOnIncrementalMake(delta, Collections.<String>emptySet(), compiled, compiled, affected,
+                                                               Mappings.DependentFilesFilter.ALL_FILES, null));
+          myMappings.integrate(delta);
+        }
+        affected.removeAll(compiled);
+        actualAffected.addAll(affected);
+      }
+    });
+    final Set<File> missing = new HashSet<File>(expectedAffected);
+    missing.removeAll(actualAffected);
+    assertTrue("Affected files not found: " + missing, missing.isEmpty());
+  }
+
+  private interface ChunkCompiler {
+    void compile(int chunk);
+  }
+
+  private static void compileConcurrently(final int chunksCount, final ChunkCompiler compiler) throws Exception {
+    final Throwable[] error = new Throwable[1];
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < chunksCount; i++) {
+      final int chunk = i;
+      final Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            compiler.compile(chunk);
+          }
+          catch (Throwable e) {
+            error[0] = e;
+          }
+        }
+      }, "chunk " + i);
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (error[0] != null) throw new RuntimeException(error[0]);
+  }
+
+  private void associate(final Callbacks.Backend callback, final int cls, final boolean changed) {
+    final String className = getClassName(cls);
+    callback.associate(myRoot.getPath() + "/out/" + className + ".class", FileUtil.toSystemIndependentName(getSourceFile(cls).getPath()),
+                       new ClassReader(generateClass(className, myDependencies[cls], changed)));
+  }
+
+  private File getSourceFile(final int cls) {
+    return new File(myRoot, "src/" + getClassName(cls) + ".java");
+  }
+
+  private static String getClassName(final int cls) {
+    return "p" + cls / CLASSES_PER_PACKAGE + "/C" + cls % CLASSES_PER_PACKAGE;
+  }
+
+  private static byte[] generateClass(final String className, final int[] dependencies, final boolean changed) {
+    final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, className, null, "java/lang/Object", null);
+    writer.visitSource(className.substring(className.indexOf('/') + 1) + ".java", null);
+
+    MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+    method.visitCode();
+    method.visitVarInsn(Opcodes.ALOAD, 0);
+    method.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+    method.visitInsn(Opcodes.RETURN);
+    method.visitMaxs(0, 0);
+    method.visitEnd();
+
+    method = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "value", changed ? "()J" : "()I", null, null);
+    method.visitCode();
+    method.visitInsn(changed ? Opcodes.LCONST_0 : Opcodes.ICONST_0);
+    method.visitInsn(changed ? Opcodes.LRETURN : Opcodes.IRETURN);
+    method.visitMaxs(0, 0);
+    method.visitEnd();
+
+    method = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "use", "()V", null, null);
+    method.visitCode();
+    for (int dependency : dependencies) {
+      method.visitMethodInsn(Opcodes.INVOKESTATIC, getClassName(dependency), "value", "()I");
+      method.visitInsn(Opcodes.POP);
+    }
+    method.visitInsn(Opcodes.RETURN);
+    method.visitMaxs(0, 0);
+    method.visitEnd();
+
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.javac;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.api.CanceledStatus;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class JavacWorkerPoolTest extends TestCase {
+  private static final int PACKAGES_COUNT = 4;
+  private static final int CLASSES_PER_PACKAGE = 15;
+
+  private File myRoot;
+  private ExecutorService myExecutor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRoot = FileUtil.createTempDirectory("javacWorkers", null);
+    myExecutor = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myExecutor.shutdownNow();
+      FileUtil.delete(myRoot);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testSplitByPackages() {
+    final List<File> sources = new ArrayList<File>();
+    for (int i = 0; i < 40; i++) {
+      sources.add(new File("src/big/C" + i + ".java"));
+    }
+    for (int p = 0; p < 4; p++) {
+      for (int i = 0; i < 10; i++) {
+        sources.add(new File("src/small" + p + "/C" + i + ".java"));
+      }
+    }
+
+    final List<List<File>> shards = JavacWorkerPool.splitByPackages(sources, 2);
+    assertEquals(2, shards.size());
+    assertEquals(40, shards.get(0).size());
+    assertEquals(40, shards.get(1).size());
+    for (List<File> shard : shards) {
+      final Set<File> packages = new HashSet<File>();
+      for (File file : shard) {
+        packages.add(file.getParentFile());
+      }
+      assertTrue(packages.size() == 1 || !packages.contains(new File("src/big")));
+    }
+
+    assertEquals(1, JavacWorkerPool.splitByPackages(sources.subList(0, 40), 4).size());
+    assertEquals(1, JavacWorkerPool.splitByPackages(sources.subList(40, 55), 4).size());
+  }
+
+  public void testShardedCompilation() throws Exception {
+    final File src = new File(myRoot, "src");
+    final File out = new File(myRoot, "out");
+    final List<File> sources = new ArrayList<File>();
+    for (int p = 0; p < PACKAGES_COUNT; p++) {
+      for (int i = 0; i < CLASSES_PER_PACKAGE; i++) {
+        final int dependency = (p + 1) % PACKAGES_COUNT;
+        final File file = new File(src, "p" + p + "/C" + i + ".java");
+        FileUtil.writeToFile(file, "package p" + p + ";\n" +
+                                   "public class C" + i + " {\n" +
+                                   "  public static int value() { return p" + dependency + ".C" + i + ".CONST; }\n" +
+                                   "  public static final int CONST = " + i + ";\n" +
+                                   "}\n");
+        sources.add(file);
+      }
+    }
+
+    final JavacWorkerPool pool = new JavacWorkerPool(PACKAGES_COUNT, myExecutor);
+    JavacWorkerPool.Result result = compile(pool, sources, src, out);
+    assertTrue(result.isSuccessful());
+    assertEquals(PACKAGES_COUNT, result.getShardsCount());
+    assertEquals(PACKAGES_COUNT, result.getColdShardsCount());
+    for (File source : sources) {
+      final String relativePath = FileUtil.getRelativePath(src, source);
+      assertNotNull(relativePath);
+      assertTrue(new File(out, relativePath.replace(".java", ".class")).isFile());
+    }
+
+    result = compile(pool, sources, src, out);
+    assertTrue(result.isSuccessful());
+    assertEquals(0, result.getColdShardsCount());
+    assertTrue(pool.getAverageWarmFileTime() >= 0);
+  }
+
+  public void testErrorsReportedOnce() throws Exception {
+    final File src = new File(myRoot, "src");
+    final File out = new File(myRoot, "out");
+    final List<File> sources = new ArrayList<File>();
+    for (int p = 0; p < 2; p++) {
+      for (int i = 0; i < CLASSES_PER_PACKAGE; i++) {
+        final File file = new File(src, "p" + p + "/C" + i + ".java");
+        FileUtil.writeToFile(file, "package p" + p + ";\n" +
+                                   "public class C" + i + " {\n" +
+                                   "  public static void use() { common.Broken.use(); }\n" +
+                                   "}\n");
+        sources.add(file);
+      }
+    }
+    FileUtil.writeToFile(new File(src, "common/Broken.java"), "package common;\n" +
+                                                             "public class Broken {\n" +
+                                                             "  public static void use() {}\n" +
+                                                             "  public static Unknown field;\n" +
+                                                             "}\n");
+
+    final List<String> errors = new ArrayList<String>();
+    final JavacWorkerPool pool = new JavacWorkerPool(2, myExecutor);
+    final JavacWorkerPool.Result result = pool.compile(
+      Arrays.asList("-proc:none"), sources, Collections.<File>emptyList(), Collections.<File>emptyList(), Collections.<File>emptyList(),
+      Collections.singleton(src), Collections.singletonMap(out, Collections.singleton(src)), new TestOutputConsumer(errors),
+      new TestFileConsumer(), NOT_CANCELED
+    );
+    assertFalse(result.isSuccessful());
+    assertEquals(2, result.getShardsCount());
+    assertEquals(errors.toString(), 1, errors.size());
+  }
+
+  public void testSourcesOfOtherShardsAreNotGenerated() throws Exception {
+    final File src = new File(myRoot, "src");
+    final File out = new File(myRoot, "out");
+    final List<File> sources = new ArrayList<File>();
+    for (int p = 0; p < 2; p++) {
+      for (int i = 0; i < CLASSES_PER_PACKAGE; i++) {
+        final File file = new File(src, "p" + p + "/C" + i + ".java");
+        FileUtil.writeToFile(file, "package p" + p + ";\n" +
+                                   "public class C" + i + " {\n" +
+                                   "  public static int value() { return common.Unchanged.CONST + p" + (1 - p) + ".C" + i + ".CONST; }\n" +
+                                   "  public static final int CONST = " + i + ";\n" +
+                                   "}\n");
+        sources.add(file);
+      }
+    }
+    FileUtil.writeToFile(new File(src, "common/Unchanged.java"), "package common;\n" +
+                                                                "public class Unchanged {\n" +
+                                                                "  public static final int CONST = 1;\n" +
+                                                                "}\n");
+
+    final TestFileConsumer files = new TestFileConsumer();
+    final JavacWorkerPool.Result result = compile(new JavacWorkerPool(2, myExecutor), sources, Collections.<File>emptyList(), src, out, files);
+    assertTrue(result.isSuccessful());
+    assertEquals(2, result.getShardsCount());
+    assertEquals(sources.size(), files.getSaved().size());
+    assertFalse(new File(out, "common/Unchanged.class").exists());
+  }
+
+  public void testChunkRootsAreNotOnSourcePathOfSingleShard() throws Exception {
+    final File src = new File(myRoot, "src");
+    final File out = new File(myRoot, "out");
+    final File source = new File(src, "p/C.java");
+    FileUtil.writeToFile(source, "package p;\n" +
+                                 "public class C {\n" +
+                                 "  public static int value() { return p.Other.CONST; }\n" +
+                                 "}\n");
+    FileUtil.writeToFile(new File(src, "p/Other.java"), "package p;\n" +
+                                                        "public class Other {\n" +
+                                                        "  public static final int CONST = 1;\n" +
+                                                        "}\n");
+
+    final List<String> errors = new ArrayList<String>();
+    final TestFileConsumer files = new TestFileConsumer();
+    final JavacWorkerPool.Result result = new JavacWorkerPool(2, myExecutor).compile(
+      Arrays.asList("-proc:none"), Collections.singletonList(source), Collections.<File>emptyList(), Collections.<File>emptyList(),
+      Collections.<File>emptyList(), Collections.singleton(src), Collections.singletonMap(out, Collections.singleton(src)),
+      new TestOutputConsumer(errors), files, NOT_CANCELED
+    );
+    assertEquals(1, result.getShardsCount());
+    // the only source path of the compilation is empty, so Other is neither found nor compiled implicitly
+    assertFalse(result.isSuccessful());
+    assertFalse(errors.isEmpty());
+    assertTrue(files.getSaved().isEmpty());
+  }
+
+  private static JavacWorkerPool.Result compile(JavacWorkerPool pool, List<File> sources, File src, File out) throws Exception {
+    return compile(pool, sources, Collections.singleton(src), src, out, new TestFileConsumer());
+  }
+
+  private static JavacWorkerPool.Result compile(JavacWorkerPool pool,
+                                                List<File> sources,
+                                                Collection<File> sourcePath,
+                                                File src,
+                                                File out,
+                                                TestFileConsumer files) throws Exception {
+    final List<String> errors = new ArrayList<String>();
+    final JavacWorkerPool.Result result = pool.compile(
+      Arrays.asList("-proc:none"), sources, Collections.<File>emptyList(), Collections.<File>emptyList(), sourcePath,
+      Collections.singleton(src), Collections.singletonMap(out, Collections.singleton(src)), new TestOutputConsumer(errors), files,
+      NOT_CANCELED
+    );
+    assertTrue(errors.toString(), errors.isEmpty());
+    return result;
+  }
+
+  private static final CanceledStatus NOT_CANCELED = new CanceledStatus() {
+    public boolean isCanceled() {
+      return false;
+    }
+  };
+
+  private static class TestOutputConsumer implements DiagnosticOutputConsumer {
+    private final List<String> myErrors;
+
+    TestOutputConsumer(List<String> errors) {
+      myErrors = errors;
+    }
+
+    public void outputLineAvailable(String line) {
+    }
+
+    public void registerImports(String className, Collection<String> imports, Collection<String> staticImports) {
+    }
+
+    public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+      if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+        myErrors.add(diagnostic.getMessage(Locale.US));
+      }
+    }
+  }
+
+  private static class TestFileConsumer implements OutputFileConsumer {
+    private final List<File> mySaved = Collections.synchronizedList(new ArrayList<File>());
+
+    List<File> getSaved() {
+      return mySaved;
+    }
+
+    public void save(@NotNull OutputFileObject fileObject) {
+      mySaved.add(fileObject.getFile());
+      final OutputFileObject.Content content = fileObject.getContent();
+      assertNotNull(content);
+      try {
+        FileUtil.writeToFile(fileObject.getFile(), content.toByteArray());
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.server;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class LibraryClassCacheTest extends TestCase {
+  private File myJar;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myJar = FileUtil.createTempFile("library", ".jar");
+    writeJar(myJar, "a/A.class", "a/b/B.class", "a/b/C.class", "META-INF/");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FileUtil.delete(myJar);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testListing() throws Exception {
+    final LibraryClassCache cache = new LibraryClassCache(1024);
+    final LibraryClassCache.Jar jar = cache.getJar(myJar);
+    assertSame(jar, cache.getJar(myJar));
+    assertTrue(jar.contains("a/A.class"));
+    assertTrue(jar.contains("a/b/C.class"));
+    assertFalse(jar.contains("a/B.class"));
+    assertFalse(jar.contains("a/b/"));
+    assertEquals(Arrays.asList("B.class", "C.class"), Arrays.asList(jar.getFiles("a/b/")));
+    assertEquals(0, jar.getFiles("META-INF/").length);
+    assertNull(jar.getFiles("c/"));
+  }
+
+  public void testModifiedJarIsReadAgain() throws Exception {
+    final LibraryClassCache cache = new LibraryClassCache(1024);
+    final LibraryClassCache.Jar jar = cache.getJar(myJar);
+    cache.putContent(jar, "a/A.class", new byte[]{1, 2, 3});
+
+    writeJar(myJar, "a/A.class", "d/D.class");
+    assertTrue(myJar.setLastModified(myJar.lastModified() + 2000));
+    final LibraryClassCache.Jar modified = cache.getJar(myJar);
+    assertNotSame(jar, modified);
+    assertTrue(modified.contains("d/D.class"));
+    assertFalse(modified.contains("a/b/B.class"));
+    assertNull(cache.getContent(modified, "a/A.class"));
+  }
+
+  public void testContentEviction() throws Exception {
+    final LibraryClassCache cache = new LibraryClassCache(100);
+    final LibraryClassCache.Jar jar = cache.getJar(myJar);
+    cache.putContent(jar, "a/A.class", new byte[40]);
+    cache.putContent(jar, "a/b/B.class", new byte[40]);
+    assertNotNull(cache.getContent(jar, "a/A.class"));
+
+    cache.putContent(jar, "a/b/C.class", new byte[40]);
+    assertEquals(80, cache.getContentSize());
+    assertNotNull(cache.getContent(jar, "a/A.class"));
+    assertNull(cache.getContent(jar, "a/b/B.class"));
+    assertEquals(40, cache.getContent(jar, "a/b/C.class").length);
+    assertEquals(3, cache.getHitsCount());
+    assertEquals(1, cache.getMissesCount());
+
+    cache.putContent(jar, "a/b/B.class", new byte[200]);
+    assertNull(cache.getContent(jar, "a/b/B.class"));
+  }
+
+  private static void writeJar(File file, String... entries) throws IOException {
+    final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      for (String entry : entries) {
+        out.putNextEntry(new ZipEntry(entry));
+        if (!entry.endsWith("/")) {
+          out.write(entry.getBytes());
+        }
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+}
@@ -1,12 +1,13 @@
 package org.jetbrains.ether.dependencyView;
 
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.io.PersistentStringEnumerator;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by IntelliJ IDEA.
@@ -19,30 +20,17 @@ class DependencyContext {
   private final static String stringTableName = "strings.tab";
   private final PersistentStringEnumerator myEnumerator;
 
-  private final Map<TypeRepr.AbstractType, TypeRepr.AbstractType> myTypeMap = new HashMap<TypeRepr.AbstractType, TypeRepr.AbstractType>();
-  private final Map<UsageRepr.Usage, UsageRepr.Usage> myUsageMap = new HashMap<UsageRepr.Usage, UsageRepr.Usage>();
+  // the context is shared by the mappings and all its deltas, which may be filled and differentiated concurrently
+  private final ConcurrentMap<TypeRepr.AbstractType, TypeRepr.AbstractType> myTypeMap =
+    new ConcurrentHashMap<TypeRepr.AbstractType, TypeRepr.AbstractType>();
+  private final ConcurrentMap<UsageRepr.Usage, UsageRepr.Usage> myUsageMap = new ConcurrentHashMap<UsageRepr.Usage, UsageRepr.Usage>();
 
-   UsageRepr.Usage getUsage(final UsageRepr.Usage u) {
-     final UsageRepr.Usage r = myUsageMap.get(u);
-
-     if (r == null) {
-       myUsageMap.put(u, u);
-       return u;
-     }
-
-     return r;
-   }
+  UsageRepr.Usage getUsage(final UsageRepr.Usage u) {
+    return ConcurrencyUtil.cacheOrGet(myUsageMap, u, u);
+  }
 
   TypeRepr.AbstractType getType(final TypeRepr.AbstractType t) {
-    final TypeRepr.AbstractType r = myTypeMap.get(t);
-
-    if (r != null) {
-      return r;
-    }
-
-    myTypeMap.put(t, t);
-
-    return t;
+    return ConcurrencyUtil.cacheOrGet(myTypeMap, t, t);
   }
 
   void clearMemoryCaches() {
@@ -17,7 +17,6 @@ package org.jetbrains.ether.dependencyView;
 
 import com.intellij.openapi.util.Ref;
 import com.intellij.util.Processor;
-import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
 import com.intellij.util.io.PersistentHashMap;
@@ -39,14 +38,14 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
   private static final TIntHashSet NULL_COLLECTION = new TIntHashSet();
   private static final int CACHE_SIZE = 128;
   private final PersistentHashMap<Integer, TIntHashSet> myMap;
-  private final SLRUCache<Integer, TIntHashSet> myCache;
+  private final StripedCache<TIntHashSet> myCache;
 
   public IntIntPersistentMultiMaplet(final File file, final KeyDescriptor<Integer> keyExternalizer) throws IOException {
     myMap = new PersistentHashMap<Integer, TIntHashSet>(file, keyExternalizer, new IntSetExternalizer());
-    myCache = new SLRUCache<Integer, TIntHashSet>(CACHE_SIZE, CACHE_SIZE) {
+    myCache = new StripedCache<TIntHashSet>(CACHE_SIZE) {
       @NotNull
       @Override
-      public TIntHashSet createValue(Integer key) {
+      protected TIntHashSet createValue(int key) {
         try {
           final TIntHashSet collection = myMap.get(key);
           return collection == null? NULL_COLLECTION : collection;
@@ -77,12 +76,14 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
   @Override
   public void replace(int key, TIntHashSet value) {
     try {
-      myCache.remove(key);
-      if (value == null) {
-        myMap.remove(key);
-      }
-      else {
-        myMap.put(key, value);
+      synchronized (myCache.getLock(key)) {
+        myCache.remove(key);
+        if (value == null) {
+          myMap.remove(key);
+        }
+        else {
+          myMap.put(key, value);
+        }
       }
     }
     catch (IOException e) {
@@ -93,29 +94,31 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
   @Override
   public void put(final int key, final TIntHashSet value) {
     try {
-      myCache.remove(key);
-      myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
-        public void append(final DataOutput out) throws IOException {
-          final Ref<IOException> exRef = new Ref<IOException>();
-          value.forEach(new TIntProcedure() {
-            @Override
-            public boolean execute(int value) {
-              try {
-                out.writeInt(value);
-              }
-              catch (IOException e) {
-                exRef.set(e);
-                return false;
+      synchronized (myCache.getLock(key)) {
+        myCache.remove(key);
+        myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
+          public void append(final DataOutput out) throws IOException {
+            final Ref<IOException> exRef = new Ref<IOException>();
+            value.forEach(new TIntProcedure() {
+              @Override
+              public boolean execute(int value) {
+                try {
+                  out.writeInt(value);
+                }
+                catch (IOException e) {
+                  exRef.set(e);
+                  return false;
+                }
+                return true;
               }
-              return true;
+            });
+            final IOException exception = exRef.get();
+            if (exception != null) {
+              throw exception;
             }
-          });
-          final IOException exception = exRef.get();
-          if (exception != null) {
-            throw exception;
           }
-        }
-      });
+        });
+      }
     }
     catch (IOException e) {
       throw new RuntimeException(e);
@@ -125,12 +128,14 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
   @Override
   public void put(final int key, final int value) {
     try {
-      myCache.remove(key);
-      myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
-        public void append(final DataOutput out) throws IOException {
-          out.writeInt(value);
-        }
-      });
+      synchronized (myCache.getLock(key)) {
+        myCache.remove(key);
+        myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
+          public void append(final DataOutput out) throws IOException {
+            out.writeInt(value);
+          }
+        });
+      }
     }
     catch (IOException e) {
       throw new RuntimeException(e);
@@ -140,16 +145,18 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
   @Override
   public void removeAll(int key, TIntHashSet values) {
     try {
-      final TIntHashSet collection = myCache.get(key);
+      synchronized (myCache.getLock(key)) {
+        final TIntHashSet collection = myCache.get(key);
 
-      if (collection != NULL_COLLECTION) {
-        if (collection.removeAll(values.toArray())) {
-          myCache.remove(key);
-          if (collection.isEmpty()) {
-            myMap.remove(key);
-          }
-          else {
-            myMap.put(key, collection);
+        if (collection != NULL_COLLECTION) {
+          if (collection.removeAll(values.toArray())) {
+            myCache.remove(key);
+            if (collection.isEmpty()) {
+              myMap.remove(key);
+            }
+            else {
+              myMap.put(key, collection);
+            }
           }
         }
       }
@@ -162,15 +169,18 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
   @Override
   public void removeFrom(final int key, final int value) {
     try {
-      final TIntHashSet collection = myCache.get(key);
-      if (collection != NULL_COLLECTION) {
-        if (collection.remove(value)) {
-          myCache.remove(key);
-          if (collection.isEmpty()) {
-            myMap.remove(key);
-          }
-          else {
-            myMap.put(key, collection);
+      synchronized (myCache.getLock(key)) {
+        final TIntHashSet collection = myCache.get(key);
+
+        if (collection != NULL_COLLECTION) {
+          if (collection.remove(value)) {
+            myCache.remove(key);
+            if (collection.isEmpty()) {
+              myMap.remove(key);
+            }
+            else {
+              myMap.put(key, collection);
+            }
           }
         }
       }
@@ -183,8 +193,10 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
   @Override
   public void remove(final int key) {
     try {
-      myCache.remove(key);
-      myMap.remove(key);
+      synchronized (myCache.getLock(key)) {
+        myCache.remove(key);
+        myMap.remove(key);
+      }
     }
     catch (IOException e) {
       throw new RuntimeException(e);
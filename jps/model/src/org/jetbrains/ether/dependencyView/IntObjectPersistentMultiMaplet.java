@@ -16,7 +16,6 @@
 package org.jetbrains.ether.dependencyView;
 
 import com.intellij.util.Processor;
-import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
 import com.intellij.util.io.PersistentHashMap;
@@ -39,7 +38,7 @@ class IntObjectPersistentMultiMaplet<V extends Streamable> extends IntObjectMult
   private static final int CACHE_SIZE = 128;
   private final PersistentHashMap<Integer, Collection<V>> myMap;
   private final DataExternalizer<V> myValueExternalizer;
-  private final SLRUCache<Integer, Collection> myCache;
+  private final StripedCache<Collection> myCache;
 
   public IntObjectPersistentMultiMaplet(final File file,
                                         final KeyDescriptor<Integer> keyExternalizer,
@@ -47,10 +46,10 @@ class IntObjectPersistentMultiMaplet<V extends Streamable> extends IntObjectMult
                                         final CollectionFactory<V> collectionFactory) throws IOException {
     myValueExternalizer = valueExternalizer;
     myMap = new PersistentHashMap<Integer, Collection<V>>(file, keyExternalizer, new CollectionDataExternalizer<V>(valueExternalizer, collectionFactory));
-    myCache = new SLRUCache<Integer, Collection>(CACHE_SIZE, CACHE_SIZE) {
+    myCache = new StripedCache<Collection>(CACHE_SIZE) {
       @NotNull
       @Override
-      public Collection createValue(Integer key) {
+      protected Collection createValue(int key) {
         try {
           final Collection<V> collection = myMap.get(key);
           return collection == null? NULL_COLLECTION : collection;
@@ -82,12 +81,14 @@ class IntObjectPersistentMultiMaplet<V extends Streamable> extends IntObjectMult
   @Override
   public void replace(int key, Collection<V> value) {
     try {
-      myCache.remove(key);
-      if (value == null) {
-        myMap.remove(key);
-      }
-      else {
-        myMap.put(key, value);
+      synchronized (myCache.getLock(key)) {
+        myCache.remove(key);
+        if (value == null) {
+          myMap.remove(key);
+        }
+        else {
+          myMap.put(key, value);
+        }
       }
     }
     catch (IOException e) {
@@ -98,14 +99,16 @@ class IntObjectPersistentMultiMaplet<V extends Streamable> extends IntObjectMult
   @Override
   public void put(final int key, final Collection<V> value) {
     try {
-      myCache.remove(key);
-      myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
-        public void append(DataOutput out) throws IOException {
-          for (V v : value) {
-            myValueExternalizer.save(out, v);
+      synchronized (myCache.getLock(key)) {
+        myCache.remove(key);
+        myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
+          public void append(DataOutput out) throws IOException {
+            for (V v : value) {
+              myValueExternalizer.save(out, v);
+            }
           }
-        }
-      });
+        });
+      }
     }
     catch (IOException e) {
       throw new RuntimeException(e);
@@ -120,16 +123,18 @@ class IntObjectPersistentMultiMaplet<V extends Streamable> extends IntObjectMult
   @Override
   public void removeAll(int key, Collection<V> values) {
     try {
-      final Collection collection = myCache.get(key);
+      synchronized (myCache.getLock(key)) {
+        final Collection collection = myCache.get(key);
 
-      if (collection != NULL_COLLECTION) {
-        if (collection.removeAll(values)) {
-          myCache.remove(key);
-          if (collection.isEmpty()) {
-            myMap.remove(key);
-          }
-          else {
-            myMap.put(key, (Collection<V>)collection);
+        if (collection != NULL_COLLECTION) {
+          if (collection.removeAll(values)) {
+            myCache.remove(key);
+            if (collection.isEmpty()) {
+              myMap.remove(key);
+            }
+            else {
+              myMap.put(key, (Collection<V>)collection);
+            }
           }
         }
       }
@@ -142,16 +147,18 @@ class IntObjectPersistentMultiMaplet<V extends Streamable> extends IntObjectMult
   @Override
   public void removeFrom(final int key, final V value) {
     try {
-      final Collection collection = myCache.get(key);
+      synchronized (myCache.getLock(key)) {
+        final Collection collection = myCache.get(key);
 
-      if (collection != NULL_COLLECTION) {
-        if (collection.remove(value)) {
-          myCache.remove(key);
-          if (collection.isEmpty()) {
-            myMap.remove(key);
-          }
-          else {
-            myMap.put(key, (Collection<V>)collection);
+        if (collection != NULL_COLLECTION) {
+          if (collection.remove(value)) {
+            myCache.remove(key);
+            if (collection.isEmpty()) {
+              myMap.remove(key);
+            }
+            else {
+              myMap.put(key, (Collection<V>)collection);
+            }
           }
         }
       }
@@ -164,8 +171,10 @@ class IntObjectPersistentMultiMaplet<V extends Streamable> extends IntObjectMult
   @Override
   public void remove(final int key) {
     try {
-      myCache.remove(key);
-      myMap.remove(key);
+      synchronized (myCache.getLock(key)) {
+        myCache.remove(key);
+        myMap.remove(key);
+      }
     }
     catch (IOException e) {
       throw new RuntimeException(e);
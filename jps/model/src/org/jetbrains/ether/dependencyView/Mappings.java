@@ -4,6 +4,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.io.IntInlineKeyDescriptor;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntIntProcedure;
@@ -19,7 +20,11 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.annotation.RetentionPolicy;
 import java.util.*;
-import java.util.concurrent.Future;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by IntelliJ IDEA.
@@ -40,6 +45,8 @@ public class Mappings {
   private static final IntInlineKeyDescriptor INT_KEY_DESCRIPTOR = new IntInlineKeyDescriptor();
   private static final int DEFAULT_SET_CAPACITY = 32;
   private static final float DEFAULT_SET_LOAD_FACTOR = 0.98f;
+  private static final int DIFFERENTIATION_THREADS = Runtime.getRuntime().availableProcessors();
+  private static final int FILES_PER_DIFFERENTIATION_TASK = 32;
   private static final CollectionFactory<ClassRepr> ourClassSetConstructor = new CollectionFactory<ClassRepr>() {
     public Set<ClassRepr> create() {
       return new HashSet<ClassRepr>(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
@@ -64,7 +71,9 @@ public class Mappings {
   private final TIntHashSet myChangedClasses;
   private final TIntHashSet myChangedFiles;
   private final Set<ClassRepr> myDeletedClasses;
-  private final Object myLock;
+  // differentiation only reads this mappings, so that several deltas may be differentiated against it at the same time
+  private final ReadWriteLock myLock = new ReentrantReadWriteLock();
+  private final AtomicInteger myDeltasCount = new AtomicInteger();
   private final File myRootDir;
 
   private DependencyContext myContext;
@@ -83,14 +92,14 @@ public class Mappings {
   private Collection<String> myRemovedFiles;
 
   private Mappings(final Mappings base) throws IOException {
-    myLock = base.myLock;
     myIsDelta = true;
     myPostPasses = new LinkedList<PostPass>();
     myChangedClasses = new TIntHashSet(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
     myChangedFiles = new TIntHashSet(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
     myDeletedClasses = new HashSet<ClassRepr>(DEFAULT_SET_CAPACITY, DEFAULT_SET_LOAD_FACTOR);
     myDeltaIsTransient = base.myDeltaIsTransient;
-    myRootDir = new File(FileUtil.toSystemIndependentName(base.myRootDir.getAbsolutePath()) + File.separatorChar + "myDelta");
+    myRootDir = new File(FileUtil.toSystemIndependentName(base.myRootDir.getAbsolutePath()) + File.separatorChar + "myDelta" +
+                         base.myDeltasCount.incrementAndGet());
     myContext = base.myContext;
     myInitName = myContext.get("<init>");
     myEmptyName = myContext.get("");
@@ -100,7 +109,6 @@ public class Mappings {
   }
 
   public Mappings(final File rootDir, final boolean transientDelta) throws IOException {
-    myLock = new Object();
     myIsDelta = false;
     myPostPasses = new LinkedList<PostPass>();
     myChangedClasses = null;
@@ -151,13 +159,15 @@ public class Mappings {
   }
 
   public Mappings createDelta() {
-    synchronized (myLock) {
-      try {
-        return new Mappings(this);
-      }
-      catch (IOException e) {
-        throw new RuntimeException(e);
-      }
+    myLock.readLock().lock();
+    try {
+      return new Mappings(this);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    finally {
+      myLock.readLock().unlock();
     }
   }
 
@@ -193,15 +203,19 @@ public class Mappings {
 
   public void clean() throws IOException {
     if (myRootDir != null) {
-      synchronized (myLock) {
+      myLock.writeLock().lock();
+      try {
         close();
         FileUtil.delete(myRootDir);
         createImplementation();
       }
+      finally {
+        myLock.writeLock().unlock();
+      }
     }
   }
 
-  public IntIntTransientMultiMaplet getRemovedSuperClasses() {
+  public synchronized IntIntTransientMultiMaplet getRemovedSuperClasses() {
     return myRemovedSuperClasses;
   }
 
@@ -249,10 +263,12 @@ public class Mappings {
   }
 
   private void runPostPasses() {
-    final Set<ClassRepr> deleted = myDeletedClasses;
-    if (deleted != null) {
-      for (ClassRepr repr : deleted) {
-        myChangedClasses.remove(repr.name);
+    synchronized (this) {
+      final Set<ClassRepr> deleted = myDeletedClasses;
+      if (deleted != null) {
+        for (ClassRepr repr : deleted) {
+          myChangedClasses.remove(repr.name);
+        }
       }
     }
 
@@ -261,6 +277,27 @@ public class Mappings {
     }
   }
 
+  private static ExecutorService ourDifferentiationExecutor;
+
+  private static synchronized ExecutorService getDifferentiationExecutor() {
+    if (ourDifferentiationExecutor == null) {
+      final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        DIFFERENTIATION_THREADS, DIFFERENTIATION_THREADS, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger myThreadsCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NotNull Runnable r) {
+          final Thread thread = new Thread(r, "Mappings differentiation " + myThreadsCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      executor.allowCoreThreadTimeOut(true);
+      ourDifferentiationExecutor = executor;
+    }
+    return ourDifferentiationExecutor;
+  }
+
   private static ClassRepr myMockClass = null;
   private static MethodRepr myMockMethod = null;
 
@@ -893,7 +930,7 @@ public class Mappings {
         }
       }
 
-      final Collection<Triple> myQueue = new LinkedList<Triple>();
+      final Collection<Triple> myQueue = Collections.synchronizedList(new LinkedList<Triple>());
 
       void addConstantWork(final int ownerClass, final FieldRepr changedField, final boolean isRemoved, boolean accessChanged) {
         final Future<Callbacks.ConstantAffection> future;
@@ -1013,7 +1050,8 @@ public class Mappings {
       this.myDelta = delta;
       this.myFilesToCompile = filesToCompile;
       this.myCompiledFiles = compiledFiles;
-      this.myAffectedFiles = affectedFiles;
+      // files of a delta may be differentiated in parallel
+      this.myAffectedFiles = Collections.synchronizedCollection(affectedFiles);
       this.myFilter = filter;
       this.myConstantSearch = constantSearch;
 
@@ -1718,7 +1756,7 @@ public class Mappings {
         final int fileName = myClassToSourceFile.get(c.name);
 
         if (fileName != 0) {
-          myDelta.myChangedFiles.add(fileName);
+          myDelta.addChangedFile(fileName);
         }
 
         if (!myEasyMode) {
@@ -1839,8 +1877,78 @@ public class Mappings {
       }
     }
 
+    private boolean processFile(final FileClasses compiledFile) {
+      final int fileName = compiledFile.fileName;
+      final Set<ClassRepr> classes = compiledFile.fileClasses;
+      final Set<ClassRepr> pastClasses = (Set<ClassRepr>)mySourceFileToClasses.get(fileName);
+      final DiffState state = new DiffState(Difference.make(pastClasses, classes));
+
+      if (!processChangedClasses(state) && !myEasyMode) {
+        return false;
+      }
+
+      processRemovedClases(state);
+      processAddedClasses(state);
+
+      if (!myEasyMode) {
+        calaulateAffectedFiles(state);
+      }
+
+      return true;
+    }
+
+    private boolean processFiles(final List<FileClasses> files) {
+      final int tasksCount = Math.min(DIFFERENTIATION_THREADS, files.size() / FILES_PER_DIFFERENTIATION_TASK);
+
+      if (tasksCount < 2) {
+        for (final FileClasses compiledFile : files) {
+          if (!processFile(compiledFile)) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      debug("Differentiating files in parallel, tasks count: " + tasksCount);
+
+      final AtomicInteger nextFile = new AtomicInteger();
+      final AtomicBoolean incremental = new AtomicBoolean(true);
+      final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(tasksCount);
+
+      for (int i = 0; i < tasksCount; i++) {
+        tasks.add(new Callable<Object>() {
+          @Override
+          public Object call() {
+            int index;
+            while ((index = nextFile.getAndIncrement()) < files.size() && incremental.get()) {
+              if (!processFile(files.get(index))) {
+                incremental.set(false);
+              }
+            }
+            return null;
+          }
+        });
+      }
+
+      try {
+        ConcurrencyUtil.invokeAll(tasks, getDifferentiationExecutor());
+      }
+      catch (RuntimeException e) {
+        throw e;
+      }
+      catch (Error e) {
+        throw e;
+      }
+      catch (Throwable e) {
+        throw new RuntimeException(e);
+      }
+
+      return incremental.get();
+    }
+
     boolean differentiate() {
-      synchronized (myLock) {
+      myLock.readLock().lock();
+      try {
         myDelta.myIsDifferentiated = true;
 
         if (myDelta.myIsRebuild) {
@@ -1861,22 +1969,8 @@ public class Mappings {
           }
         });
 
-        for (final FileClasses compiledFile : newClasses) {
-          final int fileName = compiledFile.fileName;
-          final Set<ClassRepr> classes = compiledFile.fileClasses;
-          final Set<ClassRepr> pastClasses = (Set<ClassRepr>)mySourceFileToClasses.get(fileName);
-          final DiffState state = new DiffState(Difference.make(pastClasses, classes));
-
-          if (!processChangedClasses(state) && !myEasyMode) {
-            return false;
-          }
-
-          processRemovedClases(state);
-          processAddedClasses(state);
-
-          if (!myEasyMode) {
-            calaulateAffectedFiles(state);
-          }
+        if (!processFiles(newClasses)) {
+          return false;
         }
 
         debug("End of Differentiate.");
@@ -1896,6 +1990,9 @@ public class Mappings {
           return false;
         }
       }
+      finally {
+        myLock.readLock().unlock();
+      }
     }
   }
 
@@ -1958,7 +2055,8 @@ public class Mappings {
   }
 
   public void integrate(final Mappings delta) {
-    synchronized (myLock) {
+    myLock.writeLock().lock();
+    try {
       try {
         assert (delta.isDifferentiated());
 
@@ -2154,12 +2252,16 @@ public class Mappings {
         delta.close();
       }
     }
+    finally {
+      myLock.writeLock().unlock();
+    }
   }
 
   public Callbacks.Backend getCallback() {
     return new Callbacks.Backend() {
       public void associate(final String classFileName, final String sourceFileName, final ClassReader cr) {
-        synchronized (myLock) {
+        myLock.writeLock().lock();
+        try {
           final int classFileNameS = myContext.get(classFileName);
           final Pair<ClassRepr, Pair<UsageRepr.Cluster, Set<UsageRepr.Usage>>> result =
             new ClassfileAnalyzer(myContext).analyze(classFileNameS, cr);
@@ -2205,6 +2307,9 @@ public class Mappings {
             mySourceFileToAnnotationUsages.put(sourceFileNameS, localAnnotationUsages);
           }
         }
+        finally {
+          myLock.writeLock().unlock();
+        }
       }
 
       @Override
@@ -2242,13 +2347,18 @@ public class Mappings {
 
   @Nullable
   public Set<ClassRepr> getClasses(final String sourceFileName) {
-    synchronized (myLock) {
+    myLock.readLock().lock();
+    try {
       return (Set<ClassRepr>)mySourceFileToClasses.get(myContext.get(sourceFileName));
     }
+    finally {
+      myLock.readLock().unlock();
+    }
   }
 
   public void close() {
-    synchronized (myLock) {
+    myLock.writeLock().lock();
+    try {
       myClassToSubclasses.close();
       myClassToClassDependency.close();
       mySourceFileToClasses.close();
@@ -2268,10 +2378,14 @@ public class Mappings {
         FileUtil.delete(myRootDir);
       }
     }
+    finally {
+      myLock.writeLock().unlock();
+    }
   }
 
   public void flush(final boolean memoryCachesOnly) {
-    synchronized (myLock) {
+    myLock.writeLock().lock();
+    try {
       myClassToSubclasses.flush(memoryCachesOnly);
       myClassToClassDependency.flush(memoryCachesOnly);
       mySourceFileToClasses.flush(memoryCachesOnly);
@@ -2290,6 +2404,9 @@ public class Mappings {
         }
       }
     }
+    finally {
+      myLock.writeLock().unlock();
+    }
   }
 
   private static boolean addAll(final TIntHashSet whereToAdd, TIntHashSet whatToAdd) {
@@ -2319,7 +2436,7 @@ public class Mappings {
     });
   }
 
-  private void registerRemovedSuperClass(final int aClass, final int superClass) {
+  private synchronized void registerRemovedSuperClass(final int aClass, final int superClass) {
     assert (myRemovedSuperClasses != null);
     myRemovedSuperClasses.put(superClass, aClass);
   }
@@ -2332,7 +2449,7 @@ public class Mappings {
     return myIsRebuild;
   }
 
-  private void addDeletedClass(final ClassRepr cr) {
+  private synchronized void addDeletedClass(final ClassRepr cr) {
     assert (myDeletedClasses != null);
 
     myDeletedClasses.add(cr);
@@ -2340,7 +2457,7 @@ public class Mappings {
     addChangedClass(cr.name);
   }
 
-  private void addChangedClass(final int it) {
+  private synchronized void addChangedClass(final int it) {
     assert (myChangedClasses != null && myChangedFiles != null);
     myChangedClasses.add(it);
 
@@ -2351,16 +2468,23 @@ public class Mappings {
     }
   }
 
+  private synchronized void addChangedFile(final int fileName) {
+    assert (myChangedFiles != null);
+    myChangedFiles.add(fileName);
+  }
+
+  // the changed state of a delta is written by the tasks differentiating its files in parallel, and is read after they are done
+
   @NotNull
-  private Set<ClassRepr> getDeletedClasses() {
+  private synchronized Set<ClassRepr> getDeletedClasses() {
     return myDeletedClasses == null ? Collections.<ClassRepr>emptySet() : Collections.unmodifiableSet(myDeletedClasses);
   }
 
-  private TIntHashSet getChangedClasses() {
+  private synchronized TIntHashSet getChangedClasses() {
     return myChangedClasses;
   }
 
-  private TIntHashSet getChangedFiles() {
+  private synchronized TIntHashSet getChangedFiles() {
     return myChangedFiles;
   }
 
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.ether.dependencyView;
+
+import com.intellij.util.containers.SLRUCache;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * In-memory cache in front of a persistent maplet, split into independently locked segments by key.
+ * The segment of a key also serves as a lock for read-modify-write sequences on the key in the underlying storage,
+ * so that the cache is never repopulated with a stale value while the storage is being updated.
+ */
+abstract class StripedCache<V> {
+  private static final int SEGMENTS_COUNT = 16;
+
+  private final SLRUCache<Integer, V>[] mySegments;
+
+  @SuppressWarnings("unchecked")
+  StripedCache(final int cacheSize) {
+    final int segmentSize = Math.max(4, cacheSize / SEGMENTS_COUNT);
+    mySegments = new SLRUCache[SEGMENTS_COUNT];
+    for (int i = 0; i < SEGMENTS_COUNT; i++) {
+      mySegments[i] = new SLRUCache<Integer, V>(segmentSize, segmentSize) {
+        @NotNull
+        @Override
+        public V createValue(Integer key) {
+          return StripedCache.this.createValue(key);
+        }
+      };
+    }
+  }
+
+  @NotNull
+  protected abstract V createValue(int key);
+
+  @NotNull
+  Object getLock(final int key) {
+    return getSegment(key);
+  }
+
+  @NotNull
+  V get(final int key) {
+    final SLRUCache<Integer, V> segment = getSegment(key);
+    synchronized (segment) {
+      return segment.get(key);
+    }
+  }
+
+  void remove(final int key) {
+    final SLRUCache<Integer, V> segment = getSegment(key);
+    synchronized (segment) {
+      segment.remove(key);
+    }
+  }
+
+  void clear() {
+    for (SLRUCache<Integer, V> segment : mySegments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  private SLRUCache<Integer, V> getSegment(final int key) {
+    int h = key * 0x9E3779B9;
+    h ^= h >>> 16;
+    return mySegments[h & (SEGMENTS_COUNT - 1)];
+  }
+}
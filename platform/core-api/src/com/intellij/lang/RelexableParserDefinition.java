@@ -0,0 +1,37 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.lang;
+
+import com.intellij.psi.tree.TokenSet;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Parser definition of a language whose files can be updated by relexing only the tokens damaged by a change.
+ * <p/>
+ * When a change leaves the types of all the relexed tokens the same and only changes the text of the tokens returned by
+ * {@link #getTextInsensitiveTokens()}, the changed leaves are replaced without reparsing the file. The lexer is restarted at
+ * the tokens it starts in the initial state, so its output from such a token should depend only on the text following it,
+ * and each leaf of the file tree should correspond to a token of the lexer.
+ */
+public interface RelexableParserDefinition extends ParserDefinition {
+  /**
+   * Returns the set of token types the text of which does not affect the tree built by the parser.
+   *
+   * @return the set of token types which can change their text without reparsing.
+   */
+  @NotNull
+  TokenSet getTextInsensitiveTokens();
+}
@@ -23,6 +23,7 @@ import com.intellij.util.LocalTimeCounter;
 import com.intellij.util.text.CharArrayCharSequence;
 import com.intellij.util.text.CharArrayUtil;
 import com.intellij.util.text.CharSequenceBackedByArray;
+import com.intellij.util.text.Rope;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -54,6 +55,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
    */
   private static final int MAX_DEFERRED_CHANGES_NUMBER = 10000;
 
+  /**
+   * Text at least this long is kept in a {@link Rope} when modified, so that a change doesn't shift the whole array.
+   * The text returns to an array when it becomes twice shorter.
+   */
+  @SuppressWarnings("UseOfArchaicSystemPropertyAccessors")
+  static final int ROPE_THRESHOLD = Integer.getInteger("idea.document.rope.threshold", 4 * 1024 * 1024);
+
   private final TextChangesStorage myDeferredChangesStorage;
 
   private volatile int myStart; // start offset in myArray (used as an optimization when call substring())
@@ -66,6 +74,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private volatile int myDeferredShift;
   private volatile boolean myDeferredChangeMode;
   private volatile boolean myHasDeferredChanges;
+  private volatile Rope myRope;
+  private volatile Reference<RopeChars> myRopeCharsRef; // buffers char array of the rope - for getChars()
+  private final int myRopeThreshold;
+  private final CharSequence myRopeView = new RopeView();
   // this lock is for mutual exclusion during read action access
   // (some fields are changed in read action too)
   private final Lock lock = new ReentrantLock();
@@ -99,13 +111,18 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   // bufferSize == 0 means unbounded
   CharArray(final int bufferSize, @NotNull char[] data, int length) {
+    this(bufferSize, data, length, ROPE_THRESHOLD);
+  }
+
+  CharArray(final int bufferSize, @NotNull char[] data, int length, int ropeThreshold) {
     myBufferSize = bufferSize;
+    myRopeThreshold = ropeThreshold;
     myDeferredChangesStorage = new TextChangesStorage();
     myArray = Arrays.copyOf(data, length);
     myCount = length;
 
     if (myDebug) {
-      myDebugArray = new CharArray(bufferSize, data, length) {
+      myDebugArray = new CharArray(bufferSize, data, length, ropeThreshold) {
         @NotNull
         @Override
         protected DocumentEvent beforeChangedUpdate(int offset,
@@ -168,6 +185,8 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertConsistency();
     myOriginalSequence = chars.toString();
     myArray = null;
+    myRope = null;
+    myRopeCharsRef = null;
     myStringRef = null;
     myCount = chars.length();
     assert myStart == 0; // can't change substring
@@ -226,6 +245,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
       else if (myOriginalSequence != null) {
         str = myOriginalSequence.toString();
       }
+      else if (myRope != null) {
+        str = myRope.toString();
+      }
       else {
         str = stringFromCharArray;
       }
@@ -255,7 +277,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private void doReplace(int startOffset, int endOffset, @NotNull CharSequence newString) {
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      setRope(myRope.replace(startOffset, endOffset, newString));
+      if (myDebug && isDeferredChangeMode()) {
+        myDebugArray.doReplace(startOffset, endOffset, newString);
+      }
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl(newString, startOffset, endOffset));
       if (myDebug) {
         myDebugArray.doReplace(startOffset, endOffset, newString);
@@ -292,7 +320,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      setRope(myRope.delete(startIndex, endIndex));
+      if (myDebug && isDeferredChangeMode()) {
+        myDebugArray.doRemove(startIndex, endIndex);
+      }
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl("", startIndex, endIndex));
       if (myDebug) {
         myDebugArray.doRemove(startIndex, endIndex);
@@ -320,7 +354,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private void doInsert(@NotNull CharSequence s, final int startIndex) {
     prepareForModification();
 
-    if (isDeferredChangeMode()) {
+    if (myRope != null) {
+      setRope(myRope.insert(startIndex, s));
+      if (myDebug && isDeferredChangeMode()) {
+        myDebugArray.doInsert(s, startIndex);
+      }
+    }
+    else if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl(s, startIndex));
       if (myDebug) {
         myDebugArray.doInsert(s, startIndex);
@@ -365,6 +405,24 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   }
 
   private void prepareForModification() {
+    if (myRope == null && !myHasDeferredChanges && myRopeThreshold > 0 && length() >= myRopeThreshold) {
+      CharSequence text = myOriginalSequence != null ? myOriginalSequence : new CharArrayCharSequence(myArray, myStart, myStart + myCount);
+      myOriginalSequence = null;
+      myArray = null;
+      myStart = 0;
+      setRope(Rope.valueOf(text));
+    }
+    else if (myRope != null && length() < myRopeThreshold / 2) {
+      myArray = myRope.toCharArray();
+      myCount = myArray.length;
+      myRope = null;
+      myRopeCharsRef = null;
+    }
+    if (myRope != null) {
+      myStringRef = null;
+      return;
+    }
+
     if (myOriginalSequence != null) {
       myArray = new char[myOriginalSequence.length()];
       CharArrayUtil.getChars(myOriginalSequence, myArray, 0);
@@ -377,9 +435,20 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertConsistency();
   }
 
+  private void setRope(@NotNull Rope rope) {
+    myRope = rope;
+    myRopeCharsRef = null;
+    myCount = rope.length();
+    myStringRef = null;
+  }
+
   @NotNull
   public CharSequence getCharArray() {
     assertConsistency();
+    if (myRope != null) {
+      // the array itself would be flattened by the clients asking it for the chars
+      return myRopeView;
+    }
     CharSequence originalSequence = myOriginalSequence;
     return originalSequence == null ? this : originalSequence;
   }
@@ -388,7 +457,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertConsistency();
     String str = myStringRef == null ? null : myStringRef.get();
     if (str == null) {
-      if (!myHasDeferredChanges) {
+      Rope rope = myRope;
+      if (rope != null) {
+        str = rope.toString();
+      }
+      else if (!myHasDeferredChanges) {
         if (myOriginalSequence != null) {
           str = myOriginalSequence.toString();
         }
@@ -423,7 +496,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
     i += myStart;
     final char result;
-    if (!myHasDeferredChanges) {
+    Rope rope = myRope;
+    if (rope != null) {
+      result = rope.charAt(i);
+    }
+    else if (!myHasDeferredChanges) {
       if (myOriginalSequence != null) {
         result = myOriginalSequence.charAt(i);
       }
@@ -450,6 +527,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertReadAccess();
     assertConsistency();
     if (start == 0 && end == length()) return this;
+    Rope rope = myRope;
+    if (rope != null) {
+      return rope.subSequence(start, end);
+    }
     if (myOriginalSequence != null) {
       return myOriginalSequence.subSequence(start, end);
     }
@@ -462,6 +543,16 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   public char[] getChars() {
     assertReadAccess();
     assertConsistency();
+    Rope rope = myRope;
+    if (rope != null) {
+      Reference<RopeChars> ref = myRopeCharsRef;
+      RopeChars ropeChars = ref == null ? null : ref.get();
+      if (ropeChars == null || ropeChars.myRope != rope) {
+        ropeChars = new RopeChars(rope);
+        myRopeCharsRef = new SoftReference<RopeChars>(ropeChars);
+      }
+      return ropeChars.myChars;
+    }
     char[] array = myArray;
     CharSequence originalSequence = myOriginalSequence;
     if (myHasDeferredChanges || originalSequence != null && array == null) {
@@ -487,7 +578,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertReadAccess();
     assertConsistency();
     flushDeferredChanged();
-    if (myOriginalSequence == null) {
+    Rope rope = myRope;
+    if (rope != null) {
+      rope.getChars(0, rope.length(), dst, dstOffset);
+    }
+    else if (myOriginalSequence == null) {
       System.arraycopy(myArray, myStart, dst, dstOffset, length());
     }
     else {
@@ -519,7 +614,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   private CharSequence doSubString(int start, int end) {
     if (start == end) return "";
     final CharSequence result;
-    if (myOriginalSequence == null) {
+    Rope rope = myRope;
+    if (rope != null) {
+      result = rope.subSequence(start, end);
+    }
+    else if (myOriginalSequence == null) {
       result = myDeferredChangesStorage.substring(myArray, start + myStart, end + myStart);
     }
     else {
@@ -654,8 +753,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
       if (myDebug) {
         for (int i = 0, max = length(); i < max; i++) {
-          if (myArray[i] != myDebugArray.myArray[i]) {
-            dumpDebugInfo("flushDeferredChanged(). Index " + i + ", expected: '" + myDebugArray.myArray[i]+"', actual '" +
+          // the debug array may keep its text in a rope
+          if (myArray[i] != myDebugArray.charAt(i)) {
+            dumpDebugInfo("flushDeferredChanged(). Index " + i + ", expected: '" + myDebugArray.charAt(i)+"', actual '" +
                           myArray[i]+"'. Text before merge: '" + Arrays.toString(beforeMerge)+"', merge inplace: "+inPlace);
             break;
           }
@@ -671,7 +771,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   @NonNls
   @NotNull
   public String dumpState() {
-    return "deferred changes mode: " + isDeferredChangeMode()+", length: " + length()+" (data array length: " + myCount+
+    return "deferred changes mode: " + isDeferredChangeMode()+", rope: " + (myRope != null)+", length: " + length()+" (data array length: " + myCount+
            ", deferred shift: " + myDeferredShift+"); view offsets: [" + myStart+"; "+myCount+"]; deferred changes: "+myDeferredChangesStorage;
   }
   
@@ -709,4 +809,40 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
       myDebugDeferredChanges + ", current deferred changes: " + myDeferredChangesStorage
     );
   }
+
+  private static class RopeChars {
+    private final Rope myRope;
+    private final char[] myChars;
+
+    private RopeChars(@NotNull Rope rope) {
+      myRope = rope;
+      myChars = rope.toCharArray();
+    }
+  }
+
+  /**
+   * Live view of the text which doesn't expose the array, see {@link #getCharArray()}.
+   */
+  private class RopeView implements CharSequence {
+    @Override
+    public int length() {
+      return CharArray.this.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+      return CharArray.this.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return start == 0 && end == length() ? this : CharArray.this.subSequence(start, end);
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+      return CharArray.this.toString();
+    }
+  }
 }
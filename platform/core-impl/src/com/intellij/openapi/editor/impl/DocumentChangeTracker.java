@@ -0,0 +1,127 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.util.TextRange;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Records the changes made to a document since some moment, see {@link DocumentImpl#trackChanges()}, so that the ranges
+ * of the document text at that moment can be translated to the current document text. The text itself is not kept.
+ */
+public class DocumentChangeTracker {
+  private final DocumentImpl myDocument;
+  private final long myModificationStamp;
+  private final Change myLastChange;
+
+  DocumentChangeTracker(@NotNull DocumentImpl document, long modificationStamp, @NotNull Change lastChange) {
+    myDocument = document;
+    myModificationStamp = modificationStamp;
+    myLastChange = lastChange;
+  }
+
+  @NotNull
+  public Document getDocument() {
+    return myDocument;
+  }
+
+  public long getModificationStamp() {
+    return myModificationStamp;
+  }
+
+  /**
+   * @return true if the document was not changed since the tracking started
+   */
+  public boolean isUpToDate() {
+    return myLastChange.myNext == null;
+  }
+
+  /**
+   * @return the range of the current document text which holds the same text as the given range of the text at the start of the tracking,
+   * or null if the text of the range was changed
+   */
+  @Nullable
+  public TextRange translate(int startOffset, int endOffset) {
+    for (Change change = myLastChange.myNext; change != null; change = change.myNext) {
+      if (change.myWholeTextReplaced) return null;
+      if (endOffset <= change.myOffset) continue;
+      if (startOffset < change.myOffset + change.myOldLength) return null;
+      int shift = change.myNewLength - change.myOldLength;
+      startOffset += shift;
+      endOffset += shift;
+    }
+    return new TextRange(startOffset, endOffset);
+  }
+
+  /**
+   * @return the range of the current document text which holds the text of the given range of the text at the start of the tracking
+   * along with the changes made inside and at the borders of the range, or null if the whole text was replaced
+   */
+  @Nullable
+  public TextRange translateEnclosing(int startOffset, int endOffset) {
+    for (Change change = myLastChange.myNext; change != null; change = change.myNext) {
+      if (change.myWholeTextReplaced) return null;
+      int changeEnd = change.myOffset + change.myOldLength;
+      int shift = change.myNewLength - change.myOldLength;
+      if (startOffset > changeEnd) {
+        startOffset += shift;
+      }
+      else if (startOffset > change.myOffset) {
+        startOffset = change.myOffset;
+      }
+      if (endOffset >= changeEnd) {
+        endOffset += shift;
+      }
+      else if (endOffset >= change.myOffset) {
+        endOffset = change.myOffset + change.myNewLength;
+      }
+    }
+    return new TextRange(startOffset, endOffset);
+  }
+
+  /**
+   * Element of the list of the document changes. The document keeps the last one, and the trackers keep the one which was
+   * the last when they were created, so the changes are collected once there are no trackers left.
+   */
+  static class Change {
+    private final int myOffset;
+    private final int myOldLength;
+    private final int myNewLength;
+    private final boolean myWholeTextReplaced;
+    private volatile Change myNext;
+
+    Change() {
+      this(0, 0, 0, false);
+    }
+
+    private Change(int offset, int oldLength, int newLength, boolean wholeTextReplaced) {
+      myOffset = offset;
+      myOldLength = oldLength;
+      myNewLength = newLength;
+      myWholeTextReplaced = wholeTextReplaced;
+    }
+
+    @NotNull
+    Change append(@NotNull DocumentEvent event) {
+      Change next = new Change(event.getOffset(), event.getOldLength(), event.getNewLength(), event.isWholeTextReplaced());
+      myNext = next;
+      return next;
+    }
+  }
+}
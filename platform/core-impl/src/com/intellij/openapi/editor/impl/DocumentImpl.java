@@ -64,6 +64,7 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
   private boolean myIsReadOnly = false;
   private boolean isStripTrailingSpacesEnabled = true;
   private volatile long myModificationStamp;
+  private volatile DocumentChangeTracker.Change myLastChange = new DocumentChangeTracker.Change();
   private final PropertyChangeSupport myPropertyChangeSupport = new PropertyChangeSupport(this);
 
   private DocumentListener[] myCachedDocumentListeners;
@@ -547,6 +548,7 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
       if (LOG.isDebugEnabled()) LOG.debug(event.toString());
 
       myLineSet.changedUpdate(event);
+      myLastChange = myLastChange.append(event);
       setModificationStamp(newModificationStamp);
 
       if (!ShutDownTracker.isShutdownHookRunning()) {
@@ -608,6 +610,16 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return myText.getCharArray();
   }
 
+  /**
+   * Should be called in a read action, so that the document isn't changed meanwhile.
+   * @return the tracker of the subsequent changes, see {@link DocumentChangeTracker#translate(int, int)} to map the current offsets
+   * to the document text once it is changed
+   */
+  @NotNull
+  public DocumentChangeTracker trackChanges() {
+    return new DocumentChangeTracker(this, myModificationStamp, myLastChange);
+  }
+
 
   @Override
   public void addDocumentListener(@NotNull DocumentListener listener) {
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Adjacent lines of a text, each with its length and a byte of data.
+ * <p/>
+ * The lines are kept in chunks which store the line ends relative to the chunk start, and the chunk lengths and line counts
+ * are summed up in Fenwick trees. So a line is found by an offset or an index in O(log n), and a change of a line
+ * or a replacement of k lines costs O(k + chunk size + log n) instead of shifting the offsets of all the following lines.
+ * When chunks are split or merged the trees are rebuilt lazily on the next lookup, and modifications find their chunks by a scan
+ * meanwhile, so a series of changes costs one rebuild.
+ * <p/>
+ * Lookups may be performed concurrently, modifications should be exclusive.
+ */
+final class LineIndex {
+  static final int CHUNK_SIZE = 512;
+
+  private Chunk[] myChunks = new Chunk[0];
+  private int myChunkCount;
+  private int myLineCount;
+  private int myTextLength;
+  // null when the chunks have been split or merged since the last lookup
+  private volatile Sums mySums = new Sums(myChunks, 0);
+
+  int getLineCount() {
+    return myLineCount;
+  }
+
+  int getTextLength() {
+    return myTextLength;
+  }
+
+  /**
+   * @return the index of the line containing the offset, the last line for the text length
+   */
+  int findLineIndex(int offset) {
+    if (myLineCount == 0) {
+      if (offset == 0) return 0;
+      throw new IllegalStateException("no lines available. offset = " + offset);
+    }
+    if (offset > myTextLength || offset < 0) {
+      throw new IndexOutOfBoundsException("Wrong offset: " + offset + ". Should be in range: [0, " + myTextLength + "]");
+    }
+    if (offset == myTextLength) return myLineCount - 1;
+
+    Sums sums = getSums();
+    int chunkIndex = sums.findChunkByOffset(offset);
+    Chunk chunk = myChunks[chunkIndex];
+    return sums.getLineCountBefore(chunkIndex) + chunk.findLine(offset - sums.getLengthBefore(chunkIndex));
+  }
+
+  int getLineStart(int line) {
+    checkLine(line);
+    Sums sums = getSums();
+    int chunkIndex = sums.findChunkByLine(line);
+    int localLine = line - sums.getLineCountBefore(chunkIndex);
+    return sums.getLengthBefore(chunkIndex) + myChunks[chunkIndex].getStart(localLine);
+  }
+
+  int getLineEnd(int line) {
+    checkLine(line);
+    Sums sums = getSums();
+    int chunkIndex = sums.findChunkByLine(line);
+    int localLine = line - sums.getLineCountBefore(chunkIndex);
+    return sums.getLengthBefore(chunkIndex) + myChunks[chunkIndex].myEnds[localLine];
+  }
+
+  int getData(int line) {
+    checkLine(line);
+    Sums sums = getSums();
+    int chunkIndex = sums.findChunkByLine(line);
+    return myChunks[chunkIndex].myData[line - sums.getLineCountBefore(chunkIndex)];
+  }
+
+  void setData(int line, int data) {
+    checkLine(line);
+    Sums sums = getSums();
+    int chunkIndex = sums.findChunkByLine(line);
+    myChunks[chunkIndex].myData[line - sums.getLineCountBefore(chunkIndex)] = (byte)data;
+  }
+
+  void clearData(int mask) {
+    for (int i = 0; i < myChunkCount; i++) {
+      Chunk chunk = myChunks[i];
+      for (int j = 0; j < chunk.myCount; j++) {
+        chunk.myData[j] &= ~mask;
+      }
+    }
+  }
+
+  void changeLineLength(int line, int delta) {
+    checkLine(line);
+    Sums sums = mySums;
+    int chunkIndex = findChunkByLine(sums, line);
+    Chunk chunk = myChunks[chunkIndex];
+    int[] ends = chunk.myEnds;
+    for (int i = line - getLineCountBefore(sums, chunkIndex); i < chunk.myCount; i++) {
+      ends[i] += delta;
+      if (ends[i] < 0) {
+        throw new IllegalArgumentException("Negative line end: line = " + line + ", delta = " + delta);
+      }
+    }
+    if (sums != null) {
+      sums.addLength(chunkIndex, delta);
+    }
+    myTextLength += delta;
+  }
+
+  /**
+   * Replaces the lines in [startLine, endLine) with the given ones.
+   */
+  void replaceLines(int startLine, int endLine, @NotNull int[] lengths, @NotNull byte[] data, int count) {
+    if (startLine < 0 || endLine > myLineCount || startLine > endLine) {
+      throw new IndexOutOfBoundsException("Wrong lines: [" + startLine + ", " + endLine + "). Available lines count: " + myLineCount);
+    }
+    if (startLine == endLine && count == 0) return;
+
+    int firstChunk;
+    int lastChunk;
+    int startInChunk;
+    int endInChunk;
+    if (myChunkCount == 0) {
+      firstChunk = lastChunk = 0;
+      startInChunk = endInChunk = 0;
+    }
+    else {
+      Sums sums = mySums;
+      firstChunk = startLine == myLineCount ? myChunkCount - 1 : findChunkByLine(sums, startLine);
+      startInChunk = startLine - getLineCountBefore(sums, firstChunk);
+      lastChunk = endLine == 0 ? 0 : findChunkByLine(sums, endLine - 1);
+      endInChunk = endLine - getLineCountBefore(sums, lastChunk);
+      if (lastChunk < firstChunk) {
+        // empty range at the chunk border
+        lastChunk = firstChunk;
+        endInChunk = startInChunk;
+      }
+    }
+
+    // the kept lines of the first and the last chunks along with the new ones
+    Chunk head = myChunkCount == 0 ? null : myChunks[firstChunk];
+    Chunk tail = myChunkCount == 0 ? null : myChunks[lastChunk];
+    int tailCount = tail == null ? 0 : tail.myCount - endInChunk;
+    int total = startInChunk + count + tailCount;
+    int[] newLengths = new int[total];
+    byte[] newData = new byte[total];
+    int pos = 0;
+    for (int i = 0; i < startInChunk; i++, pos++) {
+      newLengths[pos] = head.getLength(i);
+      newData[pos] = head.myData[i];
+    }
+    System.arraycopy(lengths, 0, newLengths, pos, count);
+    System.arraycopy(data, 0, newData, pos, count);
+    pos += count;
+    for (int i = endInChunk; i < endInChunk + tailCount; i++, pos++) {
+      newLengths[pos] = tail.getLength(i);
+      newData[pos] = tail.myData[i];
+    }
+
+    int removedLength = 0;
+    int removedLines = 0;
+    for (int i = firstChunk; i < Math.min(lastChunk + 1, myChunkCount); i++) {
+      removedLength += myChunks[i].getTextLength();
+      removedLines += myChunks[i].myCount;
+    }
+    int newChunkCount = (total + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    Chunk[] newChunks = new Chunk[newChunkCount];
+    int addedLength = 0;
+    for (int i = 0; i < newChunkCount; i++) {
+      // spread the lines evenly
+      int from = (int)((long)total * i / newChunkCount);
+      int to = (int)((long)total * (i + 1) / newChunkCount);
+      newChunks[i] = new Chunk(newLengths, newData, from, to);
+      addedLength += newChunks[i].getTextLength();
+    }
+
+    int removedChunks = myChunkCount == 0 ? 0 : lastChunk - firstChunk + 1;
+    replaceChunks(firstChunk, removedChunks, newChunks);
+    myLineCount += total - removedLines;
+    myTextLength += addedLength - removedLength;
+
+    // don't let deletions leave many small chunks behind
+    if (newChunkCount == 1 && firstChunk + 1 < myChunkCount) {
+      Chunk next = myChunks[firstChunk + 1];
+      if (newChunks[0].myCount + next.myCount <= CHUNK_SIZE / 2) {
+        replaceChunks(firstChunk, 2, new Chunk[]{newChunks[0].append(next)});
+      }
+    }
+  }
+
+  void clear() {
+    myChunks = new Chunk[0];
+    myChunkCount = 0;
+    myLineCount = 0;
+    myTextLength = 0;
+    mySums = new Sums(myChunks, 0);
+  }
+
+  private void replaceChunks(int start, int removedCount, @NotNull Chunk[] chunks) {
+    Sums sums = mySums;
+    if (sums != null && removedCount == chunks.length) {
+      for (int i = 0; i < chunks.length; i++) {
+        Chunk old = myChunks[start + i];
+        sums.addLength(start + i, chunks[i].getTextLength() - old.getTextLength());
+        sums.addLineCount(start + i, chunks[i].myCount - old.myCount);
+        myChunks[start + i] = chunks[i];
+      }
+      return;
+    }
+
+    int newCount = myChunkCount - removedCount + chunks.length;
+    Chunk[] array = myChunks;
+    if (newCount > array.length) {
+      array = new Chunk[Math.max(newCount, array.length * 3 / 2 + 1)];
+      System.arraycopy(myChunks, 0, array, 0, start);
+    }
+    System.arraycopy(myChunks, start + removedCount, array, start + chunks.length, myChunkCount - start - removedCount);
+    System.arraycopy(chunks, 0, array, start, chunks.length);
+    for (int i = newCount; i < myChunkCount; i++) {
+      array[i] = null;
+    }
+    myChunks = array;
+    myChunkCount = newCount;
+    mySums = null;
+  }
+
+  private void checkLine(int line) {
+    if (line < 0 || line >= myLineCount) {
+      throw new IndexOutOfBoundsException("Wrong line: " + line + ". Available lines count: " + myLineCount);
+    }
+  }
+
+  // the modifications don't rebuild the trees, the chunks are scanned instead till the next lookup
+  private int findChunkByLine(@Nullable Sums sums, int line) {
+    if (sums != null) return sums.findChunkByLine(line);
+    int lineCount = 0;
+    for (int i = 0; i < myChunkCount; i++) {
+      lineCount += myChunks[i].myCount;
+      if (line < lineCount) return i;
+    }
+    return myChunkCount;
+  }
+
+  private int getLineCountBefore(@Nullable Sums sums, int chunkIndex) {
+    if (sums != null) return sums.getLineCountBefore(chunkIndex);
+    int lineCount = 0;
+    for (int i = 0; i < chunkIndex; i++) {
+      lineCount += myChunks[i].myCount;
+    }
+    return lineCount;
+  }
+
+  @NotNull
+  private Sums getSums() {
+    Sums sums = mySums;
+    return sums == null ? rebuildSums() : sums;
+  }
+
+  @NotNull
+  private synchronized Sums rebuildSums() {
+    Sums sums = mySums;
+    if (sums == null) {
+      mySums = sums = new Sums(myChunks, myChunkCount);
+    }
+    return sums;
+  }
+
+  private static final class Chunk {
+    // line ends relative to the chunk start
+    private final int[] myEnds;
+    private final byte[] myData;
+    private final int myCount;
+
+    private Chunk(@NotNull int[] lengths, @NotNull byte[] data, int from, int to) {
+      myCount = to - from;
+      myEnds = new int[myCount];
+      myData = new byte[myCount];
+      int end = 0;
+      for (int i = 0; i < myCount; i++) {
+        end += lengths[from + i];
+        myEnds[i] = end;
+      }
+      System.arraycopy(data, from, myData, 0, myCount);
+    }
+
+    private Chunk(@NotNull int[] ends, @NotNull byte[] data) {
+      myEnds = ends;
+      myData = data;
+      myCount = ends.length;
+    }
+
+    private int getTextLength() {
+      return myCount == 0 ? 0 : myEnds[myCount - 1];
+    }
+
+    private int getStart(int line) {
+      return line == 0 ? 0 : myEnds[line - 1];
+    }
+
+    private int getLength(int line) {
+      return myEnds[line] - getStart(line);
+    }
+
+    // the first line ending after the offset
+    private int findLine(int offset) {
+      int start = 0;
+      int end = myCount - 1;
+      while (start < end) {
+        int middle = (start + end) >>> 1;
+        if (myEnds[middle] <= offset) {
+          start = middle + 1;
+        }
+        else {
+          end = middle;
+        }
+      }
+      return start;
+    }
+
+    @NotNull
+    private Chunk append(@NotNull Chunk next) {
+      int[] ends = new int[myCount + next.myCount];
+      byte[] data = new byte[ends.length];
+      System.arraycopy(myEnds, 0, ends, 0, myCount);
+      System.arraycopy(myData, 0, data, 0, myCount);
+      int shift = getTextLength();
+      for (int i = 0; i < next.myCount; i++) {
+        ends[myCount + i] = next.myEnds[i] + shift;
+      }
+      System.arraycopy(next.myData, 0, data, myCount, next.myCount);
+      return new Chunk(ends, data);
+    }
+  }
+
+  /**
+   * Fenwick trees of the chunk lengths and line counts.
+   */
+  private static final class Sums {
+    private final int[] myLengths;
+    private final int[] myLineCounts;
+    private final int myTopBit;
+
+    private Sums(@NotNull Chunk[] chunks, int count) {
+      myLengths = new int[count + 1];
+      myLineCounts = new int[count + 1];
+      for (int i = 1; i <= count; i++) {
+        myLengths[i] += chunks[i - 1].getTextLength();
+        myLineCounts[i] += chunks[i - 1].myCount;
+        int parent = i + (i & -i);
+        if (parent <= count) {
+          myLengths[parent] += myLengths[i];
+          myLineCounts[parent] += myLineCounts[i];
+        }
+      }
+      myTopBit = Integer.highestOneBit(count);
+    }
+
+    private int getLengthBefore(int chunkIndex) {
+      return sum(myLengths, chunkIndex);
+    }
+
+    private int getLineCountBefore(int chunkIndex) {
+      return sum(myLineCounts, chunkIndex);
+    }
+
+    private void addLength(int chunkIndex, int delta) {
+      add(myLengths, chunkIndex, delta);
+    }
+
+    private void addLineCount(int chunkIndex, int delta) {
+      add(myLineCounts, chunkIndex, delta);
+    }
+
+    private int findChunkByOffset(int offset) {
+      return find(myLengths, offset);
+    }
+
+    private int findChunkByLine(int line) {
+      return find(myLineCounts, line);
+    }
+
+    private static int sum(@NotNull int[] tree, int count) {
+      int sum = 0;
+      for (int i = count; i > 0; i -= i & -i) {
+        sum += tree[i];
+      }
+      return sum;
+    }
+
+    private static void add(@NotNull int[] tree, int index, int delta) {
+      for (int i = index + 1; i < tree.length; i += i & -i) {
+        tree[i] += delta;
+      }
+    }
+
+    // the number of the leading chunks whose total doesn't exceed the value, i.e. the index of the chunk containing it
+    private int find(@NotNull int[] tree, int value) {
+      int pos = 0;
+      for (int step = myTopBit; step > 0; step >>= 1) {
+        int next = pos + step;
+        if (next < tree.length && tree[next] <= value) {
+          pos = next;
+          value -= tree[next];
+        }
+      }
+      return pos;
+    }
+  }
+}
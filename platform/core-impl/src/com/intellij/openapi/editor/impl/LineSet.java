@@ -19,10 +19,9 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.ex.LineIterator;
-import com.intellij.openapi.editor.ex.util.SegmentArrayWithData;
 import com.intellij.openapi.editor.impl.event.DocumentEventImpl;
 import com.intellij.openapi.util.text.LineTokenizer;
-import com.intellij.util.text.MergingCharSequence;
+import com.intellij.util.ArrayUtil;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -32,12 +31,12 @@ import org.jetbrains.annotations.NotNull;
  * Not thread-safe.
  */
 public class LineSet{
-  private SegmentArrayWithData mySegments = new SegmentArrayWithData();
+  private final LineIndex myLines = new LineIndex();
   private static final int MODIFIED_MASK = 0x4;
   private static final int SEPARATOR_MASK = 0x3;
 
   public int findLineIndex(int offset) {
-    int lineIndex = mySegments.findSegmentIndex(offset);
+    int lineIndex = myLines.findLineIndex(offset);
     assert lineIndex >= 0;
     return lineIndex;
   }
@@ -47,28 +46,28 @@ public class LineSet{
   }
 
   final int getLineStart(int index) {
-    int lineStart = mySegments.getSegmentStart(index);
+    int lineStart = myLines.getLineStart(index);
     assert lineStart >= 0;
     return lineStart;
   }
 
   final int getLineEnd(int index) {
-    return mySegments.getSegmentEnd(index);
+    return myLines.getLineEnd(index);
   }
 
   final boolean isModified(int index) {
-    return (mySegments.getSegmentData(index) & MODIFIED_MASK) != 0;
+    return (myLines.getData(index) & MODIFIED_MASK) != 0;
   }
   final void setModified(int index) {
-    setSegmentModified(mySegments, index);
+    myLines.setData(index, myLines.getData(index) | MODIFIED_MASK);
   }
 
   final int getSeparatorLength(int index) {
-    return mySegments.getSegmentData(index) & SEPARATOR_MASK;
+    return myLines.getData(index) & SEPARATOR_MASK;
   }
 
   final int getLineCount() {
-    return mySegments.getSegmentCount();
+    return myLines.getLineCount();
   }
 
   public void documentCreated(@NotNull Document document) {
@@ -77,33 +76,24 @@ public class LineSet{
 
   public void changedUpdate(DocumentEvent e1) {
     DocumentEventImpl e = (DocumentEventImpl) e1;
-    if (e.isOnlyOneLineChanged() && mySegments.getSegmentCount() > 0) {
+    if (e.isOnlyOneLineChanged() && getLineCount() > 0) {
       processOneLineChange(e);
     } else {
-      if (mySegments.getSegmentCount() == 0 || e.getStartOldIndex() >= mySegments.getSegmentCount() ||
+      if (getLineCount() == 0 || e.getStartOldIndex() >= getLineCount() ||
           e.getStartOldIndex() < 0) {
         initSegments(e.getDocument().getCharsSequence(), true);
         return;
       }
 
-      final int optimizedLineShift = e.getOptimizedLineShift();
-
-      if (optimizedLineShift != -1) {
-        processOptimizedMultilineInsert(e, optimizedLineShift);
-      } else {
-        final int optimizedOldLineShift = e.getOptimizedOldLineShift();
-
-        if (optimizedOldLineShift != -1) {
-          processOptimizedMultilineDelete(e, optimizedOldLineShift);
-        } else {
-          processMultilineChange(e);
-        }
-      }
+      processMultilineChange(e);
     }
 
     if (e.isWholeTextReplaced()) {
       clearModificationFlags();
     }
+    if (doTest) {
+      checkAgainstReinitialized(e.getDocument().getCharsSequence());
+    }
   }
 
   public static void setTestingMode(boolean testMode) {
@@ -113,273 +103,84 @@ public class LineSet{
 
   private static boolean doTest = false;
 
-  private void processOptimizedMultilineDelete(final DocumentEventImpl e, final int optimizedLineShift) {
-    final int insertionPoint = e.getOffset();
-    final int changedLineIndex = e.getStartOldIndex();
-    final int lengthDiff = e.getOldLength();
-
-    SegmentArrayWithData workingCopySegmentsForTesting = null;
-    SegmentArrayWithData segments; //
-
-    if (doTest) {
-      segments = new SegmentArrayWithData();
-      workingCopySegmentsForTesting = new SegmentArrayWithData();
-      fillSegments(segments, workingCopySegmentsForTesting);
-    } else {
-      segments = mySegments;
-    }
-
-    final int oldSegmentStart = segments.getSegmentStart(changedLineIndex);
-    final int lastChangedEnd = segments.getSegmentEnd(changedLineIndex + optimizedLineShift);
-    final short lastChangedData = segments.getSegmentData(changedLineIndex + optimizedLineShift);
-    final int newSegmentEnd = oldSegmentStart + (insertionPoint - oldSegmentStart) + (lastChangedEnd - insertionPoint - lengthDiff);
-
-    segments.remove(changedLineIndex, changedLineIndex + optimizedLineShift);
-
-    if (newSegmentEnd != 0) {
-      segments.setElementAt(
-        changedLineIndex,
-        oldSegmentStart, newSegmentEnd,
-        lastChangedData | MODIFIED_MASK
-      );
-    } else {
-      segments.remove(changedLineIndex, changedLineIndex + 1);
-    }
-
-// update data after lineIndex, shifting with optimizedLineShift
-    final int segmentCount = segments.getSegmentCount();
-    for(int i = changedLineIndex + 1; i < segmentCount; ++i) {
-      segments.setElementAt(i, segments.getSegmentStart(i) - lengthDiff,
-        segments.getSegmentEnd(i) - lengthDiff,
-        segments.getSegmentData(i)
-      );
-    }
-
-    if (doTest) {
-      final SegmentArrayWithData data = mySegments;
-      mySegments = segments;
-      addEmptyLineAtEnd();
-
-      doCheckResults(workingCopySegmentsForTesting, e, data, segments);
-    } else {
-      addEmptyLineAtEnd();
-    }
-  }
-
-  private void processOptimizedMultilineInsert(final DocumentEventImpl e, final int optimizedLineShift) {
-    final int insertionPoint = e.getOffset();
-    final int changedLineIndex = e.getStartOldIndex();
-    final int lengthDiff = e.getNewLength();
-    final LineTokenizer tokenizer = new LineTokenizer(e.getNewFragment());
+  private void checkAgainstReinitialized(CharSequence text) {
+    LineSet expected = new LineSet();
+    expected.initSegments(text, false);
 
-    SegmentArrayWithData workingCopySegmentsForTesting = null;
-    SegmentArrayWithData segments; //
-
-    if (doTest) {
-      segments = new SegmentArrayWithData();
-      workingCopySegmentsForTesting = new SegmentArrayWithData();
-      fillSegments(segments, workingCopySegmentsForTesting);
-    } else {
-      segments = mySegments;
+    // not an assert, the testing mode has to work without -ea as well
+    if (expected.getLineCount() != getLineCount()) {
+      throw new AssertionError("line count: " + getLineCount() + " instead of " + expected.getLineCount());
     }
-
-    int i;
-
-    // update data after lineIndex, shifting with optimizedLineShift
-    for(i = segments.getSegmentCount() - 1; i > changedLineIndex; --i) {
-      segments.setElementAt(i + optimizedLineShift, segments.getSegmentStart(i) + lengthDiff,
-        segments.getSegmentEnd(i) + lengthDiff,
-        segments.getSegmentData(i)
-      );
-    }
-
-    final int oldSegmentEnd = segments.getSegmentEnd(changedLineIndex);
-    final int oldSegmentStart = segments.getSegmentStart(changedLineIndex);
-    final short oldSegmentData = segments.getSegmentData(changedLineIndex);
-
-    final int newChangedLineEnd = insertionPoint + tokenizer.getLineSeparatorLength() + tokenizer.getOffset() + tokenizer.getLength();
-    segments.setElementAt(
-      changedLineIndex,
-      oldSegmentStart, newChangedLineEnd,
-      tokenizer.getLineSeparatorLength() | MODIFIED_MASK
-    );
-
-    tokenizer.advance();
-    i = 1;
-    int lastFragmentLength = 0;
-
-    while(!tokenizer.atEnd()) {
-      lastFragmentLength = tokenizer.getLineSeparatorLength() != 0 ? 0:tokenizer.getLength();
-      segments.setElementAt(
-        changedLineIndex + i,
-        insertionPoint + tokenizer.getOffset(),
-        insertionPoint + tokenizer.getOffset() + tokenizer.getLength() + tokenizer.getLineSeparatorLength(),
-        tokenizer.getLineSeparatorLength() | MODIFIED_MASK
-      );
-      i++;
-      tokenizer.advance();
-    }
-
-    segments.setElementAt(
-      changedLineIndex + optimizedLineShift, insertionPoint + lengthDiff - lastFragmentLength,
-      oldSegmentEnd + lengthDiff,
-      oldSegmentData | MODIFIED_MASK
-    );
-
-    if (doTest) {
-      final SegmentArrayWithData data = mySegments;
-      mySegments = segments;
-      addEmptyLineAtEnd();
-
-      doCheckResults(workingCopySegmentsForTesting, e, data, segments);
-    } else {
-      addEmptyLineAtEnd();
-    }
-  }
-
-  private void doCheckResults(final SegmentArrayWithData workingCopySegmentsForTesting, final DocumentEventImpl e,
-                              final SegmentArrayWithData data,
-                              final SegmentArrayWithData segments) {
-    mySegments = workingCopySegmentsForTesting;
-    processMultilineChange(e);
-    mySegments = data;
-
-    assert workingCopySegmentsForTesting.getSegmentCount() == segments.getSegmentCount();
-    for(int i =0; i < segments.getSegmentCount();++i) {
-      assert workingCopySegmentsForTesting.getSegmentStart(i) == segments.getSegmentStart(i);
-      assert workingCopySegmentsForTesting.getSegmentEnd(i) == segments.getSegmentEnd(i);
-      assert workingCopySegmentsForTesting.getSegmentData(i) == segments.getSegmentData(i);
-    }
-
-    processMultilineChange(e);
-  }
-
-  private void fillSegments(final SegmentArrayWithData segments, final SegmentArrayWithData workingCopySegmentsForTesting) {
-    for(int i = mySegments.getSegmentCount() - 1; i >=0; --i) {
-      segments.setElementAt(
-        i,
-        mySegments.getSegmentStart(i),
-        mySegments.getSegmentEnd(i),
-        mySegments.getSegmentData(i)
-      );
-      workingCopySegmentsForTesting.setElementAt(
-        i,
-        mySegments.getSegmentStart(i),
-        mySegments.getSegmentEnd(i),
-        mySegments.getSegmentData(i)
-      );
+    for (int i = 0; i < getLineCount(); i++) {
+      if (expected.getLineStart(i) != getLineStart(i) ||
+          expected.getLineEnd(i) != getLineEnd(i) ||
+          expected.getSeparatorLength(i) != getSeparatorLength(i)) {
+        throw new AssertionError("line " + i + ": " + getLineStart(i) + "-" + getLineEnd(i) + "+" + getSeparatorLength(i) +
+                                 " instead of " + expected.getLineStart(i) + "-" + expected.getLineEnd(i) + "+" + expected.getSeparatorLength(i));
+      }
     }
   }
 
   private void processMultilineChange(DocumentEventImpl e) {
-    int offset = e.getOffset();
-    CharSequence newString = e.getNewFragment();
-    CharSequence chars = e.getDocument().getCharsSequence();
-
     int oldStartLine = e.getStartOldIndex();
-    int offset1 = getLineStart(oldStartLine);
-    if (offset1 != offset) {
-      CharSequence prefix = chars.subSequence(offset1, offset);
-      newString = new MergingCharSequence(prefix, newString);
-    }
-
     int oldEndLine = findLineIndex(e.getOffset() + e.getOldLength());
-    if (oldEndLine < 0) {
-      oldEndLine = getLineCount() - 1;
-    }
-    int offset2 = getLineEnd(oldEndLine);
-    if (offset2 != offset + e.getOldLength()) {
-      final int start = offset + e.getNewLength();
-      final int length = offset2 - offset - e.getOldLength();
-      CharSequence postfix = chars.subSequence(start, start + length);
-      newString = new MergingCharSequence(newString, postfix);
-    }
+    int startOffset = getLineStart(oldStartLine);
+    int endOffset = getLineEnd(oldEndLine) + e.getNewLength() - e.getOldLength();
 
-    updateSegments(newString, oldStartLine, oldEndLine, offset1, e);
+    // the changed lines are tokenized once again, the following lines are shifted by the index
+    CharSequence chars = e.getDocument().getCharsSequence();
+    replaceLines(oldStartLine, oldEndLine + 1, chars.subSequence(startOffset, endOffset), true);
     // We add empty line at the end, if the last line ends by line separator.
     addEmptyLineAtEnd();
   }
 
-  private void updateSegments(CharSequence newText, int oldStartLine, int oldEndLine, int offset1,
-                                              DocumentEventImpl e) {
-    int count = 0;
-    LineTokenizer lineTokenizer = new LineTokenizer(newText);
-    for (int index = oldStartLine; index <= oldEndLine; index++) {
-      if (!lineTokenizer.atEnd()) {
-        setSegmentAt(mySegments, index, lineTokenizer, offset1, true);
-        lineTokenizer.advance();
-      } else {
-        mySegments.remove(index, oldEndLine + 1);
-        break;
-      }
-      count++;
-    }
-    if (!lineTokenizer.atEnd()) {
-      SegmentArrayWithData insertSegments = new SegmentArrayWithData();
-      int i = 0;
-      while (!lineTokenizer.atEnd()) {
-        setSegmentAt(insertSegments, i, lineTokenizer, offset1, true);
-        lineTokenizer.advance();
-        count++;
-        i++;
-      }
-      mySegments.insert(insertSegments, oldEndLine + 1);
-    }
-    int shift = e.getNewLength() - e.getOldLength();
-    mySegments.shiftSegments(oldStartLine + count, shift);
-  }
-
   private void processOneLineChange(DocumentEventImpl e) {
     // Check, if the change on the end of text
-    if (e.getOffset() >= mySegments.getSegmentEnd(mySegments.getSegmentCount() - 1)) {
-      mySegments.changeSegmentLength(mySegments.getSegmentCount() - 1, e.getNewLength() - e.getOldLength());
-      setSegmentModified(mySegments, mySegments.getSegmentCount() - 1);
+    int lastLine = getLineCount() - 1;
+    if (e.getOffset() >= getLineEnd(lastLine)) {
+      myLines.changeLineLength(lastLine, e.getNewLength() - e.getOldLength());
+      setModified(lastLine);
     } else {
-      mySegments.changeSegmentLength(e.getStartOldIndex(), e.getNewLength() - e.getOldLength());
-      setSegmentModified(mySegments, e.getStartOldIndex());
+      myLines.changeLineLength(e.getStartOldIndex(), e.getNewLength() - e.getOldLength());
+      setModified(e.getStartOldIndex());
     }
   }
 
   public void clearModificationFlags() {
-    for (int i = 0; i < mySegments.getSegmentCount(); i++) {
-      mySegments.setSegmentData(i, mySegments.getSegmentData(i) & ~MODIFIED_MASK);
-    }
+    myLines.clearData(MODIFIED_MASK);
   }
 
-  private static void setSegmentAt(SegmentArrayWithData segmentArrayWithData, int index, LineTokenizer lineTokenizer, int offsetShift, boolean isModified) {
-    int offset = lineTokenizer.getOffset() + offsetShift;
-    int length = lineTokenizer.getLength();
-    int separatorLength = lineTokenizer.getLineSeparatorLength();
-    int separatorAndModifiedFlag = separatorLength;
-    if(isModified) {
-      separatorAndModifiedFlag |= MODIFIED_MASK;
+  private void replaceLines(int startLine, int endLine, CharSequence text, boolean isModified) {
+    int[] lengths = ArrayUtil.EMPTY_INT_ARRAY;
+    byte[] data = ArrayUtil.EMPTY_BYTE_ARRAY;
+    int count = 0;
+    LineTokenizer lineTokenizer = new LineTokenizer(text);
+    while (!lineTokenizer.atEnd()) {
+      if (count == lengths.length) {
+        lengths = ArrayUtil.realloc(lengths, Math.max(16, count * 2));
+        data = ArrayUtil.realloc(data, lengths.length);
+      }
+      int separatorLength = lineTokenizer.getLineSeparatorLength();
+      lengths[count] = lineTokenizer.getLength() + separatorLength;
+      data[count] = (byte)(isModified ? separatorLength | MODIFIED_MASK : separatorLength);
+      count++;
+      lineTokenizer.advance();
     }
-    segmentArrayWithData.setElementAt(index, offset, offset + length + separatorLength, separatorAndModifiedFlag);
-  }
-
-  private static void setSegmentModified(SegmentArrayWithData segments, int i) {
-    segments.setSegmentData(i, segments.getSegmentData(i)|MODIFIED_MASK);
+    myLines.replaceLines(startLine, endLine, lengths, data, count);
   }
 
   private void initSegments(CharSequence text, boolean toSetModified) {
-    mySegments.removeAll();
-    LineTokenizer lineTokenizer = new LineTokenizer(text);
-    int i = 0;
-    while(!lineTokenizer.atEnd()) {
-      setSegmentAt(mySegments, i, lineTokenizer, 0, toSetModified);
-      i++;
-      lineTokenizer.advance();
-    }
+    myLines.clear();
+    replaceLines(0, 0, text, toSetModified);
     // We add empty line at the end, if the last line ends by line separator.
     addEmptyLineAtEnd();
   }
 
   // Add empty line at the end, if the last line ends by line separator.
   private void addEmptyLineAtEnd() {
-    int segmentCount = mySegments.getSegmentCount();
-    if(segmentCount > 0 && getSeparatorLength(segmentCount-1) > 0) {
-      mySegments.setElementAt(segmentCount, mySegments.getSegmentEnd(segmentCount-1),  mySegments.getSegmentEnd(segmentCount-1), 0);
-      setSegmentModified(mySegments, segmentCount);
+    int lineCount = getLineCount();
+    if(lineCount > 0 && getSeparatorLength(lineCount-1) > 0) {
+      myLines.replaceLines(lineCount, lineCount, new int[]{0}, new byte[]{MODIFIED_MASK}, 1);
     }
   }
 
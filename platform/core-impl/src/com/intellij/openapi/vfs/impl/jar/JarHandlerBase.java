@@ -53,6 +53,10 @@ public class JarHandlerBase {
     final boolean isDirectory;
     protected final String shortName;
     final EntryInfo parent;
+    // false for directories which have no entry of their own in the archive
+    boolean hasEntry;
+    long length;
+    long timestamp;
   }
 
   public JarHandlerBase(String path) {
@@ -64,26 +68,58 @@ public class JarHandlerBase {
     synchronized (lock) {
       Map<String, EntryInfo> map = myRelPathsToEntries.get();
       if (map == null) {
-        final JarFile zip = getJar();
-
-        map = new THashMap<String, EntryInfo>();
-        if (zip != null) {
-          map.put("", new EntryInfo("", null, true));
-          final Enumeration<? extends JarFile.JarEntry> entries = zip.entries();
-          while (entries.hasMoreElements()) {
-            JarFile.JarEntry entry = entries.nextElement();
-            final String name = entry.getName();
-            final boolean isDirectory = name.endsWith("/");
-            getOrCreate(isDirectory ? name.substring(0, name.length() - 1) : name, isDirectory, map);
-          }
-
+        map = loadEntries();
+        if (map != null) {
           myRelPathsToEntries = new SoftReference<Map<String, EntryInfo>>(map);
         }
+        else {
+          map = new THashMap<String, EntryInfo>();
+        }
       }
       return map;
     }
   }
 
+  /**
+   * @return the entries of the archive, or null if it cannot be read
+   */
+  @Nullable
+  protected Map<String, EntryInfo> loadEntries() {
+    return readEntries();
+  }
+
+  @Nullable
+  protected final Map<String, EntryInfo> readEntries() {
+    final JarFile zip = getJar();
+    if (zip == null) return null;
+
+    final Map<String, EntryInfo> map = createEntriesMap();
+    final Enumeration<? extends JarFile.JarEntry> entries = zip.entries();
+    while (entries.hasMoreElements()) {
+      JarFile.JarEntry entry = entries.nextElement();
+      addEntry(entry.getName(), entry.getSize(), entry.getTime(), map);
+    }
+    return map;
+  }
+
+  @NotNull
+  protected static Map<String, EntryInfo> createEntriesMap() {
+    final Map<String, EntryInfo> map = new THashMap<String, EntryInfo>();
+    map.put("", new EntryInfo("", null, true));
+    return map;
+  }
+
+  /**
+   * @param name the name of the archive entry, ending with '/' for directories
+   */
+  protected static void addEntry(@NotNull String name, long length, long timestamp, @NotNull Map<String, EntryInfo> map) {
+    final boolean isDirectory = name.endsWith("/");
+    final EntryInfo info = getOrCreate(isDirectory ? name.substring(0, name.length() - 1) : name, isDirectory, map);
+    info.hasEntry = true;
+    info.length = length;
+    info.timestamp = timestamp;
+  }
+
   public File getMirrorFile(File originalFile) {
     return originalFile;
   }
@@ -245,8 +281,8 @@ public class JarHandlerBase {
 
   public long getLength(@NotNull final VirtualFile file) {
     synchronized (lock) {
-      final JarFile.JarEntry entry = convertToEntry(file);
-      return entry != null ? entry.getSize() : 0;
+      final EntryInfo info = getEntryInfo(file);
+      return info != null && info.hasEntry ? info.length : 0;
     }
   }
 
@@ -281,8 +317,8 @@ public class JarHandlerBase {
   public long getTimeStamp(@NotNull final VirtualFile file) {
     if (file.getParent() == null) return getOriginalFile().lastModified(); // Optimization
     synchronized (lock) {
-      final JarFile.JarEntry entry = convertToEntry(file);
-      return entry != null ? entry.getTime() : -1L;
+      final EntryInfo info = getEntryInfo(file);
+      return info != null && info.hasEntry ? info.timestamp : -1L;
     }
   }
 
@@ -307,8 +343,9 @@ public class JarHandlerBase {
   @Nullable
   public FileAttributes getAttributes(@NotNull final VirtualFile file) {
     synchronized (lock) {
-      final JarFile.JarEntry entry = convertToEntry(file);
-      return entry != null ? new FileAttributes(entry.isDirectory(), false, false, entry.getSize(), entry.getTime(), false) : null;
+      final EntryInfo info = getEntryInfo(file);
+      // directories without entries of their own are reported as missing, as the archive has no attributes for them
+      return info != null && info.hasEntry ? new FileAttributes(info.isDirectory, false, false, info.length, info.timestamp, false) : null;
     }
   }
 }
@@ -17,16 +17,20 @@
 package com.intellij.psi.impl.source;
 
 import com.intellij.util.CharTable;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.OpenTHashSet;
 import com.intellij.util.text.CharArrayCharSequence;
 import com.intellij.util.text.CharArrayUtil;
 import com.intellij.util.text.CharSequenceHashingStrategy;
+import com.intellij.util.text.StringSubSequence;
 
 /**
  * @author max
  */
 public class CharTableImpl implements CharTable {
   private static final int INTERN_THRESHOLD = 40; // 40 or more characters long tokens won't be interned.
+  // longer tokens of an immutable text are views of it instead of copies, so a parsed file keeps its text once
+  private static final boolean SHARE_TEXT = SystemProperties.getBooleanProperty("idea.psi.share.leaf.text", true);
   private static final CharSequenceHashingStrategy HASHER = new CharSequenceHashingStrategy();
   private static final OpenTHashSet<CharSequence> STATIC_ENTRIES = newStaticSet();
 
@@ -34,7 +38,9 @@ public class CharTableImpl implements CharTable {
 
   @Override
   public CharSequence intern(final CharSequence text) {
-    if (text.length() > INTERN_THRESHOLD) return createSequence(text);
+    if (text.length() > INTERN_THRESHOLD) {
+      return SHARE_TEXT && text instanceof StringSubSequence ? text : createSequence(text);
+    }
 
     int idx = STATIC_ENTRIES.index(text);
     if (idx >= 0) {
@@ -58,6 +64,10 @@ public class CharTableImpl implements CharTable {
 
   @Override
   public CharSequence intern(final CharSequence baseText, final int startOffset, final int endOffset) {
+    if (SHARE_TEXT && endOffset - startOffset > INTERN_THRESHOLD) {
+      final CharSequence view = StringSubSequence.create(baseText, startOffset, endOffset);
+      if (view != null) return view;
+    }
     if (endOffset - startOffset == baseText.length()) return baseText.toString();
     return intern(baseText.subSequence(startOffset, endOffset));
   }
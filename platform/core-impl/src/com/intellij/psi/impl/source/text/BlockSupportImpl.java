@@ -90,10 +90,7 @@ public class BlockSupportImpl extends BlockSupport {
                                               @NotNull CharSequence newFileText,
                                               @NotNull ProgressIndicator indicator) {
     final PsiFileImpl fileImpl = (PsiFileImpl)file;
-    Project project = fileImpl.getProject();
     final FileElement treeFileElement = fileImpl.getTreeElement();
-    final CharTable charTable = treeFileElement.getCharTable();
-
     final int textLength = treeFileElement.getTextLength() + lengthShift;
 
     if (treeFileElement.getElementType() instanceof ITemplateDataElementType || isTooDeep(file)) {
@@ -101,6 +98,29 @@ public class BlockSupportImpl extends BlockSupport {
       return makeFullParse(treeFileElement, newFileText, textLength, fileImpl, indicator);
     }
 
+    final IncrementalRelexer.Result relexed =
+      IncrementalRelexer.relex(fileImpl, treeFileElement, startOffset, endOffset, lengthShift, newFileText, indicator);
+    if (relexed != null && relexed.getLeavesLog() != null) {
+      return relexed.getLeavesLog();
+    }
+
+    final DiffLog diffLog = reparseChangedElement(file, startOffset, endOffset, lengthShift, newFileText, indicator);
+    return relexed != null ? relexed.withCheckpoints(diffLog) : diffLog;
+  }
+
+  @NotNull
+  private static DiffLog reparseChangedElement(@NotNull PsiFile file,
+                                               int startOffset,
+                                               int endOffset,
+                                               int lengthShift,
+                                               @NotNull CharSequence newFileText,
+                                               @NotNull ProgressIndicator indicator) {
+    final PsiFileImpl fileImpl = (PsiFileImpl)file;
+    Project project = fileImpl.getProject();
+    final FileElement treeFileElement = fileImpl.getTreeElement();
+    final CharTable charTable = treeFileElement.getCharTable();
+    final int textLength = treeFileElement.getTextLength() + lengthShift;
+
     final ASTNode leafAtStart = treeFileElement.findLeafElementAt(startOffset);
     final ASTNode leafAtEnd = treeFileElement.findLeafElementAt(endOffset);
     ASTNode node = leafAtStart != null && leafAtEnd != null ? TreeUtil.findCommonParent(leafAtStart, leafAtEnd) : treeFileElement;
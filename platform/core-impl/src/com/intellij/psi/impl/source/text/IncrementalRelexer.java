@@ -0,0 +1,289 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source.text;
+
+import com.intellij.lang.ASTFactory;
+import com.intellij.lang.LanguageParserDefinitions;
+import com.intellij.lang.ParserDefinition;
+import com.intellij.lang.RelexableParserDefinition;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.Key;
+import com.intellij.pom.tree.events.impl.TreeChangeEventImpl;
+import com.intellij.psi.FileViewProvider;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.TokenType;
+import com.intellij.psi.impl.source.PsiFileImpl;
+import com.intellij.psi.impl.source.tree.FileElement;
+import com.intellij.psi.impl.source.tree.LeafElement;
+import com.intellij.psi.impl.source.tree.TreeUtil;
+import com.intellij.psi.text.BlockSupport;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.TokenSet;
+import gnu.trove.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Applies a change to a file of a {@link RelexableParserDefinition} language by relexing only the damaged tokens.
+ * <p/>
+ * The offsets of the tokens the lexer starts in the initial state are kept with the file element as restart checkpoints.
+ * The new text is lexed from the last checkpoint before the change till the first checkpoint after it which the lexer reaches
+ * in the initial state again, and the tokens are compared with the old leaves of the same range. The new checkpoints are kept
+ * with the file element after a reparse of the change as well if the new leaves start at them, so the whole file is lexed only
+ * when the tree is changed otherwise.
+ */
+public class IncrementalRelexer {
+  private static final Key<Checkpoints> CHECKPOINTS = Key.create("LEXER_CHECKPOINTS");
+  private static final Key<Boolean> NOT_RELEXABLE = Key.create("NOT_RELEXABLE");
+  private static final int INITIAL_STATE = 0;
+  // the checkpoints closer to the previous one are not kept; the lexer restarts a bit earlier and stops a bit later instead
+  private static final int MIN_CHECKPOINT_DISTANCE = 64;
+
+  private IncrementalRelexer() {
+  }
+
+  /**
+   * @return the relexed checkpoints of the new text along with the log replacing the changed leaves if only the text of
+   * text-insensitive tokens changed, or null if the file can't be relexed
+   */
+  @Nullable
+  static Result relex(@NotNull PsiFileImpl file,
+                      @NotNull FileElement fileElement,
+                      int startOffset,
+                      int endOffset,
+                      int lengthShift,
+                      @NotNull CharSequence newFileText,
+                      @NotNull ProgressIndicator indicator) {
+    final FileViewProvider viewProvider = file.getViewProvider();
+    if (viewProvider.getLanguages().size() != 1 || !viewProvider.supportsIncrementalReparse(file.getLanguage())) return null;
+    if (endOffset > fileElement.getTextLength() || fileElement.getTextLength() + lengthShift != newFileText.length()) return null;
+    final ParserDefinition parserDefinition = LanguageParserDefinitions.INSTANCE.forLanguage(file.getLanguage());
+    if (!(parserDefinition instanceof RelexableParserDefinition)) return null;
+    final TokenSet textInsensitiveTokens = ((RelexableParserDefinition)parserDefinition).getTextInsensitiveTokens();
+    if (textInsensitiveTokens.getTypes().length == 0) return null;
+    if (file.getUserData(BlockSupport.DO_NOT_REPARSE_INCREMENTALLY) != null || fileElement.getUserData(NOT_RELEXABLE) != null) {
+      return null;
+    }
+
+    final Lexer lexer = parserDefinition.createLexer(file.getProject());
+    final TokenSet whitespaceTokens = parserDefinition.getWhitespaceTokens();
+    Checkpoints checkpoints = fileElement.getUserData(CHECKPOINTS);
+    if (checkpoints == null || !checkpoints.isValid(fileElement)) {
+      checkpoints = Checkpoints.build(fileElement, lexer, whitespaceTokens, indicator);
+      if (checkpoints == null) {
+        // the leaves do not follow the tokens, e.g. the parser remaps them
+        fileElement.putUserData(NOT_RELEXABLE, Boolean.TRUE);
+        return null;
+      }
+      fileElement.putUserData(CHECKPOINTS, checkpoints);
+    }
+
+    final int[] oldOffsets = checkpoints.myOffsets;
+    final int newChangeEnd = endOffset + lengthShift;
+    // the token ending at the change start can be extended by it, so the restart is strictly before the change
+    int restartIndex = Arrays.binarySearch(oldOffsets, startOffset);
+    restartIndex = restartIndex >= 0 ? restartIndex - 1 : -restartIndex - 2;
+    final int restart = restartIndex >= 0 ? oldOffsets[restartIndex] : 0;
+
+    final List<LeafElement> oldLeaves = new ArrayList<LeafElement>();
+    final List<LeafElement> newLeaves = new ArrayList<LeafElement>();
+    final TIntArrayList newOffsets = new TIntArrayList();
+    newOffsets.add(oldOffsets, 0, Math.max(restartIndex, 0));
+
+    // once the tokens stop matching the old leaves, the lexing goes on only to find the checkpoints of the new text
+    boolean leavesMatch = true;
+    LeafElement oldLeaf = restart < fileElement.getTextLength() ? fileElement.findLeafElementAt(restart) : null;
+    int oldLeafStart = restart;
+    int syncIndex;
+    lexer.start(newFileText, restart, newFileText.length(), INITIAL_STATE);
+    while (true) {
+      final IElementType tokenType = lexer.getTokenType();
+      if (tokenType == null) {
+        leavesMatch &= oldLeaf == null;
+        syncIndex = oldOffsets.length;
+        break;
+      }
+      final int tokenStart = lexer.getTokenStart();
+      final int tokenEnd = lexer.getTokenEnd();
+      if (lexer.getState() == INITIAL_STATE) {
+        if (tokenStart >= newChangeEnd && tokenStart > startOffset) {
+          // the lexer continues from here as it did in the old text
+          final int index = Arrays.binarySearch(oldOffsets, tokenStart - lengthShift);
+          if (index >= 0) {
+            leavesMatch &= oldLeafStart == tokenStart - lengthShift;
+            syncIndex = index;
+            break;
+          }
+        }
+        if (newOffsets.isEmpty() || tokenStart - newOffsets.get(newOffsets.size() - 1) >= MIN_CHECKPOINT_DISTANCE) {
+          newOffsets.add(tokenStart);
+        }
+      }
+
+      if (leavesMatch) {
+        if (oldLeaf == null || !isLeafOf(oldLeaf, tokenType, whitespaceTokens)) {
+          leavesMatch = false;
+        }
+        else {
+          final int oldLength = oldLeaf.getTextLength();
+          if (oldLength != tokenEnd - tokenStart || !oldLeaf.textMatches(newFileText, tokenStart, tokenEnd)) {
+            if (textInsensitiveTokens.contains(tokenType)) {
+              oldLeaves.add(oldLeaf);
+              final CharSequence text = fileElement.getCharTable().intern(newFileText, tokenStart, tokenEnd);
+              newLeaves.add(ASTFactory.leaf(oldLeaf.getElementType(), text));
+            }
+            else {
+              leavesMatch = false;
+            }
+          }
+          oldLeafStart += oldLength;
+          oldLeaf = (LeafElement)TreeUtil.nextLeaf(oldLeaf);
+        }
+      }
+      lexer.advance();
+      indicator.checkCanceled();
+    }
+
+    for (int i = syncIndex; i < oldOffsets.length; i++) {
+      final int offset = oldOffsets[i] + lengthShift;
+      if (newOffsets.isEmpty() || offset > newOffsets.get(newOffsets.size() - 1)) {
+        newOffsets.add(offset);
+      }
+    }
+
+    final Checkpoints newCheckpoints = new Checkpoints(newOffsets.toNativeArray(), newFileText.length());
+    if (!leavesMatch) {
+      return new Result(newCheckpoints, null);
+    }
+    final DiffLog leavesLog = new DiffLog();
+    for (int i = 0; i < oldLeaves.size(); i++) {
+      leavesLog.nodeReplaced(oldLeaves.get(i), newLeaves.get(i));
+    }
+    return new Result(newCheckpoints, attachAfter(leavesLog, newCheckpoints, false));
+  }
+
+  private static boolean isLeafOf(@NotNull LeafElement leaf, @NotNull IElementType tokenType, @NotNull TokenSet whitespaceTokens) {
+    // PsiBuilder makes white space leaves of all the whitespace tokens
+    final IElementType leafType = leaf.getElementType();
+    return leafType == tokenType || leafType == TokenType.WHITE_SPACE && whitespaceTokens.contains(tokenType);
+  }
+
+  static class Result {
+    private final Checkpoints myCheckpoints;
+    @Nullable private final DiffLog myLeavesLog;
+
+    private Result(@NotNull Checkpoints checkpoints, @Nullable DiffLog leavesLog) {
+      myCheckpoints = checkpoints;
+      myLeavesLog = leavesLog;
+    }
+
+    /**
+     * @return the log replacing the changed leaves, or null if the file has to be reparsed
+     */
+    @Nullable
+    DiffLog getLeavesLog() {
+      return myLeavesLog;
+    }
+
+    /**
+     * @return the log keeping the checkpoints of the new text with the file element once the changes of the given log are applied
+     */
+    @NotNull
+    DiffLog withCheckpoints(@NotNull DiffLog diffLog) {
+      return attachAfter(diffLog, myCheckpoints, true);
+    }
+  }
+
+  /**
+   * @param reparsed whether the log comes from a reparse, so the new leaves may not start at the checkpoints lexed from the text
+   */
+  @NotNull
+  private static DiffLog attachAfter(@NotNull final DiffLog diffLog, @NotNull final Checkpoints checkpoints, final boolean reparsed) {
+    return new DiffLog() {
+      @Override
+      public TreeChangeEventImpl performActualPsiChange(PsiFile file) {
+        final TreeChangeEventImpl event = diffLog.performActualPsiChange(file);
+        checkpoints.attach(((PsiFileImpl)file).getTreeElement(), reparsed);
+        return event;
+      }
+    };
+  }
+
+  private static class Checkpoints {
+    private final int[] myOffsets;
+    private final int myTextLength;
+    private int myModificationCount = -1;
+
+    private Checkpoints(@NotNull int[] offsets, int textLength) {
+      myOffsets = offsets;
+      myTextLength = textLength;
+    }
+
+    private boolean isValid(@NotNull FileElement fileElement) {
+      return myModificationCount == fileElement.getModificationCount() && myTextLength == fileElement.getTextLength();
+    }
+
+    private void attach(@Nullable FileElement fileElement, boolean checkLeaves) {
+      if (fileElement == null || fileElement.getTextLength() != myTextLength) return;
+      if (checkLeaves && !isAtLeafStarts(fileElement)) return; // built from the leaves on the next change instead
+      myModificationCount = fileElement.getModificationCount();
+      fileElement.putUserData(CHECKPOINTS, this);
+    }
+
+    private boolean isAtLeafStarts(@NotNull FileElement fileElement) {
+      for (int offset : myOffsets) {
+        final LeafElement leaf = fileElement.findLeafElementAt(offset);
+        if (leaf == null || leaf.getStartOffset() != offset) return false;
+      }
+      return true;
+    }
+
+    @Nullable
+    private static Checkpoints build(@NotNull FileElement fileElement,
+                                     @NotNull Lexer lexer,
+                                     @NotNull TokenSet whitespaceTokens,
+                                     @NotNull ProgressIndicator indicator) {
+      final CharSequence text = fileElement.getChars();
+      final TIntArrayList offsets = new TIntArrayList();
+      LeafElement leaf = TreeUtil.findFirstLeaf(fileElement);
+      int leafStart = 0;
+      lexer.start(text, 0, text.length(), INITIAL_STATE);
+      for (IElementType tokenType; (tokenType = lexer.getTokenType()) != null; lexer.advance()) {
+        if (leaf == null || !isLeafOf(leaf, tokenType, whitespaceTokens) ||
+            leafStart != lexer.getTokenStart() || leafStart + leaf.getTextLength() != lexer.getTokenEnd()) {
+          return null;
+        }
+        if (lexer.getState() == INITIAL_STATE &&
+            (offsets.isEmpty() || leafStart - offsets.get(offsets.size() - 1) >= MIN_CHECKPOINT_DISTANCE)) {
+          offsets.add(leafStart);
+        }
+        leafStart += leaf.getTextLength();
+        leaf = (LeafElement)TreeUtil.nextLeaf(leaf);
+        indicator.checkCanceled();
+      }
+      if (leaf != null) return null;
+
+      final Checkpoints checkpoints = new Checkpoints(offsets.toNativeArray(), text.length());
+      checkpoints.myModificationCount = fileElement.getModificationCount();
+      return checkpoints;
+    }
+  }
+}
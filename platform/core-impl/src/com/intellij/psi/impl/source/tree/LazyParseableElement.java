@@ -26,6 +26,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.ILazyParseableElementType;
 import com.intellij.util.text.CharArrayUtil;
+import com.intellij.util.text.StringSubSequence;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
@@ -50,7 +51,8 @@ public class LazyParseableElement extends CompositeElement {
   public LazyParseableElement(@NotNull IElementType type, CharSequence text) {
     super(type);
     synchronized (lock) {
-      myText = text == null ? null : text.toString();
+      // a view of an immutable file text is kept as is, other sequences may change and are copied
+      myText = text == null || text instanceof StringSubSequence ? text : text.toString();
       if (text != null) {
         setCachedLength(text.length());
       }
@@ -70,9 +72,14 @@ public class LazyParseableElement extends CompositeElement {
   @NotNull
   @Override
   public String getText() {
-    CharSequence text = myText();
-    if (text != null) {
-      return text.toString();
+    synchronized (lock) {
+      if (myText != null) {
+        if (!(myText instanceof String)) {
+          // the string is built once rather than on each call
+          myText = myText.toString();
+        }
+        return (String)myText;
+      }
     }
     return super.getText();
   }
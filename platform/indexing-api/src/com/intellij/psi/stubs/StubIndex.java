@@ -26,7 +26,9 @@ import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.util.Processor;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 public abstract class StubIndex {
   private static class StubIndexHolder {
@@ -48,6 +50,43 @@ public abstract class StubIndex {
                                                                 GlobalSearchScope scope,
                                                                 @NotNull Processor<? super Psi> processor);
 
+  /**
+   * Same as {@link #process} but the files containing the key may be processed concurrently in the read action of the caller,
+   * so the processor must be thread-safe. Processing stops soon after the processor returns false.
+   */
+  public <Key, Psi extends PsiElement> boolean processConcurrently(@NotNull StubIndexKey<Key, Psi> indexKey,
+                                                                   @NotNull Key key,
+                                                                   @NotNull Project project,
+                                                                   GlobalSearchScope scope,
+                                                                   @NotNull Processor<? super Psi> processor) {
+    return process(indexKey, key, project, scope, processor);
+  }
+
+  /**
+   * Collects at most maxCount elements for the key, processing the files concurrently. Which of the elements are returned
+   * when there are more of them is not defined.
+   */
+  @NotNull
+  public <Key, Psi extends PsiElement> Collection<Psi> get(@NotNull StubIndexKey<Key, Psi> indexKey,
+                                                           @NotNull Key key,
+                                                           @NotNull Project project,
+                                                           GlobalSearchScope scope,
+                                                           final int maxCount) {
+    final List<Psi> result = new ArrayList<Psi>();
+    if (maxCount <= 0) return result;
+    processConcurrently(indexKey, key, project, scope, new Processor<Psi>() {
+      @Override
+      public boolean process(Psi psi) {
+        synchronized (result) {
+          if (result.size() >= maxCount) return false;
+          result.add(psi);
+          return result.size() < maxCount;
+        }
+      }
+    });
+    return result;
+  }
+
   @NotNull
   public abstract <Key> Collection<Key> getAllKeys(@NotNull StubIndexKey<Key, ?> indexKey, @NotNull Project project);
 }
@@ -47,6 +47,14 @@ public abstract class FileBasedIndexExtension<K, V> {
   public abstract FileBasedIndex.InputFilter getInputFilter();
   
   public abstract boolean dependsOnFileContent();
+
+  /**
+   * @return true if the data of the index depends only on the content, the type and the charset of the file, but not on its name,
+   * location or project. The data computed for a file is then reused for other files with identical content.
+   */
+  public boolean dependsOnlyOnFileContent() {
+    return false;
+  }
   
   public abstract int getVersion();
 
@@ -20,6 +20,8 @@ import com.intellij.codeInsight.daemon.impl.DaemonCodeAnalyzerImpl;
 import com.intellij.codeInsight.daemon.impl.HighlightInfo;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.colors.EditorColorsScheme;
+import com.intellij.openapi.editor.impl.DocumentChangeTracker;
+import com.intellij.openapi.editor.impl.DocumentImpl;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.DumbService;
@@ -39,6 +41,9 @@ public abstract class TextEditorHighlightingPass implements HighlightingPass {
   protected final Project myProject;
   private final boolean myRunIntentionPassAfter;
   private final long myInitialStamp;
+  private final DocumentChangeTracker myChangeTracker;
+  private volatile boolean myCollected;
+  private boolean myTranslated;
   private int[] myCompletionPredecessorIds = ArrayUtil.EMPTY_INT_ARRAY;
   private int[] myStartingPredecessorIds = ArrayUtil.EMPTY_INT_ARRAY;
   private int myId;
@@ -50,6 +55,7 @@ public abstract class TextEditorHighlightingPass implements HighlightingPass {
     myProject = project;
     myRunIntentionPassAfter = runIntentionPassAfter;
     myInitialStamp = document == null ? 0 : document.getModificationStamp();
+    myChangeTracker = document instanceof DocumentImpl ? ((DocumentImpl)document).trackChanges() : null;
   }
   protected TextEditorHighlightingPass(@NotNull final Project project, @Nullable final Document document) {
     this(project, document, true);
@@ -60,6 +66,7 @@ public abstract class TextEditorHighlightingPass implements HighlightingPass {
     if (!isValid()) return; //Document has changed.
     myDumb = DumbService.getInstance(myProject).isDumb();
     doCollectInformation(progress);
+    myCollected = !progress.isCanceled();
   }
 
   @Nullable
@@ -91,7 +98,10 @@ public abstract class TextEditorHighlightingPass implements HighlightingPass {
 
   @Override
   public final void applyInformationToEditor() {
-    if (!isValid()) return; // Document has changed.
+    if (!isValid()) { // Document has changed.
+      applyTranslatedInformationToEditor();
+      return;
+    }
     if (DumbService.getInstance(myProject).isDumb() && !(this instanceof DumbAware)) {
       Document document = getDocument();
       PsiFile file = document == null ? null : PsiDocumentManager.getInstance(myProject).getPsiFile(document);
@@ -100,9 +110,42 @@ public abstract class TextEditorHighlightingPass implements HighlightingPass {
       }
       return;
     }
+    myTranslated = false;
+    doApplyInformationToEditor();
+  }
+
+  /**
+   * Applies the information collected for the document text the pass was created for after the document was changed,
+   * e.g. when the highlighting was restarted by typing while the results were waiting to be applied.
+   * Does nothing unless the pass finished collecting the information and could move it to the current document text,
+   * see {@link #translateInformation(DocumentChangeTracker)}.
+   */
+  public final void applyTranslatedInformationToEditor() {
+    if (!myCollected || myChangeTracker == null || myChangeTracker.isUpToDate()) return;
+    if (DumbService.getInstance(myProject).isDumb() && !(this instanceof DumbAware)) return;
+    PsiFile file = PsiDocumentManager.getInstance(myProject).getPsiFile(myDocument);
+    if (file == null || !file.isValid()) return;
+    if (!translateInformation(myChangeTracker)) return;
+    myTranslated = true;
     doApplyInformationToEditor();
   }
 
+  /**
+   * Moves the collected information to the current document text, dropping the parts which were affected by the changes.
+   * @return false if the pass doesn't support the translation, and its information should be thrown away
+   */
+  protected boolean translateInformation(@NotNull DocumentChangeTracker tracker) {
+    return false;
+  }
+
+  /**
+   * @return true if the information being applied was collected for an older document text,
+   * so the file should not be considered highlighted by the pass
+   */
+  protected final boolean isInformationTranslated() {
+    return myTranslated;
+  }
+
   public abstract void doCollectInformation(@NotNull ProgressIndicator progress);
   public abstract void doApplyInformationToEditor();
 
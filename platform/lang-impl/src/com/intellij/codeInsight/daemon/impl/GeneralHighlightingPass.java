@@ -41,6 +41,7 @@ import com.intellij.openapi.editor.colors.EditorColorsScheme;
 import com.intellij.openapi.editor.colors.TextAttributesKey;
 import com.intellij.openapi.editor.ex.MarkupModelEx;
 import com.intellij.openapi.editor.ex.RangeHighlighterEx;
+import com.intellij.openapi.editor.impl.DocumentChangeTracker;
 import com.intellij.openapi.editor.impl.DocumentMarkupModel;
 import com.intellij.openapi.editor.markup.MarkupModel;
 import com.intellij.openapi.editor.markup.TextAttributes;
@@ -86,8 +87,8 @@ public class GeneralHighlightingPass extends ProgressableTextEditorHighlightingP
   private static final Key<Boolean> HAS_ERROR_ELEMENT = Key.create("HAS_ERROR_ELEMENT");
   private static final JobLauncher JobUtil = JobLauncher.getInstance();
 
-  private final int myStartOffset;
-  private final int myEndOffset;
+  private int myStartOffset;
+  private int myEndOffset;
   private final boolean myUpdateAll;
   private final ProperTextRange myPriorityRange;
   private final Editor myEditor;
@@ -558,11 +559,29 @@ public class GeneralHighlightingPass extends ProgressableTextEditorHighlightingP
 
     myApplyCommand.run();
 
-    if (myUpdateAll) {
+    if (myUpdateAll && !isInformationTranslated()) {
       reportErrorsToWolf();
     }
   }
 
+  @Override
+  protected boolean translateInformation(@NotNull DocumentChangeTracker tracker) {
+    TextRange range = tracker.translateEnclosing(myStartOffset, myEndOffset);
+    if (range == null) return false;
+    List<HighlightInfo> highlights = new ArrayList<HighlightInfo>(myHighlights.size());
+    for (HighlightInfo info : myHighlights) {
+      HighlightInfo translated = info.translate(tracker);
+      if (translated != null) {
+        highlights.add(translated);
+      }
+    }
+    myStartOffset = range.getStartOffset();
+    myEndOffset = range.getEndOffset();
+    myHighlights.clear();
+    myHighlights.addAll(highlights);
+    return true;
+  }
+
   @Override
   @NotNull
   public List<HighlightInfo> getInfos() {
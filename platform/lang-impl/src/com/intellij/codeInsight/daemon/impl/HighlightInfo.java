@@ -37,6 +37,7 @@ import com.intellij.openapi.editor.colors.EditorColorsManager;
 import com.intellij.openapi.editor.colors.EditorColorsScheme;
 import com.intellij.openapi.editor.colors.TextAttributesKey;
 import com.intellij.openapi.editor.ex.RangeHighlighterEx;
+import com.intellij.openapi.editor.impl.DocumentChangeTracker;
 import com.intellij.openapi.editor.markup.GutterIconRenderer;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.util.Comparing;
@@ -55,6 +56,7 @@ import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.ArrayList;
 import java.util.List;
 
 public class HighlightInfo implements Segment {
@@ -298,6 +300,42 @@ public class HighlightInfo implements Segment {
     return true;
   }
 
+  /**
+   * @return the copy of this info moved to the current document text, or null if the highlighted text was changed
+   * since the tracking started
+   */
+  @Nullable
+  public HighlightInfo translate(@NotNull DocumentChangeTracker tracker) {
+    TextRange range = tracker.translate(startOffset, endOffset);
+    TextRange fixRange = tracker.translateEnclosing(fixStartOffset, fixEndOffset);
+    if (range == null || fixRange == null) return null;
+    List<Pair<IntentionActionDescriptor, TextRange>> actionRanges = null;
+    if (quickFixActionRanges != null) {
+      actionRanges = new ArrayList<Pair<IntentionActionDescriptor, TextRange>>(quickFixActionRanges.size());
+      for (Pair<IntentionActionDescriptor, TextRange> pair : quickFixActionRanges) {
+        TextRange actionRange = tracker.translateEnclosing(pair.second.getStartOffset(), pair.second.getEndOffset());
+        if (actionRange == null) return null;
+        actionRanges.add(Pair.create(pair.first, actionRange));
+      }
+    }
+
+    HighlightInfo info = new HighlightInfo(forcedTextAttributes, forcedTextAttributesKey, type, range.getStartOffset(), range.getEndOffset(),
+                                           description, toolTip, severity, isAfterEndOfLine, myNeedsUpdateOnTyping, isFileLevelAnnotation);
+    info.group = group;
+    info.fixStartOffset = fixRange.getStartOffset();
+    info.fixEndOffset = fixRange.getEndOffset();
+    info.quickFixActionRanges = actionRanges;
+    info.navigationShift = navigationShift;
+    info.text = text;
+    info.hasHint = hasHint;
+    info.fromInjection = fromInjection;
+    info.gutterIconRenderer = gutterIconRenderer;
+    info.myProblemGroup = myProblemGroup;
+    info.bijective = bijective;
+    info.fileLevelComponent = fileLevelComponent;
+    return info;
+  }
+
   public boolean equals(Object obj) {
     if (obj == this) return true;
     if (!(obj instanceof HighlightInfo)) return false;
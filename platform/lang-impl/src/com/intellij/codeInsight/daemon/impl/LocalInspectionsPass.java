@@ -38,6 +38,7 @@ import com.intellij.openapi.editor.RangeMarker;
 import com.intellij.openapi.editor.colors.CodeInsightColors;
 import com.intellij.openapi.editor.colors.EditorColorsScheme;
 import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.impl.DocumentChangeTracker;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.keymap.Keymap;
 import com.intellij.openapi.keymap.KeymapManager;
@@ -76,8 +77,8 @@ import java.util.concurrent.ConcurrentMap;
 public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass implements DumbAware {
   private static final Logger LOG = Logger.getInstance("#com.intellij.codeInsight.daemon.impl.LocalInspectionsPass");
   public static final TextRange EMPTY_PRIORITY_RANGE = TextRange.EMPTY_RANGE;
-  private final int myStartOffset;
-  private final int myEndOffset;
+  private int myStartOffset;
+  private int myEndOffset;
   private final TextRange myPriorityRange;
   private final boolean myIgnoreSuppressed;
   private final ConcurrentMap<PsiFile, List<InspectionResult>> result = new ConcurrentHashMap<PsiFile, List<InspectionResult>>();
@@ -565,6 +566,23 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
     UpdateHighlightersUtil.setHighlightersToEditor(myProject, myDocument, myStartOffset, myEndOffset, myInfos, getColorsScheme(), getId());
   }
 
+  @Override
+  protected boolean translateInformation(@NotNull DocumentChangeTracker tracker) {
+    TextRange range = tracker.translateEnclosing(myStartOffset, myEndOffset);
+    if (range == null) return false;
+    List<HighlightInfo> infos = new ArrayList<HighlightInfo>(myInfos.size());
+    for (HighlightInfo info : myInfos) {
+      HighlightInfo translated = info.translate(tracker);
+      if (translated != null) {
+        infos.add(translated);
+      }
+    }
+    myStartOffset = range.getStartOffset();
+    myEndOffset = range.getEndOffset();
+    myInfos = infos;
+    return true;
+  }
+
   private void addHighlightsFromResults(@NotNull List<HighlightInfo> outInfos, @NotNull ProgressIndicator indicator) {
     InspectionProfile inspectionProfile = InspectionProjectProfileManager.getInstance(myProject).getInspectionProfile();
     PsiDocumentManager documentManager = PsiDocumentManager.getInstance(myProject);
@@ -424,6 +424,10 @@ public abstract class PassExecutorService implements Disposable {
       updateProgress.cancel();
     }
     if (updateProgress.isCanceled()) {
+      if (!isDisposed() && !myProject.isDisposed() && isDisplayable(fileEditors, testMode)) {
+        // the results are complete, so keep them if the restart was caused by typing outside of the highlighted ranges
+        pass.applyTranslatedInformationToEditor();
+      }
       log(updateProgress, pass, " is canceled during apply, sorry");
       return;
     }
@@ -462,6 +466,13 @@ public abstract class PassExecutorService implements Disposable {
     }
   }
 
+  private static boolean isDisplayable(@NotNull List<FileEditor> fileEditors, boolean testMode) {
+    for (FileEditor fileEditor : fileEditors) {
+      if (testMode || fileEditor.getComponent().isDisplayable()) return true;
+    }
+    return false;
+  }
+
   protected boolean isDisposed() {
     return isDisposed;
   }
@@ -96,6 +96,11 @@ public class TrigramIndex extends ScalarIndexExtension<Integer> {
     return true;
   }
 
+  @Override
+  public boolean dependsOnlyOnFileContent() {
+    return true;
+  }
+
   @Override
   public int getVersion() {
     return ENABLED ? 2 : 1;
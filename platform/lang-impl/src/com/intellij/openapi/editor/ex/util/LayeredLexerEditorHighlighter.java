@@ -57,6 +57,12 @@ public class LayeredLexerEditorHighlighter extends LexerEditorHighlighter {
     return new MappingSegments();
   }
 
+  @Override
+  protected boolean isLazyLexingSupported() {
+    // the layer documents are filled with the tokens of the whole text at once
+    return false;
+  }
+
   public synchronized void registerLayer(IElementType tokenType, LayerDescriptor layerHighlighter) {
     myTokensToLayer.put(tokenType, layerHighlighter);
     getSegments().removeAll();
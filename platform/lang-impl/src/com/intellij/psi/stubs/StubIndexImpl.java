@@ -19,6 +19,7 @@
  */
 package com.intellij.psi.stubs;
 
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.diagnostic.LogMessageEx;
 import com.intellij.diagnostic.errordialog.Attachment;
 import com.intellij.lang.ASTNode;
@@ -27,6 +28,7 @@ import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.components.*;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.extensions.Extensions;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -59,6 +61,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 
@@ -134,7 +137,7 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
           extension.getCacheSize(),
           extension.isKeyHighlySelective()
         );
-        final MemoryIndexStorage<K, int[]> memStorage = new MemoryIndexStorage<K, int[]>(storage);
+        final MemoryIndexStorage<K, int[]> memStorage = new MemoryIndexStorage<K, int[]>(storage, extension.getKeyDescriptor(), new StubIdExternalizer());
         myIndices.put(indexKey, new MyIndex<K>(memStorage));
         break;
       }
@@ -206,9 +209,6 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     final FileBasedIndexImpl fileBasedIndex = (FileBasedIndexImpl)FileBasedIndex.getInstance();
     fileBasedIndex.ensureUpToDate(StubUpdatingIndex.INDEX_ID, project, scope);
 
-    final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
-    final PsiManager psiManager = PsiManager.getInstance(project);
-
     final MyIndex<Key> index = (MyIndex<Key>)myIndices.get(indexKey);
 
     try {
@@ -220,102 +220,62 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
 
         final FileBasedIndexImpl.ProjectIndexableFilesFilter projectFilesFilter = fileBasedIndex.projectIndexableFiles(project);
 
+        final FileStubsProcessor<Psi> fileProcessor = new FileStubsProcessor<Psi>(project, scope, projectFilesFilter, processor);
         return container.forEach(new ValueContainer.ContainerAction<int[]>() {
           @Override
           public boolean perform(final int id, @NotNull final int[] value) {
-            if (projectFilesFilter != null && !projectFilesFilter.contains(id)) return true;
-            final VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
-            if (file == null || scope != null && !scope.contains(file)) {
-              return true;
-            }
-            StubTree stubTree = null;
+            return fileProcessor.process(id, value);
+          }
+        });
+      }
+      finally {
+        index.getReadLock().unlock();
+        FileBasedIndexImpl.enableUpToDateCheckForCurrentThread();
+      }
+    }
+    catch (StorageException e) {
+      forceRebuild(e);
+    }
+    catch (RuntimeException e) {
+      final Throwable cause = FileBasedIndexImpl.getCauseToRebuildIndex(e);
+      if (cause != null) {
+        forceRebuild(cause);
+      }
+      else {
+        throw e;
+      }
+    }
 
-            final PsiFile _psifile = psiManager.findFile(file);
-            PsiFileWithStubSupport psiFile = null;
+    return true;
+  }
 
-            if (_psifile != null && !(_psifile instanceof PsiPlainTextFile)) {
-              if (_psifile instanceof PsiFileWithStubSupport) {
-                psiFile = (PsiFileWithStubSupport)_psifile;
-                stubTree = psiFile.getStubTree();
-                if (stubTree == null && psiFile instanceof PsiFileImpl) {
-                  stubTree = ((PsiFileImpl)psiFile).calcStubTree();
-                }
-              }
-            }
+  /**
+   * Copies the files containing the key and their stub indices under the index read lock, then finds their PSI on pooled threads
+   * under the read action and progress of the caller, so that the index is not locked while the stubs are loaded.
+   */
+  @Override
+  public <Key, Psi extends PsiElement> boolean processConcurrently(@NotNull final StubIndexKey<Key, Psi> indexKey,
+                                                                   @NotNull final Key key,
+                                                                   @NotNull final Project project,
+                                                                   @Nullable final GlobalSearchScope scope,
+                                                                   @NotNull final Processor<? super Psi> processor) {
+    final FileBasedIndexImpl fileBasedIndex = (FileBasedIndexImpl)FileBasedIndex.getInstance();
+    fileBasedIndex.ensureUpToDate(StubUpdatingIndex.INDEX_ID, project, scope);
 
-            if (stubTree == null && psiFile == null) {
-              return true;
-            }
-            if (stubTree == null) {
-              stubTree = StubTreeLoader.getInstance().readFromVFile(project, file);
-              if (stubTree == null) {
-                return true;
-              }
-              final List<StubElement<?>> plained = stubTree.getPlainList();
-              for (int i = 0; i < value.length; i++) {
-                final StubElement<?> stub = plained.get(value[i]);
-                final ASTNode tree = psiFile.findTreeForStub(stubTree, stub);
-
-                if (tree != null) {
-                  if (tree.getElementType() == stubType(stub)) {
-                    Psi psi = (Psi)tree.getPsi();
-                    if (!processor.process(psi)) return false;
-                  }
-                  else {
-                    String persistedStubTree = ((PsiFileStubImpl)stubTree.getRoot()).printTree();
-
-                    String stubTreeJustBuilt =
-                      ((PsiFileStubImpl)((IStubFileElementType)((PsiFileImpl)psiFile).getContentElementType()).getBuilder()
-                        .buildStubTree(psiFile)).printTree();
-
-                    StringBuilder builder = new StringBuilder();
-                    builder.append("Oops\n");
-
-
-                    builder.append("Recorded stub:-----------------------------------\n");
-                    builder.append(persistedStubTree);
-                    builder.append("\nAST built stub: ------------------------------------\n");
-                    builder.append(stubTreeJustBuilt);
-                    builder.append("\n");
-                    LOG.info(builder.toString());
-
-                    // requestReindex() may want to acquire write lock (for indices not requiring content loading)
-                    // thus, because here we are under read lock, need to use invoke later
-                    ApplicationManager.getApplication().invokeLater(new Runnable() {
-                      @Override
-                      public void run() {
-                        fileBasedIndex.requestReindex(file);
-                      }
-                    }, ModalityState.NON_MODAL);
-                  }
-                }
-              }
-            }
-            else {
-              final List<StubElement<?>> plained = stubTree.getPlainList();
-              for (int i = 0; i < value.length; i++) {
-                final int stubTreeIndex = value[i];
-                if (stubTreeIndex >= plained.size()) {
-                  final VirtualFile virtualFile = psiFile.getVirtualFile();
-                  StubTree stubTreeFromIndex = StubTreeLoader.getInstance().readFromVFile(project, file);
-                  LOG.error(LogMessageEx.createEvent("PSI and index do not match: PSI " + psiFile + ", first stub " + plained.get(0),
-                                                     "Please report the problem to JetBrains with the file attached",
-                                                     new Attachment(virtualFile != null ? virtualFile.getPath() : "vFile.txt", psiFile.getText()),
-                                                     new Attachment("stubTree.txt", ((PsiFileStubImpl)stubTree.getRoot()).printTree()),
-                                                     new Attachment("stubTreeFromIndex.txt", stubTreeFromIndex == null ? "null" : ((PsiFileStubImpl)stubTreeFromIndex.getRoot()).printTree())));
-
-                  ApplicationManager.getApplication().invokeLater(new Runnable() {
-                    @Override
-                    public void run() {
-                      fileBasedIndex.requestReindex(file);
-                    }
-                  }, ModalityState.NON_MODAL);
-
-                  break;
-                }
-                Psi psi = (Psi)plained.get(stubTreeIndex).getPsi();
-                if (!processor.process(psi)) return false;
-              }
+    final MyIndex<Key> index = (MyIndex<Key>)myIndices.get(indexKey);
+
+    try {
+      final FileBasedIndexImpl.ProjectIndexableFilesFilter projectFilesFilter = fileBasedIndex.projectIndexableFiles(project);
+      final List<FileStubs> files = new ArrayList<FileStubs>();
+      try {
+        // disable up-to-date check to avoid locks on attempt to acquire index write lock while holding at the same time the readLock for this index
+        FileBasedIndexImpl.disableUpToDateCheckForCurrentThread();
+        index.getReadLock().lock();
+        index.getData(key).forEach(new ValueContainer.ContainerAction<int[]>() {
+          @Override
+          public boolean perform(final int id, @NotNull final int[] value) {
+            if (projectFilesFilter == null || projectFilesFilter.contains(id)) {
+              files.add(new FileStubs(id, value));
             }
             return true;
           }
@@ -325,6 +285,21 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
         index.getReadLock().unlock();
         FileBasedIndexImpl.enableUpToDateCheckForCurrentThread();
       }
+
+      final FileStubsProcessor<Psi> fileProcessor = new FileStubsProcessor<Psi>(project, scope, null, processor);
+      // the files of a chunk already started are skipped once some processor has stopped
+      final AtomicBoolean stopped = new AtomicBoolean();
+      final boolean completed = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(
+        files, ProgressManager.getInstance().getProgressIndicator(), false, new Processor<FileStubs>() {
+        @Override
+        public boolean process(FileStubs fileStubs) {
+          if (stopped.get()) return false;
+          if (fileProcessor.process(fileStubs.fileId, fileStubs.stubIndices)) return true;
+          stopped.set(true);
+          return false;
+        }
+      });
+      return completed && !stopped.get();
     }
     catch (StorageException e) {
       forceRebuild(e);
@@ -342,6 +317,138 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     return true;
   }
 
+  private static class FileStubs {
+    private final int fileId;
+    private final int[] stubIndices;
+
+    private FileStubs(int fileId, @NotNull int[] stubIndices) {
+      this.fileId = fileId;
+      this.stubIndices = stubIndices;
+    }
+  }
+
+  /**
+   * Finds the PSI of the stubs recorded in the index for a file and feeds them to the processor.
+   */
+  private static class FileStubsProcessor<Psi extends PsiElement> {
+    private final Project myProject;
+    private final GlobalSearchScope myScope;
+    private final FileBasedIndexImpl.ProjectIndexableFilesFilter myProjectFilesFilter;
+    private final Processor<? super Psi> myProcessor;
+    private final FileBasedIndexImpl myFileBasedIndex = (FileBasedIndexImpl)FileBasedIndex.getInstance();
+    private final PersistentFS myFs = (PersistentFS)ManagingFS.getInstance();
+    private final PsiManager myPsiManager;
+
+    private FileStubsProcessor(@NotNull Project project,
+                               @Nullable GlobalSearchScope scope,
+                               @Nullable FileBasedIndexImpl.ProjectIndexableFilesFilter projectFilesFilter,
+                               @NotNull Processor<? super Psi> processor) {
+      myProject = project;
+      myScope = scope;
+      myProjectFilesFilter = projectFilesFilter;
+      myProcessor = processor;
+      myPsiManager = PsiManager.getInstance(project);
+    }
+
+    private boolean process(final int id, @NotNull final int[] value) {
+      if (myProjectFilesFilter != null && !myProjectFilesFilter.contains(id)) return true;
+      final VirtualFile file = IndexInfrastructure.findFileByIdIfCached(myFs, id);
+      if (file == null || myScope != null && !myScope.contains(file)) {
+        return true;
+      }
+      StubTree stubTree = null;
+
+      final PsiFile _psifile = myPsiManager.findFile(file);
+      PsiFileWithStubSupport psiFile = null;
+
+      if (_psifile != null && !(_psifile instanceof PsiPlainTextFile)) {
+        if (_psifile instanceof PsiFileWithStubSupport) {
+          psiFile = (PsiFileWithStubSupport)_psifile;
+          stubTree = psiFile.getStubTree();
+          if (stubTree == null && psiFile instanceof PsiFileImpl) {
+            stubTree = ((PsiFileImpl)psiFile).calcStubTree();
+          }
+        }
+      }
+
+      if (stubTree == null && psiFile == null) {
+        return true;
+      }
+      if (stubTree == null) {
+        stubTree = StubTreeLoader.getInstance().readFromVFile(myProject, file);
+        if (stubTree == null) {
+          return true;
+        }
+        final List<StubElement<?>> plained = stubTree.getPlainList();
+        for (int i = 0; i < value.length; i++) {
+          final StubElement<?> stub = plained.get(value[i]);
+          final ASTNode tree = psiFile.findTreeForStub(stubTree, stub);
+
+          if (tree != null) {
+            if (tree.getElementType() == stubType(stub)) {
+              Psi psi = (Psi)tree.getPsi();
+              if (!myProcessor.process(psi)) return false;
+            }
+            else {
+              String persistedStubTree = ((PsiFileStubImpl)stubTree.getRoot()).printTree();
+
+              String stubTreeJustBuilt =
+                ((PsiFileStubImpl)((IStubFileElementType)((PsiFileImpl)psiFile).getContentElementType()).getBuilder()
+                  .buildStubTree(psiFile)).printTree();
+
+              StringBuilder builder = new StringBuilder();
+              builder.append("Oops\n");
+
+
+              builder.append("Recorded stub:-----------------------------------\n");
+              builder.append(persistedStubTree);
+              builder.append("\nAST built stub: ------------------------------------\n");
+              builder.append(stubTreeJustBuilt);
+              builder.append("\n");
+              LOG.info(builder.toString());
+
+              // requestReindex() may want to acquire write lock (for indices not requiring content loading)
+              // thus, because here we are under read lock, need to use invoke later
+              ApplicationManager.getApplication().invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                  myFileBasedIndex.requestReindex(file);
+                }
+              }, ModalityState.NON_MODAL);
+            }
+          }
+        }
+      }
+      else {
+        final List<StubElement<?>> plained = stubTree.getPlainList();
+        for (int i = 0; i < value.length; i++) {
+          final int stubTreeIndex = value[i];
+          if (stubTreeIndex >= plained.size()) {
+            final VirtualFile virtualFile = psiFile.getVirtualFile();
+            StubTree stubTreeFromIndex = StubTreeLoader.getInstance().readFromVFile(myProject, file);
+            LOG.error(LogMessageEx.createEvent("PSI and index do not match: PSI " + psiFile + ", first stub " + plained.get(0),
+                                               "Please report the problem to JetBrains with the file attached",
+                                               new Attachment(virtualFile != null ? virtualFile.getPath() : "vFile.txt", psiFile.getText()),
+                                               new Attachment("stubTree.txt", ((PsiFileStubImpl)stubTree.getRoot()).printTree()),
+                                               new Attachment("stubTreeFromIndex.txt", stubTreeFromIndex == null ? "null" : ((PsiFileStubImpl)stubTreeFromIndex.getRoot()).printTree())));
+
+            ApplicationManager.getApplication().invokeLater(new Runnable() {
+              @Override
+              public void run() {
+                myFileBasedIndex.requestReindex(file);
+              }
+            }, ModalityState.NON_MODAL);
+
+            break;
+          }
+          Psi psi = (Psi)plained.get(stubTreeIndex).getPsi();
+          if (!myProcessor.process(psi)) return false;
+        }
+      }
+      return true;
+    }
+  }
+
   private static IElementType stubType(@NotNull final StubElement<?> stub) {
     if (stub instanceof PsiFileStub) {
       return ((PsiFileStub)stub).getType();
@@ -255,32 +255,36 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
       checkNameStorage();
       final Map<StubIndexKey, Map<Object, int[]>> newStubTree = getStubTree(newData);
 
-      final StubIndexImpl stubIndex = getStubIndex();
-      final Collection<StubIndexKey> allStubIndices = stubIndex.getAllStubIndexKeys();
+      lockForUpdate();
       try {
-        // first write-lock affected stub indices to avoid deadlocks
-        for (StubIndexKey key : allStubIndices) {
-          stubIndex.getWriteLock(key).lock();
-        }
-
-        try {
-          getWriteLock().lock();
-
-          final Map<Integer, SerializedStubTree> oldData = readOldData(inputId);
-          final Map<StubIndexKey, Map<Object, int[]>> oldStubTree = getStubTree(oldData);
+        final Map<Integer, SerializedStubTree> oldData = readOldData(inputId);
+        final Map<StubIndexKey, Map<Object, int[]>> oldStubTree = getStubTree(oldData);
 
-          super.updateWithMap(inputId, newData, oldKeysGetter);
+        super.updateWithMap(inputId, newData, oldKeysGetter);
 
-          updateStubIndices(getAffectedIndices(oldStubTree, newStubTree), inputId, oldStubTree, newStubTree);
-        }
-        finally {
-          getWriteLock().unlock();
-        }
+        updateStubIndices(getAffectedIndices(oldStubTree, newStubTree), inputId, oldStubTree, newStubTree);
       }
       finally {
-        for (StubIndexKey key : allStubIndices) {
-          stubIndex.getWriteLock(key).unlock();
-        }
+        unlockForUpdate();
+      }
+    }
+
+    @Override
+    protected void lockForUpdate() {
+      // first write-lock affected stub indices to avoid deadlocks
+      final StubIndexImpl stubIndex = getStubIndex();
+      for (StubIndexKey key : stubIndex.getAllStubIndexKeys()) {
+        stubIndex.getWriteLock(key).lock();
+      }
+      super.lockForUpdate();
+    }
+
+    @Override
+    protected void unlockForUpdate() {
+      super.unlockForUpdate();
+      final StubIndexImpl stubIndex = getStubIndex();
+      for (StubIndexKey key : stubIndex.getAllStubIndexKeys()) {
+        stubIndex.getWriteLock(key).unlock();
       }
     }
 
@@ -116,6 +116,11 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
     return getMergedData().getInputIdsIterator(value);
   }
 
+  @Override
+  IdBitSet getInputIdsSet(Value value) {
+    return getMergedData().getInputIdsSet(value);
+  }
+
   public void dropMergedData() {
     myMerged = null;
   }
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.util.containers.SLRUMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Keeps the data recently computed for file contents by the indices which data depends only on the content, so that files with
+ * identical content are not indexed again.
+ * @see FileBasedIndexExtension#dependsOnlyOnFileContent()
+ */
+class ContentHashCache {
+  private static final int PROTECTED_QUEUE_SIZE = 512;
+  private static final int PROBATIONAL_QUEUE_SIZE = 512;
+
+  private final SLRUMap<Key, Map<?, ?>> myData = new SLRUMap<Key, Map<?, ?>>(PROTECTED_QUEUE_SIZE, PROBATIONAL_QUEUE_SIZE);
+  private int myHitsCount;
+  private int myMissesCount;
+
+  /**
+   * The hash identifies the content as seen by indexers: bytes, file type and charset used to decode them
+   * @return null if the data of the content can't be reused for other files
+   */
+  @Nullable
+  static ContentHash computeHash(@NotNull FileContentImpl content) {
+    return computeHash(content.getContent(), content.getFileTypeWithoutSubstitution(), content.getFileType(), content.getCharset());
+  }
+
+  @Nullable
+  static ContentHash computeHash(@NotNull byte[] content, @NotNull FileType fileType, @NotNull FileType substitutedFileType,
+                                 @Nullable Charset charset) {
+    if (substitutedFileType != fileType) {
+      return null; // the substitution depends on the file and the project rather than on the content
+    }
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    return new ContentHash(digest.digest(content), fileType.getName(), charset != null ? charset.name() : null);
+  }
+
+  @Nullable
+  synchronized Map<?, ?> get(@NotNull ID<?, ?> indexId, @NotNull ContentHash hash) {
+    final Map<?, ?> data = myData.get(new Key(indexId, hash));
+    if (data != null) {
+      myHitsCount++;
+    }
+    else {
+      myMissesCount++;
+    }
+    return data;
+  }
+
+  /**
+   * The data should not be modified after it is put
+   */
+  synchronized void put(@NotNull ID<?, ?> indexId, @NotNull ContentHash hash, @NotNull Map<?, ?> data) {
+    myData.put(new Key(indexId, hash), data);
+  }
+
+  synchronized void clear() {
+    myData.clear();
+  }
+
+  /**
+   * @return the description of the hit rate since the previous call
+   */
+  @NotNull
+  synchronized String getAndResetStatistics() {
+    final int total = myHitsCount + myMissesCount;
+    final String result = "Content hash deduplication: " + myHitsCount + " of " + total + " index updates reused" +
+                          (total > 0 ? " (" + (myHitsCount * 100 / total) + "%)" : "");
+    myHitsCount = 0;
+    myMissesCount = 0;
+    return result;
+  }
+
+  static final class ContentHash {
+    private final byte[] myDigest;
+    private final String myFileType;
+    private final String myCharset;
+
+    private ContentHash(@NotNull byte[] digest, @NotNull String fileType, @Nullable String charset) {
+      myDigest = digest;
+      myFileType = fileType;
+      myCharset = charset;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ContentHash)) return false;
+      final ContentHash hash = (ContentHash)o;
+      return Arrays.equals(myDigest, hash.myDigest) &&
+             myFileType.equals(hash.myFileType) &&
+             (myCharset == null ? hash.myCharset == null : myCharset.equals(hash.myCharset));
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(myDigest);
+    }
+  }
+
+  private static final class Key {
+    private final ID<?, ?> myIndexId;
+    private final ContentHash myHash;
+
+    private Key(@NotNull ID<?, ?> indexId, @NotNull ContentHash hash) {
+      myIndexId = indexId;
+      myHash = hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      final Key key = (Key)o;
+      return myIndexId.equals(key.myIndexId) && myHash.equals(key.myHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myIndexId.hashCode() + myHash.hashCode();
+    }
+  }
+}
@@ -61,6 +61,7 @@ import com.intellij.psi.stubs.SerializationManager;
 import com.intellij.psi.stubs.SerializationManagerEx;
 import com.intellij.util.*;
 import com.intellij.util.concurrency.Semaphore;
+import com.intellij.util.containers.ConcurrentHashMap;
 import com.intellij.util.containers.ConcurrentHashSet;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.io.*;
@@ -79,6 +80,8 @@ import java.io.*;
 import java.lang.ref.SoftReference;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -98,6 +101,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private final TObjectIntHashMap<ID<?, ?>> myIndexIdToVersionMap = new TObjectIntHashMap<ID<?, ?>>();
   private final Set<ID<?, ?>> myNotRequiringContentIndices = new THashSet<ID<?, ?>>();
   private final Set<ID<?, ?>> myRequiringContentIndices = new THashSet<ID<?, ?>>();
+  private final Set<ID<?, ?>> myContentHashIndices = new THashSet<ID<?, ?>>();
+  private final ContentHashCache myContentHashCache = new ContentHashCache();
+  private static final Key<ContentHashCache.ContentHash> CONTENT_HASH = Key.create("CONTENT_HASH");
   private final Set<FileType> myNoLimitCheckTypes = new THashSet<FileType>();
 
   private final PerIndexDocumentVersionMap myLastIndexedDocStamps = new PerIndexDocumentVersionMap();
@@ -115,6 +121,13 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private final FileDocumentManager myFileDocumentManager;
   private final FileTypeManager myFileTypeManager;
   private final ConcurrentHashSet<ID<?, ?>> myUpToDateIndices = new ConcurrentHashSet<ID<?, ?>>();
+  private final ConcurrentMap<ID<?, ?>, IndexUpdateWriter> myUpdateWriters = new ConcurrentHashMap<ID<?, ?>, IndexUpdateWriter>();
+  private final Executor myUpdateWritersExecutor = new Executor() {
+    @Override
+    public void execute(@NotNull Runnable command) {
+      ApplicationManager.getApplication().executeOnPooledThread(command);
+    }
+  };
   private final Map<Document, PsiFile> myTransactionMap = new THashMap<Document, PsiFile>();
 
   private static final int ALREADY_PROCESSED = 0x04;
@@ -400,7 +413,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
           extension.getCacheSize(),
           extension.isKeyHighlySelective()
         );
-        final MemoryIndexStorage<K, V> memStorage = new MemoryIndexStorage<K, V>(storage);
+        final MemoryIndexStorage<K, V> memStorage = new MemoryIndexStorage<K, V>(storage, extension.getKeyDescriptor(), extension.getValueExternalizer());
         final UpdatableIndex<K, V, FileContent> index = createIndex(name, extension, memStorage);
         final InputFilter inputFilter = extension.getInputFilter();
         
@@ -414,6 +427,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
         }
         else {
           myRequiringContentIndices.add(name);
+          if (extension.dependsOnlyOnFileContent()) {
+            myContentHashIndices.add(name);
+          }
         }
         myNoLimitCheckTypes.addAll(extension.getFileTypesWithSizeLimitNotApplicable());
         break;
@@ -560,10 +576,12 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       @Override
       protected Collection<K> doGet(Integer integer) throws IOException {
-        if (isBufferingMode.get()) {
-          final Collection<K> collection = tempMap.get(integer);
-          if (collection != null) {
-            return collection;
+        synchronized (this) { // doGet() is called without enumerator lock
+          if (isBufferingMode.get()) {
+            final Collection<K> collection = tempMap.get(integer);
+            if (collection != null) {
+              return collection;
+            }
           }
         }
         return super.doGet(integer);
@@ -571,22 +589,24 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       @Override
       protected void doPut(Integer integer, @Nullable Collection<K> ks) throws IOException {
-        if (isBufferingMode.get()) {
-          tempMap.put(integer, ks == null? Collections.<K>emptySet() : ks);
-        }
-        else {
-          super.doPut(integer, ks);
+        synchronized (this) {
+          if (isBufferingMode.get()) {
+            tempMap.put(integer, ks == null? Collections.<K>emptySet() : ks);
+            return;
+          }
         }
+        super.doPut(integer, ks);
       }
 
       @Override
       protected void doRemove(Integer integer) throws IOException {
-        if (isBufferingMode.get()) {
-          tempMap.put(integer, Collections.<K>emptySet());
-        }
-        else {
-          super.doRemove(integer);
+        synchronized (this) {
+          if (isBufferingMode.get()) {
+            tempMap.put(integer, Collections.<K>emptySet());
+            return;
+          }
         }
+        super.doRemove(integer);
       }
     };
 
@@ -630,6 +650,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       LOG.info("START INDEX SHUTDOWN");
       try {
         myChangedFilesCollector.forceUpdate(null, null, null, true);
+        writePendingUpdates();
 
         for (ID<?, ?> indexId : myIndices.keySet()) {
           final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
@@ -765,6 +786,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                     @Nullable Project project,
                                     @Nullable GlobalSearchScope filter,
                                     @Nullable VirtualFile restrictedFile) {
+    writePendingUpdates(indexId);
     if (!needsFileContentLoading(indexId)) {
       return; //indexed eagerly in foreground while building unindexed file list
     }
@@ -972,8 +994,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                                       @Nullable Condition<V> valueChecker,
                                                       @NotNull final Processor<VirtualFile> processor) {
     ProjectIndexableFilesFilter filesSet = projectIndexableFiles(filter.getProject());
-    final TIntHashSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
-    return set != null && processVirtualFiles(set, filter, processor);
+    final IdBitSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker);
+    return set != null && processVirtualFiles(set, filesSet, filter, processor);
   }
 
   private static final Key<SoftReference<ProjectIndexableFilesFilter>> ourProjectFilesSetKey = Key.create("projectFiles");
@@ -1057,59 +1079,40 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   @Nullable 
-  private <K, V> TIntHashSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
-                                                             @NotNull final Collection<K> dataKeys,
-                                                             @NotNull final GlobalSearchScope filter,
-                                                             @Nullable final Condition<V> valueChecker,
-                                                             @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
-    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException> convertor =
-      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException>() {
+  private <K, V> IdBitSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
+                                                          @NotNull final Collection<K> dataKeys,
+                                                          @NotNull final GlobalSearchScope filter,
+                                                          @Nullable final Condition<V> valueChecker) {
+    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, IdBitSet, StorageException> convertor =
+      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, IdBitSet, StorageException>() {
         @Nullable
         @Override
-        public TIntHashSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
-          TIntHashSet mainIntersection = null;
-
+        public IdBitSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
+          // the sets of the containers are shared, they are not modified
+          final List<List<IdBitSet>> keysIds = new ArrayList<List<IdBitSet>>(dataKeys.size());
           for (K dataKey : dataKeys) {
             ProgressManager.checkCanceled();
-            final TIntHashSet copy = new TIntHashSet();
             final ValueContainer<V> container = index.getData(dataKey);
 
+            final List<IdBitSet> keyIds = new SmartList<IdBitSet>();
             for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
               final V value = valueIt.next();
               if (valueChecker != null && !valueChecker.value(value)) {
                 continue;
               }
-
-              ValueContainer.IntIterator iterator = container.getInputIdsIterator(value);
-
-              if (mainIntersection == null || iterator.size() < mainIntersection.size()) {
-                for (final ValueContainer.IntIterator inputIdsIterator = iterator; inputIdsIterator.hasNext(); ) {
-                  final int id = inputIdsIterator.next();
-                  if (mainIntersection == null && (projectFilesFilter == null || projectFilesFilter.contains(id)) ||
-                      mainIntersection != null && mainIntersection.contains(id)
-                     ) {
-                    copy.add(id);
-                  }
-                }
-              } else {
-                mainIntersection.forEach(new TIntProcedure() {
-                  final ValueContainer.IntPredicate predicate = container.getValueAssociationPredicate(value);
-                  @Override
-                  public boolean execute(int id) {
-                    if (predicate.contains(id)) copy.add(id);
-                    return true;
-                  }
-                });
+              final IdBitSet ids = container.getInputIdsSet(value);
+              if (!ids.isEmpty()) {
+                keyIds.add(ids);
               }
             }
 
-            mainIntersection = copy;
-            if (mainIntersection.isEmpty()) {
-              return new TIntHashSet();
+            if (keyIds.isEmpty()) {
+              return new IdBitSet();
             }
+            keysIds.add(keyIds);
           }
 
-          return mainIntersection;
+          return keysIds.isEmpty() ? null : IdBitSet.intersectUnions(keysIds);
         }
       };
 
@@ -1117,7 +1120,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return processExceptions(indexId, null, filter, convertor);
   }
 
-  private static boolean processVirtualFiles(@NotNull TIntHashSet ids,
+  private static boolean processVirtualFiles(@NotNull IdBitSet ids,
+                                             @Nullable final ProjectIndexableFilesFilter projectFilesFilter,
                                              @NotNull final GlobalSearchScope filter,
                                              @NotNull final Processor<VirtualFile> processor) {
     final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
@@ -1125,6 +1129,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       @Override
       public boolean execute(int id) {
         ProgressManager.checkCanceled();
+        if (projectFilesFilter != null && !projectFilesFilter.contains(id)) return true;
         VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
         if (file != null && filter.accept(file)) {
           return processor.process(file);
@@ -1618,38 +1623,92 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       for (final ID<?, ?> indexId : myIndices.keySet()) {
         if (shouldIndexFile(file, indexId)) {
           if (fc == null) {
-            byte[] currentBytes;
-            try {
-              currentBytes = content.getBytes();
+            fc = createFileContent(project, content);
+            psiFile = fc.getUserData(IndexingDataKeys.PSI_FILE);
+          }
+
+          try {
+            ProgressManager.checkCanceled();
+            final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
+            if (index instanceof MapReduceIndex && myContentHashIndices.contains(indexId)) {
+              updateSingleIndex(indexId, file, fc, mapInput(indexId, (MapReduceIndex<?, ?, FileContent>)index, fc));
             }
-            catch (IOException e) {
-              currentBytes = ArrayUtil.EMPTY_BYTE_ARRAY;
+            else {
+              updateSingleIndex(indexId, file, fc);
             }
-            fc = new FileContentImpl(file, currentBytes);
+          }
+          catch (ProcessCanceledException e) {
+            myChangedFilesCollector.scheduleForUpdate(file);
+            throw e;
+          }
+          catch (StorageException e) {
+            requestRebuild(indexId);
+            LOG.info(e);
+          }
+        }
+      }
+
+      if (psiFile != null) {
+        psiFile.putUserData(PsiFileImpl.BUILDING_STUB, null);
+      }
+    } finally {
+      FileTypeManagerImpl.cacheFileType(file, null);
+    }
+  }
 
-            psiFile = content.getUserData(IndexingDataKeys.PSI_FILE);
-            if (psiFile != null) {
-              psiFile.putUserData(PsiFileImpl.BUILDING_STUB, true);
-              fc.putUserData(IndexingDataKeys.PSI_FILE, psiFile);
+  /**
+   * Same as {@link #indexFileContent} except that only the data of the indices is computed in the calling thread. The data is
+   * written later by the writer of each index, so that concurrent indexing threads do not wait for the index locks.
+   * Queries wait for the pending writes of the index, use {@link #writePendingUpdates()} to wait for all of them.
+   */
+  public void indexFileContentBatched(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content) {
+    myChangedFilesCollector.ensureAllInvalidateTasksCompleted();
+    final VirtualFile file = content.getVirtualFile();
+    FileContentImpl fc = null;
+
+    PsiFile psiFile = null;
+    final List<MapReduceIndex<?, ?, FileContent>> indices = new ArrayList<MapReduceIndex<?, ?, FileContent>>();
+    final List<ID<?, ?>> indexIds = new ArrayList<ID<?, ?>>();
+    final List<Map<?, ?>> data = new ArrayList<Map<?, ?>>();
+
+    FileTypeManagerImpl.cacheFileType(file, file.getFileType());
+    try {
+      for (final ID<?, ?> indexId : myIndices.keySet()) {
+        if (shouldIndexFile(file, indexId) && ourRebuildStatus.get(indexId).get() != REQUIRES_REBUILD) {
+          if (fc == null) {
+            fc = createFileContent(project, content);
+            psiFile = fc.getUserData(IndexingDataKeys.PSI_FILE);
+          }
+
+          final UpdatableIndex<?, ?, FileContent> updatableIndex = getIndex(indexId);
+          if (!(updatableIndex instanceof MapReduceIndex)) {
+            // custom implementations cannot be written in batches
+            try {
+              ProgressManager.checkCanceled();
+              updateSingleIndex(indexId, file, fc);
+            }
+            catch (ProcessCanceledException e) {
+              myChangedFilesCollector.scheduleForUpdate(file);
+              throw e;
             }
-            if (project == null) {
-              project = ProjectUtil.guessProjectForFile(file);
+            catch (StorageException e) {
+              requestRebuild(indexId);
+              LOG.info(e);
             }
-            fc.putUserData(IndexingDataKeys.PROJECT, project);
+            continue;
           }
+          final MapReduceIndex<?, ?, FileContent> index = (MapReduceIndex<?, ?, FileContent>)updatableIndex;
 
           try {
             ProgressManager.checkCanceled();
-            updateSingleIndex(indexId, file, fc);
+            data.add(mapInput(indexId, index, fc));
+            indices.add(index);
+            indexIds.add(indexId);
           }
           catch (ProcessCanceledException e) {
             myChangedFilesCollector.scheduleForUpdate(file);
             throw e;
           }
-          catch (StorageException e) {
-            requestRebuild(indexId);
-            LOG.info(e);
-          }
         }
       }
 
@@ -1659,9 +1718,199 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     } finally {
       FileTypeManagerImpl.cacheFileType(file, null);
     }
+
+    final int inputId = Math.abs(getFileId(file));
+    // the stamps of the file are flushed when the last of its updates is written
+    final AtomicInteger pendingUpdates = new AtomicInteger(indexIds.size() + 1);
+    int enqueued = 0;
+    try {
+      for (; enqueued < indexIds.size(); enqueued++) {
+        getUpdateWriter(indexIds.get(enqueued), indices.get(enqueued))
+          .enqueue(new IndexUpdateWriter.Update(file, inputId, data.get(enqueued), pendingUpdates));
+      }
+    }
+    catch (ProcessCanceledException e) {
+      myChangedFilesCollector.scheduleForUpdate(file);
+      throw e;
+    }
+    finally {
+      // the updates which were not enqueued won't be written
+      if (pendingUpdates.addAndGet(enqueued - indexIds.size() - 1) == 0) {
+        IndexingStamp.flushCache(file);
+      }
+    }
+  }
+
+  /**
+   * @return the data of the index for the content, the data computed for identical content is reused if the index allows it
+   */
+  @NotNull
+  private Map<?, ?> mapInput(@NotNull ID<?, ?> indexId, @NotNull MapReduceIndex<?, ?, FileContent> index, @NotNull FileContentImpl fc) {
+    ContentHashCache.ContentHash hash = null;
+    // the content of psi may differ from the bytes of the file
+    if (fc.getUserData(IndexingDataKeys.PSI_FILE) == null && myContentHashIndices.contains(indexId)) {
+      // computed once for all indices of the file, it is cheap when there is no hash
+      hash = fc.getUserData(CONTENT_HASH);
+      if (hash == null) {
+        hash = ContentHashCache.computeHash(fc);
+        fc.putUserData(CONTENT_HASH, hash);
+      }
+    }
+    Map<?, ?> data = hash != null ? myContentHashCache.get(indexId, hash) : null;
+    if (data == null) {
+      data = index.mapInput(fc);
+      if (hash != null) {
+        myContentHashCache.put(indexId, hash, data);
+      }
+    }
+    return data;
+  }
+
+  /**
+   * @return the description of the hit rate of the data reused for identical files since the previous call. The reused data
+   * is released as well.
+   */
+  @NotNull
+  public String finishContentDeduplication() {
+    myContentHashCache.clear();
+    return myContentHashCache.getAndResetStatistics();
+  }
+
+  /**
+   * Writes the data queued by {@link #indexFileContentBatched} in the calling thread
+   */
+  public void writePendingUpdates() {
+    if (myStorageLock.isBufferingInCurrentThread()) {
+      return;
+    }
+    for (IndexUpdateWriter writer : myUpdateWriters.values()) {
+      writer.drain();
+    }
+  }
+
+  private void writePendingUpdates(@NotNull ID<?, ?> indexId) {
+    if (myStorageLock.isBufferingInCurrentThread()) {
+      // the updates can't be written until this thread stops buffering, and the writer may already wait for it
+      return;
+    }
+    final IndexUpdateWriter writer = myUpdateWriters.get(indexId);
+    if (writer != null) {
+      writer.drain(); // also waits for the batch being written by another thread
+    }
+  }
+
+  @NotNull
+  private IndexUpdateWriter getUpdateWriter(@NotNull final ID<?, ?> indexId, @NotNull final MapReduceIndex<?, ?, FileContent> index) {
+    final IndexUpdateWriter writer = myUpdateWriters.get(indexId);
+    if (writer != null) {
+      return writer;
+    }
+    return ConcurrencyUtil.cacheOrGet(myUpdateWriters, indexId, new IndexUpdateWriter(myUpdateWritersExecutor) {
+      @Override
+      protected void write(@NotNull List<Update> batch) {
+        writeUpdates(indexId, index, batch);
+      }
+    });
+  }
+
+  private void writeUpdates(@NotNull final ID<?, ?> indexId,
+                            @NotNull final MapReduceIndex<?, ?, FileContent> index,
+                            @NotNull List<IndexUpdateWriter.Update> batch) {
+    try {
+      doWriteUpdates(indexId, index, batch);
+    }
+    finally {
+      for (IndexUpdateWriter.Update update : batch) {
+        if (update.filePendingUpdates.decrementAndGet() == 0) {
+          IndexingStamp.flushCache(update.file);
+        }
+      }
+    }
+  }
+
+  private void doWriteUpdates(@NotNull final ID<?, ?> indexId,
+                              @NotNull final MapReduceIndex<?, ?, FileContent> index,
+                              @NotNull List<IndexUpdateWriter.Update> batch) {
+    if (ourRebuildStatus.get(indexId).get() != REQUIRES_REBUILD) {
+      myLocalModCount++;
+
+      final int[] inputIds = new int[batch.size()];
+      final List<Map<?, ?>> data = new ArrayList<Map<?, ?>>(batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+        inputIds[i] = batch.get(i).inputId;
+        data.add(batch.get(i).data);
+      }
+      final Ref<StorageException> exRef = new Ref<StorageException>(null);
+
+      final StorageGuard.Holder lock = setDataBufferingEnabled(false);
+      try {
+        ProgressManager.getInstance().executeNonCancelableSection(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              //noinspection unchecked
+              ((MapReduceIndex)index).updateWithMaps(inputIds, data);
+            }
+            catch (StorageException e) {
+              exRef.set(e);
+            }
+          }
+        });
+      }
+      finally {
+        lock.leave();
+      }
+
+      final StorageException storageException = exRef.get();
+      if (storageException != null) {
+        requestRebuild(indexId);
+        LOG.info(storageException);
+      }
+      else {
+        final long stamp = IndexInfrastructure.getIndexCreationStamp(indexId);
+        for (IndexUpdateWriter.Update update : batch) {
+          IndexingStamp.update(update.file, indexId, stamp);
+        }
+      }
+    }
+  }
+
+  @NotNull
+  private static FileContentImpl createFileContent(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content) {
+    final VirtualFile file = content.getVirtualFile();
+    byte[] currentBytes;
+    try {
+      currentBytes = content.getBytes();
+    }
+    catch (IOException e) {
+      currentBytes = ArrayUtil.EMPTY_BYTE_ARRAY;
+    }
+    final FileContentImpl fc = new FileContentImpl(file, currentBytes);
+
+    final PsiFile psiFile = content.getUserData(IndexingDataKeys.PSI_FILE);
+    if (psiFile != null) {
+      psiFile.putUserData(PsiFileImpl.BUILDING_STUB, true);
+      fc.putUserData(IndexingDataKeys.PSI_FILE, psiFile);
+    }
+    if (project == null) {
+      project = ProjectUtil.guessProjectForFile(file);
+    }
+    fc.putUserData(IndexingDataKeys.PROJECT, project);
+    return fc;
   }
 
   private void updateSingleIndex(final ID<?, ?> indexId, @NotNull final VirtualFile file, @Nullable final FileContent currentFC) throws StorageException {
+    updateSingleIndex(indexId, file, currentFC, null);
+  }
+
+  /**
+   * @param data the data of the index already computed for the content, if any
+   */
+  private void updateSingleIndex(final ID<?, ?> indexId,
+                                 @NotNull final VirtualFile file,
+                                 @Nullable final FileContent currentFC,
+                                 @Nullable final Map<?, ?> data) throws StorageException {
+    writePendingUpdates(indexId); // keep the order of updates of the file
     if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
       return; // the index is scheduled for rebuild, no need to update
     }
@@ -1678,7 +1927,13 @@ public class FileBasedIndexImpl extends FileBasedIndex {
         @Override
         public void run() {
           try {
-            index.update(inputId, currentFC);
+            if (data != null) {
+              //noinspection unchecked
+              ((MapReduceIndex)index).updateWithMaps(new int[]{inputId}, Collections.singletonList(data));
+            }
+            else {
+              index.update(inputId, currentFC);
+            }
           }
           catch (StorageException e) {
             exRef.set(e);
@@ -2312,6 +2567,12 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
   private static class StorageGuard {
     private int myHolds = 0;
+    private final ThreadLocal<Integer> myBufferingHolds = new ThreadLocal<Integer>() {
+      @Override
+      protected Integer initialValue() {
+        return 0;
+      }
+    };
 
     public interface Holder {
       void leave();
@@ -2341,6 +2602,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
           }
         }
         myHolds++;
+        myBufferingHolds.set(myBufferingHolds.get() + 1);
         return myTrueHolder;
       }
       else {
@@ -2357,11 +2619,18 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     }
 
     private synchronized void leave(boolean mode) {
+      if (mode) {
+        myBufferingHolds.set(myBufferingHolds.get() - 1);
+      }
       myHolds += mode? -1 : 1;
       if (myHolds == 0) {
         notifyAll();
       }
     }
 
+    public boolean isBufferingInCurrentThread() {
+      return myBufferingHolds.get() > 0;
+    }
+
   }
 }
@@ -0,0 +1,603 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.util.io.DataInputOutputUtil;
+import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compressed set of non-negative input ids for the large value sets of index containers.
+ * <p/>
+ * Ids are split into chunks by their upper 16 bits. A chunk keeps the lower 16 bits of its ids in a sorted char array while
+ * there are at most {@link #ARRAY_MAX_SIZE} of them, and in a 64K-bit bitmap otherwise, so that dense id ranges take a bit
+ * per id and sparse ones two bytes. Intersection and union work chunk by chunk without unpacking the ids.
+ * <p/>
+ * The stored form lists the chunks with their keys and sizes; the size of a chunk defines its kind and length,
+ * so readers can skip the chunks they do not need.
+ */
+class IdBitSet implements Cloneable {
+  static final int ARRAY_MAX_SIZE = 4096;
+  private static final int BITMAP_WORDS = (1 << 16) / 64;
+  private static final char[] EMPTY_KEYS = new char[0];
+
+  private char[] myKeys = EMPTY_KEYS;
+  // char[] of sorted low bits or long[BITMAP_WORDS] bitmap, per key
+  private Object[] myChunks = new Object[0];
+  private int[] mySizes = new int[0];
+  private int myChunkCount;
+  private int mySize;
+
+  public int size() {
+    return mySize;
+  }
+
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  public boolean contains(int id) {
+    final int index = findChunk((char)(id >>> 16));
+    if (index < 0) return false;
+    final Object chunk = myChunks[index];
+    final char low = (char)id;
+    if (chunk instanceof long[]) {
+      return (((long[])chunk)[low >>> 6] & (1L << low)) != 0;
+    }
+    return binarySearch((char[])chunk, mySizes[index], low) >= 0;
+  }
+
+  public boolean add(int id) {
+    assert id >= 0 : id;
+    final char key = (char)(id >>> 16);
+    int index = findChunk(key);
+    if (index < 0) {
+      index = -index - 1;
+      insertChunk(index, key, new char[4], 0);
+    }
+
+    final char low = (char)id;
+    final Object chunk = myChunks[index];
+    final int size = mySizes[index];
+    if (chunk instanceof long[]) {
+      final long[] bitmap = (long[])chunk;
+      final long bit = 1L << low;
+      if ((bitmap[low >>> 6] & bit) != 0) return false;
+      bitmap[low >>> 6] |= bit;
+    }
+    else {
+      char[] array = (char[])chunk;
+      int position = binarySearch(array, size, low);
+      if (position >= 0) return false;
+      position = -position - 1;
+      if (size == ARRAY_MAX_SIZE) {
+        final long[] bitmap = toBitmap(array, size);
+        bitmap[low >>> 6] |= 1L << low;
+        myChunks[index] = bitmap;
+      }
+      else {
+        if (size == array.length) {
+          final char[] newArray = new char[Math.min(ARRAY_MAX_SIZE, size < 64 ? size * 2 : size * 3 / 2)];
+          System.arraycopy(array, 0, newArray, 0, size);
+          myChunks[index] = array = newArray;
+        }
+        System.arraycopy(array, position, array, position + 1, size - position);
+        array[position] = low;
+      }
+    }
+    mySizes[index]++;
+    mySize++;
+    return true;
+  }
+
+  public boolean remove(int id) {
+    final int index = findChunk((char)(id >>> 16));
+    if (index < 0) return false;
+
+    final char low = (char)id;
+    final Object chunk = myChunks[index];
+    final int size = mySizes[index];
+    if (chunk instanceof long[]) {
+      final long[] bitmap = (long[])chunk;
+      final long bit = 1L << low;
+      if ((bitmap[low >>> 6] & bit) == 0) return false;
+      bitmap[low >>> 6] &= ~bit;
+      if (size - 1 <= ARRAY_MAX_SIZE) {
+        myChunks[index] = toArray(bitmap, size - 1);
+      }
+    }
+    else {
+      final char[] array = (char[])chunk;
+      final int position = binarySearch(array, size, low);
+      if (position < 0) return false;
+      System.arraycopy(array, position + 1, array, position, size - position - 1);
+    }
+    mySize--;
+    if (--mySizes[index] == 0) {
+      removeChunk(index);
+    }
+    return true;
+  }
+
+  /**
+   * Leaves in this set only the ids which are also contained in the other one
+   */
+  public void retainAll(@NotNull IdBitSet other) {
+    int count = 0;
+    int size = 0;
+    int i = 0;
+    int j = 0;
+    while (i < myChunkCount && j < other.myChunkCount) {
+      final char key = myKeys[i];
+      final char otherKey = other.myKeys[j];
+      if (key < otherKey) {
+        i++;
+      }
+      else if (key > otherKey) {
+        j++;
+      }
+      else {
+        final int chunkSize = intersect(i, other.myChunks[j], other.mySizes[j]);
+        if (chunkSize > 0) {
+          myKeys[count] = key;
+          myChunks[count] = myChunks[i];
+          mySizes[count] = chunkSize;
+          count++;
+          size += chunkSize;
+        }
+        i++;
+        j++;
+      }
+    }
+    for (int k = count; k < myChunkCount; k++) {
+      myChunks[k] = null;
+    }
+    myChunkCount = count;
+    mySize = size;
+  }
+
+  /**
+   * Adds the ids of the other set to this one
+   */
+  public void addAll(@NotNull IdBitSet other) {
+    int i = 0;
+    for (int j = 0; j < other.myChunkCount; j++) {
+      final char otherKey = other.myKeys[j];
+      while (i < myChunkCount && myKeys[i] < otherKey) i++;
+
+      final Object otherChunk = other.myChunks[j];
+      final int otherSize = other.mySizes[j];
+      if (i < myChunkCount && myKeys[i] == otherKey) {
+        mySize -= mySizes[i];
+        unite(i, otherChunk, otherSize);
+        mySize += mySizes[i];
+      }
+      else {
+        insertChunk(i, otherKey, copyChunk(otherChunk, otherSize), otherSize);
+        mySize += otherSize;
+      }
+      i++;
+    }
+  }
+
+  public boolean forEach(@NotNull TIntProcedure procedure) {
+    for (int i = 0; i < myChunkCount; i++) {
+      final int high = myKeys[i] << 16;
+      final Object chunk = myChunks[i];
+      if (chunk instanceof long[]) {
+        final long[] bitmap = (long[])chunk;
+        for (int word = 0; word < BITMAP_WORDS; word++) {
+          long bits = bitmap[word];
+          while (bits != 0) {
+            final int bit = Long.numberOfTrailingZeros(bits);
+            if (!procedure.execute(high | (word << 6) | bit)) return false;
+            bits &= bits - 1;
+          }
+        }
+      }
+      else {
+        final char[] array = (char[])chunk;
+        for (int k = 0, size = mySizes[i]; k < size; k++) {
+          if (!procedure.execute(high | array[k])) return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @NotNull
+  public ValueContainer.IntIterator iterator() {
+    return new ValueContainer.IntIterator() {
+      private int myChunk;
+      private int myPosition; // index in an array chunk, bit number in a bitmap one
+      private int myNext = advance();
+
+      private int advance() {
+        while (myChunk < myChunkCount) {
+          final Object chunk = myChunks[myChunk];
+          final int high = myKeys[myChunk] << 16;
+          if (chunk instanceof long[]) {
+            final long[] bitmap = (long[])chunk;
+            int word = myPosition >>> 6;
+            if (word < BITMAP_WORDS) {
+              long bits = bitmap[word] & (-1L << myPosition);
+              while (bits == 0 && ++word < BITMAP_WORDS) bits = bitmap[word];
+              if (bits != 0) {
+                final int low = (word << 6) | Long.numberOfTrailingZeros(bits);
+                myPosition = low + 1;
+                return high | low;
+              }
+            }
+          }
+          else if (myPosition < mySizes[myChunk]) {
+            return high | ((char[])chunk)[myPosition++];
+          }
+          myChunk++;
+          myPosition = 0;
+        }
+        return -1;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return myNext >= 0;
+      }
+
+      @Override
+      public int next() {
+        final int next = myNext;
+        myNext = advance();
+        return next;
+      }
+
+      @Override
+      public int size() {
+        return mySize;
+      }
+    };
+  }
+
+  /**
+   * Intersects the unions of the groups of sets, starting from the smallest group: the ids of the other groups only filter
+   * the intermediate result, which is never bigger than that group, and the intersection stops as soon as it is empty.
+   * The given sets are not modified.
+   */
+  @NotNull
+  static IdBitSet intersectUnions(@NotNull List<List<IdBitSet>> groups) {
+    final List<List<IdBitSet>> sorted = new ArrayList<List<IdBitSet>>(groups);
+    Collections.sort(sorted, new Comparator<List<IdBitSet>>() {
+      @Override
+      public int compare(List<IdBitSet> o1, List<IdBitSet> o2) {
+        final long size1 = getSizeUpperBound(o1);
+        final long size2 = getSizeUpperBound(o2);
+        return size1 < size2 ? -1 : size1 == size2 ? 0 : 1;
+      }
+    });
+
+    IdBitSet result = null;
+    for (final List<IdBitSet> group : sorted) {
+      if (result == null) {
+        result = new IdBitSet();
+        for (IdBitSet set : group) {
+          result.addAll(set);
+        }
+      }
+      else if (group.size() == 1) {
+        result.retainAll(group.get(0));
+      }
+      else {
+        final IdBitSet filtered = new IdBitSet();
+        result.forEach(new TIntProcedure() {
+          @Override
+          public boolean execute(int id) {
+            for (IdBitSet set : group) {
+              if (set.contains(id)) {
+                filtered.add(id);
+                break;
+              }
+            }
+            return true;
+          }
+        });
+        result = filtered;
+      }
+      if (result.isEmpty()) {
+        break;
+      }
+    }
+    return result != null ? result : new IdBitSet();
+  }
+
+  private static long getSizeUpperBound(@NotNull List<IdBitSet> group) {
+    long size = 0;
+    for (IdBitSet set : group) {
+      size += set.size();
+    }
+    return size;
+  }
+
+  @Override
+  public IdBitSet clone() {
+    try {
+      final IdBitSet clone = (IdBitSet)super.clone();
+      clone.myKeys = myKeys.clone();
+      clone.mySizes = mySizes.clone();
+      clone.myChunks = new Object[myChunks.length];
+      for (int i = 0; i < myChunkCount; i++) {
+        clone.myChunks[i] = copyChunk(myChunks[i], mySizes[i]);
+      }
+      return clone;
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void save(@NotNull DataOutput out) throws IOException {
+    DataInputOutputUtil.writeINT(out, myChunkCount);
+    for (int i = 0; i < myChunkCount; i++) {
+      final int size = mySizes[i];
+      DataInputOutputUtil.writeINT(out, myKeys[i]);
+      DataInputOutputUtil.writeINT(out, size);
+      final Object chunk = myChunks[i];
+      if (chunk instanceof long[]) {
+        for (long word : (long[])chunk) {
+          out.writeLong(word);
+        }
+      }
+      else {
+        final char[] array = (char[])chunk;
+        for (int k = 0; k < size; k++) {
+          out.writeChar(array[k]);
+        }
+      }
+    }
+  }
+
+  @NotNull
+  public static IdBitSet read(@NotNull DataInput in) throws IOException {
+    final IdBitSet set = new IdBitSet();
+    final int chunkCount = DataInputOutputUtil.readINT(in);
+    set.myKeys = new char[chunkCount];
+    set.myChunks = new Object[chunkCount];
+    set.mySizes = new int[chunkCount];
+    for (int i = 0; i < chunkCount; i++) {
+      final char key = (char)DataInputOutputUtil.readINT(in);
+      final int size = DataInputOutputUtil.readINT(in);
+      final Object chunk;
+      if (size > ARRAY_MAX_SIZE) {
+        final long[] bitmap = new long[BITMAP_WORDS];
+        for (int k = 0; k < BITMAP_WORDS; k++) {
+          bitmap[k] = in.readLong();
+        }
+        chunk = bitmap;
+      }
+      else {
+        final char[] array = new char[size];
+        for (int k = 0; k < size; k++) {
+          array[k] = in.readChar();
+        }
+        chunk = array;
+      }
+      set.myKeys[i] = key;
+      set.myChunks[i] = chunk;
+      set.mySizes[i] = size;
+      set.mySize += size;
+    }
+    set.myChunkCount = chunkCount;
+    return set;
+  }
+
+  private int findChunk(char key) {
+    return binarySearch(myKeys, myChunkCount, key);
+  }
+
+  private void insertChunk(int index, char key, @NotNull Object chunk, int size) {
+    if (myChunkCount == myKeys.length) {
+      final int capacity = Math.max(4, myChunkCount * 2);
+      final char[] keys = new char[capacity];
+      final Object[] chunks = new Object[capacity];
+      final int[] sizes = new int[capacity];
+      System.arraycopy(myKeys, 0, keys, 0, myChunkCount);
+      System.arraycopy(myChunks, 0, chunks, 0, myChunkCount);
+      System.arraycopy(mySizes, 0, sizes, 0, myChunkCount);
+      myKeys = keys;
+      myChunks = chunks;
+      mySizes = sizes;
+    }
+    System.arraycopy(myKeys, index, myKeys, index + 1, myChunkCount - index);
+    System.arraycopy(myChunks, index, myChunks, index + 1, myChunkCount - index);
+    System.arraycopy(mySizes, index, mySizes, index + 1, myChunkCount - index);
+    myKeys[index] = key;
+    myChunks[index] = chunk;
+    mySizes[index] = size;
+    myChunkCount++;
+  }
+
+  private void removeChunk(int index) {
+    System.arraycopy(myKeys, index + 1, myKeys, index, myChunkCount - index - 1);
+    System.arraycopy(myChunks, index + 1, myChunks, index, myChunkCount - index - 1);
+    System.arraycopy(mySizes, index + 1, mySizes, index, myChunkCount - index - 1);
+    myChunks[--myChunkCount] = null;
+  }
+
+  // intersects the chunk at the index with the other chunk in place, returns the resulting size
+  private int intersect(int index, @NotNull Object otherChunk, int otherSize) {
+    final Object chunk = myChunks[index];
+    final int size = mySizes[index];
+    if (chunk instanceof long[]) {
+      final long[] bitmap = (long[])chunk;
+      if (otherChunk instanceof long[]) {
+        final long[] otherBitmap = (long[])otherChunk;
+        int count = 0;
+        for (int k = 0; k < BITMAP_WORDS; k++) {
+          count += Long.bitCount(bitmap[k] &= otherBitmap[k]);
+        }
+        if (count <= ARRAY_MAX_SIZE) myChunks[index] = toArray(bitmap, count);
+        return count;
+      }
+      final char[] otherArray = (char[])otherChunk;
+      final char[] array = new char[otherSize];
+      int count = 0;
+      for (int k = 0; k < otherSize; k++) {
+        final char low = otherArray[k];
+        if ((bitmap[low >>> 6] & (1L << low)) != 0) array[count++] = low;
+      }
+      myChunks[index] = array;
+      return count;
+    }
+
+    final char[] array = (char[])chunk;
+    int count = 0;
+    if (otherChunk instanceof long[]) {
+      final long[] otherBitmap = (long[])otherChunk;
+      for (int k = 0; k < size; k++) {
+        final char low = array[k];
+        if ((otherBitmap[low >>> 6] & (1L << low)) != 0) array[count++] = low;
+      }
+      return count;
+    }
+    final char[] otherArray = (char[])otherChunk;
+    for (int k = 0, l = 0; k < size && l < otherSize; ) {
+      if (array[k] < otherArray[l]) {
+        k++;
+      }
+      else if (array[k] > otherArray[l]) {
+        l++;
+      }
+      else {
+        array[count++] = array[k];
+        k++;
+        l++;
+      }
+    }
+    return count;
+  }
+
+  // unites the chunk at the index with the other chunk in place and updates its size
+  private void unite(int index, @NotNull Object otherChunk, int otherSize) {
+    Object chunk = myChunks[index];
+    final int size = mySizes[index];
+    if (!(chunk instanceof long[]) && !(otherChunk instanceof long[])) {
+      final char[] array = (char[])chunk;
+      final char[] otherArray = (char[])otherChunk;
+      final char[] merged = new char[size + otherSize];
+      int count = 0;
+      int k = 0;
+      int l = 0;
+      while (k < size && l < otherSize) {
+        if (array[k] < otherArray[l]) {
+          merged[count++] = array[k++];
+        }
+        else if (array[k] > otherArray[l]) {
+          merged[count++] = otherArray[l++];
+        }
+        else {
+          merged[count++] = array[k++];
+          l++;
+        }
+      }
+      while (k < size) merged[count++] = array[k++];
+      while (l < otherSize) merged[count++] = otherArray[l++];
+
+      myChunks[index] = count > ARRAY_MAX_SIZE ? toBitmap(merged, count) : merged;
+      mySizes[index] = count;
+      return;
+    }
+
+    if (!(chunk instanceof long[])) {
+      myChunks[index] = chunk = toBitmap((char[])chunk, size);
+    }
+    final long[] bitmap = (long[])chunk;
+    if (otherChunk instanceof long[]) {
+      final long[] otherBitmap = (long[])otherChunk;
+      for (int k = 0; k < BITMAP_WORDS; k++) {
+        bitmap[k] |= otherBitmap[k];
+      }
+    }
+    else {
+      final char[] otherArray = (char[])otherChunk;
+      for (int k = 0; k < otherSize; k++) {
+        final char low = otherArray[k];
+        bitmap[low >>> 6] |= 1L << low;
+      }
+    }
+    int count = 0;
+    for (long word : bitmap) {
+      count += Long.bitCount(word);
+    }
+    mySizes[index] = count;
+  }
+
+  @NotNull
+  private static Object copyChunk(@NotNull Object chunk, int size) {
+    if (chunk instanceof long[]) return ((long[])chunk).clone();
+    final char[] array = new char[size];
+    System.arraycopy(chunk, 0, array, 0, size);
+    return array;
+  }
+
+  @NotNull
+  private static long[] toBitmap(@NotNull char[] array, int size) {
+    final long[] bitmap = new long[BITMAP_WORDS];
+    for (int k = 0; k < size; k++) {
+      final char low = array[k];
+      bitmap[low >>> 6] |= 1L << low;
+    }
+    return bitmap;
+  }
+
+  @NotNull
+  private static char[] toArray(@NotNull long[] bitmap, int size) {
+    final char[] array = new char[size];
+    int count = 0;
+    for (int word = 0; word < BITMAP_WORDS; word++) {
+      long bits = bitmap[word];
+      while (bits != 0) {
+        array[count++] = (char)((word << 6) | Long.numberOfTrailingZeros(bits));
+        bits &= bits - 1;
+      }
+    }
+    return array;
+  }
+
+  private static int binarySearch(@NotNull char[] array, int size, char value) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final char middleValue = array[middle];
+      if (middleValue < value) {
+        low = middle + 1;
+      }
+      else if (middleValue > value) {
+        high = middle - 1;
+      }
+      else {
+        return middle;
+      }
+    }
+    return -(low + 1);
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes data computed by indexing threads into a single index. Updates are queued and written in batches by one thread at a time,
+ * so that the indexing threads do not contend for the index write lock. The queue is bounded: producers wait when the writer
+ * falls behind.
+ */
+abstract class IndexUpdateWriter {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.IndexUpdateWriter");
+  static final int MAX_PENDING_UPDATES = 1024;
+  static final int MAX_BATCH_SIZE = 64;
+
+  private final ConcurrentLinkedQueue<Update> myQueue = new ConcurrentLinkedQueue<Update>();
+  private final Semaphore myFreeSlots = new Semaphore(MAX_PENDING_UPDATES);
+  private final AtomicBoolean myDrainScheduled = new AtomicBoolean(false);
+  private final Executor myExecutor;
+
+  static class Update {
+    final VirtualFile file;
+    final int inputId;
+    final Map<?, ?> data;
+    final AtomicInteger filePendingUpdates;
+
+    Update(@NotNull VirtualFile file, int inputId, @NotNull Map<?, ?> data, @NotNull AtomicInteger filePendingUpdates) {
+      this.file = file;
+      this.inputId = inputId;
+      this.data = data;
+      this.filePendingUpdates = filePendingUpdates;
+    }
+  }
+
+  IndexUpdateWriter(@NotNull Executor executor) {
+    myExecutor = executor;
+  }
+
+  /**
+   * Writes the batch into the index. Called by one thread at a time
+   */
+  protected abstract void write(@NotNull List<Update> batch);
+
+  void enqueue(@NotNull Update update) {
+    try {
+      while (!myFreeSlots.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+        ProgressManager.checkCanceled();
+      }
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    myQueue.add(update);
+    scheduleDrain();
+  }
+
+  boolean hasPendingUpdates() {
+    return !myQueue.isEmpty();
+  }
+
+  /**
+   * Writes all queued updates in the calling thread
+   */
+  synchronized void drain() {
+    while (true) {
+      final List<Update> batch = new ArrayList<Update>(MAX_BATCH_SIZE);
+      Update update;
+      while (batch.size() < MAX_BATCH_SIZE && (update = myQueue.poll()) != null) {
+        batch.add(update);
+      }
+      if (batch.isEmpty()) {
+        return;
+      }
+      try {
+        write(batch);
+      }
+      finally {
+        myFreeSlots.release(batch.size());
+      }
+    }
+  }
+
+  private void scheduleDrain() {
+    if (!myDrainScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    myExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          drain();
+        }
+        catch (Throwable e) {
+          LOG.error(e);
+        }
+        finally {
+          myDrainScheduled.set(false);
+        }
+        if (hasPendingUpdates()) {
+          // updates added after the queue was found empty but before the flag was reset
+          scheduleDrain();
+        }
+      }
+    });
+  }
+}
@@ -212,15 +212,57 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   public final void update(final int inputId, @Nullable Input content) throws StorageException {
     assert myInputsIndex != null;
 
-    final Map<Key, Value> data = content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
+    updateWithMap(inputId, mapInput(content), getOldKeysGetter(inputId));
+  }
+
+  /**
+   * Computes the data of the input without touching the storage, so that it can be done concurrently with updates
+   * and the data can be written later by {@link #updateWithMaps}
+   */
+  @NotNull
+  public final Map<Key, Value> mapInput(@Nullable Input content) {
+    return content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
+  }
+
+  /**
+   * Writes the data of several inputs taking the locks once for the whole batch
+   */
+  public final void updateWithMaps(@NotNull int[] inputIds, @NotNull List<Map<Key, Value>> data) throws StorageException {
+    assert myInputsIndex != null;
+    assert inputIds.length == data.size();
 
-    updateWithMap(inputId, data, new Callable<Collection<Key>>() {
+    lockForUpdate();
+    try {
+      for (int i = 0; i < inputIds.length; i++) {
+        updateWithMap(inputIds[i], data.get(i), getOldKeysGetter(inputIds[i]));
+      }
+    }
+    finally {
+      unlockForUpdate();
+    }
+  }
+
+  @NotNull
+  private Callable<Collection<Key>> getOldKeysGetter(final int inputId) {
+    return new Callable<Collection<Key>>() {
       @Override
       public Collection<Key> call() throws Exception {
         final Collection<Key> oldKeys = myInputsIndex.get(inputId);
         return oldKeys == null? Collections.<Key>emptyList() : oldKeys;
       }
-    });
+    };
+  }
+
+  /**
+   * Takes the locks needed by {@link #updateWithMap}. Subclasses updating other indices along with this one should lock them
+   * here before this index, to keep the locking order
+   */
+  protected void lockForUpdate() {
+    getWriteLock().lock();
+  }
+
+  protected void unlockForUpdate() {
+    getWriteLock().unlock();
   }
 
   protected void updateWithMap(final int inputId, @NotNull Map<Key, Value> newData, @NotNull Callable<Collection<Key>> oldKeysGetter) throws StorageException {
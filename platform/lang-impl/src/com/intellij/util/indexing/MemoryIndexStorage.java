@@ -16,26 +16,64 @@
 
 package com.intellij.util.indexing;
 
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.KeyDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIterator;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This storage is needed for indexing yet unsaved data without saving those changes to 'main' backend storage
+ * <p/>
+ * When the estimated size of the buffered changes exceeds the limit, the changes of all keys are moved to a temporary map on disk
+ * and the containers merged with the backend data are dropped from memory; a key is restored on the next change of it.
+ * The size of a change is the size of its serialized key and value plus the overhead of the in-memory containers.
  * 
  * @author Eugene Zhuravlev
  *         Date: Dec 10, 2007
  */
 public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value> {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.MemoryIndexStorage");
   private final Map<Key, ChangeTrackingValueContainer<Value>> myMap = new HashMap<Key,ChangeTrackingValueContainer<Value>>();
   private final IndexStorage<Key, Value> myBackendStorage;
   private final List<BufferingStateListener> myListeners = ContainerUtil.createEmptyCOWList();
   private final AtomicBoolean myBufferingEnabled = new AtomicBoolean(false);
+
+  @Nullable private final KeyDescriptor<Key> myKeyDescriptor;
+  @Nullable private final DataExternalizer<Value> myValueExternalizer;
+  // estimated memory taken by an id and a value reference in the containers, and by a key and its container in myMap
+  private static final int ENTRY_OVERHEAD = 16;
+  private static final int KEY_OVERHEAD = 64;
+  private final long myBufferSizeLimit;
+  // estimated size of the changes made to the containers of myMap since they were spilled last time
+  private long myBufferedSize;
+  private final BufferExposingByteArrayOutputStream mySizeBuffer = new BufferExposingByteArrayOutputStream();
+  private final DataOutputStream mySizeStream = new DataOutputStream(mySizeBuffer);
+  private final Set<Key> mySpilledKeys = new HashSet<Key>();
+  private File mySpillDir;
+  private PersistentHashMap<Key, Changes<Value>> mySpilledChanges;
+  private boolean mySpillFailed;
+  private int mySpillCount;
+  private long myLastSpillTime;
+  private long myTotalSpillTime;
   
   public interface BufferingStateListener {
     void bufferingStateChanged(boolean newState);
@@ -43,7 +81,26 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
   }
   
   public MemoryIndexStorage(IndexStorage<Key, Value> backend) {
+    this(backend, null, null);
+  }
+
+  /**
+   * The descriptors are used to spill the buffered changes to disk, without them the changes are always kept in memory
+   */
+  public MemoryIndexStorage(IndexStorage<Key, Value> backend,
+                            @Nullable KeyDescriptor<Key> keyDescriptor,
+                            @Nullable DataExternalizer<Value> valueExternalizer) {
+    this(backend, keyDescriptor, valueExternalizer, Registry.intValue("caches.unsavedDataBufferSizeKb") * 1024L);
+  }
+
+  MemoryIndexStorage(IndexStorage<Key, Value> backend,
+                     @Nullable KeyDescriptor<Key> keyDescriptor,
+                     @Nullable DataExternalizer<Value> valueExternalizer,
+                     long bufferSizeLimit) {
     myBackendStorage = backend;
+    myKeyDescriptor = keyDescriptor;
+    myValueExternalizer = valueExternalizer;
+    myBufferSizeLimit = keyDescriptor != null && valueExternalizer != null ? bufferSizeLimit : 0;
   }
 
   public IndexStorage<Key, Value> getBackendStorage() {
@@ -73,6 +130,37 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
 
   public void clearMemoryMap() {
     myMap.clear();
+    myBufferedSize = 0;
+    if (!mySpilledKeys.isEmpty() || mySpilledChanges != null) {
+      mySpilledKeys.clear();
+      disposeSpilledChanges();
+    }
+  }
+
+  /**
+   * @return estimated size in bytes of the changes buffered in memory since they were spilled to disk last time
+   */
+  public long getBufferedSize() {
+    return myBufferedSize;
+  }
+
+  public int getSpilledKeysCount() {
+    return mySpilledKeys.size();
+  }
+
+  public int getSpillCount() {
+    return mySpillCount;
+  }
+
+  /**
+   * @return time in milliseconds the last spill of the buffered changes to disk took
+   */
+  public long getLastSpillTime() {
+    return myLastSpillTime;
+  }
+
+  public long getTotalSpillTime() {
+    return myTotalSpillTime;
   }
 
   public void fireMemoryStorageCleared() {
@@ -83,6 +171,8 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
 
   @Override
   public void close() throws StorageException {
+    mySpilledKeys.clear();
+    disposeSpilledChanges();
     myBackendStorage.close();
   }
 
@@ -127,6 +217,12 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
       }
       stopList.add(key);
     }
+    for (Key key : mySpilledKeys) {
+      if (read(key).size() > 0 && !processor.process(key)) {
+        return false;
+      }
+      stopList.add(key);
+    }
     return myBackendStorage.processKeys(decoratingProcessor);
   }
 
@@ -134,6 +230,7 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
   public void addValue(final Key key, final int inputId, final Value value) throws StorageException {
     if (myBufferingEnabled.get()) {
       getMemValueContainer(key).addValue(inputId, value);
+      changeBuffered(ENTRY_OVERHEAD + estimateValueSize(value));
       return;
     }
     final ChangeTrackingValueContainer<Value> valueContainer = myMap.get(key);
@@ -148,6 +245,7 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
   public void removeAllValues(Key key, int inputId) throws StorageException {
     if (myBufferingEnabled.get()) {
       getMemValueContainer(key).removeAssociatedValue(inputId);
+      changeBuffered(ENTRY_OVERHEAD);
       return;
     }
     final ChangeTrackingValueContainer<Value> valueContainer = myMap.get(key);
@@ -158,10 +256,24 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
     myBackendStorage.removeAllValues(key, inputId);
   }
 
-  private UpdatableValueContainer<Value> getMemValueContainer(final Key key) {
+  private UpdatableValueContainer<Value> getMemValueContainer(final Key key) throws StorageException {
     ChangeTrackingValueContainer<Value> valueContainer = myMap.get(key);
     if (valueContainer == null) {
-      valueContainer = new ChangeTrackingValueContainer<Value>(new ChangeTrackingValueContainer.Initializer<Value>() {
+      if (mySpilledKeys.remove(key)) {
+        valueContainer = readSpilledContainer(key);
+      }
+      else {
+        valueContainer = createMemValueContainer(key);
+      }
+      myMap.put(key, valueContainer);
+      myBufferedSize += KEY_OVERHEAD + estimateKeySize(key);
+    }
+    return valueContainer;
+  }
+
+  @NotNull
+  private ChangeTrackingValueContainer<Value> createMemValueContainer(final Key key) {
+    return new ChangeTrackingValueContainer<Value>(new ChangeTrackingValueContainer.Initializer<Value>() {
         @Override
         public Object getLock() {
           return this;
@@ -177,9 +289,6 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
           }
         }
       });
-      myMap.put(key, valueContainer);
-    }
-    return valueContainer;
   }
 
   @Override
@@ -189,8 +298,176 @@ public class MemoryIndexStorage<Key, Value> implements IndexStorage<Key, Value>
     if (valueContainer != null) {
       return valueContainer;
     }
+    if (mySpilledKeys.contains(key)) {
+      // not put to the map since reads are done under the read lock; merged with the backend data on every read till the key changes
+      return readSpilledContainer(key);
+    }
     
     return myBackendStorage.read(key);
   }
 
+  private void changeBuffered(int size) {
+    myBufferedSize += size;
+    if (myBufferedSize > myBufferSizeLimit && myBufferSizeLimit > 0 && !mySpillFailed) {
+      spill();
+    }
+  }
+
+  private int estimateKeySize(Key key) {
+    if (myBufferSizeLimit <= 0) return 0;
+    assert myKeyDescriptor != null;
+    try {
+      mySizeBuffer.reset();
+      myKeyDescriptor.save(mySizeStream, key);
+      return mySizeBuffer.size();
+    }
+    catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private int estimateValueSize(Value value) {
+    if (myBufferSizeLimit <= 0) return 0;
+    assert myValueExternalizer != null;
+    try {
+      mySizeBuffer.reset();
+      myValueExternalizer.save(mySizeStream, value);
+      return mySizeBuffer.size();
+    }
+    catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private void spill() {
+    final long started = System.currentTimeMillis();
+    try {
+      if (mySpilledChanges == null) {
+        assert myKeyDescriptor != null && myValueExternalizer != null;
+        mySpillDir = FileUtil.createTempDirectory("unsavedIndexData", null);
+        mySpilledChanges = new PersistentHashMap<Key, Changes<Value>>(new File(mySpillDir, "changes"), myKeyDescriptor,
+                                                                      new ChangesExternalizer<Value>(myValueExternalizer));
+      }
+      for (Map.Entry<Key, ChangeTrackingValueContainer<Value>> entry : myMap.entrySet()) {
+        final ChangeTrackingValueContainer<Value> container = entry.getValue();
+        mySpilledChanges.put(entry.getKey(), new Changes<Value>(container.getAddedDelta(), container.getInvalidated()));
+        mySpilledKeys.add(entry.getKey());
+      }
+      myMap.clear();
+      myBufferedSize = 0;
+    }
+    catch (IOException e) {
+      // the changes stay in memory and are not spilled any more
+      LOG.info(e);
+      mySpilledKeys.removeAll(myMap.keySet());
+      mySpillFailed = true;
+      return;
+    }
+
+    myLastSpillTime = System.currentTimeMillis() - started;
+    myTotalSpillTime += myLastSpillTime;
+    mySpillCount++;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Unsaved index data spilled in " + myLastSpillTime + " ms, " + mySpilledKeys.size() + " keys on disk");
+    }
+  }
+
+  @NotNull
+  private ChangeTrackingValueContainer<Value> readSpilledContainer(Key key) throws StorageException {
+    final Changes<Value> changes;
+    try {
+      changes = mySpilledChanges.get(key);
+    }
+    catch (IOException e) {
+      throw new StorageException(e);
+    }
+
+    final ChangeTrackingValueContainer<Value> container = createMemValueContainer(key);
+    if (changes != null) {
+      // the merged data is not computed yet, so the changes are only recorded
+      for (TIntIterator iterator = changes.invalidated.iterator(); iterator.hasNext();) {
+        container.removeAssociatedValue(iterator.next());
+      }
+      changes.added.forEach(new ValueContainer.ContainerAction<Value>() {
+        @Override
+        public boolean perform(int id, Value value) {
+          container.addValue(id, value);
+          return true;
+        }
+      });
+    }
+    return container;
+  }
+
+  private void disposeSpilledChanges() {
+    final PersistentHashMap<Key, Changes<Value>> spilledChanges = mySpilledChanges;
+    if (spilledChanges == null) return;
+    mySpilledChanges = null;
+    mySpillFailed = false;
+    try {
+      spilledChanges.close();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+    FileUtil.delete(mySpillDir);
+    mySpillDir = null;
+  }
+
+  private static class Changes<Value> {
+    private final ValueContainerImpl<Value> added;
+    private final TIntHashSet invalidated;
+
+    private Changes(@Nullable ValueContainer<Value> added, @Nullable TIntHashSet invalidated) {
+      this.added = added != null ? (ValueContainerImpl<Value>)added : new ValueContainerImpl<Value>();
+      this.invalidated = invalidated != null ? invalidated : new TIntHashSet(1);
+    }
+  }
+
+  private static class ChangesExternalizer<Value> implements DataExternalizer<Changes<Value>> {
+    private final DataExternalizer<Value> myValueExternalizer;
+
+    private ChangesExternalizer(@NotNull DataExternalizer<Value> valueExternalizer) {
+      myValueExternalizer = valueExternalizer;
+    }
+
+    @Override
+    public void save(final DataOutput out, Changes<Value> changes) throws IOException {
+      DataInputOutputUtil.writeINT(out, changes.invalidated.size());
+      for (TIntIterator iterator = changes.invalidated.iterator(); iterator.hasNext();) {
+        DataInputOutputUtil.writeINT(out, iterator.next());
+      }
+      final ValueContainerImpl<Value> added = changes.added;
+      DataInputOutputUtil.writeINT(out, added.size());
+      for (final Iterator<Value> valueIterator = added.getValueIterator(); valueIterator.hasNext();) {
+        final Value value = valueIterator.next();
+        myValueExternalizer.save(out, value);
+        final ValueContainer.IntIterator ids = added.getInputIdsIterator(value);
+        DataInputOutputUtil.writeINT(out, ids.size());
+        while (ids.hasNext()) {
+          DataInputOutputUtil.writeINT(out, ids.next());
+        }
+      }
+    }
+
+    @Override
+    public Changes<Value> read(DataInput in) throws IOException {
+      final int invalidatedCount = DataInputOutputUtil.readINT(in);
+      final TIntHashSet invalidated = new TIntHashSet(Math.max(1, invalidatedCount));
+      for (int i = 0; i < invalidatedCount; i++) {
+        invalidated.add(DataInputOutputUtil.readINT(in));
+      }
+      final ValueContainerImpl<Value> added = new ValueContainerImpl<Value>();
+      final int valueCount = DataInputOutputUtil.readINT(in);
+      for (int i = 0; i < valueCount; i++) {
+        final Value value = myValueExternalizer.read(in);
+        final int idCount = DataInputOutputUtil.readINT(in);
+        for (int j = 0; j < idCount; j++) {
+          added.addValue(DataInputOutputUtil.readINT(in), value);
+        }
+      }
+      return new Changes<Value>(added, invalidated);
+    }
+  }
+
 }
@@ -23,6 +23,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.CollectingContentIterator;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 
@@ -36,11 +37,13 @@ public class UnindexedFilesUpdater implements CacheUpdater {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.UnindexedFilesUpdater");
   private final FileBasedIndexImpl myIndex;
   private final Project myProject;
+  private final boolean myBatchedWrites;
   private long myStarted;
 
   public UnindexedFilesUpdater(final Project project, FileBasedIndexImpl index) {
     myIndex = index;
     myProject = project;
+    myBatchedWrites = Registry.is("caches.batchedIndexWrites");
   }
 
   @Override
@@ -62,17 +65,26 @@ public class UnindexedFilesUpdater implements CacheUpdater {
 
   @Override
   public void processFile(final FileContent fileContent) {
-    myIndex.indexFileContent(myProject, fileContent);
-    IndexingStamp.flushCache(fileContent.getVirtualFile());
+    if (myBatchedWrites) {
+      myIndex.indexFileContentBatched(myProject, fileContent);
+    }
+    else {
+      myIndex.indexFileContent(myProject, fileContent);
+      IndexingStamp.flushCache(fileContent.getVirtualFile());
+    }
   }
 
   @Override
   public void updatingDone() {
+    myIndex.writePendingUpdates();
+    LOG.info(myIndex.finishContentDeduplication());
     LOG.info("Unindexed files update done in " + (System.currentTimeMillis() - myStarted) + " ms");
   }
 
   @Override
   public void canceled() {
+    myIndex.writePendingUpdates();
+    myIndex.finishContentDeduplication();
     LOG.info("Unindexed files update canceled");
   }
 }
@@ -46,6 +46,17 @@ public abstract class ValueContainer<Value> {
 
   public abstract List<Value> toValueList();
 
+  /**
+   * @return ids associated with the value; the set may be shared with the container and must not be modified
+   */
+  IdBitSet getInputIdsSet(Value value) {
+    final IdBitSet set = new IdBitSet();
+    for (final IntIterator iterator = getInputIdsIterator(value); iterator.hasNext();) {
+      set.add(iterator.next());
+    }
+    return set;
+  }
+
   public abstract int size();
 
 
@@ -22,7 +22,9 @@ import com.intellij.util.containers.EmptyIterator;
 import gnu.trove.THashMap;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntIterator;
+import gnu.trove.TIntProcedure;
 import gnu.trove.TObjectObjectProcedure;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
 
@@ -33,6 +35,8 @@ import java.util.*;
 class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implements Cloneable{
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.ValueContainerImpl");
   private final static Object myNullValue = new Object();
+  // id sets larger than this are kept in compressed IdBitSet
+  private static final int ID_BIT_SET_THRESHOLD = 256;
   // there is no volatile as we modify under write lock and read under read lock
   // Most often (80%) we store 0 or one mapping, then we store them in two fields: myInputIdMapping, myInputIdMappingValue
   // when there are several value mapped, myInputIdMapping is THashMap<Value, Data>, myInputIdMappingValue = null
@@ -57,21 +61,68 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         myInputIdMappingValue = inputId;
       }
     }
+    else if (input instanceof IdBitSet) {
+      ((IdBitSet)input).add(inputId);
+    }
     else {
       final TIntHashSet idSet;
       if (input instanceof Integer) {
         idSet = new IdSet(3, 0.98f);
         idSet.add(((Integer)input).intValue());
-        if (!(myInputIdMapping instanceof THashMap)) myInputIdMappingValue = idSet;
-        else ((THashMap<Value, Object>)myInputIdMapping).put(value, idSet);
+        setInput(value, idSet);
       }
       else {
         idSet = (TIntHashSet)input;
       }
-      idSet.add(inputId);
+      if (idSet.add(inputId) && idSet.size() > ID_BIT_SET_THRESHOLD) {
+        final IdBitSet bitSet = new IdBitSet();
+        idSet.forEach(new TIntProcedure() {
+          @Override
+          public boolean execute(int id) {
+            bitSet.add(id);
+            return true;
+          }
+        });
+        setInput(value, bitSet);
+      }
     }
   }
 
+  /**
+   * Associates all the ids of the set with the value, the set is owned by the container afterwards
+   */
+  void addValues(@NotNull final IdBitSet ids, Value value) {
+    if (ids.isEmpty()) return;
+    final Object input = getInput(value);
+    if (input == null) {
+      addValue(ids.iterator().next(), value);
+      setInput(value, ids);
+    }
+    else if (input instanceof IdBitSet) {
+      ((IdBitSet)input).addAll(ids);
+    }
+    else {
+      if (input instanceof Integer) {
+        ids.add(((Integer)input).intValue());
+      }
+      else {
+        ((TIntHashSet)input).forEach(new TIntProcedure() {
+          @Override
+          public boolean execute(int id) {
+            ids.add(id);
+            return true;
+          }
+        });
+      }
+      setInput(value, ids);
+    }
+  }
+
+  private void setInput(Value value, @NotNull Object input) {
+    if (!(myInputIdMapping instanceof THashMap)) myInputIdMappingValue = input;
+    else ((THashMap<Value, Object>)myInputIdMapping).put(value, input);
+  }
+
   @Override
   public int size() {
     return myInputIdMapping != null ? myInputIdMapping instanceof THashMap ? ((THashMap)myInputIdMapping).size(): 1 : 0;
@@ -104,7 +155,14 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       return false;
     }
 
-    if (input instanceof TIntHashSet) {
+    if (input instanceof IdBitSet) {
+      final IdBitSet idSet = (IdBitSet)input;
+      final boolean reallyRemoved = idSet.remove(inputId);
+      if (!idSet.isEmpty()) {
+        return reallyRemoved;
+      }
+    }
+    else if (input instanceof TIntHashSet) {
       final TIntHashSet idSet = (TIntHashSet)input;
       final boolean reallyRemoved = idSet.remove(inputId);
       if (reallyRemoved) {
@@ -200,6 +258,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   @Override
   public boolean isAssociated(Value value, final int inputId) {
     final Object input = getInput(value);
+    if (input instanceof IdBitSet) {
+      return ((IdBitSet)input).contains(inputId);
+    }
     if (input instanceof TIntHashSet) {
       return ((TIntHashSet)input).contains(inputId);
     }
@@ -222,6 +283,15 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         }
       };
     }
+    if (input instanceof IdBitSet) {
+      return new IntPredicate() {
+        final IdBitSet mySet = (IdBitSet)input;
+        @Override
+        boolean contains(int id) {
+          return mySet.contains(id);
+        }
+      };
+    }
     return new IntPredicate() {
       final TIntHashSet mySet = (TIntHashSet)input;
       @Override
@@ -235,7 +305,10 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   public IntIterator getInputIdsIterator(Value value) {
     final Object input = getInput(value);
     final IntIterator it;
-    if (input instanceof TIntHashSet) {
+    if (input instanceof IdBitSet) {
+      it = ((IdBitSet)input).iterator();
+    }
+    else if (input instanceof TIntHashSet) {
       it = new IntSetIterator((TIntHashSet)input);
     }
     else if (input instanceof Integer ){
@@ -247,6 +320,12 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     return it;
   }
 
+  @Override
+  IdBitSet getInputIdsSet(Value value) {
+    final Object input = getInput(value);
+    return input instanceof IdBitSet ? (IdBitSet)input : super.getInputIdsSet(value);
+  }
+
   private Object getInput(Value value) {
     if (myInputIdMapping == null) return null;
 
@@ -268,8 +347,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       final ValueContainerImpl clone = (ValueContainerImpl)super.clone();
       if (myInputIdMapping instanceof THashMap) {
         clone.myInputIdMapping = mapCopy((THashMap<Value, Object>)myInputIdMapping);
-      } else if (myInputIdMappingValue instanceof TIntHashSet) {
-        clone.myInputIdMappingValue = ((TIntHashSet)myInputIdMappingValue).clone();
+      } else if (myInputIdMappingValue instanceof TIntHashSet || myInputIdMappingValue instanceof IdBitSet) {
+        clone.myInputIdMappingValue = copyInput(myInputIdMappingValue);
       }
       return clone;
     }
@@ -306,19 +385,13 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       mapping.forEachEntry(new TObjectObjectProcedure<Value, Object>() {
         @Override
         public boolean execute(Value key, Object val) {
-          if (val instanceof TIntHashSet) {
-            newMapping.put(key, ((TIntHashSet)val).clone());
-          }
-          else {
-            newMapping.put(key, val);
-          }
+          newMapping.put(key, copyInput(val));
           return true;
         }
       });
     } else {
       container.myInputIdMapping = myInputIdMapping;
-      container.myInputIdMappingValue = myInputIdMappingValue instanceof TIntHashSet ?
-                                        ((TIntHashSet)myInputIdMappingValue).clone():myInputIdMappingValue;
+      container.myInputIdMappingValue = copyInput(myInputIdMappingValue);
     }
     return container;
   }
@@ -382,8 +455,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     cloned.forEachEntry(new TObjectObjectProcedure<Value, Object>() {
       @Override
       public boolean execute(Value key, Object val) {
-        if (val instanceof TIntHashSet) {
-          cloned.put(key, ((TIntHashSet)val).clone());
+        if (val instanceof TIntHashSet || val instanceof IdBitSet) {
+          cloned.put(key, copyInput(val));
         }
         return true;
       }
@@ -392,6 +465,12 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     return cloned;
   }
 
+  private static Object copyInput(Object input) {
+    if (input instanceof TIntHashSet) return ((TIntHashSet)input).clone();
+    if (input instanceof IdBitSet) return ((IdBitSet)input).clone();
+    return input;
+  }
+
   private static final IntPredicate EMPTY_PREDICATE = new IntPredicate() {
     @Override
     public boolean contains(int id) {
@@ -64,6 +64,10 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
   }
 
   private static final class ValueContainerExternalizer<T> implements DataExternalizer<ValueContainer<T>> {
+    // large id sets are written as IdBitSet, marked with a negative id count
+    private static final int ID_BIT_SET_MARKER = -1;
+    private static final int ID_BIT_SET_MIN_SIZE = 256;
+
     @NotNull private final DataExternalizer<T> myExternalizer;
 
     private ValueContainerExternalizer(@NotNull DataExternalizer<T> externalizer) {
@@ -86,7 +90,11 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
         myExternalizer.save(out, value);
 
         final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
-        if (ids != null) {
+        if (ids != null && ids.size() > ID_BIT_SET_MIN_SIZE) {
+          DataInputOutputUtil.writeSINT(out, ID_BIT_SET_MARKER);
+          container.getInputIdsSet(value).save(out);
+        }
+        else if (ids != null) {
           DataInputOutputUtil.writeSINT(out, ids.size());
           while (ids.hasNext()) {
             final int id = ids.next();
@@ -115,6 +123,10 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
             final T value = myExternalizer.read(in);
             final int idCount = DataInputOutputUtil.readSINT(in);
+            if (idCount == ID_BIT_SET_MARKER) {
+              valueContainer.addValues(IdBitSet.read(in), value);
+              continue;
+            }
             for (int i = 0; i < idCount; i++) {
               final int id = DataInputOutputUtil.readSINT(in);
               if (id < 0) {
@@ -16,9 +16,12 @@
 package com.intellij.openapi.editor.ex.util;
 
 import com.intellij.lexer.Lexer;
+import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.HighlighterColors;
 import com.intellij.openapi.editor.colors.EditorColorsScheme;
 import com.intellij.openapi.editor.colors.TextAttributesKey;
@@ -34,8 +37,10 @@ import com.intellij.openapi.fileTypes.PlainSyntaxHighlighter;
 import com.intellij.openapi.fileTypes.SyntaxHighlighter;
 import com.intellij.openapi.project.DumbAwareRunnable;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Condition;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.ui.UIUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -45,6 +50,12 @@ import java.util.Map;
 
 public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDocumentListener {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.ex.util.LexerEditorHighlighter");
+  // documents of this length are lexed lazily: up to the offsets asked for by the iterators, and the rest in the background
+  private static final int LAZY_LEXING_THRESHOLD = SystemProperties.getIntProperty("idea.editor.lazy.lexing.threshold", 2 * 1024 * 1024);
+  // how far the text is lexed beyond the offset asked for
+  private static final int LEXING_MARGIN = 32 * 1024;
+  // how much text is lexed at once in the background
+  private static final int BACKGROUND_LEXING_STEP = 256 * 1024;
   private HighlighterClient myEditor;
   private final Lexer myLexer;
   private final Map<IElementType, TextAttributes> myAttributesMap = new HashMap<IElementType, TextAttributes>();
@@ -52,6 +63,11 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   private final SyntaxHighlighter myHighlighter;
   private EditorColorsScheme myScheme;
   private final int myInitialState;
+  // the segments end at a token starting in the initial state, and the text after it is not lexed yet.
+  // The iterators of any thread may lex more tokens meanwhile, so they read the segments under the highlighter lock the writers hold.
+  // It is reset under the lock once the last token is added, and set again only by the text changes, which the readers don't overlap
+  private volatile boolean myLexingIncomplete;
+  private boolean myBackgroundLexingScheduled;
 
   public LexerEditorHighlighter(@NotNull SyntaxHighlighter highlighter, @NotNull EditorColorsScheme scheme) {
     myScheme = scheme;
@@ -66,6 +82,13 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     return new SegmentArrayWithData();
   }
 
+  /**
+   * @return false if the whole text should be lexed at once, e.g. when the token processor keeps its own data
+   */
+  protected boolean isLazyLexingSupported() {
+    return true;
+  }
+
   public boolean isPlain() {
     return myHighlighter instanceof PlainSyntaxHighlighter;
   }
@@ -113,6 +136,9 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
         // bulk mode was reset
         doSetText(document.getCharsSequence());
       }
+      if (myLexingIncomplete && document != null) {
+        ensureLexed(document.getCharsSequence(), startOffset + LEXING_MARGIN);
+      }
 
       final int latestValidOffset = mySegments.getLastValidOffset();
       return new HighlighterIteratorImpl(startOffset <= latestValidOffset ? startOffset : latestValidOffset);
@@ -153,6 +179,10 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
     CharSequence text = document.getCharsSequence();
     int oldStartOffset = e.getOffset();
+    if (myLexingIncomplete && oldStartOffset > mySegments.getLastValidOffset()) {
+      // the lexed tokens end before the change
+      return;
+    }
 
     final int segmentIndex;
     try {
@@ -224,6 +254,12 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       data = packData(myLexer.getTokenType(), lexerState);
       if(tokenStart >= newEndOffset && lexerState == myInitialState) {
         int shiftedTokenStart = tokenStart - e.getNewLength() + e.getOldLength();
+        if (myLexingIncomplete && shiftedTokenStart >= mySegments.getLastValidOffset()) {
+          // the old tokens end here, the rest of the text is lexed later
+          repaintEnd = tokenStart;
+          oldEndIndex = mySegments.getSegmentCount();
+          break;
+        }
         int index = mySegments.findSegmentIndex(shiftedTokenStart);
         if (mySegments.getSegmentStart(index) == shiftedTokenStart && mySegments.getSegmentData(index) == data) {
           repaintEnd = tokenStart;
@@ -235,6 +271,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       insertSegmentCount++;
       myLexer.advance();
     }
+    boolean lexedToEnd = myLexer.getTokenType() == null;
 
     final int shift = e.getNewLength() - e.getOldLength();
     if (repaintEnd > 0) {
@@ -258,6 +295,9 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     }
     mySegments.shiftSegments(oldEndIndex, shift);
     mySegments.replace(startIndex, oldEndIndex, insertSegments);
+    if (lexedToEnd) {
+      myLexingIncomplete = false;
+    }
 
     if (insertSegmentCount == 0 ||
         oldEndIndex == startIndex + 1 && insertSegmentCount == 1 && data == mySegments.getSegmentData(startIndex)) {
@@ -303,31 +343,86 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   }
 
   private void doSetText(final CharSequence text) {
-    final TokenProcessor processor = createTokenProcessor(0);
-    myLexer.start(text, 0, text.length(),myInitialState);
     mySegments.removeAll();
-    int i = 0;
+    Document document = getDocument();
+    myLexingIncomplete = text.length() >= LAZY_LEXING_THRESHOLD && isLazyLexingSupported() &&
+                         document != null && document.getTextLength() == text.length();
+    lexUpTo(text, myLexingIncomplete ? LEXING_MARGIN : Integer.MAX_VALUE);
+    scheduleBackgroundLexing();
+
+    if(myEditor != null && !ApplicationManager.getApplication().isHeadlessEnvironment()) {
+      UIUtil.invokeLaterIfNeeded(new DumbAwareRunnable() {
+        @Override
+        public void run() {
+          myEditor.repaint(0, text.length());
+        }
+      });
+    }
+  }
+
+  // appends the tokens following the segments up to the first token starting in the initial state after the offset
+  private void lexUpTo(@NotNull CharSequence text, int offset) {
+    final int startIndex = mySegments.getSegmentCount();
+    final TokenProcessor processor = createTokenProcessor(startIndex);
+    myLexer.start(text, mySegments.getLastValidOffset(), text.length(), myInitialState);
+    int i = startIndex;
     while (true) {
       final IElementType tokenType = myLexer.getTokenType();
       if (tokenType == null) break;
 
-      int data = packData(tokenType, myLexer.getState());
-      processor.addToken(i, myLexer.getTokenStart(), myLexer.getTokenEnd(), data, tokenType);
+      int state = myLexer.getState();
+      if (i > startIndex && state == myInitialState && myLexer.getTokenStart() >= offset) break;
+      processor.addToken(i, myLexer.getTokenStart(), myLexer.getTokenEnd(), packData(tokenType, state), tokenType);
       i++;
       myLexer.advance();
     }
     processor.finish();
+    if (myLexer.getTokenType() == null) {
+      // published after the segments, the iterators stop locking once they see it
+      myLexingIncomplete = false;
+    }
+  }
 
-    if(myEditor != null && !ApplicationManager.getApplication().isHeadlessEnvironment()) {
-      UIUtil.invokeLaterIfNeeded(new DumbAwareRunnable() {
-        @Override
-        public void run() {
-          myEditor.repaint(0, text.length());
-        }
-      });
+  private void ensureLexed(@NotNull CharSequence text, int offset) {
+    if (myLexingIncomplete && mySegments.getLastValidOffset() < offset) {
+      lexUpTo(text, offset);
+      scheduleBackgroundLexing();
     }
   }
 
+  private synchronized void lexMoreTokens() {
+    Document document = getDocument();
+    if (document != null) {
+      ensureLexed(document.getCharsSequence(), mySegments.getLastValidOffset() + LEXING_MARGIN);
+    }
+  }
+
+  private void scheduleBackgroundLexing() {
+    if (!myLexingIncomplete || myBackgroundLexingScheduled) return;
+    Application application = ApplicationManager.getApplication();
+    if (application.isHeadlessEnvironment()) return;
+
+    // the text is lexed in small steps, so that the iterators of other threads don't wait for the lock long
+    myBackgroundLexingScheduled = true;
+    application.invokeLater(new DumbAwareRunnable() {
+      @Override
+      public void run() {
+        synchronized (LexerEditorHighlighter.this) {
+          myBackgroundLexingScheduled = false;
+          Document document = getDocument();
+          if (document != null && mySegments.getSegmentCount() > 0) {
+            ensureLexed(document.getCharsSequence(), mySegments.getLastValidOffset() + BACKGROUND_LEXING_STEP);
+          }
+        }
+      }
+    }, ModalityState.any(), new Condition() {
+      @Override
+      public boolean value(Object o) {
+        return myEditor instanceof Editor && ((Editor)myEditor).isDisposed();
+      }
+    });
+  }
+
   protected TokenProcessor createTokenProcessor(final int startIndex) {
     return new TokenProcessor();
   }
@@ -371,22 +466,37 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
     @Override
     public int getStart() {
-      return mySegments.getSegmentStart(mySegmentIndex);
+      if (!myLexingIncomplete) return mySegments.getSegmentStart(mySegmentIndex);
+      synchronized (LexerEditorHighlighter.this) {
+        return mySegments.getSegmentStart(mySegmentIndex);
+      }
     }
 
     @Override
     public int getEnd() {
-      return mySegments.getSegmentEnd(mySegmentIndex);
+      if (!myLexingIncomplete) return mySegments.getSegmentEnd(mySegmentIndex);
+      synchronized (LexerEditorHighlighter.this) {
+        return mySegments.getSegmentEnd(mySegmentIndex);
+      }
     }
 
     @Override
     public IElementType getTokenType(){
-      return unpackToken(mySegments.getSegmentData(mySegmentIndex));
+      if (!myLexingIncomplete) return unpackToken(mySegments.getSegmentData(mySegmentIndex));
+      synchronized (LexerEditorHighlighter.this) {
+        return unpackToken(mySegments.getSegmentData(mySegmentIndex));
+      }
     }
 
     @Override
     public void advance() {
       mySegmentIndex++;
+      if (!myLexingIncomplete) return;
+      synchronized (LexerEditorHighlighter.this) {
+        if (mySegmentIndex == mySegments.getSegmentCount() && myLexingIncomplete) {
+          lexMoreTokens();
+        }
+      }
     }
 
     @Override
@@ -396,7 +506,10 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
     @Override
     public boolean atEnd() {
-      return mySegmentIndex >= mySegments.getSegmentCount() || mySegmentIndex < 0;
+      if (!myLexingIncomplete) return mySegmentIndex >= mySegments.getSegmentCount() || mySegmentIndex < 0;
+      synchronized (LexerEditorHighlighter.this) {
+        return mySegmentIndex >= mySegments.getSegmentCount() || mySegmentIndex < 0;
+      }
     }
 
     @Override
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl.jar;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.IOUtil;
+import com.intellij.util.io.PersistentHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Keeps the central directories of archives read by the jar file system between sessions, so that the archive does not have
+ * to be opened until the content of its entries is requested. Records are keyed by the archive path and are valid
+ * while its length and modification time stay the same.
+ */
+class JarEntriesCache {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vfs.impl.jar.JarEntriesCache");
+  private static final int VERSION = 1;
+
+  private final File myFile;
+  private PersistentHashMap<String, Record> myRecords;
+
+  JarEntriesCache(@NotNull File file) {
+    myFile = file;
+    try {
+      myRecords = createMap();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      PersistentHashMap.deleteFilesStartingWith(myFile);
+      try {
+        myRecords = createMap();
+      }
+      catch (IOException e1) {
+        LOG.info(e1);
+      }
+    }
+  }
+
+  private PersistentHashMap<String, Record> createMap() throws IOException {
+    return new PersistentHashMap<String, Record>(new File(myFile.getPath() + "." + VERSION), new EnumeratorStringDescriptor(),
+                                                 new RecordExternalizer());
+  }
+
+  @Nullable
+  Map<String, JarHandlerBase.EntryInfo> get(@NotNull File jar) {
+    final PersistentHashMap<String, Record> records = myRecords;
+    if (records == null) return null;
+
+    try {
+      final Record record = records.get(jar.getPath());
+      if (record == null) {
+        return null;
+      }
+      if (record.length != jar.length() || record.timestamp != jar.lastModified()) {
+        records.remove(jar.getPath());
+        return null;
+      }
+      final Map<String, JarHandlerBase.EntryInfo> map = JarHandlerBase.createEntriesMap();
+      for (int i = 0; i < record.names.length; i++) {
+        JarHandlerBase.addEntry(record.names[i], record.entryLengths[i], record.entryTimestamps[i], map);
+      }
+      return map;
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      remove(records, jar);
+      return null;
+    }
+  }
+
+  void put(@NotNull File jar, long length, long timestamp, @NotNull Map<String, JarHandlerBase.EntryInfo> entries) {
+    final PersistentHashMap<String, Record> records = myRecords;
+    if (records == null) return;
+
+    final String[] names = new String[entries.size()];
+    int count = 0;
+    for (Map.Entry<String, JarHandlerBase.EntryInfo> entry : entries.entrySet()) {
+      final JarHandlerBase.EntryInfo info = entry.getValue();
+      if (info.hasEntry && info.parent != null) {
+        names[count++] = info.isDirectory ? entry.getKey() + "/" : entry.getKey();
+      }
+    }
+    // sorted names share long prefixes with their predecessors, which are written once
+    Arrays.sort(names, 0, count);
+
+    final Record record = new Record(length, timestamp, count);
+    for (int i = 0; i < count; i++) {
+      final String name = names[i];
+      final JarHandlerBase.EntryInfo info = entries.get(name.endsWith("/") ? name.substring(0, name.length() - 1) : name);
+      record.names[i] = name;
+      record.entryLengths[i] = info.length;
+      record.entryTimestamps[i] = info.timestamp;
+    }
+
+    try {
+      records.put(jar.getPath(), record);
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      remove(records, jar);
+    }
+  }
+
+  private static void remove(@NotNull PersistentHashMap<String, Record> records, @NotNull File jar) {
+    try {
+      records.remove(jar.getPath());
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  /**
+   * Removes the records of archives which no longer exist. The records of changed archives are removed when they are read.
+   */
+  private static void removeRecordsOfDeletedArchives(@NotNull PersistentHashMap<String, Record> records) {
+    try {
+      for (String path : records.getAllKeysWithExistingMapping()) {
+        if (!new File(path).isFile()) {
+          records.remove(path);
+        }
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  void dispose() {
+    final PersistentHashMap<String, Record> records = myRecords;
+    if (records == null) return;
+
+    myRecords = null;
+    removeRecordsOfDeletedArchives(records);
+    try {
+      records.close();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  private static class Record {
+    private final long length;
+    private final long timestamp;
+    private final String[] names;
+    private final long[] entryLengths;
+    private final long[] entryTimestamps;
+
+    private Record(long length, long timestamp, int entriesCount) {
+      this.length = length;
+      this.timestamp = timestamp;
+      names = entriesCount > 0 ? new String[entriesCount] : ArrayUtil.EMPTY_STRING_ARRAY;
+      entryLengths = new long[entriesCount];
+      entryTimestamps = new long[entriesCount];
+    }
+  }
+
+  private static class RecordExternalizer implements DataExternalizer<Record> {
+    private final byte[] myBuffer = IOUtil.allocReadWriteUTFBuffer();
+
+    @Override
+    public void save(DataOutput out, Record record) throws IOException {
+      out.writeLong(record.length);
+      out.writeLong(record.timestamp);
+      DataInputOutputUtil.writeINT(out, record.names.length);
+      String previous = "";
+      for (int i = 0; i < record.names.length; i++) {
+        final String name = record.names[i];
+        int prefix = 0;
+        final int maxPrefix = Math.min(previous.length(), name.length());
+        while (prefix < maxPrefix && previous.charAt(prefix) == name.charAt(prefix)) prefix++;
+        DataInputOutputUtil.writeINT(out, prefix);
+        IOUtil.writeUTFFast(myBuffer, out, name.substring(prefix));
+        out.writeLong(record.entryLengths[i]);
+        DataInputOutputUtil.writeTIME(out, record.entryTimestamps[i]);
+        previous = name;
+      }
+    }
+
+    @Override
+    public Record read(DataInput in) throws IOException {
+      final long length = in.readLong();
+      final long timestamp = in.readLong();
+      final Record record = new Record(length, timestamp, DataInputOutputUtil.readINT(in));
+      String previous = "";
+      for (int i = 0; i < record.names.length; i++) {
+        final int prefix = DataInputOutputUtil.readINT(in);
+        final String name = previous.substring(0, prefix) + IOUtil.readUTFFast(myBuffer, in);
+        record.names[i] = name;
+        record.entryLengths[i] = in.readLong();
+        record.entryTimestamps[i] = DataInputOutputUtil.readTIME(in);
+        previous = name;
+      }
+      return record;
+    }
+  }
+}
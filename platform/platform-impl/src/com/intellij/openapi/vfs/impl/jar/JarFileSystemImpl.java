@@ -24,6 +24,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.FileAttributes;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.*;
 import com.intellij.openapi.vfs.newvfs.*;
@@ -52,8 +53,11 @@ public class JarFileSystemImpl extends JarFileSystem implements ApplicationCompo
   @NonNls private static final String IDEA_JARS_NOCOPY = "idea.jars.nocopy";
   private File myNoCopyJarDir;
 
+  @NonNls private static final String ENTRIES_CACHE_FILE = "jarEntries";
+
   private final Map<String, JarHandler> myHandlers = new HashMap<String, JarHandler>();
   private String[] jarPathsCache; // jarPathsCache = myHandlers.keySet()
+  private volatile JarEntriesCache myEntriesCache;
 
   private static final class JarFileSystemImplLock {
   }
@@ -150,10 +154,23 @@ public class JarFileSystemImpl extends JarFileSystem implements ApplicationCompo
     if(isRunningFromDist) {
       myNoCopyJarDir = new File(new File(PathManager.getLibPath()).getParent());
     }
+    if (Registry.is("vfs.jar.entries.cache")) {
+      myEntriesCache = new JarEntriesCache(new File(PathManager.getSystemPath() + File.separator + "caches" + File.separator + ENTRIES_CACHE_FILE));
+    }
   }
 
   @Override
   public void disposeComponent() {
+    final JarEntriesCache cache = myEntriesCache;
+    if (cache != null) {
+      myEntriesCache = null;
+      cache.dispose();
+    }
+  }
+
+  @Nullable
+  JarEntriesCache getEntriesCache() {
+    return myEntriesCache;
   }
 
   @Override
@@ -39,6 +39,7 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Map;
 
 public class JarHandler extends JarHandlerBase implements FileSystemInterface {
   @NonNls private static final String JARS_FOLDER = "jars";
@@ -50,6 +51,26 @@ public class JarHandler extends JarHandlerBase implements FileSystemInterface {
     myFileSystem = fileSystem;
   }
 
+  @Override
+  @Nullable
+  protected Map<String, EntryInfo> loadEntries() {
+    final JarEntriesCache cache = myFileSystem.getEntriesCache();
+    if (cache == null) return super.loadEntries();
+
+    final File original = getOriginalFile();
+    final Map<String, EntryInfo> cached = cache.get(original);
+    if (cached != null) return cached;
+
+    // the stamp is taken before reading, so that an archive modified meanwhile is not cached with its new stamp
+    final long length = original.length();
+    final long timestamp = original.lastModified();
+    final Map<String, EntryInfo> entries = readEntries();
+    if (entries != null && timestamp > 0) {
+      cache.put(original, length, timestamp, entries);
+    }
+    return entries;
+  }
+
   public void refreshLocalFileForJar() {
     NewVirtualFile localJarFile = (NewVirtualFile)LocalFileSystem.getInstance().refreshAndFindFileByPath(myBasePath);
     if (localJarFile != null) {
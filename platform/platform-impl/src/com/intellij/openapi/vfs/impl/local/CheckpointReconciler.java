@@ -0,0 +1,99 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl.local;
+
+import com.intellij.openapi.util.io.FileAttributes;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Marks dirty the cached files which were changed after a checkpoint, a moment when all changes were known to the VFS.
+ * Used instead of marking everything dirty when the file watcher loses events, so that the refresh rescans only the changed parts.
+ * <p/>
+ * The modification time of a directory changes only when its entries are added, removed or renamed, so the files are
+ * checked one by one as well; unchanged ones are left clean and skipped by the refresh.
+ */
+class CheckpointReconciler {
+  private final long myCheckpoint;
+  private int myDirectoriesCount;
+  private int myChangedDirectoriesCount;
+  private int myFilesCount;
+  private int myChangedFilesCount;
+
+  CheckpointReconciler(long checkpoint) {
+    myCheckpoint = checkpoint;
+  }
+
+  void reconcile(@NotNull NewVirtualFile root) {
+    reconcile(root, true);
+  }
+
+  /**
+   * @param recursive false to check only the root and its children, the way a flat watch root is watched
+   */
+  void reconcile(@NotNull NewVirtualFile root, boolean recursive) {
+    final List<NewVirtualFile> queue = new ArrayList<NewVirtualFile>();
+    queue.add(root);
+    while (!queue.isEmpty()) {
+      final NewVirtualFile file = queue.remove(queue.size() - 1);
+      final boolean isDirectory = file.isDirectory();
+      if (isDirectory) {
+        myDirectoriesCount++;
+      }
+      else {
+        myFilesCount++;
+      }
+
+      final FileAttributes attributes = file.getFileSystem().getAttributes(file);
+      if (attributes == null || attributes.isSymlink || file.isSymLink() || attributes.isDirectory != isDirectory) {
+        // deleted, replaced or symlinked: its modification time tells nothing about the contents
+        countChanged(isDirectory);
+        file.markDirtyRecursively();
+        continue;
+      }
+      if (attributes.lastModified >= myCheckpoint) {
+        countChanged(isDirectory);
+        file.markDirty();
+      }
+
+      if (isDirectory && (recursive || file == root)) {
+        for (VirtualFile child : file.getCachedChildren()) {
+          queue.add((NewVirtualFile)child);
+        }
+      }
+    }
+  }
+
+  private void countChanged(boolean isDirectory) {
+    if (isDirectory) {
+      myChangedDirectoriesCount++;
+    }
+    else {
+      myChangedFilesCount++;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return myChangedDirectoriesCount + " of " + myDirectoriesCount + " directories to rescan (" +
+           (myDirectoriesCount - myChangedDirectoriesCount) + " skipped), " +
+           myChangedFilesCount + " of " + myFilesCount + " files changed";
+  }
+}
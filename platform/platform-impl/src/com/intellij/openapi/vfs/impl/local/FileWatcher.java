@@ -27,6 +27,8 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.newvfs.ManagingFS;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
@@ -58,6 +60,8 @@ public class FileWatcher {
   @NonNls private static final String MESSAGE_COMMAND = "MESSAGE";
 
   private static final int MAX_PROCESS_LAUNCH_ATTEMPT_COUNT = 10;
+  // covers coarse timestamps of file systems (2 seconds on FAT) and the delay of the notifier
+  private static final long CHECKPOINT_MARGIN = 5000;
   private static final int MAGIC_PROCESS_LAUNCH_ATTEMPT_COUNT = 88 * MAX_PROCESS_LAUNCH_ATTEMPT_COUNT;
 
   private final Object LOCK = new Object();
@@ -82,6 +86,8 @@ public class FileWatcher {
   private boolean myFailureShownToTheUser = false;
   private int attemptCount = 0;
   private boolean isShuttingDown = false;
+  // the moment when all earlier changes were reported by the notifier, 0 if unknown
+  private volatile long myLastSyncTime = 0;
 
   private final ManagingFS myManagingFS;
   private static final FileWatcher ourInstance = new FileWatcher();
@@ -368,6 +374,12 @@ public class FileWatcher {
         while (true) {
           if (ApplicationManager.getApplication().isDisposeInProgress() || notifierProcess == null || isShuttingDown) return;
 
+          final BufferedReader reader = notifierReader;
+          if (reader != null && !reader.ready()) {
+            // the notifier has nothing more to report
+            myLastSyncTime = System.currentTimeMillis();
+          }
+
           final String command = readLine();
           if (command == null) {
             if (attemptCount == MAGIC_PROCESS_LAUNCH_ATTEMPT_COUNT) {
@@ -377,6 +389,7 @@ public class FileWatcher {
 
             // Unexpected process exit, relaunch attempt
             startupProcess(true);
+            resetSinceLastSync();
             continue;
           }
 
@@ -387,7 +400,7 @@ public class FileWatcher {
           }
 
           if (RESET_COMMAND.equals(command)) {
-            reset();
+            resetSinceLastSync();
           }
           else if (UNWATCHABLE_COMMAND.equals(command)) {
             List<String> roots = new ArrayList<String>();
@@ -434,6 +447,7 @@ public class FileWatcher {
             if (path == null) {
               // Unexpected process exit, relaunch attempt
               startupProcess(true);
+              resetSinceLastSync();
               continue;
             }
 
@@ -589,13 +603,70 @@ public class FileWatcher {
         break;
 
       case RESET:
-        reset();
+        resetSinceLastSync();
         break;
     }
 
     notifyOnEvent();
   }
 
+  /**
+   * Marks dirty only the files changed since the last moment the watcher was known to be in sync, instead of everything
+   */
+  private void resetSinceLastSync() {
+    final long lastSyncTime = myLastSyncTime;
+    if (lastSyncTime == 0 || !Registry.is("vfs.watcher.reset.since.checkpoint")) {
+      reset();
+      return;
+    }
+
+    // the file system is walked on a pooled thread, so that the notifier output is still read meanwhile
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        final long start = System.currentTimeMillis();
+        final List<String> recursiveRoots = new ArrayList<String>();
+        final List<String> flatRoots;
+        synchronized (LOCK) {
+          for (String root : myRecursiveWatchRoots) {
+            if (!isUnderOtherRoot(root, myRecursiveWatchRoots)) {
+              recursiveRoots.add(root);
+            }
+          }
+          flatRoots = new ArrayList<String>(myFlatWatchRoots);
+        }
+
+        // reported changes are kept: they may be older than the checkpoint.
+        // The files are walked without the lock, marking them dirty only sets their flags.
+        final CheckpointReconciler reconciler = new CheckpointReconciler(lastSyncTime - CHECKPOINT_MARGIN);
+        reconcileRoots(reconciler, recursiveRoots, true);
+        reconcileRoots(reconciler, flatRoots, false);
+        LOG.info("File watcher reset since checkpoint: " + reconciler + " in " + (System.currentTimeMillis() - start) + " ms");
+        notifyOnEvent();
+      }
+    });
+  }
+
+  private static boolean isUnderOtherRoot(@NotNull String path, @NotNull List<String> roots) {
+    for (String root : roots) {
+      if (FileUtil.startsWith(path, root) && !FileUtil.pathsEqual(path, root)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void reconcileRoots(@NotNull CheckpointReconciler reconciler, @NotNull List<String> roots, boolean recursive) {
+    final LocalFileSystem fs = LocalFileSystem.getInstance();
+    for (String root : roots) {
+      // the files which are not cached are not known to the VFS, so there is nothing to refresh
+      final VirtualFile file = fs.findFileByPathIfCached(FileUtil.toSystemIndependentName(root));
+      if (file != null) {
+        reconciler.reconcile((NewVirtualFile)file, recursive);
+      }
+    }
+  }
+
   private void reset() {
     synchronized (LOCK) {
       myDirtyPaths.clear();
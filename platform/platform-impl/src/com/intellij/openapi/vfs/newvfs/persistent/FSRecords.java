@@ -45,7 +45,12 @@ import org.jetbrains.annotations.Nullable;
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @SuppressWarnings({"PointlessArithmeticExpression", "HardCodedStringLiteral"})
 public class FSRecords implements Forceable {
@@ -87,8 +92,20 @@ public class FSRecords implements Forceable {
 
   private static final String CHILDREN_ATT = "FsRecords.DIRECTORY_CHILDREN";
 
+  /*
+   * Records table structure (children lists, roots, free list, mod counts) is guarded by r/w. Fixed-width record fields are read
+   * without r: readers share ourRecordsLock and read the page buffers cached in ourRecordPages, while every access which may map or
+   * unmap pages of the records file holds it exclusively.
+   * Content storage has its own lock, attributes are guarded by the locks striped by file id. The locks are always taken after w
+   * and never before it: w -> attributes lock -> ourContentLock -> ourRecordsLock.
+   */
   private static final JBLock r;
   private static final JBLock w;
+  private static final ReentrantReadWriteLock[] ourAttributesLocks = new ReentrantReadWriteLock[16];
+  private static final Lock ourContentLock = new ReentrantLock();
+  private static final ReentrantReadWriteLock ourRecordsLock = new ReentrantReadWriteLock();
+  private static volatile ByteBuffer[] ourRecordPages = new ByteBuffer[0];
+  private static int ourRecordPagesMappingCount;
 
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
@@ -103,6 +120,10 @@ public class FSRecords implements Forceable {
     JBReentrantReadWriteLock lock = LockFactory.createReadWriteLock();
     r = lock.readLock();
     w = lock.writeLock();
+
+    for (int i = 0; i < ourAttributesLocks.length; i++) {
+      ourAttributesLocks[i] = new ReentrantReadWriteLock();
+    }
   }
 
   private static class DbConnection {
@@ -214,7 +235,8 @@ public class FSRecords implements Forceable {
         myContents = new RefCountingStorage(contentsFile.getCanonicalPath(), CapacityAllocationPolicy.FIVE_PERCENT_FOR_GROWTH); // sources usually zipped with 4x ratio
         boolean aligned = PagedFileStorage.BUFFER_SIZE % RECORD_SIZE == 0;
         assert aligned; // for performance
-        myRecords = new ResizeableMappedFile(recordsFile, 20 * 1024, storageLockContext,
+        // records are accessed without FSRecords lock so they get their own storage lock not shared with names enumerator
+        myRecords = new ResizeableMappedFile(recordsFile, 20 * 1024, new PagedFileStorage.StorageLock(false).myDefaultStorageLockContext,
                                              PagedFileStorage.BUFFER_SIZE, aligned);
 
         if (myRecords.length() == 0) {
@@ -227,7 +249,7 @@ public class FSRecords implements Forceable {
           throw new IOException("FS repository version mismatch");
         }
 
-        if (myRecords.getInt(HEADER_CONNECTION_STATUS_OFFSET) != SAFELY_CLOSED_MAGIC) {
+        if (getRecordsInt(HEADER_CONNECTION_STATUS_OFFSET) != SAFELY_CLOSED_MAGIC) {
           throw new IOException("FS repository wasn't safely shut down");
         }
         markDirty();
@@ -329,7 +351,7 @@ public class FSRecords implements Forceable {
     private static void markDirty() {
       if (!myDirty) {
         myDirty = true;
-        myRecords.putInt(HEADER_CONNECTION_STATUS_OFFSET, CONNECTED_MAGIC);
+        putRecordsInt(HEADER_CONNECTION_STATUS_OFFSET, CONNECTED_MAGIC);
       }
     }
 
@@ -357,7 +379,7 @@ public class FSRecords implements Forceable {
           myNames.force();
           myAttributes.force();
           myContents.force();
-          myRecords.force();
+          forceRecords();
         }
       }
       finally {
@@ -379,7 +401,7 @@ public class FSRecords implements Forceable {
         final boolean contentsFlushed = myContents.flushSome();
         if (attribsFlushed && contentsFlushed) {
           markClean();
-          myRecords.force();
+          forceRecords();
         }
       }
       finally {
@@ -393,26 +415,43 @@ public class FSRecords implements Forceable {
 
 
     private static int getVersion() {
-      final int recordsVersion = myRecords.getInt(HEADER_VERSION_OFFSET);
+      final int recordsVersion = getRecordsInt(HEADER_VERSION_OFFSET);
       if (myAttributes.getVersion() != recordsVersion || myContents.getVersion() != recordsVersion) return -1;
 
       return recordsVersion;
     }
 
     public static long getTimestamp() {
-      return myRecords.getLong(HEADER_TIMESTAMP_OFFSET);
+      return getRecordsLong(HEADER_TIMESTAMP_OFFSET);
     }
 
     private static void setCurrentVersion() {
-      myRecords.putInt(HEADER_VERSION_OFFSET, VERSION);
-      myRecords.putLong(HEADER_TIMESTAMP_OFFSET, System.currentTimeMillis());
+      putRecordsInt(HEADER_VERSION_OFFSET, VERSION);
+      putRecordsLong(HEADER_TIMESTAMP_OFFSET, System.currentTimeMillis());
       myAttributes.setVersion(VERSION);
       myContents.setVersion(VERSION);
-      myRecords.putInt(HEADER_CONNECTION_STATUS_OFFSET, SAFELY_CLOSED_MAGIC);
+      putRecordsInt(HEADER_CONNECTION_STATUS_OFFSET, SAFELY_CLOSED_MAGIC);
     }
 
     public static void cleanRecord(final int id) {
-      myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      ourRecordsLock.writeLock().lock();
+      try {
+        myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+        validateRecordPages();
+      }
+      finally {
+        ourRecordsLock.writeLock().unlock();
+      }
+    }
+
+    private static void forceRecords() {
+      ourRecordsLock.writeLock().lock();
+      try {
+        myRecords.force();
+      }
+      finally {
+        ourRecordsLock.writeLock().unlock();
+      }
     }
 
     public static PersistentStringEnumerator getNames() {
@@ -446,8 +485,15 @@ public class FSRecords implements Forceable {
 
       if (myRecords != null) {
         markClean();
-        myRecords.close();
-        myRecords = null;
+        ourRecordsLock.writeLock().lock();
+        try {
+          myRecords.close();
+          myRecords = null;
+          ourRecordPages = new ByteBuffer[0];
+        }
+        finally {
+          ourRecordsLock.writeLock().unlock();
+        }
       }
       ourInitialized = false;
     }
@@ -455,19 +501,21 @@ public class FSRecords implements Forceable {
     private static void markClean() {
       if (myDirty) {
         myDirty = false;
-        myRecords.putInt(HEADER_CONNECTION_STATUS_OFFSET, myCorrupted ? CORRUPTED_MAGIC : SAFELY_CLOSED_MAGIC);
+        putRecordsInt(HEADER_CONNECTION_STATUS_OFFSET, myCorrupted ? CORRUPTED_MAGIC : SAFELY_CLOSED_MAGIC);
       }
     }
 
     private static int getAttributeId(String attId) throws IOException {
-      if (myAttributeIds.containsKey(attId)) {
-        return myAttributeIds.get(attId);
-      }
+      synchronized (myAttributeIds) {
+        if (myAttributeIds.containsKey(attId)) {
+          return myAttributeIds.get(attId);
+        }
 
-      int id = myNames.enumerate(attId);
-      myAttributeIds.put(attId, id);
+        int id = myNames.enumerate(attId);
+        myAttributeIds.put(attId, id);
 
-      return id;
+        return id;
+      }
     }
 
     private static RuntimeException handleError(final Throwable e) {
@@ -505,13 +553,7 @@ public class FSRecords implements Forceable {
   }
 
   public static long getCreationTimestamp() {
-    try {
-      r.lock();
-      return DbConnection.getTimestamp();
-    }
-    finally {
-      r.unlock();
-    }
+    return DbConnection.getTimestamp();
   }
 
   private static ResizeableMappedFile getRecords() {
@@ -580,8 +622,11 @@ public class FSRecords implements Forceable {
   }
 
   private static void deleteRecord(final int id) {
+    final Lock attributesLock = getAttributesLock(id).writeLock();
     try {
       w.lock();
+      attributesLock.lock();
+      ourContentLock.lock();
       DbConnection.markDirty();
       deleteContentAndAttributes(id);
 
@@ -592,6 +637,8 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
+      ourContentLock.unlock();
+      attributesLock.unlock();
       w.unlock();
     }
   }
@@ -847,7 +894,7 @@ public class FSRecords implements Forceable {
     DbConnection.markDirty();
     ourLocalModificationCount++;
     final int count = getModCount() + 1;
-    getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
+    putRecordsInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
 
     int parent = id;
     while (parent != 0) {
@@ -861,18 +908,11 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount() {
-    try {
-      r.lock();
-      return getRecords().getInt(HEADER_GLOBAL_MOD_COUNT_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return getRecordsInt(HEADER_GLOBAL_MOD_COUNT_OFFSET);
   }
 
   public static int getParent(int id) {
     try {
-      r.lock();
       final int parentId = getRecordInt(id, PARENT_OFFSET);
       if (parentId == id) {
         LOG.error("Cyclic parent child relations in the database. id = " + id);
@@ -884,9 +924,6 @@ public class FSRecords implements Forceable {
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
-    finally {
-      r.unlock();
-    }
   }
 
   public static void setParent(int id, int parent) {
@@ -910,16 +947,12 @@ public class FSRecords implements Forceable {
 
   public static String getName(int id) {
     try {
-      r.lock();
       final int nameId = getRecordInt(id, NAME_OFFSET);
       return nameId != 0 ? getNames().valueOf(nameId) : "";
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
-    finally {
-      r.unlock();
-    }
   }
 
   public static void setName(int id, String name) {
@@ -937,13 +970,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getFlags(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, FLAGS_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return getRecordInt(id, FLAGS_OFFSET);
   }
 
   public static void setFlags(int id, int flags, final boolean markAsChange) {
@@ -963,20 +990,14 @@ public class FSRecords implements Forceable {
   }
 
   public static long getLength(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return getRecordLong(id, LENGTH_OFFSET);
   }
 
   public static void setLength(int id, long len) {
     try {
       w.lock();
       incModCount(id);
-      getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
+      putRecordLong(id, LENGTH_OFFSET, len);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -987,20 +1008,14 @@ public class FSRecords implements Forceable {
   }
 
   public static long getTimestamp(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return getRecordLong(id, TIMESTAMP_OFFSET);
   }
 
   public static void setTimestamp(int id, long value) {
     try {
       w.lock();
       incModCount(id);
-      getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
+      putRecordLong(id, TIMESTAMP_OFFSET, value);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1011,13 +1026,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, MOD_COUNT_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return getRecordInt(id, MOD_COUNT_OFFSET);
   }
 
   private static void setModCount(int id, int value) {
@@ -1041,11 +1050,112 @@ public class FSRecords implements Forceable {
   }
 
   private static int getRecordInt(int id, int offset) {
-    return getRecords().getInt(getOffset(id, offset));
+    return getRecordsInt(getOffset(id, offset));
   }
 
   private static void putRecordInt(int id, int offset, int value) {
-    getRecords().putInt(getOffset(id, offset), value);
+    putRecordsInt(getOffset(id, offset), value);
+  }
+
+  private static long getRecordLong(int id, int offset) {
+    return getRecordsLong(getOffset(id, offset));
+  }
+
+  private static void putRecordLong(int id, int offset, long value) {
+    putRecordsLong(getOffset(id, offset), value);
+  }
+
+  private static int getRecordsInt(int index) {
+    ourRecordsLock.readLock().lock();
+    try {
+      final ByteBuffer page = getCachedRecordsPage(index);
+      if (page != null) return page.getInt(index % PagedFileStorage.BUFFER_SIZE);
+    }
+    finally {
+      ourRecordsLock.readLock().unlock();
+    }
+
+    ourRecordsLock.writeLock().lock();
+    try {
+      return cacheRecordsPage(index).getInt(index % PagedFileStorage.BUFFER_SIZE);
+    }
+    finally {
+      ourRecordsLock.writeLock().unlock();
+    }
+  }
+
+  private static long getRecordsLong(int index) {
+    ourRecordsLock.readLock().lock();
+    try {
+      final ByteBuffer page = getCachedRecordsPage(index);
+      if (page != null) return page.getLong(index % PagedFileStorage.BUFFER_SIZE);
+    }
+    finally {
+      ourRecordsLock.readLock().unlock();
+    }
+
+    ourRecordsLock.writeLock().lock();
+    try {
+      return cacheRecordsPage(index).getLong(index % PagedFileStorage.BUFFER_SIZE);
+    }
+    finally {
+      ourRecordsLock.writeLock().unlock();
+    }
+  }
+
+  private static void putRecordsInt(int index, int value) {
+    ourRecordsLock.writeLock().lock();
+    try {
+      getRecords().putInt(index, value);
+      validateRecordPages();
+    }
+    finally {
+      ourRecordsLock.writeLock().unlock();
+    }
+  }
+
+  private static void putRecordsLong(int index, long value) {
+    ourRecordsLock.writeLock().lock();
+    try {
+      getRecords().putLong(index, value);
+      validateRecordPages();
+    }
+    finally {
+      ourRecordsLock.writeLock().unlock();
+    }
+  }
+
+  // record fields never cross the page boundary: the page size is a multiple of the record size
+  @Nullable
+  private static ByteBuffer getCachedRecordsPage(int index) {
+    final ByteBuffer[] pages = ourRecordPages;
+    final int page = index / PagedFileStorage.BUFFER_SIZE;
+    return page < pages.length ? pages[page] : null;
+  }
+
+  // called with ourRecordsLock write lock held
+  @NotNull
+  private static ByteBuffer cacheRecordsPage(int index) {
+    final int page = index / PagedFileStorage.BUFFER_SIZE;
+    final ByteBuffer buffer = getRecords().getPagedFileStorage().getPageBuffer(page);
+    validateRecordPages();
+
+    ByteBuffer[] pages = ourRecordPages;
+    if (page >= pages.length) {
+      pages = Arrays.copyOf(pages, page + 1);
+    }
+    pages[page] = buffer;
+    ourRecordPages = pages;
+    return buffer;
+  }
+
+  // called with ourRecordsLock write lock held after any access which may have mapped or unmapped pages of the records file
+  private static void validateRecordPages() {
+    final int mappingCount = getRecords().getPagedFileStorage().getMappingChangeCount();
+    if (mappingCount != ourRecordPagesMappingCount) {
+      ourRecordPagesMappingCount = mappingCount;
+      ourRecordPages = new ByteBuffer[0];
+    }
   }
 
   private static int getOffset(int id, int offset) {
@@ -1055,15 +1165,8 @@ public class FSRecords implements Forceable {
   @Nullable
   public static DataInputStream readContent(int fileId) {
     try {
-      int page;
-      try {
-        r.lock();
-        page = findContentPage(fileId, false);
-        if (page == 0) return null;
-      }
-      finally {
-        r.unlock();
-      }
+      int page = findContentPage(fileId, false);
+      if (page == 0) return null;
       return getContentStorage().readStream(page);
     }
     catch (Throwable e) {
@@ -1084,18 +1187,16 @@ public class FSRecords implements Forceable {
   @Nullable
   public static DataInputStream readAttribute(int fileId, String attId) {
     try {
-      synchronized (attId) {
-        int page;
-        try {
-          r.lock();
-          page = findAttributePage(fileId, attId, false);
-          if (page == 0) return null;
-        }
-        finally {
-          r.unlock();
-        }
+      final Lock lock = getAttributesLock(fileId).readLock();
+      lock.lock();
+      try {
+        int page = findAttributePage(fileId, attId, false);
+        if (page == 0) return null;
         return getAttributesStorage().readStream(page);
       }
+      finally {
+        lock.unlock();
+      }
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1170,7 +1271,7 @@ public class FSRecords implements Forceable {
 
   public static int acquireFileContent(int fileId) {
     try {
-      w.lock();
+      ourContentLock.lock();
       int record = getContentRecordId(fileId);
       if (record > 0) getContentStorage().acquireRecord(record);
       return record;
@@ -1179,30 +1280,30 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      ourContentLock.unlock();
     }
   }
 
   public static void releaseContent(int contentId) {
     try {
+      ourContentLock.lock();
       getContentStorage().releaseRecord(contentId);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
+    finally {
+      ourContentLock.unlock();
+    }
   }
 
   public static int getContentId(int fileId) {
     try {
-      r.lock();
       return getContentRecordId(fileId);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
-    finally {
-      r.unlock();
-    }
   }
 
   @NotNull
@@ -1216,6 +1317,7 @@ public class FSRecords implements Forceable {
 
   public static int storeUnlinkedContent(byte[] bytes) {
     try {
+      ourContentLock.lock();
       int recordId = getContentStorage().acquireNewRecord();
       AbstractStorage.StorageDataOutput output = getContentStorage().writeStream(recordId, true);
       output.write(bytes);
@@ -1225,6 +1327,14 @@ public class FSRecords implements Forceable {
     catch (IOException e) {
       throw DbConnection.handleError(e);
     }
+    finally {
+      ourContentLock.unlock();
+    }
+  }
+
+  @NotNull
+  private static ReentrantReadWriteLock getAttributesLock(int fileId) {
+    return ourAttributesLocks[fileId & (ourAttributesLocks.length - 1)];
   }
 
   @NotNull
@@ -1237,6 +1347,11 @@ public class FSRecords implements Forceable {
       super(fileId, readOnly);
     }
 
+    @Override
+    protected Lock getStorageLock() {
+      return ourContentLock;
+    }
+
     @Override
     protected int findOrCreatePage() throws IOException {
       return findContentPage(myFileId, true);
@@ -1257,10 +1372,8 @@ public class FSRecords implements Forceable {
     }
 
     @Override
-    protected void doFlush() throws IOException {
-      synchronized (myAttributeId) {
-        super.doFlush();
-      }
+    protected Lock getStorageLock() {
+      return getAttributesLock(myFileId).writeLock();
     }
 
     @Override
@@ -1302,19 +1415,26 @@ public class FSRecords implements Forceable {
     }
 
     public void writeBytes(ByteSequence bytes, int fileId) throws IOException {
-      final int page;
       try {
         w.lock();
         incModCount(fileId);
-        page = findOrCreatePage();
       }
       finally {
         w.unlock();
       }
 
-      getStorage().writeBytes(page, bytes, myFixedSize);
+      final Lock lock = getStorageLock();
+      lock.lock();
+      try {
+        getStorage().writeBytes(findOrCreatePage(), bytes, myFixedSize);
+      }
+      finally {
+        lock.unlock();
+      }
     }
 
+    protected abstract Lock getStorageLock();
+
     protected abstract int findOrCreatePage() throws IOException;
 
     protected abstract AbstractStorage getStorage();
@@ -1323,6 +1443,10 @@ public class FSRecords implements Forceable {
   public static void dispose() {
     try {
       w.lock();
+      for (ReentrantReadWriteLock lock : ourAttributesLocks) {
+        lock.writeLock().lock();
+      }
+      ourContentLock.lock();
       DbConnection.force();
       DbConnection.closeFiles();
     }
@@ -1331,6 +1455,10 @@ public class FSRecords implements Forceable {
     }
     finally {
       ourIsDisposed = true;
+      ourContentLock.unlock();
+      for (int i = ourAttributesLocks.length - 1; i >= 0; i--) {
+        ourAttributesLocks[i].writeLock().unlock();
+      }
       w.unlock();
     }
   }
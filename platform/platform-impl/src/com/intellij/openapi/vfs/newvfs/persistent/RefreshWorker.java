@@ -15,8 +15,11 @@
  */
 package com.intellij.openapi.vfs.newvfs.persistent;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.io.FileAttributes;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.newvfs.ManagingFS;
@@ -26,25 +29,38 @@ import com.intellij.openapi.vfs.newvfs.events.*;
 import com.intellij.openapi.vfs.newvfs.impl.FakeVirtualFile;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualFileSystemEntry;
-import com.intellij.util.containers.Queue;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Files are scanned breadth-first, level by level. In parallel mode the files of a level are scanned by several threads, and
+ * the results are merged in the order of the files, so the events are the same as of a scan in a single thread.
+ *
  * @author max
  */
 public class RefreshWorker {
+  private static final int PARALLEL_SCAN_THRESHOLD = 16; // min number of files per scanning thread
+  private static final int MAX_SCAN_THREADS = Runtime.getRuntime().availableProcessors();
+
   private final VirtualFile myRefreshRoot;
   private final boolean myIsRecursive;
-  private final Queue<VirtualFile> myRefreshQueue = new Queue<VirtualFile>(100);
+  private final boolean myIsParallel;
 
   private final List<VFileEvent> myEvents = new ArrayList<VFileEvent>();
 
   public RefreshWorker(final VirtualFile refreshRoot, final boolean isRecursive) {
+    this(refreshRoot, isRecursive, Registry.is("vfs.refresh.parallel"));
+  }
+
+  RefreshWorker(final VirtualFile refreshRoot, final boolean isRecursive, final boolean isParallel) {
     myRefreshRoot = refreshRoot;
     myIsRecursive = isRecursive;
-    myRefreshQueue.addLast(refreshRoot);
+    myIsParallel = isParallel;
   }
 
   public void scan() {
@@ -53,7 +69,7 @@ public class RefreshWorker {
     final int rootAttributes = delegate.getBooleanAttributes(root, -1);
 
     if (root.isDirty() && (rootAttributes & FileUtil.BA_EXISTS) == 0) {
-      scheduleDeletion(root);
+      myEvents.add(new VFileDeleteEvent(null, root, true));
       root.markClean();
     }
     else {
@@ -63,152 +79,256 @@ public class RefreshWorker {
 
       final PersistentFS persistence = (PersistentFS)ManagingFS.getInstance();
 
-      while (!myRefreshQueue.isEmpty()) {
-        final VirtualFileSystemEntry file = (VirtualFileSystemEntry)myRefreshQueue.pullFirst();
-        if (!file.isDirty()) continue;
+      List<QueuedFile> level = Collections.singletonList(new QueuedFile((VirtualFileSystemEntry)root, statOf(delegate, root, rootAttributes)));
+      while (!level.isEmpty()) {
+        final List<QueuedFile> nextLevel = new ArrayList<QueuedFile>();
+        for (Scan scan : scanLevel(level, delegate, persistence)) {
+          if (scan != null) {
+            myEvents.addAll(scan.myEvents);
+            nextLevel.addAll(scan.myRefreshQueue);
+          }
+        }
+        level = nextLevel;
+      }
+    }
+  }
 
-        int attributes = file == root ? rootAttributes : delegate.getBooleanAttributes(file, -1);
-        VirtualFileSystemEntry parent = file.getParent();
-        if (parent != null && checkAndScheduleAttributesChange(parent, file, delegate, attributes)) {
-          // ignore everything else
+  @NotNull
+  private Scan[] scanLevel(@NotNull final List<QueuedFile> level,
+                           @NotNull final NewVirtualFileSystem delegate,
+                           @NotNull final PersistentFS persistence) {
+    final Scan[] scans = new Scan[level.size()];
+    final AtomicInteger nextIndex = new AtomicInteger();
+    final Runnable scanner = new Runnable() {
+      @Override
+      public void run() {
+        int index;
+        while ((index = nextIndex.getAndIncrement()) < scans.length) {
+          scans[index] = scanFile(level.get(index), delegate, persistence);
         }
-        else if (file.isDirectory()) {
-          final VirtualDirectoryImpl dir = (VirtualDirectoryImpl)file;
-          final boolean fullSync = dir.allChildrenLoaded();
-          if (fullSync) {
-            final Set<String> currentNames = new HashSet<String>(Arrays.asList(persistence.list(file)));
-            final Set<String> upToDateNames = new HashSet<String>(Arrays.asList(VfsUtil.filterNames(delegate.list(file))));
-
-            final Set<String> newNames = new HashSet<String>(upToDateNames);
-            newNames.removeAll(currentNames);
-
-            final Set<String> deletedNames = new HashSet<String>(currentNames);
-            deletedNames.removeAll(upToDateNames);
-
-            for (String name : deletedNames) {
-              scheduleDeletion(file.findChild(name));
-            }
-
-            for (String name : newNames) {
-              boolean isDirectory = delegate.isDirectory(new FakeVirtualFile(file, name));
-              scheduleCreation(file, name, isDirectory);
-            }
-
-            for (VirtualFile child : file.getChildren()) {
-              if (!deletedNames.contains(child.getName())) {
-                final int childAttributes = delegate.getBooleanAttributes(child, -1);
-                scheduleChildRefresh(file, child, delegate, childAttributes);
-              }
-            }
-          }
-          else {
-            for (VirtualFile child : file.getCachedChildren()) {
-              final int childAttributes = delegate.getBooleanAttributes(child, -1);
-              if ((childAttributes & FileUtil.BA_EXISTS) != 0) {
-                scheduleChildRefresh(file, child, delegate, childAttributes);
-              }
-              else {
-                scheduleDeletion(child);
-              }
-            }
-
-            final List<String> names = dir.getSuspiciousNames();
-            for (String name : names) {
-              if (name.isEmpty()) continue;
-
-              final VirtualFile fake = new FakeVirtualFile(file, name);
-              final int childAttributes = delegate.getBooleanAttributes(fake, FileUtil.BA_EXISTS | FileUtil.BA_DIRECTORY);
-              if ((childAttributes & FileUtil.BA_EXISTS) != 0) {
-                final boolean isDir = (childAttributes & FileUtil.BA_DIRECTORY) != 0;
-                scheduleCreation(file, name, isDir);
-              }
-            }
+      }
+    };
+
+    final int threadsCount = myIsParallel ? Math.min(MAX_SCAN_THREADS, level.size() / PARALLEL_SCAN_THRESHOLD) : 1;
+    final List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int i = 1; i < threadsCount; i++) {
+      futures.add(ApplicationManager.getApplication().executeOnPooledThread(scanner));
+    }
+    scanner.run();
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+        if (cause instanceof Error) throw (Error)cause;
+        throw new RuntimeException(cause);
+      }
+    }
+    return scans;
+  }
+
+  @Nullable
+  private Scan scanFile(@NotNull QueuedFile queued, @NotNull NewVirtualFileSystem delegate, @NotNull PersistentFS persistence) {
+    final VirtualFileSystemEntry file = queued.file;
+    if (!file.isDirty()) return null;
+
+    final Scan scan = new Scan();
+    VirtualFileSystemEntry parent = file.getParent();
+    if (parent != null && scan.checkAndScheduleAttributesChange(parent, file, queued.stat)) {
+      // ignore everything else
+    }
+    else if (file.isDirectory()) {
+      final VirtualDirectoryImpl dir = (VirtualDirectoryImpl)file;
+      final boolean fullSync = dir.allChildrenLoaded();
+      if (fullSync) {
+        final Set<String> currentNames = new HashSet<String>(Arrays.asList(persistence.list(file)));
+        final Set<String> upToDateNames = new HashSet<String>(Arrays.asList(VfsUtil.filterNames(delegate.list(file))));
+
+        final Set<String> newNames = new HashSet<String>(upToDateNames);
+        newNames.removeAll(currentNames);
+
+        final Set<String> deletedNames = new HashSet<String>(currentNames);
+        deletedNames.removeAll(upToDateNames);
+
+        for (String name : deletedNames) {
+          scan.scheduleDeletion(file.findChild(name));
+        }
+
+        for (String name : newNames) {
+          boolean isDirectory = delegate.isDirectory(new FakeVirtualFile(file, name));
+          scan.scheduleCreation(file, name, isDirectory);
+        }
+
+        for (VirtualFile child : file.getChildren()) {
+          if (!deletedNames.contains(child.getName())) {
+            scan.scheduleChildRefresh(file, child, readStat(delegate, child));
           }
         }
-        else {
-          long currentTimestamp = persistence.getTimeStamp(file);
-          long upToDateTimestamp = delegate.getTimeStamp(file);
-          long currentLength = SystemInfo.isUnix ? persistence.getLengthNoFollow(file) : -1;
-          long upToDateLength = SystemInfo.isUnix ? delegate.getLength(file) : -1;
-
-          if (currentTimestamp != upToDateTimestamp || currentLength != upToDateLength) {
-            scheduleUpdateContent(file);
+      }
+      else {
+        for (VirtualFile child : file.getCachedChildren()) {
+          final Stat childStat = readStat(delegate, child);
+          if (childStat.exists) {
+            scan.scheduleChildRefresh(file, child, childStat);
+          }
+          else {
+            scan.scheduleDeletion(child);
           }
         }
 
-        boolean currentWritable = persistence.isWritable(file);
-        boolean upToDateWritable = delegate.isWritable(file);
+        final List<String> names = dir.getSuspiciousNames();
+        for (String name : names) {
+          if (name.isEmpty()) continue;
 
-        if (currentWritable != upToDateWritable) {
-          scheduleWritableAttributeChange(file, currentWritable, upToDateWritable);
+          final VirtualFile fake = new FakeVirtualFile(file, name);
+          final int childAttributes = delegate.getBooleanAttributes(fake, FileUtil.BA_EXISTS | FileUtil.BA_DIRECTORY);
+          if ((childAttributes & FileUtil.BA_EXISTS) != 0) {
+            final boolean isDir = (childAttributes & FileUtil.BA_DIRECTORY) != 0;
+            scan.scheduleCreation(file, name, isDir);
+          }
         }
+      }
+    }
+    else {
+      long currentTimestamp = persistence.getTimeStamp(file);
+      long upToDateTimestamp = delegate.getTimeStamp(file);
+      long currentLength = SystemInfo.isUnix ? persistence.getLengthNoFollow(file) : -1;
+      long upToDateLength = SystemInfo.isUnix ? (queued.stat.length >= 0 ? queued.stat.length : delegate.getLength(file)) : -1;
 
-        file.markClean();
+      if (currentTimestamp != upToDateTimestamp || currentLength != upToDateLength) {
+        scan.scheduleUpdateContent(file);
       }
     }
-  }
 
-  private static final int SPECIAL_MASK = FileUtil.BA_REGULAR | FileUtil.BA_DIRECTORY | FileUtil.BA_EXISTS;
+    boolean currentWritable = persistence.isWritable(file);
+    boolean upToDateWritable = delegate.isWritable(file);
 
-  // todo[r.sh] compare link targets for files too
-  private void scheduleChildRefresh(@NotNull VirtualFileSystemEntry parent,
-                                    @NotNull VirtualFile child,
-                                    @NotNull NewVirtualFileSystem delegate,
-                                    @FileUtil.FileBooleanAttributes int childAttributes) {
-    if (!checkAndScheduleAttributesChange(parent, child, delegate, childAttributes)) {
-      boolean upToDateIsDirectory = (childAttributes & FileUtil.BA_DIRECTORY) != 0;
-      if (myIsRecursive || !upToDateIsDirectory) {
-        myRefreshQueue.addLast(child);
-      }
+    if (currentWritable != upToDateWritable) {
+      scan.scheduleWritableAttributeChange(file, currentWritable, upToDateWritable);
     }
+
+    file.markClean();
+    return scan;
   }
 
-  // returns true if change was detected and events scheduled
-  private boolean checkAndScheduleAttributesChange(@NotNull VirtualFileSystemEntry parent,
-                                                   @NotNull VirtualFile child,
-                                                   @NotNull NewVirtualFileSystem delegate,
-                                                   @FileUtil.FileBooleanAttributes int childAttributes) {
-    final boolean currentIsDirectory = child.isDirectory();
-    final boolean currentIsSymlink = child.isSymLink();
-    final boolean currentIsSpecial = child.isSpecialFile();
-    //final String currentLinkTarget = child instanceof SymlinkDirectory ? ((SymlinkDirectory)child).getTargetPath() : null;
-    final boolean upToDateIsDirectory = (childAttributes & FileUtil.BA_DIRECTORY) != 0;
-    final boolean upToDateIsSymlink = delegate.isSymLink(child);
-    final boolean upToDateIsSpecial = (childAttributes & SPECIAL_MASK) == FileUtil.BA_EXISTS;
-    //final String upToDateLinkTarget = currentLinkTarget != null ? delegate.resolveSymLink(child) : null;
-
-    if (currentIsDirectory != upToDateIsDirectory ||
-        currentIsSymlink != upToDateIsSymlink ||
-        currentIsSpecial != upToDateIsSpecial /*||
-        !Comparing.equal(currentLinkTarget, upToDateLinkTarget)*/) {
-      scheduleDeletion(child);
-      scheduleReCreation(parent, child.getName(), upToDateIsDirectory);
-      return true;
-    }
-    else {
-      return false;
+  private static final int SPECIAL_MASK = FileUtil.BA_REGULAR | FileUtil.BA_DIRECTORY | FileUtil.BA_EXISTS;
+
+  /**
+   * Reads the attributes of the file in one call where possible, instead of querying them one by one.
+   * The attributes of symlinks are read one by one, since the checks follow symlinks.
+   */
+  @NotNull
+  private static Stat readStat(@NotNull NewVirtualFileSystem delegate, @NotNull VirtualFile file) {
+    final FileAttributes attributes = delegate.getAttributes(file);
+    if (attributes != null && !attributes.isSymlink) {
+      return new Stat(true, attributes.isDirectory, false, attributes.isSpecial, attributes.length);
     }
+    return statOf(delegate, file, delegate.getBooleanAttributes(file, -1));
   }
 
-  private void scheduleWritableAttributeChange(@NotNull VirtualFileSystemEntry file, boolean currentWritable, boolean upToDateWritable) {
-    myEvents.add(new VFilePropertyChangeEvent(null, file, VirtualFile.PROP_WRITABLE, currentWritable, upToDateWritable, true));
+  @NotNull
+  private static Stat statOf(@NotNull NewVirtualFileSystem delegate, @NotNull VirtualFile file, @FileUtil.FileBooleanAttributes int attributes) {
+    final boolean exists = (attributes & FileUtil.BA_EXISTS) != 0;
+    return new Stat(exists,
+                    (attributes & FileUtil.BA_DIRECTORY) != 0,
+                    exists && delegate.isSymLink(file),
+                    (attributes & SPECIAL_MASK) == FileUtil.BA_EXISTS,
+                    -1);
   }
 
-  private void scheduleUpdateContent(@NotNull VirtualFileSystemEntry file) {
-    myEvents.add(new VFileContentChangeEvent(null, file, file.getModificationStamp(), -1, true));
-  }
+  private static final class Stat {
+    private final boolean exists;
+    private final boolean isDirectory;
+    private final boolean isSymlink;
+    private final boolean isSpecial;
+    private final long length; // -1 if not known
 
-  private void scheduleCreation(@NotNull VirtualFileSystemEntry parent, @NotNull String childName, final boolean isDirectory) {
-    myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, false));
+    private Stat(boolean exists, boolean isDirectory, boolean isSymlink, boolean isSpecial, long length) {
+      this.exists = exists;
+      this.isDirectory = isDirectory;
+      this.isSymlink = isSymlink;
+      this.isSpecial = isSpecial;
+      this.length = length;
+    }
   }
 
-  private void scheduleReCreation(@NotNull VirtualFileSystemEntry parent, @NotNull String childName, final boolean isDirectory) {
-    myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, true));
+  private static final class QueuedFile {
+    private final VirtualFileSystemEntry file;
+    private final Stat stat;
+
+    private QueuedFile(@NotNull VirtualFileSystemEntry file, @NotNull Stat stat) {
+      this.file = file;
+      this.stat = stat;
+    }
   }
 
-  private void scheduleDeletion(final VirtualFile file) {
-    if (file == null) return;
-    myEvents.add(new VFileDeleteEvent(null, file, true));
+  /**
+   * Events and files to refresh found when scanning a single file
+   */
+  private class Scan {
+    private final List<VFileEvent> myEvents = new ArrayList<VFileEvent>();
+    private final List<QueuedFile> myRefreshQueue = new ArrayList<QueuedFile>();
+
+    // todo[r.sh] compare link targets for files too
+    private void scheduleChildRefresh(@NotNull VirtualFileSystemEntry parent, @NotNull VirtualFile child, @NotNull Stat childStat) {
+      if (!checkAndScheduleAttributesChange(parent, child, childStat)) {
+        if (myIsRecursive || !childStat.isDirectory) {
+          myRefreshQueue.add(new QueuedFile((VirtualFileSystemEntry)child, childStat));
+        }
+      }
+    }
+
+    // returns true if change was detected and events scheduled
+    private boolean checkAndScheduleAttributesChange(@NotNull VirtualFileSystemEntry parent,
+                                                     @NotNull VirtualFile child,
+                                                     @NotNull Stat childStat) {
+      final boolean currentIsDirectory = child.isDirectory();
+      final boolean currentIsSymlink = child.isSymLink();
+      final boolean currentIsSpecial = child.isSpecialFile();
+      //final String currentLinkTarget = child instanceof SymlinkDirectory ? ((SymlinkDirectory)child).getTargetPath() : null;
+      final boolean upToDateIsDirectory = childStat.isDirectory;
+      final boolean upToDateIsSymlink = childStat.isSymlink;
+      final boolean upToDateIsSpecial = childStat.isSpecial;
+      //final String upToDateLinkTarget = currentLinkTarget != null ? delegate.resolveSymLink(child) : null;
+
+      if (currentIsDirectory != upToDateIsDirectory ||
+          currentIsSymlink != upToDateIsSymlink ||
+          currentIsSpecial != upToDateIsSpecial /*||
+          !Comparing.equal(currentLinkTarget, upToDateLinkTarget)*/) {
+        scheduleDeletion(child);
+        scheduleReCreation(parent, child.getName(), upToDateIsDirectory);
+        return true;
+      }
+      else {
+        return false;
+      }
+    }
+
+    private void scheduleWritableAttributeChange(@NotNull VirtualFileSystemEntry file, boolean currentWritable, boolean upToDateWritable) {
+      myEvents.add(new VFilePropertyChangeEvent(null, file, VirtualFile.PROP_WRITABLE, currentWritable, upToDateWritable, true));
+    }
+
+    private void scheduleUpdateContent(@NotNull VirtualFileSystemEntry file) {
+      myEvents.add(new VFileContentChangeEvent(null, file, file.getModificationStamp(), -1, true));
+    }
+
+    private void scheduleCreation(@NotNull VirtualFileSystemEntry parent, @NotNull String childName, final boolean isDirectory) {
+      myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, false));
+    }
+
+    private void scheduleReCreation(@NotNull VirtualFileSystemEntry parent, @NotNull String childName, final boolean isDirectory) {
+      myEvents.add(new VFileCreateEvent(null, parent, childName, isDirectory, true, true));
+    }
+
+    private void scheduleDeletion(final VirtualFile file) {
+      if (file == null) return;
+      myEvents.add(new VFileDeleteEvent(null, file, true));
+    }
   }
 
   @NotNull
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight.daemon.impl;
+
+import com.intellij.codeHighlighting.HighlightingPass;
+import com.intellij.codeHighlighting.TextEditorHighlightingPass;
+import com.intellij.concurrency.Job;
+import com.intellij.openapi.application.impl.LaterInvocator;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.impl.DocumentChangeTracker;
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.fileEditor.TextEditor;
+import com.intellij.openapi.fileEditor.impl.text.TextEditorProvider;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.util.ProgressIndicatorBase;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+
+public class TranslatedHighlightingTest extends LightPlatformCodeInsightFixtureTestCase {
+  private static final String TEXT = "aaaa bbbb cccc dddd";
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFixture.configureByText("a.txt", TEXT);
+  }
+
+  public void testAppliedAsCollectedWithoutChanges() {
+    final RangePass pass = createPass("cccc");
+    pass.collectInformation(new ProgressIndicatorBase());
+    pass.applyInformationToEditor();
+    assertEquals(range("cccc"), pass.myApplied);
+    assertFalse(pass.myAppliedTranslated);
+  }
+
+  public void testTranslatedThroughChangesOutsideOfRange() {
+    final RangePass pass = createPass("cccc");
+    pass.collectInformation(new ProgressIndicatorBase());
+    replace(0, 4, "a");
+    replace(12, 16, "dddddd");
+    pass.applyInformationToEditor();
+    assertEquals(range("cccc").shiftRight(-3), pass.myApplied);
+    assertTrue(pass.myAppliedTranslated);
+  }
+
+  public void testNotAppliedAfterChangeInsideOfRange() {
+    final RangePass pass = createPass("cccc");
+    pass.collectInformation(new ProgressIndicatorBase());
+    replace(11, 12, "x");
+    pass.applyInformationToEditor();
+    assertNull(pass.myApplied);
+  }
+
+  public void testNotAppliedIfNotCollected() {
+    final RangePass pass = createPass("cccc");
+    replace(0, 4, "a");
+    pass.collectInformation(new ProgressIndicatorBase());
+    pass.applyInformationToEditor();
+    assertNull(pass.myApplied);
+    assertFalse(pass.myTranslateCalled);
+  }
+
+  public void testNotAppliedIfCollectionCanceled() {
+    final RangePass pass = createPass("cccc");
+    final ProgressIndicatorBase progress = new ProgressIndicatorBase();
+    progress.cancel();
+    pass.collectInformation(progress);
+    replace(0, 4, "a");
+    pass.applyTranslatedInformationToEditor();
+    assertNull(pass.myApplied);
+  }
+
+  public void testTranslatedWhenCanceledBeforeApply() throws Exception {
+    final TextEditor textEditor = TextEditorProvider.getInstance().getTextEditor(myFixture.getEditor());
+    final DaemonProgressIndicator progress = new DaemonProgressIndicator();
+    progress.start();
+    final RangePass pass = createPass("cccc");
+    pass.setId(1);
+
+    final PassExecutorService service = new PassExecutorService(getProject()) {
+      @Override
+      protected void afterApplyInformationToEditor(TextEditorHighlightingPass pass, FileEditor fileEditor, ProgressIndicator updateProgress) {
+      }
+    };
+    try {
+      UIUtil.dispatchAllInvocationEvents();
+      service.submitPasses(Collections.<FileEditor, HighlightingPass[]>singletonMap(textEditor, new HighlightingPass[]{pass}), progress,
+                           Job.DEFAULT_PRIORITY);
+      // the results are applied later in the event dispatch thread which is busy with the test
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (LaterInvocator.dumpQueue() == null && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertNotNull(pass.myCollected);
+
+      // typing restarts the highlighting before the results are applied
+      replace(0, 4, "a");
+      progress.cancel();
+      UIUtil.dispatchAllInvocationEvents();
+    }
+    finally {
+      service.cancelAll(true);
+      Disposer.dispose(service);
+    }
+
+    assertEquals(range("cccc").shiftRight(-3), pass.myApplied);
+    assertTrue(pass.myAppliedTranslated);
+  }
+
+  private RangePass createPass(String word) {
+    return new RangePass(getProject(), myFixture.getEditor().getDocument(), range(word));
+  }
+
+  private static TextRange range(String word) {
+    final int start = TEXT.indexOf(word);
+    return new TextRange(start, start + word.length());
+  }
+
+  private void replace(final int startOffset, final int endOffset, final String text) {
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        myFixture.getEditor().getDocument().replaceString(startOffset, endOffset, text);
+      }
+    }.execute().throwException();
+  }
+
+  private static class RangePass extends TextEditorHighlightingPass {
+    private final TextRange myRange;
+    private volatile TextRange myCollected;
+    private boolean myTranslateCalled;
+    private TextRange myApplied;
+    private boolean myAppliedTranslated;
+
+    private RangePass(@NotNull Project project, @NotNull Document document, @NotNull TextRange range) {
+      super(project, document, false);
+      myRange = range;
+    }
+
+    @Override
+    public void doCollectInformation(@NotNull ProgressIndicator progress) {
+      myCollected = myRange;
+    }
+
+    @Override
+    protected boolean translateInformation(@NotNull DocumentChangeTracker tracker) {
+      myTranslateCalled = true;
+      myCollected = tracker.translate(myCollected.getStartOffset(), myCollected.getEndOffset());
+      return myCollected != null;
+    }
+
+    @Override
+    public void doApplyInformationToEditor() {
+      myAppliedTranslated = isInformationTranslated();
+      myApplied = myCollected;
+    }
+  }
+}
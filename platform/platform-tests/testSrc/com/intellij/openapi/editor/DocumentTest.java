@@ -3,8 +3,15 @@ package com.intellij.openapi.editor;
 import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.editor.event.DocumentAdapter;
 import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.impl.DocumentChangeTracker;
 import com.intellij.openapi.editor.impl.DocumentImpl;
+import com.intellij.openapi.editor.impl.LineSet;
+import com.intellij.openapi.util.TextRange;
 import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+
+import java.util.Random;
 
 public class DocumentTest extends LightPlatformTestCase {
   public void testCorrectlyAddingAndRemovingListeners() throws Exception {
@@ -56,4 +63,101 @@ public class DocumentTest extends LightPlatformTestCase {
       }
     }.execute().throwException();
   }
+
+  public void testChangeTrackerTranslatesRanges() throws Exception {
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        DocumentImpl doc = new DocumentImpl("aaaa bbbb cccc dddd");
+        DocumentChangeTracker tracker = doc.trackChanges();
+        assertTrue(tracker.isUpToDate());
+
+        doc.insertString(5, "XX");
+        doc.deleteString(12, 14);
+        assertFalse(tracker.isUpToDate());
+
+        assertEquals(new TextRange(0, 4), tracker.translate(0, 4));
+        assertEquals(new TextRange(7, 11), tracker.translate(5, 9));
+        assertNull(tracker.translate(10, 14));
+        assertEquals(new TextRange(15, 19), tracker.translate(15, 19));
+        assertEquals(new TextRange(5, 11), tracker.translateEnclosing(5, 9));
+        assertEquals(new TextRange(12, 14), tracker.translateEnclosing(10, 14));
+
+        doc.setText("foo");
+        assertNull(tracker.translate(0, 4));
+      }
+    }.execute().throwException();
+  }
+
+  public void testMillionLineDocumentEditingPerformance() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000000; i++) {
+      text.append("line ").append(i).append('\n');
+    }
+    final DocumentImpl doc = new DocumentImpl(text, true);
+    final Random random = new Random(0);
+
+    PlatformTestUtil.startPerformanceTest("editing of a document with million lines", 2000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        for (int i = 0; i < 10000; i++) {
+          doc.insertString(random.nextInt(doc.getTextLength()), i % 2 == 0 ? "x\ny\n" : "z");
+          doc.getLineNumber(random.nextInt(doc.getTextLength()));
+        }
+        for (int i = 0; i < 5000; i++) {
+          int line = random.nextInt(doc.getLineCount() - 2);
+          doc.deleteString(doc.getLineStartOffset(line), doc.getLineStartOffset(line + 2));
+        }
+      }
+    }).cpuBound().assertTiming();
+
+    assertEquals(1000001, doc.getLineCount());
+    assertSameLines(new DocumentImpl(doc.getText(), true), doc);
+  }
+
+  public void testRandomEditsKeepLinesConsistent() throws Exception {
+    final String[] pieces = {"a", "bc", "\n", "\r\n", "\r", "x\ny", "\n\n", "z\r", "\r\nq"};
+    final Random random = new Random(0);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 3000; i++) {
+      text.append(pieces[random.nextInt(pieces.length)]);
+    }
+    final DocumentImpl doc = new DocumentImpl(text, true);
+
+    // each change is also checked against the lines built from scratch by the line set itself
+    LineSet.setTestingMode(true);
+    try {
+      for (int i = 0; i < 2000; i++) {
+        int length = doc.getTextLength();
+        int start = random.nextInt(length + 1);
+        int end = Math.min(length, start + (random.nextInt(10) == 0 ? random.nextInt(2000) : random.nextInt(20)));
+        StringBuilder replacement = new StringBuilder();
+        for (int j = random.nextInt(random.nextInt(10) == 0 ? 1000 : 4); j > 0; j--) {
+          replacement.append(pieces[random.nextInt(pieces.length)]);
+        }
+        if (random.nextInt(500) == 0) {
+          doc.setText(replacement);
+        }
+        else {
+          doc.replaceString(start, end, replacement);
+        }
+        if (i % 20 == 0) {
+          assertSameLines(new DocumentImpl(doc.getText(), true), doc);
+        }
+      }
+    }
+    finally {
+      LineSet.setTestingMode(false);
+    }
+    assertSameLines(new DocumentImpl(doc.getText(), true), doc);
+  }
+
+  private static void assertSameLines(DocumentImpl expected, DocumentImpl actual) {
+    assertEquals(expected.getLineCount(), actual.getLineCount());
+    for (int line = 0; line < expected.getLineCount(); line++) {
+      assertEquals(expected.getLineStartOffset(line), actual.getLineStartOffset(line));
+      assertEquals(expected.getLineEndOffset(line), actual.getLineEndOffset(line));
+      assertEquals(expected.getLineSeparatorLength(line), actual.getLineSeparatorLength(line));
+    }
+  }
 }
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.highlighter.HighlighterClient;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.LightPlatformTestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class LexerEditorHighlighterTest extends LightPlatformTestCase {
+  private static final IElementType WORD = new IElementType("WORD", Language.ANY);
+  private static final IElementType SPACE = new IElementType("SPACE", Language.ANY);
+  private static final IElementType QUOTE = new IElementType("QUOTE", Language.ANY);
+  private static final IElementType STRING_WORD = new IElementType("STRING_WORD", Language.ANY);
+
+  // longer than the lazy lexing threshold
+  private static final int TEXT_LENGTH = 3 * 1024 * 1024;
+
+  private DocumentImpl myDocument;
+  private LexerEditorHighlighter myHighlighter;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final Random random = new Random(0);
+    StringBuilder text = new StringBuilder();
+    while (text.length() < TEXT_LENGTH) {
+      text.append(random.nextInt(10) == 0 ? "\"" : random.nextInt(3) == 0 ? " " : random.nextInt(8) == 0 ? "\n" : "ab");
+    }
+    myDocument = new DocumentImpl(text, true);
+    myHighlighter = new LexerEditorHighlighter(new TestSyntaxHighlighter(), EditorColorsManager.getInstance().getGlobalScheme());
+    myHighlighter.setEditor(new HighlighterClient() {
+      @Override
+      public Project getProject() {
+        return LightPlatformTestCase.getProject();
+      }
+
+      @Override
+      public void repaint(int start, int end) {
+      }
+
+      @Override
+      public Document getDocument() {
+        return myDocument;
+      }
+    });
+    myDocument.addDocumentListener(myHighlighter);
+    myHighlighter.setText(myDocument.getCharsSequence());
+    assertTrue(getLexedEnd() < myDocument.getTextLength());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myDocument.removeDocumentListener(myHighlighter);
+    myDocument = null;
+    myHighlighter = null;
+    super.tearDown();
+  }
+
+  public void testLexedOnIteration() {
+    assertSameTokensAsFullLexing();
+  }
+
+  public void testIteratorLexesUpToItsOffset() {
+    int offset = TEXT_LENGTH / 2;
+    HighlighterIterator iterator = myHighlighter.createIterator(offset);
+    assertTrue(iterator.getStart() <= offset && offset < iterator.getEnd());
+    assertTrue(getLexedEnd() < myDocument.getTextLength());
+    assertSameTokensAsFullLexing();
+  }
+
+  public void testChangeBeforeLexedEnd() {
+    // the quote changes the lexer states of the following tokens up to the next quote
+    myDocument.insertString(getLexedEnd() / 2, "\"x");
+    myDocument.deleteString(10, 20);
+    assertSameTokensAsFullLexing();
+  }
+
+  public void testChangeAtLexedEnd() {
+    myDocument.insertString(getLexedEnd(), "\"y ");
+    int lexedEnd = getLexedEnd();
+    myDocument.replaceString(lexedEnd - 5, lexedEnd + 5, "z\"");
+    assertSameTokensAsFullLexing();
+  }
+
+  public void testChangeAfterLexedEnd() {
+    myDocument.insertString(getLexedEnd() + 10, "\"x");
+    myDocument.deleteString(myDocument.getTextLength() - 100, myDocument.getTextLength());
+    assertSameTokensAsFullLexing();
+  }
+
+  public void testRandomChanges() {
+    final Random random = new Random(0);
+    for (int i = 0; i < 300; i++) {
+      int length = myDocument.getTextLength();
+      // the changes around the lexed end are the interesting ones
+      int start = i % 3 == 0 ? random.nextInt(length) : Math.min(length, Math.max(0, getLexedEnd() - 10 + random.nextInt(20)));
+      int end = Math.min(length, start + random.nextInt(20));
+      myDocument.replaceString(start, end, random.nextBoolean() ? "\"x" : "y \n");
+      if (i % 50 == 0) {
+        myHighlighter.createIterator(random.nextInt(myDocument.getTextLength()));
+      }
+    }
+    assertTrue(getLexedEnd() < myDocument.getTextLength());
+    assertSameTokensAsFullLexing();
+  }
+
+  public void testIterationInAnotherThread() throws Exception {
+    Future<?> future = ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        ApplicationManager.getApplication().runReadAction(new Runnable() {
+          @Override
+          public void run() {
+            assertSameTokensAsFullLexing();
+          }
+        });
+      }
+    });
+    future.get();
+    assertEquals(myDocument.getTextLength(), getLexedEnd());
+  }
+
+  public void testLexedHighlighterIteratedWithoutLock() throws Exception {
+    assertSameTokensAsFullLexing();
+    assertEquals(myDocument.getTextLength(), getLexedEnd());
+    final HighlighterIterator iterator = myHighlighter.createIterator(0);
+    synchronized (myHighlighter) {
+      Future<?> future = ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        @Override
+        public void run() {
+          ApplicationManager.getApplication().runReadAction(new Runnable() {
+            @Override
+            public void run() {
+              while (!iterator.atEnd()) {
+                assertTrue(iterator.getStart() < iterator.getEnd());
+                assertNotNull(iterator.getTokenType());
+                iterator.advance();
+              }
+            }
+          });
+        }
+      });
+      // would time out if the iterator waited for the lock held here
+      future.get(30, TimeUnit.SECONDS);
+    }
+  }
+
+  private int getLexedEnd() {
+    return myHighlighter.getSegments().getLastValidOffset();
+  }
+
+  private void assertSameTokensAsFullLexing() {
+    HighlighterIterator iterator = myHighlighter.createIterator(0);
+    Lexer lexer = new TestLexer();
+    lexer.start(myDocument.getCharsSequence());
+    int count = 0;
+    while (lexer.getTokenType() != null) {
+      assertFalse("token " + count, iterator.atEnd());
+      assertEquals("token " + count, lexer.getTokenType(), iterator.getTokenType());
+      assertEquals("token " + count, lexer.getTokenStart(), iterator.getStart());
+      assertEquals("token " + count, lexer.getTokenEnd(), iterator.getEnd());
+      lexer.advance();
+      iterator.advance();
+      count++;
+    }
+    assertTrue(iterator.atEnd());
+  }
+
+  private static class TestSyntaxHighlighter extends SyntaxHighlighterBase {
+    @NotNull
+    @Override
+    public Lexer getHighlightingLexer() {
+      return new TestLexer();
+    }
+
+    @NotNull
+    @Override
+    public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
+      return EMPTY;
+    }
+  }
+
+  // words separated by spaces, the words between quotes are lexed in another state
+  private static class TestLexer extends LexerBase {
+    private CharSequence myBuffer = "";
+    private int myBufferEnd;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private int myState;
+    private int myNextState;
+    private IElementType myTokenType;
+
+    @Override
+    public void start(CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myBufferEnd = endOffset;
+      myTokenEnd = startOffset;
+      myNextState = initialState;
+      advance();
+    }
+
+    @Override
+    public int getState() {
+      return myState;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      myTokenStart = myTokenEnd;
+      myState = myNextState;
+      if (myTokenStart >= myBufferEnd) {
+        myTokenType = null;
+        return;
+      }
+
+      int end = myTokenStart + 1;
+      char c = myBuffer.charAt(myTokenStart);
+      if (c == '"') {
+        myTokenType = QUOTE;
+        myNextState = 1 - myState;
+      }
+      else if (isSpace(c)) {
+        while (end < myBufferEnd && isSpace(myBuffer.charAt(end))) end++;
+        myTokenType = SPACE;
+      }
+      else {
+        while (end < myBufferEnd && !isSpace(myBuffer.charAt(end)) && myBuffer.charAt(end) != '"') end++;
+        myTokenType = myState == 0 ? WORD : STRING_WORD;
+      }
+      myTokenEnd = end;
+    }
+
+    private static boolean isSpace(char c) {
+      return c == ' ' || c == '\n';
+    }
+
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myBufferEnd;
+    }
+  }
+}
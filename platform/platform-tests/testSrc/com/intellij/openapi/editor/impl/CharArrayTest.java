@@ -141,8 +141,37 @@ public class CharArrayTest {
     assertArrayEquals("1".toCharArray(), subsSequence.getChars());
   }
   
+  @Test
+  public void ropeModifications() {
+    init(0, 8);
+    myArray.insert("0123456789", 0);
+    replace(1, 3, "abc");
+    assertFalse(myArray.getCharArray() instanceof CharSequenceBackedByArray);
+    checkText("0abc3456789");
+
+    myArray.insert("XY", 5);
+    checkText("0abc3XY456789");
+    myArray.remove(0, 2, "0a");
+    checkText("bc3XY456789");
+    assertEquals("bc3XY456789", new String(myArray.getChars(), 0, myArray.length()));
+
+    myArray.setDeferredChangeMode(true);
+    replace(2, 9, "");
+    myArray.setDeferredChangeMode(false);
+    checkText("bc89");
+
+    myArray.remove(0, 1, "b");
+    myArray.insert("!", 3);
+    assertTrue(myArray.getCharArray() instanceof CharSequenceBackedByArray);
+    checkText("c89!");
+  }
+
   private void init(int size) {
-    myArray = new CharArray(size, new char[0], 0) {
+    init(size, CharArray.ROPE_THRESHOLD);
+  }
+
+  private void init(int size, int ropeThreshold) {
+    myArray = new CharArray(size, new char[0], 0, ropeThreshold) {
       @NotNull
       @Override
       protected DocumentEvent beforeChangedUpdate(int offset, CharSequence oldString, CharSequence newString,
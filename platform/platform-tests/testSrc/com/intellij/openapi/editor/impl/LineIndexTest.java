@@ -0,0 +1,193 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class LineIndexTest extends TestCase {
+  private static final int CHUNK = LineIndex.CHUNK_SIZE;
+
+  private final LineIndex myIndex = new LineIndex();
+  // the expected line lengths and data
+  private final List<Integer> myLengths = new ArrayList<Integer>();
+  private final List<Integer> myData = new ArrayList<Integer>();
+
+  public void testEmpty() {
+    assertEquals(0, myIndex.getLineCount());
+    assertEquals(0, myIndex.findLineIndex(0));
+    replace(0, 0, 1, 3);
+    replace(0, 1, 0, 0);
+    check();
+  }
+
+  public void testChunkBorders() {
+    replace(0, 0, 3 * CHUNK, 5);
+    check();
+
+    // empty range at the border
+    replace(CHUNK, CHUNK, 0, 0);
+    check();
+    // insertion at the border
+    replace(CHUNK, CHUNK, 1, 7);
+    check();
+    // replacement of the first line of a chunk and of the last one
+    replace(CHUNK + 1, CHUNK + 2, 1, 2);
+    replace(2 * CHUNK, 2 * CHUNK + 1, 2, 1);
+    check();
+    // deletion across the border
+    replace(CHUNK - 3, CHUNK + 3, 0, 0);
+    check();
+    // insertion at the end
+    replace(myLengths.size(), myLengths.size(), 2, 4);
+    check();
+    // deletion of the last line
+    replace(myLengths.size() - 1, myLengths.size(), 0, 0);
+    check();
+  }
+
+  public void testSplitAndMerge() {
+    replace(0, 0, 10, 3);
+    // a long insertion splits the chunk
+    replace(5, 5, 3 * CHUNK + 17, 2);
+    check();
+    // deletions merge the small chunks back
+    while (myLengths.size() > 20) {
+      replace(3, Math.min(myLengths.size() - 1, 3 + CHUNK / 3), 0, 0);
+      check();
+    }
+    replace(0, myLengths.size(), 0, 0);
+    check();
+  }
+
+  public void testChangeLineLength() {
+    replace(0, 0, 2 * CHUNK, 4);
+    changeLength(0, 5);
+    changeLength(CHUNK - 1, 3);
+    changeLength(CHUNK, -2);
+    changeLength(2 * CHUNK - 1, 10);
+    check();
+    try {
+      myIndex.changeLineLength(1, -100);
+      fail();
+    }
+    catch (IllegalArgumentException ignored) {
+    }
+  }
+
+  public void testChangesBetweenLookupsAfterSplits() {
+    // the trees are stale after each split, the modifications must not depend on them
+    replace(0, 0, CHUNK, 3);
+    for (int i = 0; i < 10; i++) {
+      replace(i * CHUNK / 2, i * CHUNK / 2 + 1, CHUNK, 2);
+      changeLength(i * CHUNK / 2 + 1, 1);
+    }
+    check();
+  }
+
+  public void testData() {
+    replace(0, 0, 2 * CHUNK, 3);
+    for (int i = 0; i < myLengths.size(); i += 7) {
+      myIndex.setData(i, 5);
+      myData.set(i, 5);
+    }
+    check();
+    myIndex.clearData(4);
+    for (int i = 0; i < myData.size(); i++) {
+      myData.set(i, myData.get(i) & ~4);
+    }
+    check();
+  }
+
+  public void testRandomChanges() {
+    Random random = new Random(0);
+    for (int i = 0; i < 2000; i++) {
+      int lineCount = myLengths.size();
+      int start = random.nextInt(lineCount + 1);
+      int end = start + random.nextInt(Math.min(lineCount - start, 2 * CHUNK) + 1);
+      int count = random.nextInt(10) == 0 ? random.nextInt(3 * CHUNK) : random.nextInt(5);
+      int length = random.nextInt(5);
+      replace(start, end, count, length);
+      if (!myLengths.isEmpty() && random.nextBoolean()) {
+        int line = random.nextInt(myLengths.size());
+        changeLength(line, random.nextInt(3));
+      }
+      if (i % 50 == 0) {
+        check();
+      }
+    }
+    check();
+  }
+
+  private void replace(int startLine, int endLine, int count, int length) {
+    int[] lengths = new int[count];
+    byte[] data = new byte[count];
+    for (int i = 0; i < count; i++) {
+      // different lengths to tell the lines apart, the last line may be empty
+      lengths[i] = length + i % 3;
+      data[i] = (byte)(i % 4);
+    }
+    myIndex.replaceLines(startLine, endLine, lengths, data, count);
+
+    myLengths.subList(startLine, endLine).clear();
+    myData.subList(startLine, endLine).clear();
+    for (int i = 0; i < count; i++) {
+      myLengths.add(startLine + i, lengths[i]);
+      myData.add(startLine + i, (int)data[i]);
+    }
+  }
+
+  private void changeLength(int line, int delta) {
+    myIndex.changeLineLength(line, delta);
+    myLengths.set(line, myLengths.get(line) + delta);
+  }
+
+  private void check() {
+    // the index updated by the changes is the same as the one built from scratch
+    int[] lengths = new int[myLengths.size()];
+    byte[] data = new byte[myLengths.size()];
+    for (int i = 0; i < lengths.length; i++) {
+      lengths[i] = myLengths.get(i);
+      data[i] = (byte)(int)myData.get(i);
+    }
+    LineIndex rebuilt = new LineIndex();
+    rebuilt.replaceLines(0, 0, lengths, data, lengths.length);
+    checkIndex(myIndex);
+    checkIndex(rebuilt);
+  }
+
+  private void checkIndex(LineIndex index) {
+    assertEquals(myLengths.size(), index.getLineCount());
+    int start = 0;
+    for (int line = 0; line < myLengths.size(); line++) {
+      int end = start + myLengths.get(line);
+      assertEquals(start, index.getLineStart(line));
+      assertEquals(end, index.getLineEnd(line));
+      assertEquals((int)myData.get(line), index.getData(line));
+      for (int offset = start; offset < end; offset++) {
+        assertEquals(line, index.findLineIndex(offset));
+      }
+      start = end;
+    }
+    assertEquals(start, index.getTextLength());
+    if (!myLengths.isEmpty()) {
+      assertEquals(myLengths.size() - 1, index.findLineIndex(start));
+    }
+  }
+}
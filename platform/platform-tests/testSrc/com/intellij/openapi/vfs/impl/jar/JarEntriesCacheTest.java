@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl.jar;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+public class JarEntriesCacheTest extends TestCase {
+  private static final long TIMESTAMP = 1000000000000L;
+
+  private File myDir;
+  private File myJar;
+  private JarEntriesCache myCache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("jarEntries", null);
+    myJar = new File(myDir, "test.jar");
+    writeJar("content");
+    myCache = new JarEntriesCache(new File(myDir, "cache"));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myCache.dispose();
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testEntriesAreRestored() {
+    putEntries();
+    reopen();
+
+    final Map<String, JarHandlerBase.EntryInfo> entries = myCache.get(myJar);
+    assertNotNull(entries);
+    assertEquals(5, entries.size());
+
+    final JarHandlerBase.EntryInfo file = entries.get("a/b/C.class");
+    assertFalse(file.isDirectory);
+    assertTrue(file.hasEntry);
+    assertEquals(10, file.length);
+    assertEquals(TIMESTAMP, file.timestamp);
+    assertSame(entries.get("a/b"), file.parent);
+
+    final JarHandlerBase.EntryInfo ownEntry = entries.get("a");
+    assertTrue(ownEntry.isDirectory);
+    assertTrue(ownEntry.hasEntry);
+
+    final JarHandlerBase.EntryInfo impliedDirectory = entries.get("a/b");
+    assertTrue(impliedDirectory.isDirectory);
+    assertFalse(impliedDirectory.hasEntry);
+  }
+
+  public void testChangedArchiveIsEvicted() throws IOException {
+    putEntries();
+    writeJar("changed content");
+    assertNull(myCache.get(myJar));
+
+    // the stale record is gone even if the archive gets its old stamp back
+    writeJar("content");
+    assertNull(myCache.get(myJar));
+  }
+
+  public void testDeletedArchiveIsEvicted() throws IOException {
+    putEntries();
+    assertTrue(myJar.delete());
+    reopen();
+
+    writeJar("content");
+    assertNull(myCache.get(myJar));
+  }
+
+  private void putEntries() {
+    final Map<String, JarHandlerBase.EntryInfo> entries = JarHandlerBase.createEntriesMap();
+    JarHandlerBase.addEntry("a/", 0, TIMESTAMP, entries);
+    JarHandlerBase.addEntry("a/b/C.class", 10, TIMESTAMP, entries);
+    JarHandlerBase.addEntry("a/b/D.class", 20, TIMESTAMP, entries);
+    myCache.put(myJar, myJar.length(), myJar.lastModified(), entries);
+    assertNotNull(myCache.get(myJar));
+  }
+
+  private void reopen() {
+    myCache.dispose();
+    myCache = new JarEntriesCache(new File(myDir, "cache"));
+  }
+
+  private void writeJar(String content) throws IOException {
+    FileUtil.writeToFile(myJar, content);
+    assertTrue(myJar.setLastModified(TIMESTAMP));
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.impl.local;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.testFramework.PlatformLangTestCase;
+
+import java.io.File;
+
+public class CheckpointReconcilerTest extends PlatformLangTestCase {
+  private static final long CHECKPOINT = System.currentTimeMillis() - 60 * 1000;
+
+  private File myDir;
+  private NewVirtualFile myRoot;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = createTempDirectory(false);
+    createOld("unchanged.txt");
+    createOld("changed.txt");
+    createOld("deleted.txt");
+    assertTrue(new File(myDir, "sub").mkdir());
+    createOld("sub/nested.txt");
+    setOld(new File(myDir, "sub"));
+    setOld(myDir);
+
+    myRoot = (NewVirtualFile)LocalFileSystem.getInstance().refreshAndFindFileByIoFile(myDir);
+    assertNotNull(myRoot);
+    loadChildren(myRoot);
+    myRoot.refresh(false, true);
+    assertClean(myRoot);
+  }
+
+  public void testNothingChanged() {
+    final CheckpointReconciler reconciler = reconcile();
+    assertClean(myRoot);
+    assertTrue(reconciler.toString(), reconciler.toString().startsWith("0 of 2 directories to rescan"));
+  }
+
+  public void testChangedFileIsDirty() throws Exception {
+    FileUtil.writeToFile(new File(myDir, "changed.txt"), "changed content");
+    reconcile();
+
+    assertTrue(child("changed.txt").isDirty());
+    assertFalse(child("unchanged.txt").isDirty());
+    assertFalse(child("sub/nested.txt").isDirty());
+  }
+
+  public void testDeletedFileIsDirty() {
+    assertTrue(new File(myDir, "deleted.txt").delete());
+    reconcile();
+
+    assertTrue(child("deleted.txt").isDirty());
+    assertTrue(myRoot.isDirty()); // the entries of the directory changed
+    assertFalse(child("unchanged.txt").isDirty());
+  }
+
+  public void testReplacedDirectoryIsDirtyRecursively() {
+    final File sub = new File(myDir, "sub");
+    FileUtil.delete(sub);
+    assertTrue(sub.mkdir());
+    setOld(sub);
+    reconcile();
+
+    assertTrue(child("sub").isDirty());
+    assertTrue(child("sub/nested.txt").isDirty());
+    assertFalse(child("unchanged.txt").isDirty());
+  }
+
+  public void testFlatRootChecksOnlyChildren() throws Exception {
+    FileUtil.writeToFile(new File(myDir, "changed.txt"), "changed content");
+    FileUtil.writeToFile(new File(myDir, "sub/nested.txt"), "changed content");
+    final CheckpointReconciler reconciler = new CheckpointReconciler(CHECKPOINT + 30 * 1000);
+    reconciler.reconcile(myRoot, false);
+
+    assertTrue(child("changed.txt").isDirty());
+    assertFalse(child("sub/nested.txt").isDirty());
+    assertTrue(reconciler.toString(), reconciler.toString().startsWith("0 of 2 directories to rescan"));
+  }
+
+  private CheckpointReconciler reconcile() {
+    final CheckpointReconciler reconciler = new CheckpointReconciler(CHECKPOINT + 30 * 1000);
+    reconciler.reconcile(myRoot);
+    return reconciler;
+  }
+
+  private NewVirtualFile child(String relativePath) {
+    final VirtualFile file = myRoot.findFileByRelativePath(relativePath);
+    assertNotNull(relativePath, file);
+    return (NewVirtualFile)file;
+  }
+
+  private void createOld(String relativePath) throws Exception {
+    final File file = new File(myDir, relativePath);
+    FileUtil.writeToFile(file, "content");
+    setOld(file);
+  }
+
+  private static void setOld(File file) {
+    assertTrue(file.setLastModified(CHECKPOINT));
+  }
+
+  private static void loadChildren(VirtualFile file) {
+    for (VirtualFile child : file.getChildren()) {
+      loadChildren(child);
+    }
+  }
+
+  private static void assertClean(VirtualFile file) {
+    assertFalse(file.getPath(), ((NewVirtualFile)file).isDirty());
+    for (VirtualFile child : ((NewVirtualFile)file).getCachedChildren()) {
+      assertClean(child);
+    }
+  }
+}
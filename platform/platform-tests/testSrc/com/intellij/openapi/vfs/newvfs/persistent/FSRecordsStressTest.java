@@ -0,0 +1,148 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.testFramework.PlatformLangTestCase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FSRecordsStressTest extends PlatformLangTestCase {
+  private static final String ATTRIBUTE = "FSRecordsStressTest.ATTRIBUTE";
+  private static final int FILES_COUNT = 1000;
+  private static final int ROUNDS = 20;
+  private static final int READERS_COUNT = 4;
+
+  private int myRoot;
+  private int[] myChildren;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRoot = FSRecords.createRecord();
+    FSRecords.setName(myRoot, "stressRoot");
+    myChildren = new int[FILES_COUNT];
+    for (int i = 0; i < FILES_COUNT; i++) {
+      int child = FSRecords.createRecord();
+      FSRecords.setParent(child, myRoot);
+      FSRecords.setName(child, "file" + i);
+      FSRecords.setLength(child, i);
+      FSRecords.setTimestamp(child, i);
+      writeInt(FSRecords.writeContent(child, false), i);
+      writeInt(FSRecords.writeAttribute(child, ATTRIBUTE, false), i);
+      myChildren[i] = child;
+    }
+    FSRecords.updateList(myRoot, myChildren);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FSRecords.deleteRecordRecursively(myRoot);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testRefreshConcurrentWithIndexingReads() throws Exception {
+    final Throwable[] error = new Throwable[1];
+    final List<Thread> threads = new ArrayList<Thread>();
+
+    threads.add(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int round = 1; round <= ROUNDS && error[0] == null; round++) {
+            for (int i = 0; i < FILES_COUNT; i++) {
+              int child = myChildren[i];
+              FSRecords.setTimestamp(child, (long)round * FILES_COUNT + i);
+              FSRecords.setLength(child, (long)round * FILES_COUNT + i);
+              writeInt(FSRecords.writeContent(child, false), round * FILES_COUNT + i);
+              writeInt(FSRecords.writeAttribute(child, ATTRIBUTE, false), round * FILES_COUNT + i);
+            }
+            FSRecords.updateList(myRoot, myChildren);
+          }
+        }
+        catch (Throwable e) {
+          error[0] = e;
+        }
+      }
+    }, "refresh"));
+
+    for (int t = 0; t < READERS_COUNT; t++) {
+      threads.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int round = 0; round < ROUNDS && error[0] == null; round++) {
+              assertEquals(FILES_COUNT, FSRecords.list(myRoot).length);
+              for (int i = 0; i < FILES_COUNT; i++) {
+                int child = myChildren[i];
+                assertEquals(myRoot, FSRecords.getParent(child));
+                assertEquals("file" + i, FSRecords.getName(child));
+                assertEquals(i, FSRecords.getTimestamp(child) % FILES_COUNT);
+                assertEquals(i, FSRecords.getLength(child) % FILES_COUNT);
+                assertEquals(i, readInt(FSRecords.readContent(child)) % FILES_COUNT);
+                assertEquals(i, readInt(FSRecords.readAttribute(child, ATTRIBUTE)) % FILES_COUNT);
+              }
+            }
+          }
+          catch (Throwable e) {
+            error[0] = e;
+          }
+        }
+      }, "indexing " + t));
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (error[0] != null) throw new RuntimeException(error[0]);
+
+    for (int i = 0; i < FILES_COUNT; i++) {
+      int expected = ROUNDS * FILES_COUNT + i;
+      assertEquals(expected, FSRecords.getTimestamp(myChildren[i]));
+      assertEquals(expected, readInt(FSRecords.readContent(myChildren[i])));
+      assertEquals(expected, readInt(FSRecords.readAttribute(myChildren[i], ATTRIBUTE)));
+    }
+  }
+
+  private static void writeInt(DataOutputStream stream, int value) throws IOException {
+    try {
+      stream.writeInt(value);
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private static int readInt(DataInputStream stream) throws IOException {
+    assertNotNull(stream);
+    try {
+      return stream.readInt();
+    }
+    finally {
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.testFramework.PlatformLangTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RefreshWorkerTest extends PlatformLangTestCase {
+  private static final int DIRS_COUNT = 40;
+  private static final int FILES_COUNT = 20;
+
+  public void testParallelScanReportsSameEventsAsSequential() throws Exception {
+    final File dir = createTempDirectory(false);
+    for (int i = 0; i < DIRS_COUNT; i++) {
+      final File subDir = new File(dir, "dir" + i);
+      assertTrue(subDir.mkdir());
+      for (int j = 0; j < FILES_COUNT; j++) {
+        FileUtil.writeToFile(new File(subDir, "file" + j + ".txt"), "content");
+      }
+      FileUtil.writeToFile(new File(dir, "file" + i + ".txt"), "content");
+    }
+
+    final VirtualFile root = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(dir);
+    assertNotNull(root);
+    loadChildren(root);
+
+    int changedDirs = 0;
+    for (int i = 0; i < DIRS_COUNT; i += 3, changedDirs++) {
+      final File subDir = new File(dir, "dir" + i);
+      FileUtil.delete(new File(subDir, "file0.txt"));
+      FileUtil.writeToFile(new File(subDir, "new.txt"), "new");
+      FileUtil.writeToFile(new File(subDir, "file1.txt"), "changed content");
+      final File replaced = new File(subDir, "file2.txt");
+      FileUtil.delete(replaced);
+      assertTrue(replaced.mkdir());
+    }
+    FileUtil.delete(new File(dir, "dir1"));
+    FileUtil.delete(new File(dir, "file2.txt"));
+    assertTrue(new File(dir, "newDir").mkdir());
+
+    final List<String> sequential = scan(root, false);
+    final List<String> parallel = scan(root, true);
+    assertEquals(sequential, parallel);
+    // the scan doesn't apply the changes, so the second one sees them too
+    assertEquals(sequential.toString(), changedDirs * 5 + 3, sequential.size());
+  }
+
+  private static List<String> scan(VirtualFile root, boolean parallel) {
+    ((NewVirtualFile)root).markDirtyRecursively();
+    final RefreshWorker worker = new RefreshWorker(root, true, parallel);
+    worker.scan();
+    final List<String> events = new ArrayList<String>();
+    for (VFileEvent event : worker.getEvents()) {
+      events.add(event.toString());
+    }
+    return events;
+  }
+
+  private static void loadChildren(VirtualFile file) {
+    for (VirtualFile child : file.getChildren()) {
+      loadChildren(child);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source;
+
+import com.intellij.lang.Language;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.impl.source.tree.LazyParseableElement;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.text.StringSubSequence;
+import junit.framework.TestCase;
+
+public class CharTableImplTest extends TestCase {
+  private static final IElementType CHAMELEON = new IElementType("CHAMELEON", Language.ANY);
+
+  private static final String LONG_TOKEN = StringUtil.repeat("long token ", 10);
+  private static final String TEXT = "short " + LONG_TOKEN + " short";
+
+  public void testLongTokenOfStringSharesText() {
+    final int start = TEXT.indexOf(LONG_TOKEN);
+    final CharSequence text = new CharTableImpl().intern(TEXT, start, start + LONG_TOKEN.length());
+    assertTrue(text instanceof StringSubSequence);
+    assertSame(TEXT, ((StringSubSequence)text).getString());
+    assertEquals(LONG_TOKEN, text.toString());
+
+    // the views of an interned view are kept as is too
+    final CharSequence nested = new CharTableImpl().intern(text, 1, text.length());
+    assertSame(TEXT, ((StringSubSequence)nested).getString());
+  }
+
+  public void testLongTokenOfMutableTextIsCopied() {
+    final StringBuilder builder = new StringBuilder(TEXT);
+    final int start = TEXT.indexOf(LONG_TOKEN);
+    final CharSequence text = new CharTableImpl().intern(builder, start, start + LONG_TOKEN.length());
+    assertFalse(text instanceof StringSubSequence);
+    builder.setLength(0);
+    assertEquals(LONG_TOKEN, text.toString());
+  }
+
+  public void testShortTokensAreInterned() {
+    final CharTableImpl table = new CharTableImpl();
+    final CharSequence first = table.intern(TEXT, 0, 5);
+    assertEquals("short", first.toString());
+    assertSame(first, table.intern(TEXT, TEXT.length() - 5, TEXT.length()));
+    assertFalse(first instanceof StringSubSequence);
+  }
+
+  public void testChameleonKeepsView() {
+    final StringSubSequence view = new StringSubSequence(TEXT, 6, 6 + LONG_TOKEN.length());
+    final LazyParseableElement chameleon = new LazyParseableElement(CHAMELEON, view);
+    assertSame(view, chameleon.getChars());
+    assertEquals(LONG_TOKEN.length(), chameleon.getTextLength());
+
+    final String text = chameleon.getText();
+    assertEquals(LONG_TOKEN, text);
+    assertSame(text, chameleon.getText());
+  }
+}
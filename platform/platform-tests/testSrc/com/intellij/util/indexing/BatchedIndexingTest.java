@@ -0,0 +1,77 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.ide.caches.FileContent;
+import com.intellij.openapi.roots.CollectingContentIterator;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.impl.cache.impl.id.IdIndex;
+import com.intellij.psi.impl.cache.impl.id.IdIndexEntry;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class BatchedIndexingTest extends LightPlatformCodeInsightFixtureTestCase {
+  public void testBatchedIndexing() throws Exception {
+    doTestIndexing(true);
+  }
+
+  public void testIdenticalContentReusedWithoutBatching() throws Exception {
+    doTestIndexing(false);
+  }
+
+  private void doTestIndexing(boolean batched) throws Exception {
+    final FileBasedIndexImpl index = (FileBasedIndexImpl)FileBasedIndex.getInstance();
+    index.finishContentDeduplication();
+
+    final VirtualFile foo1 = myFixture.getTempDirFixture().createFile("foo1.txt", "batchedFoo batchedBar");
+    final VirtualFile foo2 = myFixture.getTempDirFixture().createFile("foo2.txt", "batchedFoo batchedBar");
+    final VirtualFile baz = myFixture.getTempDirFixture().createFile("baz.txt", "batchedBaz");
+    final VirtualFile[] files = {foo1, foo2, baz};
+    assertEquals(3, collectUnindexed(index, files).size());
+
+    for (VirtualFile file : files) {
+      if (batched) {
+        index.indexFileContentBatched(getProject(), new FileContent(file));
+      }
+      else {
+        index.indexFileContent(getProject(), new FileContent(file));
+      }
+    }
+    index.writePendingUpdates();
+    assertEmpty(collectUnindexed(index, files));
+    // the data of the identical files is computed once
+    assertFalse(index.finishContentDeduplication().contains(": 0 of"));
+
+    final GlobalSearchScope scope = GlobalSearchScope.allScope(getProject());
+    assertEquals(new HashSet<VirtualFile>(Arrays.asList(foo1, foo2)),
+                 new HashSet<VirtualFile>(index.getContainingFiles(IdIndex.NAME, new IdIndexEntry("batchedFoo", true), scope)));
+    assertEquals(Collections.singleton(baz),
+                 new HashSet<VirtualFile>(index.getContainingFiles(IdIndex.NAME, new IdIndexEntry("batchedBaz", true), scope)));
+  }
+
+  private static List<VirtualFile> collectUnindexed(FileBasedIndexImpl index, VirtualFile[] files) {
+    final CollectingContentIterator iterator = index.createContentIterator();
+    for (VirtualFile file : files) {
+      iterator.processFile(file);
+    }
+    return iterator.getFiles();
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.PlainTextFileType;
+import com.intellij.openapi.fileTypes.UnknownFileType;
+import junit.framework.TestCase;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+
+public class ContentHashCacheTest extends TestCase {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+  private final ID<String, Void> myIndexId = ID.create("ContentHashCacheTest.index");
+  private final ID<String, Void> myOtherIndexId = ID.create("ContentHashCacheTest.otherIndex");
+
+  public void testSameContentIsReused() {
+    final ContentHashCache cache = new ContentHashCache();
+    final Map<String, Void> data = Collections.singletonMap("foo", null);
+    cache.put(myIndexId, plainText("foo bar", UTF_8), data);
+
+    assertSame(data, cache.get(myIndexId, plainText("foo bar", UTF_8)));
+    assertTrue(cache.getAndResetStatistics().contains("1 of 1"));
+  }
+
+  public void testDifferentContentIsNotReused() {
+    final ContentHashCache cache = new ContentHashCache();
+    cache.put(myIndexId, plainText("foo bar", UTF_8), Collections.singletonMap("foo", null));
+
+    assertNull(cache.get(myIndexId, plainText("foo baz", UTF_8)));
+    assertNull(cache.get(myIndexId, plainText("foo bar", LATIN_1)));
+    assertNull(cache.get(myIndexId, plainText("foo bar", null)));
+    assertNull(cache.get(myIndexId, hash("foo bar", UnknownFileType.INSTANCE, UTF_8)));
+    assertNull(cache.get(myOtherIndexId, plainText("foo bar", UTF_8)));
+    assertTrue(cache.getAndResetStatistics().contains("0 of 5"));
+  }
+
+  public void testSubstitutedFileTypeIsNotDeduplicated() {
+    assertNull(ContentHashCache.computeHash("foo".getBytes(), PlainTextFileType.INSTANCE, UnknownFileType.INSTANCE, UTF_8));
+  }
+
+  public void testClear() {
+    final ContentHashCache cache = new ContentHashCache();
+    cache.put(myIndexId, plainText("foo", UTF_8), Collections.singletonMap("foo", null));
+    cache.clear();
+    assertNull(cache.get(myIndexId, plainText("foo", UTF_8)));
+  }
+
+  private static ContentHashCache.ContentHash plainText(String text, Charset charset) {
+    return hash(text, PlainTextFileType.INSTANCE, charset);
+  }
+
+  private static ContentHashCache.ContentHash hash(String text, FileType fileType, Charset charset) {
+    final ContentHashCache.ContentHash hash = ContentHashCache.computeHash(text.getBytes(UTF_8), fileType, fileType, charset);
+    assertNotNull(hash);
+    return hash;
+  }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import com.intellij.util.io.UnsyncByteArrayOutputStream;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntProcedure;
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+public class IdBitSetTest extends TestCase {
+  private static final int CHUNK = 1 << 16;
+
+  public void testEmpty() {
+    final IdBitSet set = new IdBitSet();
+    assertTrue(set.isEmpty());
+    assertFalse(set.contains(0));
+    assertFalse(set.remove(0));
+    assertFalse(set.iterator().hasNext());
+    assertContents(set, new TreeSet<Integer>());
+  }
+
+  public void testArrayChunk() {
+    final IdBitSet set = new IdBitSet();
+    final TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int id : new int[]{5, 0, 65535, 100, 7, 5}) {
+      assertEquals(expected.add(id), set.add(id));
+    }
+    assertContents(set, expected);
+
+    assertTrue(set.remove(100));
+    assertFalse(set.remove(100));
+    assertFalse(set.remove(101));
+    expected.remove(100);
+    assertContents(set, expected);
+  }
+
+  public void testIdsOfSeveralChunksAreOrdered() {
+    final IdBitSet set = new IdBitSet();
+    final TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int id : new int[]{Integer.MAX_VALUE, CHUNK, 1 << 20, CHUNK - 1, 0, 3 * CHUNK + 17}) {
+      set.add(id);
+      expected.add(id);
+    }
+    assertContents(set, expected);
+
+    // removing the last id of a chunk removes the chunk
+    assertTrue(set.remove(CHUNK));
+    expected.remove(CHUNK);
+    assertContents(set, expected);
+    assertFalse(set.contains(CHUNK + 1));
+  }
+
+  public void testConversionToBitmapAndBack() {
+    final IdBitSet set = new IdBitSet();
+    final TreeSet<Integer> expected = new TreeSet<Integer>();
+    final int base = 5 * CHUNK;
+    for (int i = 0; i < IdBitSet.ARRAY_MAX_SIZE; i++) {
+      set.add(base + i * 3);
+      expected.add(base + i * 3);
+    }
+    assertContents(set, expected);
+
+    // one more id turns the array into a bitmap
+    assertTrue(set.add(base + 1));
+    assertFalse(set.add(base + 1));
+    expected.add(base + 1);
+    assertContents(set, expected);
+    assertTrue(set.contains(base + 1));
+    assertFalse(set.contains(base + 2));
+
+    // and removing it turns the bitmap back into an array
+    assertTrue(set.remove(base + 1));
+    assertFalse(set.remove(base + 1));
+    expected.remove(base + 1);
+    assertContents(set, expected);
+
+    assertTrue(set.add(base + 2));
+    expected.add(base + 2);
+    assertContents(set, expected);
+  }
+
+  public void testFullChunk() {
+    final IdBitSet set = new IdBitSet();
+    final TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < CHUNK; i++) {
+      set.add(CHUNK + i);
+      expected.add(CHUNK + i);
+    }
+    assertContents(set, expected);
+    assertFalse(set.contains(CHUNK - 1));
+    assertFalse(set.contains(2 * CHUNK));
+
+    for (int i = 0; i < CHUNK; i += 2) {
+      set.remove(CHUNK + i);
+      expected.remove(CHUNK + i);
+    }
+    assertContents(set, expected);
+  }
+
+  public void testRandomChanges() {
+    final Random random = new Random(42);
+    final IdBitSet set = new IdBitSet();
+    final TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int round = 0; round < 20; round++) {
+      // dense rounds grow chunks into bitmaps, sparse ones shrink them back into arrays
+      final boolean dense = round % 4 < 2;
+      for (int i = 0; i < 20000; i++) {
+        final int id = randomId(random, dense);
+        if (random.nextInt(3) == 0 || !dense) {
+          assertEquals(expected.remove(id), set.remove(id));
+        }
+        else {
+          assertEquals(expected.add(id), set.add(id));
+        }
+      }
+      assertContents(set, expected);
+    }
+  }
+
+  public void testRetainAll() {
+    final Random random = new Random(17);
+    for (int round = 0; round < 16; round++) {
+      final TreeSet<Integer> first = randomIds(random, round % 2 == 0);
+      final TreeSet<Integer> second = randomIds(random, round / 2 % 2 == 0);
+      final IdBitSet set = toSet(first);
+      set.retainAll(toSet(second));
+      first.retainAll(second);
+      assertContents(set, first);
+    }
+  }
+
+  public void testAddAll() {
+    final Random random = new Random(23);
+    for (int round = 0; round < 16; round++) {
+      final TreeSet<Integer> first = randomIds(random, round % 2 == 0);
+      final TreeSet<Integer> second = randomIds(random, round / 2 % 2 == 0);
+      final IdBitSet set = toSet(first);
+      final IdBitSet other = toSet(second);
+      set.addAll(other);
+      first.addAll(second);
+      assertContents(set, first);
+
+      // the other set is not shared
+      set.add(7 * CHUNK + 5);
+      assertEquals(second.contains(7 * CHUNK + 5), other.contains(7 * CHUNK + 5));
+    }
+  }
+
+  public void testIntersectUnions() {
+    final Random random = new Random(31);
+    for (int round = 0; round < 16; round++) {
+      final List<List<IdBitSet>> groups = new ArrayList<List<IdBitSet>>();
+      TreeSet<Integer> expected = null;
+      for (int g = 0; g < 3; g++) {
+        final List<IdBitSet> group = new ArrayList<IdBitSet>();
+        final TreeSet<Integer> union = new TreeSet<Integer>();
+        for (int k = 0; k <= (round + g) % 3; k++) {
+          final TreeSet<Integer> ids = randomIds(random, (round + k) % 2 == 0);
+          group.add(toSet(ids));
+          union.addAll(ids);
+        }
+        groups.add(group);
+        if (expected == null) {
+          expected = union;
+        }
+        else {
+          expected.retainAll(union);
+        }
+      }
+      final int firstSize = groups.get(0).get(0).size();
+
+      assertContents(IdBitSet.intersectUnions(groups), expected);
+      assertEquals(firstSize, groups.get(0).get(0).size());
+    }
+  }
+
+  public void testIntersectDisjointUnions() {
+    final Random random = new Random(37);
+    final IdBitSet dense = toSet(randomIds(random, true));
+    final IdBitSet other = new IdBitSet();
+    other.add(100 * CHUNK);
+    final List<List<IdBitSet>> groups = new ArrayList<List<IdBitSet>>();
+    groups.add(Collections.singletonList(dense));
+    groups.add(Arrays.asList(other, new IdBitSet()));
+    groups.add(Collections.singletonList(dense));
+
+    assertTrue(IdBitSet.intersectUnions(groups).isEmpty());
+    assertFalse(dense.isEmpty());
+  }
+
+  public void testClone() {
+    final TreeSet<Integer> expected = randomIds(new Random(3), true);
+    final IdBitSet set = toSet(expected);
+    final IdBitSet clone = set.clone();
+    for (int id : expected) {
+      clone.remove(id);
+    }
+    assertTrue(clone.isEmpty());
+    assertContents(set, expected);
+  }
+
+  public void testSaveAndRead() throws IOException {
+    final Random random = new Random(5);
+    for (boolean dense : new boolean[]{false, true}) {
+      final TreeSet<Integer> expected = randomIds(random, dense);
+      final UnsyncByteArrayOutputStream bytes = new UnsyncByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      toSet(expected).save(out);
+      out.close();
+
+      final IdBitSet read = IdBitSet.read(new DataInputStream(new UnsyncByteArrayInputStream(bytes.toByteArray())));
+      assertContents(read, expected);
+    }
+  }
+
+  private static TreeSet<Integer> randomIds(Random random, boolean dense) {
+    final TreeSet<Integer> ids = new TreeSet<Integer>();
+    final int count = dense ? 30000 : 3000;
+    for (int i = 0; i < count; i++) {
+      ids.add(randomId(random, dense));
+    }
+    return ids;
+  }
+
+  // dense ids fall into few chunks, so that they become bitmaps
+  private static int randomId(Random random, boolean dense) {
+    return dense ? random.nextInt(3 * CHUNK) : random.nextInt(50) * CHUNK + random.nextInt(CHUNK);
+  }
+
+  private static IdBitSet toSet(TreeSet<Integer> ids) {
+    final IdBitSet set = new IdBitSet();
+    for (int id : ids) {
+      set.add(id);
+    }
+    return set;
+  }
+
+  private static void assertContents(IdBitSet set, TreeSet<Integer> expected) {
+    assertEquals(expected.size(), set.size());
+    assertEquals(expected.isEmpty(), set.isEmpty());
+
+    final TIntArrayList iterated = new TIntArrayList();
+    final ValueContainer.IntIterator iterator = set.iterator();
+    assertEquals(expected.size(), iterator.size());
+    while (iterator.hasNext()) {
+      iterated.add(iterator.next());
+    }
+
+    final TIntArrayList processed = new TIntArrayList();
+    set.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int id) {
+        processed.add(id);
+        return true;
+      }
+    });
+
+    final TIntArrayList ordered = new TIntArrayList();
+    for (int id : expected) {
+      ordered.add(id);
+      assertTrue(String.valueOf(id), set.contains(id));
+    }
+    assertEquals(ordered, iterated);
+    assertEquals(ordered, processed);
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.testFramework.LightVirtualFile;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IndexUpdateWriterTest extends TestCase {
+  private final List<Runnable> myScheduled = new ArrayList<Runnable>();
+  private final List<List<Integer>> myBatches = new ArrayList<List<Integer>>();
+  private final AtomicInteger myPendingUpdates = new AtomicInteger();
+  private final LightVirtualFile myFile = new LightVirtualFile("a.txt");
+  private int myFailingBatch = -1;
+
+  private final IndexUpdateWriter myWriter = new IndexUpdateWriter(new Executor() {
+    @Override
+    public void execute(@NotNull Runnable command) {
+      myScheduled.add(command);
+    }
+  }) {
+    @Override
+    protected void write(@NotNull List<Update> batch) {
+      final List<Integer> ids = new ArrayList<Integer>();
+      for (Update update : batch) {
+        ids.add(update.inputId);
+      }
+      myBatches.add(ids);
+      if (myBatches.size() - 1 == myFailingBatch) {
+        throw new RuntimeException("write failed");
+      }
+    }
+  };
+
+  public void testDrainWritesInBatchesInOrder() {
+    enqueue(0, 150);
+    assertTrue(myWriter.hasPendingUpdates());
+
+    myWriter.drain();
+    assertFalse(myWriter.hasPendingUpdates());
+    assertEquals(3, myBatches.size());
+    assertEquals(IndexUpdateWriter.MAX_BATCH_SIZE, myBatches.get(0).size());
+    assertEquals(IndexUpdateWriter.MAX_BATCH_SIZE, myBatches.get(1).size());
+    assertEquals(150 - 2 * IndexUpdateWriter.MAX_BATCH_SIZE, myBatches.get(2).size());
+    assertEquals(range(0, 150), writtenIds());
+  }
+
+  public void testSingleDrainScheduled() {
+    enqueue(0, 10);
+    assertEquals(1, myScheduled.size());
+
+    myScheduled.remove(0).run();
+    assertEquals(range(0, 10), writtenIds());
+    assertFalse(myWriter.hasPendingUpdates());
+
+    enqueue(10, 5);
+    assertEquals(1, myScheduled.size());
+    myScheduled.remove(0).run();
+    assertEquals(range(0, 15), writtenIds());
+    assertTrue(myScheduled.isEmpty());
+  }
+
+  public void testFailedWriteReleasesQueueSlots() {
+    myFailingBatch = 0;
+    enqueue(0, 100);
+    try {
+      myWriter.drain();
+      fail();
+    }
+    catch (RuntimeException ignored) {
+    }
+    myWriter.drain();
+    assertEquals(range(0, 100), writtenIds());
+
+    // the queue would be full if the slots of the failed batch were not released
+    enqueue(100, IndexUpdateWriter.MAX_PENDING_UPDATES);
+    myWriter.drain();
+    assertEquals(range(0, 100 + IndexUpdateWriter.MAX_PENDING_UPDATES), writtenIds());
+  }
+
+  private void enqueue(int from, int count) {
+    for (int i = from; i < from + count; i++) {
+      myWriter.enqueue(new IndexUpdateWriter.Update(myFile, i, Collections.emptyMap(), myPendingUpdates));
+    }
+  }
+
+  private List<Integer> writtenIds() {
+    final List<Integer> result = new ArrayList<Integer>();
+    for (List<Integer> batch : myBatches) {
+      result.addAll(batch);
+    }
+    return result;
+  }
+
+  private static List<Integer> range(int from, int to) {
+    final List<Integer> result = new ArrayList<Integer>();
+    for (int i = from; i < to; i++) {
+      result.add(i);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.*;
+
+public class MemoryIndexStorageTest extends TestCase {
+  private File myDir;
+  private MapIndexStorage<String, String> myBackend;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("memoryIndexStorage", null);
+    myBackend = new MapIndexStorage<String, String>(new File(myDir, "index"), new EnumeratorStringDescriptor(),
+                                                     new EnumeratorStringDescriptor(), 16);
+    myBackend.addValue("a", 1, "backend");
+    myBackend.addValue("a", 2, "backend");
+    myBackend.addValue("b", 3, "backend");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myBackend.close();
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testSmallChangesStayInMemory() throws StorageException {
+    final MemoryIndexStorage<String, String> storage = createStorage(10000);
+    storage.removeAllValues("a", 1);
+    storage.addValue("a", 1, "changed");
+    assertEquals(0, storage.getSpillCount());
+    assertTrue(storage.getBufferedSize() > 0);
+    assertContents(storage.read("a"), 1, "changed", 2, "backend");
+  }
+
+  public void testLargeValuesSpillSooner() throws StorageException {
+    final MemoryIndexStorage<String, String> storage = createStorage(1000);
+    storage.addValue("c", 10, "small");
+    assertEquals(0, storage.getSpillCount());
+
+    final StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 1000; i++) large.append('x');
+    storage.addValue("c", 11, large.toString());
+    assertEquals(1, storage.getSpillCount());
+    assertEquals(0, storage.getBufferedSize());
+    assertEquals(1, storage.getSpilledKeysCount());
+    assertContents(storage.read("c"), 10, "small", 11, large.toString());
+  }
+
+  public void testSpilledChangesAreReadBack() throws StorageException {
+    final MemoryIndexStorage<String, String> storage = createStorage(400);
+    storage.removeAllValues("a", 1);
+    storage.addValue("a", 1, "changed");
+    storage.removeAllValues("b", 3);
+    final List<Object> expectedC = new ArrayList<Object>();
+    for (int i = 0; storage.getSpillCount() == 0; i++) {
+      storage.addValue("c", 100 + i, "new");
+      expectedC.add(100 + i);
+      expectedC.add("new");
+    }
+    assertEquals(3, storage.getSpilledKeysCount());
+    assertEquals(0, storage.getBufferedSize());
+
+    assertContents(storage.read("c"), expectedC.toArray());
+    assertContents(storage.read("a"), 1, "changed", 2, "backend");
+    assertContents(storage.read("b"));
+    assertEquals(new HashSet<String>(Arrays.asList("a", "c")), new HashSet<String>(storage.getKeys()));
+
+    // a spilled key goes back to memory with its changes on the next change
+    storage.removeAllValues("a", 2);
+    assertEquals(2, storage.getSpilledKeysCount());
+    assertContents(storage.read("a"), 1, "changed");
+
+    storage.clearMemoryMap();
+    assertEquals(0, storage.getSpilledKeysCount());
+    assertContents(storage.read("a"), 1, "backend", 2, "backend");
+    assertContents(storage.read("b"), 3, "backend");
+    assertContents(storage.read("c"));
+  }
+
+  public void testNoSpillingWithoutDescriptors() throws StorageException {
+    final MemoryIndexStorage<String, String> storage = new MemoryIndexStorage<String, String>(myBackend, null, null, 1);
+    storage.setBufferingEnabled(true);
+    storage.addValue("a", 5, "changed");
+    assertEquals(0, storage.getSpillCount());
+    assertContents(storage.read("a"), 1, "backend", 2, "backend", 5, "changed");
+  }
+
+  private MemoryIndexStorage<String, String> createStorage(long limit) {
+    final MemoryIndexStorage<String, String> storage =
+      new MemoryIndexStorage<String, String>(myBackend, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(), limit);
+    storage.setBufferingEnabled(true);
+    return storage;
+  }
+
+  private static void assertContents(ValueContainer<String> container, Object... idsAndValues) {
+    final Map<Integer, String> expected = new HashMap<Integer, String>();
+    for (int i = 0; i < idsAndValues.length; i += 2) {
+      expected.put((Integer)idsAndValues[i], (String)idsAndValues[i + 1]);
+    }
+    final Map<Integer, String> actual = new HashMap<Integer, String>();
+    container.forEach(new ValueContainer.ContainerAction<String>() {
+      @Override
+      public boolean perform(int id, String value) {
+        assertNull(actual.put(id, value));
+        return true;
+      }
+    });
+    assertEquals(expected, actual);
+  }
+}
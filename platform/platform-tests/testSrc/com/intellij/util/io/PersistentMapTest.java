@@ -1,6 +1,7 @@
 package com.intellij.util.io;
 
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.util.ThrowableRunnable;
 import com.intellij.util.containers.IntObjectCache;
@@ -11,6 +12,10 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Eugene Zhuravlev
@@ -336,6 +341,137 @@ public class PersistentMapTest extends TestCase {
       .printf("Data file size = %d bytes\n", new File(myDataFile.getParentFile(), myDataFile.getName() + Storage.DATA_EXTENSION).length());
   }
   
+  public void testBackgroundCompaction() throws Exception {
+    final int keysCount = 5000;
+    for (int round = 0; round < 3; ++round) {
+      for (int i = 0; i < keysCount; ++i) {
+        myMap.put("key" + i, "key" + i + "_value" + round);
+      }
+    }
+    assertTrue(myMap.getGarbageSize() > 0);
+
+    final PersistentHashMapCompactor compactor = new PersistentHashMapCompactor(myMap, 100, 0);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> future = executor.submit(compactor);
+      for (int i = 0; i < keysCount; i += 10) {
+        myMap.put("key" + i, "key" + i + "_updated");
+        assertEquals("key" + (i + 1) + "_value2", myMap.get("key" + (i + 1)));
+      }
+      future.get();
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    assertTrue(compactor.isCompleted());
+    assertEquals(1.0, compactor.getProgress());
+    assertTrue(compactor.getReclaimedBytes() > 0);
+    assertEquals(0, myMap.getGarbageSize());
+
+    for (int i = 0; i < keysCount; ++i) {
+      assertEquals("key" + i + (i % 10 == 0 ? "_updated" : "_value2"), myMap.get("key" + i));
+    }
+  }
+
+  public void testForceSchedulesBackgroundCompaction() throws Exception {
+    final int keysCount = 2000;
+    final String padding = StringUtil.repeat("x", 1000);
+    myMap.force();
+    assertNull(myMap.getBackgroundCompaction());
+
+    for (int round = 0; round < 3; ++round) {
+      for (int i = 0; i < keysCount; ++i) {
+        myMap.put("key" + i, padding + round);
+      }
+    }
+    final long garbageLength = myDataFile.length();
+    myMap.force();
+    final Future<?> compaction = myMap.getBackgroundCompaction();
+    assertNotNull(compaction);
+    compaction.get();
+
+    assertEquals(0, myMap.getGarbageSize());
+    assertTrue(myDataFile.length() < garbageLength / 2);
+    for (int i = 0; i < keysCount; ++i) {
+      assertEquals(padding + 2, myMap.get("key" + i));
+    }
+  }
+
+  public void testConcurrentReadsAndAppends() throws Exception {
+    final int keysCount = 10000;
+    for (int i = 0; i < keysCount; ++i) {
+      myMap.put("key" + i, "key" + i + "_value");
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int t = 0; t < 4; ++t) {
+        final int threadIndex = t;
+        futures.add(executor.submit(new Callable<Object>() {
+          @Override
+          public Object call() throws Exception {
+            Random random = new Random(threadIndex);
+            for (int i = 0; i < 20000; ++i) {
+              final int key = random.nextInt(keysCount);
+              if (threadIndex == 0 && i % 10 == 0) {
+                myMap.put("key" + key, "key" + key + "_value");
+              }
+              assertEquals("key" + key + "_value", myMap.get("key" + key));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testConcurrentReadsPerformance() throws Exception {
+    final List<String> strings = new ArrayList<String>(100000);
+    for (int i = 0; i < 100000; ++i) {
+      final String string = createRandomString();
+      strings.add(string);
+      myMap.put(string, string + "_value");
+    }
+
+    // each reader gets all the values; the same reads take about 1300 ms in a single thread,
+    // so readers waiting for each other on a single lock don't fit the time expected for 8 cores
+    final int threadsCount = 8;
+    PlatformTestUtil.startPerformanceTest("concurrent PersistentHashMap reads", 700, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threadsCount);
+        try {
+          List<Future<?>> futures = new ArrayList<Future<?>>();
+          for (int t = 0; t < threadsCount; ++t) {
+            futures.add(executor.submit(new Callable<Object>() {
+              @Override
+              public Object call() throws Exception {
+                for (String string : strings) {
+                  assertEquals(string + "_value", myMap.get(string));
+                }
+                return null;
+              }
+            }));
+          }
+          for (Future<?> future : futures) {
+            future.get();
+          }
+        }
+        finally {
+          executor.shutdownNow();
+        }
+      }
+    }).cpuBound().usesAllCPUCores().assertTiming();
+  }
+
   private static String createRandomString() {
     return StringEnumeratorTest.createRandomString();
   }
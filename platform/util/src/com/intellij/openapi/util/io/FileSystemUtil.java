@@ -296,6 +296,7 @@ public class FileSystemUtil {
     private interface LibC extends Library {
       // from stat(2)
       int S_MASK = 0177777;
+      int S_IFMT = 0170000;   // file type
       int S_IFLNK = 0120000;  // symbolic link
       int S_IFREG = 0100000;  // regular file
       int S_IFDIR = 0040000;  // directory
@@ -307,14 +308,18 @@ public class FileSystemUtil {
     }
 
     private final LibC myLibC;
-    private final Memory mySharedMem;
+    private final ThreadLocal<Memory> myBuffers = new ThreadLocal<Memory>() {
+      @Override
+      protected Memory initialValue() {
+        return new Memory(512);
+      }
+    };
     private final int myModeOffset;
     private final int mySizeOffset;
     private final int myTimeOffset;
 
     private JnaUnixMediatorImpl() throws Exception {
       myLibC = (LibC)Native.loadLibrary("c", LibC.class);
-      mySharedMem = new Memory(512);
       myModeOffset = SystemInfo.isLinux ? (SystemInfo.is32Bit ? 16 : 24) :
                      SystemInfo.isMac | SystemInfo.isFreeBSD ? 8 :
                      SystemInfo.isSolaris ? (SystemInfo.is32Bit ? 20 : 16) :
@@ -331,17 +336,20 @@ public class FileSystemUtil {
     }
 
     @Override
-    public synchronized FileAttributes getAttributes(@NotNull final String path) throws Exception {
-      mySharedMem.clear();
-      final int res = SystemInfo.isLinux ? myLibC.__lxstat64(0, path, mySharedMem) : myLibC.lstat(path, mySharedMem);
+    public FileAttributes getAttributes(@NotNull final String path) throws Exception {
+      // a buffer per thread lets concurrent refresh threads stat files in parallel
+      final Memory buffer = myBuffers.get();
+      buffer.clear();
+      final int res = SystemInfo.isLinux ? myLibC.__lxstat64(0, path, buffer) : myLibC.lstat(path, buffer);
       if (res == 0) {
-        final int mode = (SystemInfo.isLinux ? mySharedMem.getInt(myModeOffset) : mySharedMem.getShort(myModeOffset)) & LibC.S_MASK;
-        final boolean isDirectory = (mode & LibC.S_IFDIR) == LibC.S_IFDIR;
-        final boolean isSymlink = (mode & LibC.S_IFLNK) == LibC.S_IFLNK;
-        final boolean isSpecial = !isDirectory && !isSymlink && (mode & LibC.S_IFREG) == 0;
-        final long size = mySharedMem.getLong(mySizeOffset);
-        final long mTime1 = SystemInfo.is32Bit ? mySharedMem.getInt(myTimeOffset) : mySharedMem.getLong(myTimeOffset);
-        final long mTime2 = SystemInfo.is32Bit ? mySharedMem.getInt(myTimeOffset + 4) : mySharedMem.getLong(myTimeOffset + 8);
+        final int mode = (SystemInfo.isLinux ? buffer.getInt(myModeOffset) : buffer.getShort(myModeOffset)) & LibC.S_MASK;
+        final int type = mode & LibC.S_IFMT;
+        final boolean isDirectory = type == LibC.S_IFDIR;
+        final boolean isSymlink = type == LibC.S_IFLNK;
+        final boolean isSpecial = !isDirectory && !isSymlink && type != LibC.S_IFREG;
+        final long size = buffer.getLong(mySizeOffset);
+        final long mTime1 = SystemInfo.is32Bit ? buffer.getInt(myTimeOffset) : buffer.getLong(myTimeOffset);
+        final long mTime2 = SystemInfo.is32Bit ? buffer.getInt(myTimeOffset + 4) : buffer.getLong(myTimeOffset + 8);
         final long mTime = mTime1 * 1000 + mTime2 / 1000000;
         @FileAttributes.Permissions final int permissions = mode & LibC.PERM_MASK;
         return new FileAttributes(isDirectory, isSymlink, isSpecial, size, mTime, permissions);
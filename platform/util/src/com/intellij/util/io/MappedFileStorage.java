@@ -0,0 +1,284 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.util.SystemProperties;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read-only storage which maps the file with large windows (up to 1Gb) and keeps them mapped until the storage is closed.
+ * Unlike {@link PagedFileStorage} it is addressed with long offsets, so files larger than 2Gb are supported, and it does not
+ * copy data: {@link #slice(long, int)} returns a view of the mapped window.
+ * <p/>
+ * Only the windows which are completely inside the file are mapped, the tail of the file is read with positioned reads. So the file
+ * may be appended to while it is read, and the mapped data never changes.
+ * <p/>
+ * Storage can be read from several threads. {@link #close()} waits for the reads in progress and unmaps the windows, so slices
+ * should not be used after that.
+ */
+public class MappedFileStorage implements Closeable {
+  public static final int MAX_WINDOW_SIZE = 1024 * PagedFileStorage.MB;
+  public static final int DEFAULT_WINDOW_SIZE =
+    Math.min(SystemProperties.getIntProperty("idea.mapped.storage.window.size", SystemInfo.is64Bit ? 256 : 32), 1024) * PagedFileStorage.MB;
+
+  private final File myFile;
+  private final int myWindowSize;
+  private final int myWindowShift;
+  private final RandomAccessFile myTailFile;
+  private volatile long myLength;
+  private volatile MappedBufferWrapper[] myWindows;
+  private volatile boolean myClosed;
+  // reads hold the read lock, so windows are never unmapped under an active reader
+  private final ReentrantReadWriteLock myCloseLock = new ReentrantReadWriteLock();
+
+  public MappedFileStorage(@NotNull File file) throws IOException {
+    this(file, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param windowSize size of mapped window, rounded down to a power of two in [{@link Page#PAGE_SIZE}, {@link #MAX_WINDOW_SIZE}] range
+   */
+  public MappedFileStorage(@NotNull File file, int windowSize) throws IOException {
+    myFile = file;
+    myWindowSize = Integer.highestOneBit(Math.max(Page.PAGE_SIZE, Math.min(windowSize, MAX_WINDOW_SIZE)));
+    myWindowShift = Integer.numberOfTrailingZeros(myWindowSize);
+    myTailFile = new RandomAccessFile(file, "r");
+    myLength = myTailFile.length();
+    myWindows = new MappedBufferWrapper[windowsCount(myLength)];
+  }
+
+  @NotNull
+  public File getFile() {
+    return myFile;
+  }
+
+  public int getWindowSize() {
+    return myWindowSize;
+  }
+
+  public long length() {
+    return myLength;
+  }
+
+  /**
+   * Makes data appended to the file since the storage was opened available for reading.
+   */
+  public synchronized void refreshLength() throws IOException {
+    if (myClosed) throw new IllegalStateException("Storage is closed: " + myFile);
+    final long length = myTailFile.length();
+    if (length <= myLength) return;
+
+    final MappedBufferWrapper[] windows = myWindows;
+    final int windowsCount = windowsCount(length);
+    if (windowsCount > windows.length) {
+      final MappedBufferWrapper[] newWindows = new MappedBufferWrapper[windowsCount];
+      System.arraycopy(windows, 0, newWindows, 0, windows.length);
+      myWindows = newWindows;
+    }
+    myLength = length;
+  }
+
+  // number of windows which are completely inside the file
+  private int windowsCount(long length) {
+    return (int)(length >>> myWindowShift);
+  }
+
+  public byte get(long addr) throws IOException {
+    final byte[] bytes = new byte[1];
+    get(addr, bytes, 0, 1);
+    return bytes[0];
+  }
+
+  public int getInt(long addr) throws IOException {
+    final int offset = offsetInWindow(addr);
+    if (offset + 4 <= myWindowSize) {
+      final Lock lock = lockForRead(addr, 4);
+      try {
+        final ByteBuffer window = getWindow(addr);
+        if (window != null) return window.getInt(offset);
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+    final byte[] bytes = new byte[4];
+    get(addr, bytes, 0, bytes.length);
+    return Bits.getInt(bytes, 0);
+  }
+
+  public long getLong(long addr) throws IOException {
+    final int offset = offsetInWindow(addr);
+    if (offset + 8 <= myWindowSize) {
+      final Lock lock = lockForRead(addr, 8);
+      try {
+        final ByteBuffer window = getWindow(addr);
+        if (window != null) return window.getLong(offset);
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+    final byte[] bytes = new byte[8];
+    get(addr, bytes, 0, bytes.length);
+    return Bits.getLong(bytes, 0);
+  }
+
+  public void get(long addr, byte[] dst, int off, int length) throws IOException {
+    if (off < 0 || off + length > dst.length) {
+      throw new IndexOutOfBoundsException("off=" + off + ", length=" + length + ", dst.length=" + dst.length);
+    }
+    final Lock lock = lockForRead(addr, length);
+    try {
+      while (length > 0) {
+        final int offset = offsetInWindow(addr);
+        final int len = Math.min(length, myWindowSize - offset);
+        final ByteBuffer window = getWindow(addr);
+        if (window != null) {
+          final ByteBuffer buffer = window.duplicate();
+          buffer.position(offset);
+          buffer.get(dst, off, len);
+        }
+        else {
+          readTail(addr, ByteBuffer.wrap(dst, off, len));
+        }
+
+        length -= len;
+        off += len;
+        addr += len;
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return read-only view of the given file range, data is copied only when the range crosses the window boundary or is
+   * in the tail of the file which is not mapped
+   */
+  @NotNull
+  public ByteBuffer slice(long addr, int length) throws IOException {
+    final int offset = offsetInWindow(addr);
+    if (offset + length <= myWindowSize) {
+      final Lock lock = lockForRead(addr, length);
+      try {
+        final ByteBuffer window = getWindow(addr);
+        if (window != null) {
+          final ByteBuffer buffer = window.duplicate();
+          buffer.position(offset);
+          buffer.limit(offset + length);
+          return buffer.slice().asReadOnlyBuffer();
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    final byte[] bytes = new byte[length];
+    get(addr, bytes, 0, length);
+    return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+  }
+
+  private int offsetInWindow(long addr) {
+    return (int)(addr & (myWindowSize - 1));
+  }
+
+  @NotNull
+  private Lock lockForRead(long addr, int length) {
+    if (addr < 0 || length < 0 || addr + length > myLength) {
+      throw new IndexOutOfBoundsException("addr=" + addr + ", length=" + length + ", file.length=" + myLength + ", file=" + myFile);
+    }
+    final Lock lock = myCloseLock.readLock();
+    lock.lock();
+    if (myClosed) {
+      lock.unlock();
+      throw new IllegalStateException("Storage is closed: " + myFile);
+    }
+    return lock;
+  }
+
+  private void readTail(long addr, @NotNull ByteBuffer dst) throws IOException {
+    final FileChannel channel = myTailFile.getChannel();
+    while (dst.hasRemaining()) {
+      final int read = channel.read(dst, addr);
+      if (read < 0) throw new IOException("Unexpected end of file at " + addr + ": " + myFile);
+      addr += read;
+    }
+  }
+
+  /**
+   * @return mapped window holding the given address or null if the address is in the tail of the file which is not mapped
+   */
+  private ByteBuffer getWindow(long addr) throws IOException {
+    final int index = (int)(addr >>> myWindowShift);
+    MappedBufferWrapper[] windows = myWindows;
+    if (index >= windows.length) return null;
+
+    final MappedBufferWrapper window = windows[index];
+    if (window != null) {
+      final ByteBuffer buffer = window.getCachedBuffer();
+      if (buffer != null) return buffer;
+    }
+
+    synchronized (this) {
+      windows = myWindows;
+      MappedBufferWrapper newWindow = windows[index];
+      if (newWindow == null) {
+        newWindow = new ReadOnlyMappedBufferWrapper(myFile, (long)index << myWindowShift, myWindowSize);
+        windows[index] = newWindow;
+      }
+      try {
+        return newWindow.getBuffer();
+      }
+      catch (IOException e) {
+        throw new MappingFailedException("Cannot map " + myFile + " at " + addr, e);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    final Lock lock = myCloseLock.writeLock();
+    lock.lock();
+    try {
+      synchronized (this) {
+        if (myClosed) return;
+        myClosed = true;
+
+        final MappedBufferWrapper[] windows = myWindows;
+        myWindows = new MappedBufferWrapper[0];
+        for (MappedBufferWrapper window : windows) {
+          if (window != null) window.dispose();
+        }
+        myTailFile.close();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+}
@@ -19,136 +19,232 @@
  */
 package com.intellij.util.io;
 
-import com.intellij.util.containers.hash.LinkedHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-
-@SuppressWarnings({"AssignmentToStaticFieldFromInstanceMethod"})
+/**
+ * Pages are hashed by {@link PoolPageKey} into independently locked segments. A page hit is lock-free, the segment lock is taken
+ * only to load a missing page and to evict a page with CLOCK (second chance) algorithm.
+ */
 public class PagePool {
-  private final Map<PoolPageKey, Page> myProtectedQueue;
-  private final Map<PoolPageKey, Page> myProbationalQueue;
+  private static final int SEGMENTS_COUNT = 16;
+  private static final int DEFAULT_PAGES_LIMIT = 1000;
+  private static final int DEFAULT_HEAP_PERCENT = 1;
+
+  private final Segment[] mySegments;
 
   private int finalizationId = 0;
 
   private final TreeMap<PoolPageKey, FinalizationRequest> myFinalizationQueue = new TreeMap<PoolPageKey, FinalizationRequest>();
 
-  private final Object lock = new Object();
+  private final Object lock = new Object(); // guards finalization queue
   private final Object finalizationMonitor = new Object();
-  private final PoolPageKey keyInstance = new PoolPageKey(null, -1);
 
   private PoolPageKey lastFinalizedKey = null;
 
   public PagePool(final int protectedPagesLimit, final int probationalPagesLimit) {
-    myProbationalQueue = new LinkedHashMap<PoolPageKey,Page>(probationalPagesLimit * 2, 0.6f) {
-      @Override
-      protected boolean removeEldestEntry(final Map.Entry<PoolPageKey, Page> eldest) {
-        if (size() > probationalPagesLimit) {
-          scheduleFinalization(eldest.getValue());
-          return true;
-        }
-        return false;
+    this(protectedPagesLimit + probationalPagesLimit);
+  }
+
+  public PagePool(final int pagesLimit) {
+    mySegments = new Segment[SEGMENTS_COUNT];
+    final int segmentCapacity = Math.max(1, (pagesLimit + SEGMENTS_COUNT - 1) / SEGMENTS_COUNT);
+    for (int i = 0; i < mySegments.length; i++) {
+      mySegments[i] = new Segment(segmentCapacity);
+    }
+  }
+
+  /**
+   * @return number of pages occupying given percent of max heap size, but not less than default pool size
+   */
+  public static int pagesLimitForHeapPercent(int percent) {
+    final long pages = Runtime.getRuntime().maxMemory() / 100 * percent / Page.PAGE_SIZE;
+    return (int)Math.max(DEFAULT_PAGES_LIMIT, Math.min(pages, Integer.MAX_VALUE));
+  }
+
+  private static int getSharedPoolHeapPercent() {
+    final String property = System.getProperty("idea.page.pool.heap.percent");
+    if (property != null) {
+      try {
+        return Integer.parseInt(property);
       }
-    };
-
-    myProtectedQueue = new LinkedHashMap<PoolPageKey, Page>(protectedPagesLimit, 0.6f) {
-      @Override
-      protected boolean removeEldestEntry(final Map.Entry<PoolPageKey, Page> eldest) {
-        if (size() > protectedPagesLimit) {
-          myProbationalQueue.put(eldest.getKey(), eldest.getValue());
-          return true;
-        }
-        return false;
+      catch (NumberFormatException ignored) {
       }
-    };
+    }
+    return DEFAULT_HEAP_PERCENT;
   }
 
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int cache_misses = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int same_page_hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int protected_queue_hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int probational_queue_hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int finalization_queue_hits = 0;
+  public final static PagePool SHARED = new PagePool(pagesLimitForHeapPercent(getSharedPoolHeapPercent()));
 
-  public final static PagePool SHARED = new PagePool(500, 500);
+  private static class PageEntry {
+    private final Page page;
+    private volatile boolean referenced;
 
-  private RandomAccessDataFile lastOwner = null;
-  private long lastOffset = 0;
-  private Page lastHit = null;
+    private PageEntry(@NotNull Page page) {
+      this.page = page;
+    }
+  }
 
-  @SuppressWarnings({"AssignmentToStaticFieldFromInstanceMethod"})
-  @NotNull
-  public Page alloc(RandomAccessDataFile owner, long offset) {
-    synchronized (lock) {
-      offset -= offset % Page.PAGE_SIZE;
-      hits++;
+  private static class Segment {
+    private final ConcurrentMap<PoolPageKey, PageEntry> myPages = new ConcurrentHashMap<PoolPageKey, PageEntry>();
+    private final PageEntry[] myClock; // guarded by this
+    private int myClockSize;
+    private int myClockHand;
 
-      if (owner == lastOwner && offset == lastOffset) {
-        same_page_hits++;
-        return lastHit;
-      }
+    private final AtomicLong myHits = new AtomicLong();
+    private final AtomicLong myMisses = new AtomicLong();
+    private final AtomicLong myFinalizationQueueHits = new AtomicLong();
 
-      lastOffset = offset;
-      lastOwner = owner;
-      lastHit = hitQueues(owner, offset);
+    private Segment(int capacity) {
+      myClock = new PageEntry[capacity];
+    }
 
-      flushFinalizationQueue(Integer.MAX_VALUE);
+    /**
+     * @return evicted page if any
+     */
+    @Nullable
+    private Page add(@NotNull PageEntry entry) {
+      myPages.put(entry.page.getKey(), entry);
+      if (myClockSize < myClock.length) {
+        myClock[myClockSize++] = entry;
+        return null;
+      }
 
-      return lastHit;
+      while (true) {
+        final PageEntry candidate = myClock[myClockHand];
+        if (candidate.referenced) {
+          candidate.referenced = false;
+          myClockHand = (myClockHand + 1) % myClockSize;
+        }
+        else {
+          myPages.remove(candidate.page.getKey());
+          myClock[myClockHand] = entry;
+          myClockHand = (myClockHand + 1) % myClockSize;
+          return candidate.page;
+        }
+      }
+    }
+
+    private void removeOwnedBy(@NotNull RandomAccessDataFile owner, @NotNull List<Page> removed) {
+      int newSize = 0;
+      for (int i = 0; i < myClockSize; i++) {
+        final PageEntry entry = myClock[i];
+        if (entry.page.getOwner() == owner) {
+          myPages.remove(entry.page.getKey());
+          removed.add(entry.page);
+        }
+        else {
+          myClock[newSize++] = entry;
+        }
+      }
+      for (int i = newSize; i < myClockSize; i++) {
+        myClock[i] = null;
+      }
+      myClockSize = newSize;
+      myClockHand = 0;
     }
   }
 
-  private Page hitQueues(final RandomAccessDataFile owner, final long offset) {
-    PoolPageKey key = setupKey(owner, offset);
+  @NotNull
+  private Segment getSegment(@NotNull PoolPageKey key) {
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12); // offsets are page aligned, so low bits come from the owner only
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return mySegments[h & (SEGMENTS_COUNT - 1)];
+  }
 
-    Page page = myProtectedQueue.get(key);
-    if (page != null) {
-      protected_queue_hits++;
-      return page;
+  @NotNull
+  public Page alloc(RandomAccessDataFile owner, long offset) {
+    offset -= offset % Page.PAGE_SIZE;
+    final PoolPageKey key = new PoolPageKey(owner, offset);
+    final Segment segment = getSegment(key);
+
+    PageEntry entry = segment.myPages.get(key);
+    if (entry != null) {
+      entry.referenced = true;
+      segment.myHits.incrementAndGet();
+      return entry.page;
     }
 
-    page = myProbationalQueue.remove(key);
-    if (page != null) {
-      probational_queue_hits++;
-      toProtectedQueue(page);
-      return page;
-    }
+    final Page page;
+    synchronized (segment) {
+      entry = segment.myPages.get(key);
+      if (entry != null) {
+        entry.referenced = true;
+        segment.myHits.incrementAndGet();
+        return entry.page;
+      }
 
-    final FinalizationRequest request = myFinalizationQueue.remove(key);
-    if (request != null) {
-      page = request.page;
-      finalization_queue_hits++;
-      toProtectedQueue(page);
-      return page;
+      final FinalizationRequest request;
+      synchronized (lock) {
+        request = myFinalizationQueue.remove(key);
+      }
+      if (request != null) {
+        segment.myFinalizationQueueHits.incrementAndGet();
+        page = request.page;
+      }
+      else {
+        segment.myMisses.incrementAndGet();
+        page = new Page(owner, offset);
+      }
+      final Page evicted = segment.add(new PageEntry(page));
+      if (evicted != null) {
+        // should be queued before the segment is unlocked, otherwise the page might be loaded again before its changes are flushed
+        scheduleFinalization(evicted);
+      }
     }
 
-    cache_misses++;
-    page = new Page(owner, offset);
-
-    myProbationalQueue.put(keyForPage(page), page);
+    flushFinalizationQueue(Integer.MAX_VALUE);
 
     return page;
   }
 
-  //private long lastFlushTime = 0;
-  
-  private static double percent(int part, int whole) {
+  public long getHitsCount() {
+    long count = 0;
+    for (Segment segment : mySegments) {
+      count += segment.myHits.get();
+    }
+    return count;
+  }
+
+  public long getMissesCount() {
+    long count = 0;
+    for (Segment segment : mySegments) {
+      count += segment.myMisses.get();
+    }
+    return count;
+  }
+
+  public long getFinalizationQueueHitsCount() {
+    long count = 0;
+    for (Segment segment : mySegments) {
+      count += segment.myFinalizationQueueHits.get();
+    }
+    return count;
+  }
+
+  private static double percent(long part, long whole) {
     return ((double)part * 1000 / whole) / 10;
   }
 
   @SuppressWarnings({"ALL"})
   public static void printStatistics() {
-    System.out.println("Total requests: " + hits);
-    System.out.println("Same page hits: " + same_page_hits + " (" + percent(same_page_hits, hits) + "%)");
-    System.out.println("Protected queue hits: " + protected_queue_hits + " (" + percent(protected_queue_hits, hits) + "%)");
-    System.out.println("Probatinonal queue hits: " + probational_queue_hits + " (" + percent(probational_queue_hits, hits) + "%)");
-    System.out.println("Finalization queue hits: " + finalization_queue_hits + " (" + percent(finalization_queue_hits, hits) + "%)");
-    System.out.println("Cache misses: " + cache_misses + " (" + percent(cache_misses, hits) + "%)");
+    final long hits = SHARED.getHitsCount();
+    final long finalizationQueueHits = SHARED.getFinalizationQueueHitsCount();
+    final long misses = SHARED.getMissesCount();
+    final long total = hits + finalizationQueueHits + misses;
+    System.out.println("Total requests: " + total);
+    System.out.println("Pool hits: " + hits + " (" + percent(hits, total) + "%)");
+    System.out.println("Finalization queue hits: " + finalizationQueueHits + " (" + percent(finalizationQueueHits, total) + "%)");
+    System.out.println("Cache misses: " + misses + " (" + percent(misses, total) + "%)");
 
     System.out.println("Total reads: " + RandomAccessDataFile.totalReads + ". Bytes read: " + RandomAccessDataFile.totalReadBytes);
     System.out.println("Total writes: " + RandomAccessDataFile.totalWrites + ". Bytes written: " + RandomAccessDataFile.totalWriteBytes);
@@ -158,15 +254,6 @@ public class PagePool {
     return page.getKey();
   }
 
-  private void toProtectedQueue(final Page page) {
-    myProtectedQueue.put(keyForPage(page), page);
-  }
-
-  private PoolPageKey setupKey(RandomAccessDataFile owner, long offset) {
-    keyInstance.setup(owner, offset);
-    return keyInstance;
-  }
-
   public void flushPages(final RandomAccessDataFile owner) {
     flushPages(owner, Integer.MAX_VALUE);
   }
@@ -178,16 +265,17 @@ public class PagePool {
    * @return true if all the dirty pages where flushed.
    */
   public boolean flushPages(final RandomAccessDataFile owner, final int maxPagesToFlush) {
-    boolean hasFlushes;
-    synchronized (lock) {
-      if (lastOwner == owner) {
-        scheduleFinalization(lastHit);
-        lastHit = null;
-        lastOwner = null;
+    boolean hasFlushes = false;
+    final List<Page> removed = new ArrayList<Page>();
+    for (Segment segment : mySegments) {
+      synchronized (segment) {
+        segment.removeOwnedBy(owner, removed);
+        for (Page page : removed) {
+          scheduleFinalization(page);
+        }
       }
-
-      hasFlushes = scanQueue(owner, myProtectedQueue);
-      hasFlushes |= scanQueue(owner, myProbationalQueue);
+      hasFlushes |= !removed.isEmpty();
+      removed.clear();
     }
 
     return !hasFlushes || flushFinalizationQueue(maxPagesToFlush);
@@ -209,21 +297,6 @@ public class PagePool {
     return false;
   }
 
-  private boolean scanQueue(final RandomAccessDataFile owner, final Map<?, Page> queue) {
-    Iterator<Page> iterator = queue.values().iterator();
-    boolean hasFlushes = false;
-    while (iterator.hasNext()) {
-      Page page = iterator.next();
-
-      if (page.getOwner() == owner) {
-        scheduleFinalization(page);
-        iterator.remove();
-        hasFlushes = true;
-      }
-    }
-    return hasFlushes;
-  }
-
   private boolean scheduleFinalization(final Page page) {
     final int curFinalizationId;
     synchronized (lock) {
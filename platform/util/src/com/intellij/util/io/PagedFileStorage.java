@@ -362,6 +362,26 @@ public class PagedFileStorage implements Forceable {
     return getBuffer(page, true);
   }
 
+  /**
+   * @return buffer holding the given page, it is valid until {@link #getMappingChangeCount()} changes. The buffer is shared
+   * with the storage so only its absolute get methods should be used.
+   */
+  @NotNull
+  public ByteBuffer getPageBuffer(int page) {
+    return getBuffer(page, false);
+  }
+
+  /**
+   * @return counter which is changed when buffers of the storages sharing the storage lock are mapped or unmapped
+   */
+  public int getMappingChangeCount() {
+    return myStorageLockContext.myStorageLock.myMappingChangeCount;
+  }
+
+  public int getPageSize() {
+    return myPageSize;
+  }
+
   private ByteBuffer getBuffer(int page, boolean modify) {
     if (myLastPage == page) {
       ByteBuffer buf = myLastBuffer.getCachedBuffer();
@@ -469,6 +489,7 @@ public class PagedFileStorage implements Forceable {
           // this method can be called after removeEldestEntry
           ByteBufferWrapper wrapper = super.remove(key);
           if (wrapper != null) {
+            ++myMappingChangeCount;
             mySize -= wrapper.myLength;
             wrapper.dispose();
           }
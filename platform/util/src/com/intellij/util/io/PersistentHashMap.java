@@ -20,9 +20,13 @@ import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongLongHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -31,6 +35,10 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @author Eugene Zhuravlev
@@ -39,7 +47,7 @@ import java.util.List;
 public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<Key> implements PersistentMap<Key, Value> {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.PersistentHashMap");
 
-  private PersistentHashMapValueStorage myValueStorage;
+  private volatile PersistentHashMapValueStorage myValueStorage;
   protected final DataExternalizer<Value> myValueExternalizer;
   private static final long NULL_ADDR = 0;
   private static final int INITIAL_INDEX_SIZE;
@@ -62,6 +70,16 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private int myLargeIndexWatermarkId;  // starting with this id we store offset in adjacent file in long format
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = false;
+  // value storage reads are performed outside of enumerator lock, compaction and closing should wait for them
+  private final ReentrantReadWriteLock myValueStorageLock = new ReentrantReadWriteLock();
+
+  // maps that got enough garbage since opening are compacted in the background, one map at a time
+  private static final boolean BACKGROUND_COMPACTION = SystemProperties.getBooleanProperty("idea.persistent.hash.map.background.compaction", true);
+  private static final long BACKGROUND_COMPACTION_BYTES_PER_SECOND = 16 * 1024 * 1024;
+  private static final ExecutorService ourCompactionExecutor = ConcurrencyUtil.newSingleThreadExecutor("PersistentHashMap compactor", Thread.MIN_PRIORITY);
+  private PersistentHashMapCompactor myCompactor;
+  private Future<?> myCompaction;
+  private volatile boolean myValueStorageClosed;
 
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
@@ -374,32 +392,52 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
   @Override
   public final Value get(Key key) throws IOException {
-    synchronized (myEnumerator) {
-      return doGet(key);
-    }
+    return doGet(key);
   }
 
+  /**
+   * Called without enumerator lock held: the lock is taken to locate value chunks and to deserialize the value (externalizers
+   * are not required to be thread safe), while reading the value bytes is performed concurrently with other readers and writers.
+   * Appended chunks are never modified so a value being appended concurrently is read in its previous consistent state.
+   */
   @Nullable
   protected Value doGet(Key key) throws IOException {
-    myEnumerator.lockStorage();
-    try {
-      myAppendCache.remove(key);
-      final int id = tryEnumerate(key);
-      if (id == PersistentEnumerator.NULL_ID) {
-        return null;
+    final long oldHeader;
+    final PersistentHashMapValueStorage valueStorage;
+    final Lock readLock = myValueStorageLock.readLock();
+
+    synchronized (myEnumerator) {
+      myEnumerator.lockStorage();
+      try {
+        myAppendCache.remove(key);
+        final int id = tryEnumerate(key);
+        if (id == PersistentEnumerator.NULL_ID) {
+          return null;
+        }
+        oldHeader = readValueId(id);
+        if (oldHeader == PersistentEnumerator.NULL_ID) {
+          return null;
+        }
+        valueStorage = myValueStorage;
+        valueStorage.force();
+        readLock.lock();
       }
-      final long oldHeader = readValueId(id);
-      if (oldHeader == PersistentEnumerator.NULL_ID) {
-        return null;
+      finally {
+        myEnumerator.unlockStorage();
       }
+    }
 
-      PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(oldHeader);
-      if (readResult.offset != oldHeader) {
-        myEnumerator.markDirty(true);
+    final PersistentHashMapValueStorage.ReadResult readResult;
+    try {
+      readResult = valueStorage.readBytesNoCompaction(oldHeader);
+    }
+    finally {
+      readLock.unlock();
+    }
 
-        updateValueId(id, readResult.offset, oldHeader, key, 0);
-        myLiveAndGarbageKeysCounter++;
-        myReadCompactionGarbageSize += readResult.buffer.length;
+    synchronized (myEnumerator) {
+      if (readResult.chunksCount > 1) {
+        compactValueChunks(key, oldHeader, readResult.buffer);
       }
 
       final DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(readResult.buffer));
@@ -410,6 +448,22 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         input.close();
       }
     }
+  }
+
+  private void compactValueChunks(Key key, long oldHeader, @NotNull byte[] valueBytes) throws IOException {
+    myEnumerator.lockStorage();
+    try {
+      final int id = tryEnumerate(key);
+      if (id == PersistentEnumerator.NULL_ID || readValueId(id) != oldHeader) {
+        return; // value was changed or the map was compacted while we were reading it
+      }
+      myEnumerator.markDirty(true);
+
+      long newHeader = myValueStorage.appendBytes(valueBytes, 0, valueBytes.length, 0);
+      updateValueId(id, newHeader, oldHeader, key, 0);
+      myLiveAndGarbageKeysCounter++;
+      myReadCompactionGarbageSize += valueBytes.length;
+    }
     finally {
       myEnumerator.unlockStorage();
     }
@@ -475,6 +529,25 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public final void force() {
     synchronized (myEnumerator) {
       doForce();
+      scheduleBackgroundCompaction();
+    }
+  }
+
+  private void scheduleBackgroundCompaction() {
+    if (!BACKGROUND_COMPACTION || myCompaction != null && !myCompaction.isDone() || myEnumerator.isClosed() || !makesSenseToCompact()) {
+      return;
+    }
+    myCompactor = new PersistentHashMapCompactor(this, 100, BACKGROUND_COMPACTION_BYTES_PER_SECOND);
+    myCompaction = ourCompactionExecutor.submit(myCompactor);
+  }
+
+  /**
+   * @return the background compaction scheduled last, if any
+   */
+  @Nullable
+  Future<?> getBackgroundCompaction() {
+    synchronized (myEnumerator) {
+      return myCompaction;
     }
   }
 
@@ -510,10 +583,21 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     try {
       try {
         myAppendCacheFlusher.stop();
+        if (myCompactor != null) {
+          myCompactor.cancel();
+        }
         myAppendCache.clear();
         final PersistentHashMapValueStorage valueStorage = myValueStorage;
         if (valueStorage != null) {
-          valueStorage.dispose();
+          final Lock writeLock = myValueStorageLock.writeLock();
+          writeLock.lock();
+          try {
+            myValueStorageClosed = true;
+            valueStorage.dispose();
+          }
+          finally {
+            writeLock.unlock();
+          }
         }
       }
       finally {
@@ -528,43 +612,139 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   // made public for tests
   public void compact() throws IOException {
     synchronized (myEnumerator) {
-      final long now = System.currentTimeMillis();
-      final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
-      final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath);
-      myValueStorage.switchToCompactionMode();
-      myLiveAndGarbageKeysCounter = 0;
-      myReadCompactionGarbageSize = 0;
-
+      final Lock writeLock = myValueStorageLock.writeLock();
+      writeLock.lock();
       try {
-        traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
-          @Override
-          public boolean process(final int keyId) throws IOException {
-            final long record = readValueId(keyId);
-            if (record != NULL_ADDR) {
-              PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record);
-              long value = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
-              updateValueId(keyId, value, record, null, getCurrentKey());
-              myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
-            }
-            return true;
-          }
-        });
+        doCompact();
       }
       finally {
-        newStorage.dispose();
+        writeLock.unlock();
       }
+    }
+  }
+
+  private void doCompact() throws IOException {
+    final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
+    replaceValueStorage(PersistentHashMapValueStorage.create(newPath), newPath, null);
+  }
+
+  /**
+   * Copies live values into newStorage and makes it the value storage of the map. Values already copied by background compaction
+   * are passed in movedValues (address in current storage -> address in newStorage) and are not read again.
+   */
+  private void replaceValueStorage(@NotNull final PersistentHashMapValueStorage newStorage,
+                                   @NotNull String newPath,
+                                   @Nullable final TLongLongHashMap movedValues) throws IOException {
+    final long now = System.currentTimeMillis();
+    myValueStorage.switchToCompactionMode();
+    myLiveAndGarbageKeysCounter = 0;
+    myReadCompactionGarbageSize = 0;
+
+    try {
+      traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+        @Override
+        public boolean process(final int keyId) throws IOException {
+          final long record = readValueId(keyId);
+          if (record != NULL_ADDR) {
+            long value = movedValues != null ? movedValues.get(record) : NULL_ADDR;
+            if (value == NULL_ADDR) {
+              PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record);
+              value = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
+            }
+            updateValueId(keyId, value, record, null, getCurrentKey());
+            myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+          }
+          return true;
+        }
+      });
+    }
+    finally {
+      newStorage.dispose();
+    }
 
-      myValueStorage.dispose();
+    myValueStorage.dispose();
 
-      FileUtil.rename(new File(newPath), getDataFile(myEnumerator.myFile));
+    FileUtil.rename(new File(newPath), getDataFile(myEnumerator.myFile));
+
+    myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
+    LOG.info("Compacted " + myEnumerator.myFile.getPath() + " in " + (System.currentTimeMillis() - now) + "ms.");
+
+    myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+  }
 
-      myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
-      LOG.info("Compacted " + myEnumerator.myFile.getPath() + " in " + (System.currentTimeMillis() - now) + "ms.");
+  // background compaction support, see PersistentHashMapCompactor
 
-      myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+  /**
+   * @return the value storage the addresses belong to or null if the map is closed
+   */
+  @Nullable
+  PersistentHashMapValueStorage collectLiveValueAddresses(@NotNull final TLongArrayList addresses) throws IOException {
+    synchronized (myEnumerator) {
+      if (myEnumerator.isClosed()) return null;
+      dropMemoryCaches(); // pending appends should be written and flushed before their chunks are copied
+      traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+        @Override
+        public boolean process(final int keyId) throws IOException {
+          final long record = readValueId(keyId);
+          if (record != NULL_ADDR) {
+            addresses.add(record);
+          }
+          return true;
+        }
+      });
+      return myValueStorage;
     }
   }
 
+  /**
+   * @return value bytes at given address or null if the storage was replaced by compaction
+   */
+  @Nullable
+  byte[] readValueBytes(@NotNull PersistentHashMapValueStorage valueStorage, long address) throws IOException {
+    final Lock readLock = myValueStorageLock.readLock();
+    readLock.lock();
+    try {
+      if (valueStorage != myValueStorage || myValueStorageClosed) return null;
+      return valueStorage.readBytesNoCompaction(address).buffer;
+    }
+    finally {
+      readLock.unlock();
+    }
+  }
+
+  boolean replaceValueStorage(@NotNull PersistentHashMapValueStorage oldStorage,
+                              @NotNull PersistentHashMapValueStorage newStorage,
+                              @NotNull String newPath,
+                              @NotNull TLongLongHashMap movedValues) throws IOException {
+    synchronized (myEnumerator) {
+      final Lock writeLock = myValueStorageLock.writeLock();
+      writeLock.lock();
+      try {
+        if (oldStorage != myValueStorage || myEnumerator.isClosed()) {
+          return false;
+        }
+        myEnumerator.lockStorage();
+        try {
+          myEnumerator.markDirty(true);
+          clearAppenderCaches();
+          replaceValueStorage(newStorage, newPath, movedValues);
+          return true;
+        }
+        finally {
+          myEnumerator.unlockStorage();
+        }
+      }
+      finally {
+        writeLock.unlock();
+      }
+    }
+  }
+
+  @NotNull
+  File getValueStorageFile() {
+    return getDataFile(myEnumerator.myFile);
+  }
+
   private long readValueId(final int keyId) {
     long address = myEnumerator.myStorage.getInt(keyId + myParentValueRefOffset);
     if (address == 0 || address == -POSITIVE_VALUE_SHIFT) {
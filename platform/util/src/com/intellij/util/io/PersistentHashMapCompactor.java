@@ -0,0 +1,146 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.TimeoutUtil;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongLongHashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compacts value storage of {@link PersistentHashMap} without blocking the map for the whole compaction time.
+ * Live values are copied into the new storage a few at a time without holding the map lock and with limited I/O rate,
+ * the map lock is taken only to collect live value addresses and to switch to the new storage, at that moment the values
+ * changed during compaction are copied once again.
+ * <p/>
+ * The compactor should be run on a background thread, only one compactor per map should run at a time.
+ * {@link PersistentHashMap#force()} schedules it when the map has got much garbage.
+ */
+public class PersistentHashMapCompactor implements Runnable {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.PersistentHashMapCompactor");
+
+  private final PersistentHashMap<?, ?> myMap;
+  private final int myValuesPerStep;
+  private final long myMaxBytesPerSecond;
+
+  private volatile boolean myCancelled;
+  private volatile boolean myCompleted;
+  private volatile int myValuesCount;
+  private volatile int myProcessedValuesCount;
+  private volatile long myReclaimedBytes;
+
+  /**
+   * @param valuesPerStep      number of values copied between I/O rate checks
+   * @param maxBytesPerSecond  upper bound of copying rate, zero or negative value means no limit
+   */
+  public PersistentHashMapCompactor(@NotNull PersistentHashMap<?, ?> map, int valuesPerStep, long maxBytesPerSecond) {
+    myMap = map;
+    myValuesPerStep = Math.max(1, valuesPerStep);
+    myMaxBytesPerSecond = maxBytesPerSecond;
+  }
+
+  @Override
+  public void run() {
+    try {
+      compact();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  public void compact() throws IOException {
+    final TLongArrayList addresses = new TLongArrayList();
+    if (myCancelled) return;
+    final PersistentHashMapValueStorage oldStorage = myMap.collectLiveValueAddresses(addresses);
+    if (oldStorage == null) return;
+    final long oldSize = oldStorage.getSize();
+    myValuesCount = addresses.size();
+
+    final String newPath = myMap.getValueStorageFile().getPath() + ".compacted";
+    FileUtil.delete(new File(newPath));
+    final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath);
+    final TLongLongHashMap movedValues = new TLongLongHashMap(addresses.size());
+
+    boolean replaced = false;
+    try {
+      final long started = System.currentTimeMillis();
+      long copiedBytes = 0;
+
+      for (int i = 0; i < addresses.size(); ++i) {
+        if (myCancelled) return;
+
+        final long address = addresses.get(i);
+        final byte[] bytes = myMap.readValueBytes(oldStorage, address);
+        if (bytes == null) return; // map was compacted or closed meanwhile
+
+        movedValues.put(address, newStorage.appendBytes(bytes, 0, bytes.length, 0));
+        copiedBytes += bytes.length;
+        myProcessedValuesCount = i + 1;
+
+        if (myMaxBytesPerSecond > 0 && (i + 1) % myValuesPerStep == 0) {
+          final long expectedTime = copiedBytes * 1000 / myMaxBytesPerSecond;
+          final long elapsedTime = System.currentTimeMillis() - started;
+          if (expectedTime > elapsedTime) {
+            TimeoutUtil.sleep(expectedTime - elapsedTime);
+          }
+        }
+      }
+
+      if (myCancelled) return;
+      replaced = myMap.replaceValueStorage(oldStorage, newStorage, newPath, movedValues);
+      if (replaced) {
+        myReclaimedBytes = Math.max(0, oldSize - myMap.getValueStorageFile().length());
+        myCompleted = true;
+      }
+    }
+    finally {
+      if (!replaced) {
+        newStorage.dispose();
+        FileUtil.delete(new File(newPath));
+      }
+    }
+  }
+
+  public void cancel() {
+    myCancelled = true;
+  }
+
+  public boolean isCompleted() {
+    return myCompleted;
+  }
+
+  /**
+   * @return fraction of live values copied into the new storage
+   */
+  public double getProgress() {
+    if (myCompleted) return 1;
+    final int count = myValuesCount;
+    return count == 0 ? 0 : (double)myProcessedValuesCount / count;
+  }
+
+  /**
+   * @return size by which value storage has shrunk, available after compaction is completed
+   */
+  public long getReclaimedBytes() {
+    return myReclaimedBytes;
+  }
+}
@@ -20,6 +20,7 @@
 package com.intellij.util.io;
 
 import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.SLRUCache;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -30,11 +31,14 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class PersistentHashMapValueStorage {
   @Nullable
   private RAReader myCompactionModeReader = null;
-  private long mySize;
+  private volatile long mySize;
   private final File myFile;
   private final String myPath;
   private boolean myCompactionMode = false;
 
+  // values are read from the windows of MappedFileStorage, the appended tail of the file is read with positioned reads
+  private static final boolean ourMappedReads = SystemProperties.getBooleanProperty("idea.values.storage.mapped.reads", true);
+
   private static final int CACHE_PROTECTED_QUEUE_SIZE = 10;
   private static final int CACHE_PROBATIONAL_QUEUE_SIZE = 20;
 
@@ -53,7 +57,7 @@ public class PersistentHashMapValueStorage {
   private static final FileAccessorCache<RAReader> ourReadersCache = new FileAccessorCache<RAReader>(CACHE_PROTECTED_QUEUE_SIZE, CACHE_PROBATIONAL_QUEUE_SIZE) {
     @NotNull
     public CacheValue<RAReader> createValue(String path) {
-      return new CachedReader(new FileReader(new File(path)));
+      return new CachedReader(ourMappedReads ? new MappedReader(new File(path)) : new FileReader(new File(path)));
     }
   };
 
@@ -118,15 +122,21 @@ public class PersistentHashMapValueStorage {
     return result;
   }
 
-  private final byte[] myBuffer = new byte[1024];
+  private static final int READ_BUFFER_SIZE = 1024;
 
   public static class ReadResult {
     public final long offset;
     public final byte[] buffer;
+    public final int chunksCount;
 
     public ReadResult(long offset, byte[] buffer) {
+      this(offset, buffer, 1);
+    }
+
+    public ReadResult(long offset, byte[] buffer, int chunksCount) {
       this.offset = offset;
       this.buffer = buffer;
+      this.chunksCount = chunksCount;
     }
   }
 
@@ -136,8 +146,24 @@ public class PersistentHashMapValueStorage {
   public ReadResult readBytes(long tailChunkAddress) throws IOException {
     force();
 
+    ReadResult readResult = readBytesNoCompaction(tailChunkAddress);
+    if (readResult.chunksCount > 1 && !myCompactionMode) {
+      long l = appendBytes(new ByteSequence(readResult.buffer), 0);
+      return new ReadResult(l, readResult.buffer);
+    }
+
+    return readResult;
+  }
+
+  /**
+   * Reads bytes pointed by tailChunkAddress without linked list compactification. Data at the address should be already flushed with
+   * {@link #force()}. Chunks are never modified after they were appended, so the method may be called from several threads at once and
+   * concurrently with {@link #appendBytes(byte[], int, int, long)}.
+   */
+  public ReadResult readBytesNoCompaction(long tailChunkAddress) throws IOException {
     long chunk = tailChunkAddress;
     int chunkCount = 0;
+    final byte[] buffer = new byte[READ_BUFFER_SIZE];
 
     byte[] result = null;
     RAReader reader = myCompactionModeReader;
@@ -149,32 +175,33 @@ public class PersistentHashMapValueStorage {
 
     try {
       while (chunk != 0) {
-        if (chunk < 0 || chunk > mySize) throw new PersistentEnumeratorBase.CorruptedException(myFile);
-        int len = (int)Math.min(myBuffer.length, mySize - chunk);
-        reader.get(chunk, myBuffer, 0, len);
+        final long size = mySize;
+        if (chunk < 0 || chunk > size) throw new PersistentEnumeratorBase.CorruptedException(myFile);
+        int len = (int)Math.min(buffer.length, size - chunk);
+        reader.get(chunk, buffer, 0, len);
 
-        final int sizePart = myBuffer[0];
+        final int sizePart = buffer[0];
         final long prevChunkAddress;
         final int chunkSize;
 
         if (sizePart < 0) {
           chunkSize = -sizePart - POSITIVE_VALUE_SHIFT;
-          prevChunkAddress = Bits.getInt(myBuffer, 1);
+          prevChunkAddress = Bits.getInt(buffer, 1);
           byte[] b = new byte[(result != null ? result.length:0) + chunkSize];
           if (result != null) System.arraycopy(result, 0, b, b.length - result.length, result.length);
           result = b;
 
           checkPreconditions(result, chunkSize, 0);
-          System.arraycopy(myBuffer, BYTE_LENGTH_INT_ADDRESS, result, 0, chunkSize);
+          System.arraycopy(buffer, BYTE_LENGTH_INT_ADDRESS, result, 0, chunkSize);
         } else {
-          chunkSize = Bits.getInt(myBuffer, 0);
-          prevChunkAddress = Bits.getLong(myBuffer, 4);
+          chunkSize = Bits.getInt(buffer, 0);
+          prevChunkAddress = Bits.getLong(buffer, 4);
           byte[] b = new byte[(result != null ? result.length:0) + chunkSize];
           if (result != null) System.arraycopy(result, 0, b, b.length - result.length, result.length);
           result = b;
 
-          if (chunkSize < myBuffer.length - INT_LENGTH_LONG_ADDRESS) {
-            System.arraycopy(myBuffer, INT_LENGTH_LONG_ADDRESS, result, 0, chunkSize);
+          if (chunkSize < buffer.length - INT_LENGTH_LONG_ADDRESS) {
+            System.arraycopy(buffer, INT_LENGTH_LONG_ADDRESS, result, 0, chunkSize);
           } else {
             reader.get(chunk + INT_LENGTH_LONG_ADDRESS, result, 0, chunkSize);
           }
@@ -198,12 +225,7 @@ public class PersistentHashMapValueStorage {
       }
     }
 
-    if (chunkCount > 1 && !myCompactionMode) {
-      long l = appendBytes(new ByteSequence(result), 0);
-      return new ReadResult(l, result);
-    }
-
-    return new ReadResult(tailChunkAddress, result);
+    return new ReadResult(tailChunkAddress, result, chunkCount);
   }
 
   public long getSize() {
@@ -276,8 +298,10 @@ public class PersistentHashMapValueStorage {
     }
 
     public void get(final long addr, final byte[] dst, final int off, final int len) throws IOException {
-      myFile.seek(addr);
-      myFile.read(dst, off, len);
+      synchronized (myFile) { // reader is shared by concurrent readBytesNoCompaction() calls
+        myFile.seek(addr);
+        myFile.read(dst, off, len);
+      }
     }
 
     public void dispose() {
@@ -290,6 +314,39 @@ public class PersistentHashMapValueStorage {
     }
   }
 
+  private static class MappedReader implements RAReader {
+    private final MappedFileStorage myStorage;
+
+    private MappedReader(File file) {
+      try {
+        myStorage = new MappedFileStorage(file);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    public void get(final long addr, final byte[] dst, final int off, final int len) throws IOException {
+      if (addr + len > myStorage.length()) {
+        myStorage.refreshLength();
+      }
+      // like RandomAccessFile.read(), reads the available part of the range: value may be appended concurrently and not yet flushed
+      final int available = (int)Math.min(len, myStorage.length() - addr);
+      if (available > 0) {
+        myStorage.get(addr, dst, off, available);
+      }
+    }
+
+    public void dispose() {
+      try {
+        myStorage.close();
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
   private static abstract class FileAccessorCache<T> extends SLRUCache<String, CacheValue<T>> {
     private final Object myLock = new Object();
     private FileAccessorCache(int protectedQueueSize, int probationalQueueSize) {
@@ -31,8 +31,12 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 public class ClassPath {
@@ -40,10 +44,16 @@ public class ClassPath {
   private final ArrayList<Loader> myLoaders = new ArrayList<Loader>();
   private final HashMap<URL,Loader> myLoadersMap = new HashMap<URL, Loader>();
   private final ClasspathCache myCache = new ClasspathCache();
+  // when not null, resources of the initial urls are looked up in the index and only the jars containing them are opened,
+  // the urls added later are processed by the regular loaders
+  @Nullable private ClassPathIndex myClassPathIndex;
+  private URL[] myIndexedUrls;
+  private Loader[] myIndexedLoaders;
 
   @NonNls private static final String FILE_PROTOCOL = "file";
   private static final boolean myDebugTime = false;
   private static final boolean ourDumpOrder = "true".equals(System.getProperty("idea.dump.order"));
+  private static final boolean ourUseIndex = "true".equals(System.getProperty("idea.classpath.index"));
 //  private static final boolean ourPreloadClasses = "true".equals(System.getProperty("idea.preload.classes"));
 
   private final boolean myCanLockJars;
@@ -100,10 +110,52 @@ public class ClassPath {
   }
 
   public ClassPath(URL[] urls, boolean canLockJars, boolean canUseCache, boolean acceptUnescapedUrls) {
+    this(urls, canLockJars, canUseCache, acceptUnescapedUrls, ourUseIndex);
+  }
+
+  ClassPath(URL[] urls, boolean canLockJars, boolean canUseCache, boolean acceptUnescapedUrls, boolean useIndex) {
     myCanLockJars = canLockJars;
     myCanUseCache = canUseCache;
     myAcceptUnescapedUrls = acceptUnescapedUrls;
-    push(urls);
+    if (!canUseCache || !useIndex || !initIndex(urls)) {
+      push(urls);
+    }
+  }
+
+  private boolean initIndex(URL[] urls) {
+    if (urls.length == 0) return false;
+
+    final File[] jars = new File[urls.length];
+    final StringBuilder key = new StringBuilder();
+    for (int i = 0; i < urls.length; i++) {
+      final String path = FILE_PROTOCOL.equals(urls[i].getProtocol()) ? getPath(urls[i]) : null;
+      if (path == null || !new File(path).isFile()) return false; // directories cannot be validated cheaply
+      jars[i] = new File(path);
+      key.append(path).append(File.pathSeparatorChar);
+    }
+
+    final File storage = new File(PathManager.getSystemPath() + File.separator + "classpath" + File.separator +
+                                  getIndexName(key.toString()) + ".index");
+    final ClassPathIndex index = ClassPathIndex.getOrBuild(jars, storage);
+    if (index == null) return false;
+
+    myIndexedUrls = urls;
+    myIndexedLoaders = new Loader[urls.length];
+    myClassPathIndex = index;
+    return true;
+  }
+
+  // the digest of the jar paths, the stored index is checked against them anyway
+  private static String getIndexName(String key) {
+    try {
+      return new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"))).toString(36);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   // Accessed by reflection from PluginClassLoader // TODO: do we need it?
@@ -116,6 +168,12 @@ public class ClassPath {
     final long started = myDebugTime ? System.nanoTime():0;
 
     try {
+      final ClassPathIndex index = myClassPathIndex;
+      if (index != null) {
+        final Resource resource = getIndexedResource(index, s, flag);
+        if (resource != null) return resource;
+      }
+
       int i;
       if (myCanUseCache) {
         Resource prevResource = myCache.iterateLoaders(s, flag ? checkedIterator:uncheckedIterator, s, this);
@@ -148,6 +206,41 @@ public class ClassPath {
     }
   }
 
+  @Nullable
+  private Resource getIndexedResource(ClassPathIndex index, String s, boolean flag) {
+    final int[] jarIndices = index.getJarIndices(s);
+    if (jarIndices == null) return null;
+
+    for (int jarIndex : jarIndices) {
+      final Loader loader = getIndexedLoader(jarIndex);
+      if (loader == null) continue;
+      final Resource resource = loader.getResource(s, flag);
+      if (resource != null) {
+        if (ourDumpOrder) {
+          printOrder(loader, s, resource);
+        }
+        return resource;
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  private synchronized Loader getIndexedLoader(int jarIndex) {
+    Loader loader = myIndexedLoaders[jarIndex];
+    if (loader == null) {
+      try {
+        final JarLoader jarLoader = new JarLoader(myIndexedUrls[jarIndex], myCanLockJars, jarIndex);
+        jarLoader.preLoadClasses();
+        myIndexedLoaders[jarIndex] = loader = jarLoader;
+      }
+      catch (IOException e) {
+        return null;
+      }
+    }
+    return loader;
+  }
+
   public Enumeration<URL> getResources(final String name, final boolean check) {
     return new MyEnumeration(name, check);
   }
@@ -166,7 +259,7 @@ public class ClassPath {
         lastOne = myUrls.isEmpty();
       }
 
-      if (myLoadersMap.containsKey(url)) continue;
+      if (myLoadersMap.containsKey(url) || myIndexedUrls != null && Arrays.asList(myIndexedUrls).contains(url)) continue;
 
       Loader loader;
       try {
@@ -187,8 +280,7 @@ public class ClassPath {
     return myLoaders.get(i);
   }
 
-  @Nullable
-  private Loader getLoader(final URL url, int index) throws IOException {
+  private String getPath(final URL url) {
     String s;
     if (myAcceptUnescapedUrls) {
       s = url.getFile();
@@ -200,6 +292,12 @@ public class ClassPath {
         s = url.getFile();
       }
     }
+    return s;
+  }
+
+  @Nullable
+  private Loader getLoader(final URL url, int index) throws IOException {
+    String s = getPath(url);
 
     Loader loader = null;
     if (s != null  && new File(s).isDirectory()) {
@@ -235,17 +333,31 @@ public class ClassPath {
 
   private class MyEnumeration implements Enumeration<URL> {
     private int myIndex = 0;
+    private int myLoaderIndex = 0;
     private Resource myRes = null;
     private final String myName;
     private final boolean myCheck;
     private final List<Loader> myLoaders;
+    private final boolean myIndexed;
 
     public MyEnumeration(String name, boolean check) {
       myName = name;
       myCheck = check;
       List<Loader> loaders = null;
 
-      if (myCanUseCache) {
+      final ClassPathIndex index = myClassPathIndex;
+      myIndexed = index != null;
+      if (index != null) {
+        loaders = new SmartList<Loader>();
+        final int[] jarIndices = index.getJarIndices(name);
+        if (jarIndices != null) {
+          for (int jarIndex : jarIndices) {
+            final Loader loader = getIndexedLoader(jarIndex);
+            if (loader != null) loaders.add(loader);
+          }
+        }
+      }
+      else if (myCanUseCache) {
         synchronized (myUrls) {
           if (myUrls.isEmpty()) {
             loaders = new SmartList<Loader>();
@@ -268,7 +380,7 @@ public class ClassPath {
         if (myLoaders != null) {
           while (myIndex < myLoaders.size()) {
             loader = myLoaders.get(myIndex++);
-            if (!myCache.loaderHasName(myName, loader)) {
+            if (!myIndexed && !myCache.loaderHasName(myName, loader)) {
               myRes = null;
               continue;
             }
@@ -276,8 +388,9 @@ public class ClassPath {
             if (myRes != null) return true;
           }
         }
-        else {
-          while ((loader = getLoader(myIndex++)) != null) {
+        if (myLoaders == null || myIndexed) {
+          // with the index only the urls added later remain
+          while ((loader = getLoader(myLoaderIndex++)) != null) {
             if (!myCache.loaderHasName(myName, loader)) continue;
             myRes = loader.getResource(myName, myCheck);
             if (myRes != null) return true;
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.util.ArrayUtil;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Maps the entry names of the jars of a class path to the positions of the jars containing them, so that the loader of a resource
+ * is found with a single lookup and the other jars are not opened. The index is stored on disk and is valid while the list of jars,
+ * their lengths and modification times stay the same.
+ */
+class ClassPathIndex {
+  private static final int VERSION = 1;
+
+  // name -> Integer or int[] of jar positions in class path order
+  private final THashMap<String, Object> myEntries = new THashMap<String, Object>();
+
+  private ClassPathIndex() {
+  }
+
+  /**
+   * @return jar positions in class path order which {@link ZipFile#getEntry(String)} finds the name in, or null if there are none
+   */
+  @Nullable
+  int[] getJarIndices(@NotNull String name) {
+    final Object o = myEntries.get(name);
+    if (o == null) return null;
+    if (o instanceof Integer) return new int[]{(Integer)o};
+    return (int[])o;
+  }
+
+  /**
+   * Loads the index stored for the jars, or builds and stores it if it is missing or outdated
+   *
+   * @return null if some of the jars cannot be read
+   */
+  @Nullable
+  static ClassPathIndex getOrBuild(@NotNull File[] jars, @NotNull File storage) {
+    try {
+      final ClassPathIndex index = load(jars, storage);
+      if (index != null) return index;
+    }
+    catch (IOException ignored) {
+      // outdated format or damaged file, built again below
+    }
+
+    // the stamps are taken before reading, so that a jar modified meanwhile is not indexed with its new stamp
+    final long[] lengths = new long[jars.length];
+    final long[] timestamps = new long[jars.length];
+    for (int i = 0; i < jars.length; i++) {
+      lengths[i] = jars[i].length();
+      timestamps[i] = jars[i].lastModified();
+    }
+
+    final List<String[]> names = new ArrayList<String[]>(jars.length);
+    final ClassPathIndex index = new ClassPathIndex();
+    try {
+      for (int i = 0; i < jars.length; i++) {
+        final String[] jarNames = readNames(jars[i]);
+        names.add(jarNames);
+        index.addJar(i, jarNames);
+      }
+    }
+    catch (IOException e) {
+      return null;
+    }
+
+    try {
+      save(jars, lengths, timestamps, names, storage);
+    }
+    catch (IOException ignored) {
+      storage.delete();
+    }
+    return index;
+  }
+
+  private void addJar(int jarIndex, @NotNull String[] names) {
+    for (String name : names) {
+      addEntry(name, jarIndex);
+      if (name.endsWith("/")) {
+        // ZipFile.getEntry(name) also finds the directory entry name + "/"
+        addEntry(name.substring(0, name.length() - 1), jarIndex);
+      }
+    }
+  }
+
+  private void addEntry(@NotNull String name, int jarIndex) {
+    final Object o = myEntries.get(name);
+    if (o == null) {
+      myEntries.put(name, jarIndex);
+    }
+    else if (o instanceof Integer) {
+      if ((Integer)o != jarIndex) myEntries.put(name, new int[]{(Integer)o, jarIndex});
+    }
+    else {
+      final int[] indices = (int[])o;
+      if (indices[indices.length - 1] != jarIndex) myEntries.put(name, ArrayUtil.append(indices, jarIndex));
+    }
+  }
+
+  @NotNull
+  private static String[] readNames(@NotNull File jar) throws IOException {
+    final ZipFile zipFile = new ZipFile(jar);
+    try {
+      final List<String> names = new ArrayList<String>(zipFile.size());
+      final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        names.add(entries.nextElement().getName());
+      }
+      // sorted names share long prefixes with their predecessors, which are stored once
+      Collections.sort(names);
+      return ArrayUtil.toStringArray(names);
+    }
+    finally {
+      zipFile.close();
+    }
+  }
+
+  @Nullable
+  private static ClassPathIndex load(@NotNull File[] jars, @NotNull File storage) throws IOException {
+    if (!storage.isFile()) return null;
+
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(storage)));
+    try {
+      if (in.readInt() != VERSION || in.readInt() != jars.length) return null;
+      for (File jar : jars) {
+        if (!in.readUTF().equals(jar.getPath()) || in.readLong() != jar.length() || in.readLong() != jar.lastModified()) {
+          return null;
+        }
+      }
+
+      final ClassPathIndex index = new ClassPathIndex();
+      for (int i = 0; i < jars.length; i++) {
+        final String[] names = new String[in.readInt()];
+        String previous = "";
+        for (int j = 0; j < names.length; j++) {
+          final int prefix = in.readShort() & 0xFFFF;
+          names[j] = previous = previous.substring(0, prefix) + in.readUTF();
+        }
+        index.addJar(i, names);
+      }
+      return index;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static void save(@NotNull File[] jars, @NotNull long[] lengths, @NotNull long[] timestamps, @NotNull List<String[]> names,
+                           @NotNull File storage) throws IOException {
+    final File dir = storage.getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storage)));
+    try {
+      out.writeInt(VERSION);
+      out.writeInt(jars.length);
+      for (int i = 0; i < jars.length; i++) {
+        out.writeUTF(jars[i].getPath());
+        out.writeLong(lengths[i]);
+        out.writeLong(timestamps[i]);
+      }
+      for (String[] jarNames : names) {
+        out.writeInt(jarNames.length);
+        String previous = "";
+        for (String name : jarNames) {
+          int prefix = 0;
+          final int maxPrefix = Math.min(Math.min(previous.length(), name.length()), 0xFFFF);
+          while (prefix < maxPrefix && previous.charAt(prefix) == name.charAt(prefix)) prefix++;
+          out.writeShort(prefix);
+          out.writeUTF(name.substring(prefix));
+          previous = name;
+        }
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+}
@@ -68,6 +68,14 @@ public class CharArrayUtil {
         ((String)src).getChars(srcOffset, len, dst, dstOffset);
         return;
       }
+      else if (src instanceof Rope) {
+        ((Rope)src).getChars(srcOffset, srcOffset + len, dst, dstOffset);
+        return;
+      }
+      else if (src instanceof StringSubSequence) {
+        ((StringSubSequence)src.subSequence(srcOffset, srcOffset + len)).getChars(dst, dstOffset);
+        return;
+      }
       else if (src instanceof CharBuffer) {
         final CharBuffer buffer = (CharBuffer)src;
         final int i = buffer.position();
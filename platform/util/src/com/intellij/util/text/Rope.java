@@ -0,0 +1,282 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable text kept in a balanced tree of short strings.
+ * <p/>
+ * Modifications return new ropes sharing the unchanged subtrees with the original one, so a change of a huge text
+ * costs O(log n) and the original rope stays valid as a snapshot. {@link #subSequence(int, int)} doesn't copy the characters either.
+ * Sequential {@link #charAt(int)} calls are served from the last visited leaf.
+ */
+public abstract class Rope implements CharSequence {
+  // maximal length of a leaf built from a text; adjacent leaves are merged while they fit into it
+  private static final int LEAF_SIZE = 512;
+
+  public static final Rope EMPTY = new Leaf("");
+
+  private Rope() {
+  }
+
+  @NotNull
+  public static Rope valueOf(@NotNull CharSequence text) {
+    if (text instanceof Rope) return (Rope)text;
+    return build(text, 0, text.length());
+  }
+
+  @NotNull
+  private static Rope build(@NotNull CharSequence text, int start, int end) {
+    if (end - start <= LEAF_SIZE) {
+      return start == end ? EMPTY : new Leaf(text.subSequence(start, end).toString());
+    }
+    int middle = (start + end) >>> 1;
+    return new Node(build(text, start, middle), build(text, middle, end));
+  }
+
+  @NotNull
+  public Rope concat(@NotNull CharSequence text) {
+    return join(this, valueOf(text));
+  }
+
+  @NotNull
+  public Rope insert(int offset, @NotNull CharSequence text) {
+    return replace(offset, offset, text);
+  }
+
+  @NotNull
+  public Rope delete(int start, int end) {
+    return replace(start, end, "");
+  }
+
+  @NotNull
+  public Rope replace(int start, int end, @NotNull CharSequence text) {
+    checkRange(start, end);
+    if (start == end && text.length() == 0) return this;
+    if (start == 0 && end == length()) return valueOf(text);
+    return join(join(subRope(0, start), valueOf(text)), subRope(end, length()));
+  }
+
+  @NotNull
+  @Override
+  public Rope subSequence(int start, int end) {
+    checkRange(start, end);
+    return subRope(start, end);
+  }
+
+  public void getChars(int start, int end, @NotNull char[] dst, int dstOffset) {
+    checkRange(start, end);
+    doGetChars(start, end, dst, dstOffset);
+  }
+
+  @NotNull
+  public char[] toCharArray() {
+    char[] chars = new char[length()];
+    doGetChars(0, chars.length, chars, 0);
+    return chars;
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return new String(toCharArray());
+  }
+
+  abstract int depth();
+
+  @NotNull
+  abstract Rope subRope(int start, int end);
+
+  abstract void doGetChars(int start, int end, @NotNull char[] dst, int dstOffset);
+
+  private void checkRange(int start, int end) {
+    if (start < 0 || end > length() || start > end) {
+      throw new IndexOutOfBoundsException("length:" + length() + ", start:" + start + ", end:" + end);
+    }
+  }
+
+  @NotNull
+  private static Rope join(@NotNull Rope left, @NotNull Rope right) {
+    if (left.length() == 0) return right;
+    if (right.length() == 0) return left;
+    if (left instanceof Leaf && right instanceof Leaf && left.length() + right.length() <= LEAF_SIZE) {
+      return new Leaf(((Leaf)left).myText + ((Leaf)right).myText);
+    }
+
+    int leftDepth = left.depth();
+    int rightDepth = right.depth();
+    if (leftDepth > rightDepth + 1) {
+      Node node = (Node)left;
+      return balance(node.myLeft, join(node.myRight, right));
+    }
+    if (rightDepth > leftDepth + 1) {
+      Node node = (Node)right;
+      return balance(join(left, node.myLeft), node.myRight);
+    }
+    return new Node(left, right);
+  }
+
+  // the depths of the subtrees differ by two at most
+  @NotNull
+  private static Rope balance(@NotNull Rope left, @NotNull Rope right) {
+    int leftDepth = left.depth();
+    int rightDepth = right.depth();
+    if (leftDepth > rightDepth + 1) {
+      Node node = (Node)left;
+      if (node.myLeft.depth() >= node.myRight.depth()) {
+        return new Node(node.myLeft, new Node(node.myRight, right));
+      }
+      Node inner = (Node)node.myRight;
+      return new Node(new Node(node.myLeft, inner.myLeft), new Node(inner.myRight, right));
+    }
+    if (rightDepth > leftDepth + 1) {
+      Node node = (Node)right;
+      if (node.myRight.depth() >= node.myLeft.depth()) {
+        return new Node(new Node(left, node.myLeft), node.myRight);
+      }
+      Node inner = (Node)node.myLeft;
+      return new Node(new Node(left, inner.myLeft), new Node(inner.myRight, node.myRight));
+    }
+    return new Node(left, right);
+  }
+
+  private static class Leaf extends Rope {
+    private final String myText;
+
+    private Leaf(@NotNull String text) {
+      myText = text;
+    }
+
+    @Override
+    public int length() {
+      return myText.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+      return myText.charAt(index);
+    }
+
+    @Override
+    int depth() {
+      return 0;
+    }
+
+    @NotNull
+    @Override
+    Rope subRope(int start, int end) {
+      if (start == 0 && end == myText.length()) return this;
+      return start == end ? EMPTY : new Leaf(myText.substring(start, end));
+    }
+
+    @Override
+    void doGetChars(int start, int end, @NotNull char[] dst, int dstOffset) {
+      myText.getChars(start, end, dst, dstOffset);
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+      return myText;
+    }
+  }
+
+  private static class Node extends Rope {
+    private final Rope myLeft;
+    private final Rope myRight;
+    private final int myLength;
+    private final int myDepth;
+    private volatile LeafPosition myLastLeaf;
+
+    private Node(@NotNull Rope left, @NotNull Rope right) {
+      myLeft = left;
+      myRight = right;
+      myLength = left.length() + right.length();
+      myDepth = Math.max(left.depth(), right.depth()) + 1;
+    }
+
+    @Override
+    public int length() {
+      return myLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+      LeafPosition last = myLastLeaf;
+      if (last != null && index >= last.myStart && index < last.myStart + last.myLeaf.myText.length()) {
+        return last.myLeaf.myText.charAt(index - last.myStart);
+      }
+      if (index < 0 || index >= myLength) {
+        throw new IndexOutOfBoundsException("length:" + myLength + ", index:" + index);
+      }
+
+      Rope rope = this;
+      int start = 0;
+      while (rope instanceof Node) {
+        Node node = (Node)rope;
+        int leftLength = node.myLeft.length();
+        if (index - start < leftLength) {
+          rope = node.myLeft;
+        }
+        else {
+          start += leftLength;
+          rope = node.myRight;
+        }
+      }
+      Leaf leaf = (Leaf)rope;
+      myLastLeaf = new LeafPosition(leaf, start);
+      return leaf.myText.charAt(index - start);
+    }
+
+    @Override
+    int depth() {
+      return myDepth;
+    }
+
+    @NotNull
+    @Override
+    Rope subRope(int start, int end) {
+      if (start == 0 && end == myLength) return this;
+      int leftLength = myLeft.length();
+      if (end <= leftLength) return myLeft.subRope(start, end);
+      if (start >= leftLength) return myRight.subRope(start - leftLength, end - leftLength);
+      return join(myLeft.subRope(start, leftLength), myRight.subRope(0, end - leftLength));
+    }
+
+    @Override
+    void doGetChars(int start, int end, @NotNull char[] dst, int dstOffset) {
+      int leftLength = myLeft.length();
+      if (start < leftLength) {
+        myLeft.doGetChars(start, Math.min(end, leftLength), dst, dstOffset);
+      }
+      if (end > leftLength) {
+        int rightStart = Math.max(start, leftLength);
+        myRight.doGetChars(rightStart - leftLength, end - leftLength, dst, dstOffset + rightStart - start);
+      }
+    }
+  }
+
+  private static class LeafPosition {
+    private final Leaf myLeaf;
+    private final int myStart;
+
+    private LeafPosition(@NotNull Leaf leaf, int start) {
+      myLeaf = leaf;
+      myStart = start;
+    }
+  }
+}
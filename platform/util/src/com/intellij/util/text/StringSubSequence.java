@@ -0,0 +1,113 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A range of a string which doesn't copy its characters.
+ * As the string can't change, the view can be kept instead of a copy of the range, e.g. as a text of a tree leaf.
+ * Note that the view keeps the whole string from being collected.
+ */
+public final class StringSubSequence implements CharSequence {
+  private final String myString;
+  private final int myStart;
+  private final int myEnd;
+
+  public StringSubSequence(@NotNull String string, int start, int end) {
+    if (start < 0 || end > string.length() || start > end) {
+      throw new IndexOutOfBoundsException("string.length:" + string.length() +
+                                          ", start:" + start +
+                                          ", end:" + end);
+    }
+    myString = string;
+    myStart = start;
+    myEnd = end;
+  }
+
+  /**
+   * @return the view of the given range of the sequence if it is a string or a view of a string, or null otherwise
+   */
+  public static CharSequence create(@NotNull CharSequence sequence, int start, int end) {
+    if (sequence instanceof String) {
+      return new StringSubSequence((String)sequence, start, end);
+    }
+    if (sequence instanceof StringSubSequence) {
+      return sequence.subSequence(start, end);
+    }
+    return null;
+  }
+
+  @NotNull
+  public String getString() {
+    return myString;
+  }
+
+  public int getStart() {
+    return myStart;
+  }
+
+  @Override
+  public int length() {
+    return myEnd - myStart;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return myString.charAt(index + myStart);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    if (start < 0 || end > length() || start > end) {
+      throw new IndexOutOfBoundsException("length:" + length() + ", start:" + start + ", end:" + end);
+    }
+    return start == 0 && end == length() ? this : new StringSubSequence(myString, myStart + start, myStart + end);
+  }
+
+  public void getChars(@NotNull char[] dst, int dstOffset) {
+    myString.getChars(myStart, myEnd, dst, dstOffset);
+  }
+
+  @NotNull
+  public String toString() {
+    return myString.substring(myStart, myEnd);
+  }
+
+  public int hashCode() {
+    int h = 0;
+    for (int i = myStart; i < myEnd; i++) {
+      h = 31 * h + myString.charAt(i);
+    }
+    return h;
+  }
+
+  /**
+   * A view is equal only to the views of the same characters, as a string is never equal to a view.
+   * Use {@link com.intellij.openapi.util.text.StringUtil#equals(CharSequence, CharSequence)} to compare the text of any sequences.
+   */
+  public boolean equals(Object anObject) {
+    if (this == anObject) {
+      return true;
+    }
+    if (anObject instanceof StringSubSequence) {
+      final StringSubSequence another = (StringSubSequence)anObject;
+      final int n = myEnd - myStart;
+      return n == another.length() && myString.regionMatches(myStart, another.myString, another.myStart, n);
+    }
+    return false;
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class MappedFileStorageTest extends TestCase {
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("mapped", ".tmp");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myFile);
+    super.tearDown();
+  }
+
+  public void testReadsAcrossWindows() throws IOException {
+    final int windowSize = Page.PAGE_SIZE;
+    writeInts(0, 3 * windowSize / 4 + 1);
+
+    MappedFileStorage storage = new MappedFileStorage(myFile, windowSize);
+    try {
+      assertEquals(windowSize, storage.getWindowSize());
+      for (int i = 0; i < 3 * windowSize / 4 + 1; i++) {
+        assertEquals(i, storage.getInt(i * 4L));
+      }
+
+      final long crossingAddr = windowSize - 2;
+      assertEquals(Bits.getInt(bytesAt(crossingAddr, 4), 0), storage.getInt(crossingAddr));
+
+      ByteBuffer slice = storage.slice(8, 8);
+      assertTrue(slice.isReadOnly());
+      assertEquals(2, slice.getInt(0));
+      assertEquals(3, slice.getInt(4));
+
+      ByteBuffer crossingSlice = storage.slice(windowSize - 4, 8);
+      assertEquals(windowSize / 4 - 1, crossingSlice.getInt(0));
+      assertEquals(windowSize / 4, crossingSlice.getInt(4));
+
+      try {
+        storage.getInt(storage.length());
+        fail();
+      }
+      catch (IndexOutOfBoundsException ignored) {
+      }
+    }
+    finally {
+      storage.close();
+    }
+  }
+
+  public void testRangeChecks() throws IOException {
+    final int windowSize = Page.PAGE_SIZE;
+    writeInts(0, windowSize / 2);
+
+    MappedFileStorage storage = new MappedFileStorage(myFile, windowSize);
+    try {
+      assertOutOfBounds(storage, storage.length() - 3, 4);
+      assertOutOfBounds(storage, -1, 1);
+      assertOutOfBounds(storage, storage.length(), 1);
+      assertOutOfBounds(storage, storage.length() - 7, 8);
+      assertEquals(windowSize / 2 - 1, storage.getInt(storage.length() - 4));
+    }
+    finally {
+      storage.close();
+    }
+
+    try {
+      storage.getInt(0);
+      fail();
+    }
+    catch (IllegalStateException ignored) {
+    }
+  }
+
+  public void testTailIsReadWithoutMapping() throws IOException {
+    final int windowSize = Page.PAGE_SIZE;
+    writeInts(0, windowSize / 4 + 10);
+
+    MappedFileStorage storage = new MappedFileStorage(myFile, windowSize);
+    try {
+      for (int i = 0; i < windowSize / 4 + 10; i++) {
+        assertEquals(i, storage.getInt(i * 4L));
+      }
+      assertEquals(windowSize / 4 + 9, storage.getLong(windowSize + 32) & 0xffffffffL);
+
+      ByteBuffer tailSlice = storage.slice(windowSize, 8);
+      assertTrue(tailSlice.isReadOnly());
+      assertEquals(windowSize / 4, tailSlice.getInt(0));
+      assertEquals(windowSize / 4 + 1, tailSlice.getInt(4));
+    }
+    finally {
+      storage.close();
+    }
+  }
+
+  public void testRefreshLength() throws IOException {
+    final int windowSize = Page.PAGE_SIZE;
+    writeInts(0, 10);
+
+    MappedFileStorage storage = new MappedFileStorage(myFile, windowSize);
+    try {
+      assertEquals(9, storage.getInt(36));
+      writeInts(10, windowSize / 2);
+      storage.refreshLength();
+      assertEquals(9, storage.getInt(36));
+      assertEquals(windowSize / 2 - 1, storage.getInt((windowSize / 2 - 1) * 4L));
+
+      writeInts(windowSize / 2, windowSize);
+      storage.refreshLength();
+      assertEquals(windowSize / 2, storage.getInt(windowSize * 2L));
+      assertEquals(windowSize - 1, storage.getInt((windowSize - 1) * 4L));
+    }
+    finally {
+      storage.close();
+    }
+  }
+
+  private static void assertOutOfBounds(MappedFileStorage storage, long addr, int length) throws IOException {
+    try {
+      if (length == 8) {
+        storage.getLong(addr);
+      }
+      else if (length == 4) {
+        storage.getInt(addr);
+      }
+      else {
+        storage.get(addr);
+      }
+      fail();
+    }
+    catch (IndexOutOfBoundsException ignored) {
+    }
+  }
+
+  private void writeInts(int from, int to) throws IOException {
+    final FileOutputStream stream = new FileOutputStream(myFile, true);
+    try {
+      final byte[] bytes = new byte[4];
+      for (int i = from; i < to; i++) {
+        Bits.putInt(bytes, 0, i);
+        stream.write(bytes);
+      }
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private byte[] bytesAt(long addr, int length) throws IOException {
+    final byte[] bytes = new byte[length];
+    final byte[] content = FileUtil.loadFileBytes(myFile);
+    System.arraycopy(content, (int)addr, bytes, 0, length);
+    return bytes;
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PagePoolTest extends TestCase {
+  private static final int PAGES_COUNT = 200;
+
+  public void testEvictedPagesAreFlushed() throws Exception {
+    final PagePool pool = new PagePool(32);
+    final File file = FileUtil.createTempFile("pagePool", ".tmp");
+    final RandomAccessDataFile dataFile = new RandomAccessDataFile(file, pool);
+    try {
+      for (int i = 0; i < PAGES_COUNT; i++) {
+        dataFile.putInt((long)i * Page.PAGE_SIZE, i);
+      }
+      for (int i = 0; i < PAGES_COUNT; i++) {
+        assertEquals(i, dataFile.getInt((long)i * Page.PAGE_SIZE));
+      }
+      assertTrue(pool.getMissesCount() + pool.getFinalizationQueueHitsCount() >= PAGES_COUNT);
+
+      final long hits = pool.getHitsCount();
+      dataFile.getInt((long)(PAGES_COUNT - 1) * Page.PAGE_SIZE);
+      assertEquals(hits + 1, pool.getHitsCount());
+    }
+    finally {
+      dataFile.dispose();
+      FileUtil.delete(file);
+    }
+  }
+
+  public void testConcurrentReaders() throws Exception {
+    final PagePool pool = new PagePool(64);
+    final List<RandomAccessDataFile> files = new ArrayList<RandomAccessDataFile>();
+    try {
+      for (int f = 0; f < 4; f++) {
+        final RandomAccessDataFile dataFile = new RandomAccessDataFile(FileUtil.createTempFile("pagePool", ".tmp"), pool);
+        for (int i = 0; i < PAGES_COUNT; i++) {
+          dataFile.putInt((long)i * Page.PAGE_SIZE, f * PAGES_COUNT + i);
+        }
+        dataFile.force();
+        files.add(dataFile);
+      }
+
+      final List<Thread> threads = new ArrayList<Thread>();
+      final Throwable[] error = new Throwable[1];
+      for (int f = 0; f < files.size(); f++) {
+        final int fileIndex = f;
+        final RandomAccessDataFile dataFile = files.get(f);
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < PAGES_COUNT; i++) {
+                  assertEquals(fileIndex * PAGES_COUNT + i, dataFile.getInt((long)i * Page.PAGE_SIZE));
+                }
+              }
+            }
+            catch (Throwable e) {
+              error[0] = e;
+            }
+          }
+        });
+        thread.start();
+        threads.add(thread);
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      if (error[0] != null) throw new RuntimeException(error[0]);
+    }
+    finally {
+      for (RandomAccessDataFile dataFile : files) {
+        dataFile.dispose();
+        FileUtil.delete(dataFile.getFile());
+      }
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import sun.misc.Resource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ClassPathTest extends TestCase {
+  private File myDir;
+  private URL myJarA;
+  private URL myJarB;
+  private URL myJarC;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("classpath", null);
+    myJarA = createJar("a.jar", "a/A.txt", "common.txt");
+    myJarB = createJar("b.jar", "b/B.txt", "common.txt");
+    myJarC = createJar("c.jar", "c/C.txt", "common.txt");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testIndexedLookup() throws IOException {
+    // the second class path loads the index stored by the first one
+    for (int i = 0; i < 2; i++) {
+      final ClassPath classPath = new ClassPath(new URL[]{myJarA, myJarB}, true, true, false, true);
+      assertFound(classPath, "a/A.txt", myJarA);
+      assertFound(classPath, "b/B.txt", myJarB);
+      assertFound(classPath, "common.txt", myJarA);
+      assertFound(classPath, "a", myJarA);
+      assertNull(classPath.getResource("c/C.txt", false));
+      assertEquals(2, getResources(classPath, "common.txt").size());
+    }
+  }
+
+  public void testAddedUrlAfterIndexedOnes() throws IOException {
+    final ClassPath classPath = new ClassPath(new URL[]{myJarA, myJarB}, true, true, false, true);
+    assertFound(classPath, "a/A.txt", myJarA);
+
+    classPath.addURL(myJarC);
+    classPath.addURL(myJarA);
+    assertFound(classPath, "c/C.txt", myJarC);
+    assertFound(classPath, "a/A.txt", myJarA);
+    assertFound(classPath, "common.txt", myJarA);
+
+    final List<URL> resources = getResources(classPath, "common.txt");
+    assertEquals(3, resources.size());
+    assertTrue(resources.get(0).toString().contains("a.jar"));
+    assertTrue(resources.get(1).toString().contains("b.jar"));
+    assertTrue(resources.get(2).toString().contains("c.jar"));
+  }
+
+  public void testSameResultsWithoutIndex() throws IOException {
+    final ClassPath indexed = new ClassPath(new URL[]{myJarA, myJarB, myJarC}, true, true, false, true);
+    final ClassPath regular = new ClassPath(new URL[]{myJarA, myJarB, myJarC}, true, true, false, false);
+    for (String name : new String[]{"a/A.txt", "b/B.txt", "c/C.txt", "common.txt", "a/", "missing.txt"}) {
+      final Resource expected = regular.getResource(name, false);
+      final Resource actual = indexed.getResource(name, false);
+      assertEquals(name, expected == null ? null : expected.getURL(), actual == null ? null : actual.getURL());
+      assertEquals(name, getResources(regular, name), getResources(indexed, name));
+    }
+  }
+
+  private static void assertFound(ClassPath classPath, String name, URL jar) {
+    final Resource resource = classPath.getResource(name, false);
+    assertNotNull(name, resource);
+    assertEquals(jar, resource.getCodeSourceURL());
+  }
+
+  private static List<URL> getResources(ClassPath classPath, String name) {
+    final List<URL> result = new ArrayList<URL>();
+    final Enumeration<URL> resources = classPath.getResources(name, false);
+    while (resources.hasMoreElements()) {
+      result.add(resources.nextElement());
+    }
+    return result;
+  }
+
+  private URL createJar(String name, String... entries) throws IOException {
+    final File jar = new File(myDir, name);
+    final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      final List<String> directories = new ArrayList<String>();
+      for (String entry : entries) {
+        final int slash = entry.lastIndexOf('/');
+        if (slash > 0 && !directories.contains(entry.substring(0, slash + 1))) {
+          directories.add(entry.substring(0, slash + 1));
+          out.putNextEntry(new ZipEntry(entry.substring(0, slash + 1)));
+          out.closeEntry();
+        }
+        out.putNextEntry(new ZipEntry(entry));
+        out.write(name.getBytes("UTF-8"));
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+    return jar.toURI().toURL();
+  }
+}
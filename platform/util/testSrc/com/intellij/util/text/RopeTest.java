@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class RopeTest extends TestCase {
+  public void testValueOf() {
+    String text = randomText(new Random(1), 10000);
+    Rope rope = Rope.valueOf(text);
+    assertEquals(text, rope.toString());
+    assertEquals(text.length(), rope.length());
+    for (int i = 0; i < text.length(); i++) {
+      assertEquals(text.charAt(i), rope.charAt(i));
+    }
+    assertSame(rope, Rope.valueOf(rope));
+    assertEquals(0, Rope.valueOf("").length());
+  }
+
+  public void testRandomChanges() {
+    Random random = new Random(2);
+    StringBuilder expected = new StringBuilder(randomText(random, 3000));
+    Rope rope = Rope.valueOf(expected);
+    for (int i = 0; i < 2000; i++) {
+      int start = random.nextInt(expected.length() + 1);
+      int end = Math.min(expected.length(), start + random.nextInt(i % 10 == 0 ? 2000 : 20));
+      String text = randomText(random, random.nextInt(i % 7 == 0 ? 1500 : 10));
+      Rope before = rope;
+      String beforeText = expected.toString();
+
+      rope = rope.replace(start, end, text);
+      expected.replace(start, end, text);
+
+      assertEquals(expected.toString(), rope.toString());
+      assertEquals(beforeText, before.toString());
+      int from = random.nextInt(expected.length() + 1);
+      int to = from + random.nextInt(expected.length() - from + 1);
+      assertEquals(expected.substring(from, to), rope.subSequence(from, to).toString());
+      if (expected.length() > 0) {
+        int index = random.nextInt(expected.length());
+        assertEquals(expected.charAt(index), rope.charAt(index));
+      }
+    }
+  }
+
+  public void testTypingKeepsTreeShallow() {
+    Rope rope = Rope.valueOf(randomText(new Random(3), 100000));
+    for (int i = 0; i < 10000; i++) {
+      rope = rope.insert(50000 + i, "x");
+    }
+    for (int i = 0; i < 5000; i++) {
+      rope = rope.delete(40000, 40001);
+    }
+    assertEquals(105000, rope.length());
+    assertTrue(String.valueOf(rope.depth()), rope.depth() < 20);
+  }
+
+  public void testGetChars() {
+    String text = randomText(new Random(4), 5000);
+    Rope rope = Rope.valueOf(text).insert(2500, "inserted");
+    String expected = text.substring(0, 2500) + "inserted" + text.substring(2500);
+    char[] chars = new char[1000];
+    rope.getChars(2000, 3000, chars, 0);
+    assertEquals(expected.substring(2000, 3000), new String(chars));
+    assertEquals(expected, new String(rope.toCharArray()));
+    CharArrayUtil.getChars(rope, chars, 1000, 0, 1000);
+    assertEquals(expected.substring(1000, 2000), new String(chars));
+  }
+
+  private static String randomText(Random random, int length) {
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.append((char)('a' + random.nextInt(26)));
+    }
+    return builder.toString();
+  }
+}
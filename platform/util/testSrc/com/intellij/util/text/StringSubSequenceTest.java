@@ -0,0 +1,96 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import com.intellij.openapi.util.text.StringUtil;
+import junit.framework.TestCase;
+
+public class StringSubSequenceTest extends TestCase {
+  private static final String TEXT = "0123456789abcdef";
+
+  public void testView() {
+    final StringSubSequence view = new StringSubSequence(TEXT, 3, 10);
+    assertEquals(7, view.length());
+    assertEquals('3', view.charAt(0));
+    assertEquals('9', view.charAt(6));
+    assertEquals("3456789", view.toString());
+    assertSame(TEXT, view.getString());
+    assertEquals(3, view.getStart());
+
+    final char[] chars = new char[9];
+    view.getChars(chars, 1);
+    assertEquals("\u00003456789\u0000", new String(chars));
+  }
+
+  public void testSubSequence() {
+    final StringSubSequence view = new StringSubSequence(TEXT, 3, 10);
+    assertSame(view, view.subSequence(0, view.length()));
+
+    final CharSequence sub = view.subSequence(2, 5);
+    assertTrue(sub instanceof StringSubSequence);
+    assertSame(TEXT, ((StringSubSequence)sub).getString());
+    assertEquals("567", sub.toString());
+    assertEquals("", view.subSequence(7, 7).toString());
+  }
+
+  public void testCreate() {
+    final CharSequence view = StringSubSequence.create(TEXT, 1, 4);
+    assertTrue(view instanceof StringSubSequence);
+    assertEquals("123", view.toString());
+    final CharSequence nested = StringSubSequence.create(view, 1, 2);
+    assertEquals("2", nested.toString());
+    assertSame(TEXT, ((StringSubSequence)nested).getString());
+    assertNull(StringSubSequence.create(new StringBuilder(TEXT), 1, 4));
+  }
+
+  public void testBounds() {
+    assertOutOfBounds(-1, 2);
+    assertOutOfBounds(2, TEXT.length() + 1);
+    assertOutOfBounds(3, 2);
+    try {
+      new StringSubSequence(TEXT, 3, 10).subSequence(0, 8);
+      fail();
+    }
+    catch (IndexOutOfBoundsException ignored) {
+    }
+  }
+
+  public void testEqualsIsSymmetric() {
+    final StringSubSequence view = new StringSubSequence(TEXT, 3, 10);
+    final StringSubSequence sameChars = new StringSubSequence("x3456789", 1, 8);
+    assertEquals(view, sameChars);
+    assertEquals(sameChars, view);
+    assertEquals(view.hashCode(), sameChars.hashCode());
+    assertEquals("3456789".hashCode(), view.hashCode());
+
+    assertFalse(view.equals(new StringSubSequence(TEXT, 3, 9)));
+    assertFalse(view.equals(new StringSubSequence(TEXT, 4, 11)));
+
+    // neither way, as a string is never equal to a view
+    assertFalse(view.equals("3456789"));
+    assertFalse("3456789".equals(view));
+    assertTrue(StringUtil.equals(view, "3456789"));
+  }
+
+  private static void assertOutOfBounds(int start, int end) {
+    try {
+      new StringSubSequence(TEXT, start, end);
+      fail(start + ", " + end);
+    }
+    catch (IndexOutOfBoundsException ignored) {
+    }
+  }
+}
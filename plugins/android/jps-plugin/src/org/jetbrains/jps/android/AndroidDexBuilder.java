@@ -22,6 +22,7 @@ import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.io.FileUtilRt;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.containers.ConcurrentHashSet;
 import com.intellij.util.containers.HashMap;
 import com.intellij.util.containers.HashSet;
 import org.jetbrains.android.compiler.tools.AndroidDxRunner;
@@ -269,7 +270,8 @@ public class AndroidDexBuilder extends ProjectLevelBuilder {
 
   @Override
   public void buildStarted(CompileContext context) {
-    final HashSet<String> dirtyOutputDirs = new HashSet<String>();
+    // the output dirs of all chunks are collected, and the chunks may be built concurrently
+    final Set<String> dirtyOutputDirs = new ConcurrentHashSet<String>();
     final BuildListener listener = new BuildListener() {
       @Override
       public void filesGenerated(Collection<Pair<String, String>> paths) {
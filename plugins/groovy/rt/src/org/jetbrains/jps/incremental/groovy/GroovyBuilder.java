@@ -30,7 +30,7 @@ import java.util.*;
  */
 public class GroovyBuilder extends ModuleLevelBuilder {
   public static final String BUILDER_NAME = "groovy";
-  private static final Key<Boolean> CHUNK_REBUILD_ORDERED = Key.create("CHUNK_REBUILD_ORDERED");
+  private static final Key<Boolean> CHUNK_REBUILD_ORDERED = CompileContext.createChunkLocalKey("CHUNK_REBUILD_ORDERED");
   private final boolean myForStubs;
   private final String myBuilderName;
 
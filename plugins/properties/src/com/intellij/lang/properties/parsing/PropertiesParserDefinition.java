@@ -17,8 +17,8 @@ package com.intellij.lang.properties.parsing;
 
 import com.intellij.extapi.psi.ASTWrapperPsiElement;
 import com.intellij.lang.ASTNode;
-import com.intellij.lang.ParserDefinition;
 import com.intellij.lang.PsiParser;
+import com.intellij.lang.RelexableParserDefinition;
 import com.intellij.lang.properties.psi.impl.PropertiesFileImpl;
 import com.intellij.lang.properties.psi.impl.PropertiesListImpl;
 import com.intellij.lang.properties.psi.impl.PropertyImpl;
@@ -36,7 +36,7 @@ import org.jetbrains.annotations.NotNull;
 /**
  * @author max
  */
-public class PropertiesParserDefinition implements ParserDefinition {
+public class PropertiesParserDefinition implements RelexableParserDefinition {
   private static final Logger LOG = Logger.getInstance("#com.intellij.lang.properties.PropertiesParserDefinition");
 
   @NotNull
@@ -58,6 +58,12 @@ public class PropertiesParserDefinition implements ParserDefinition {
     return PropertiesTokenTypes.COMMENTS;
   }
 
+  @NotNull
+  public TokenSet getTextInsensitiveTokens() {
+    return TokenSet.create(PropertiesTokenTypes.KEY_CHARACTERS, PropertiesTokenTypes.VALUE_CHARACTERS,
+                           PropertiesTokenTypes.END_OF_LINE_COMMENT, PropertiesTokenTypes.WHITE_SPACE);
+  }
+
   @NotNull
   public TokenSet getStringLiteralElements() {
     return TokenSet.EMPTY;
@@ -23,6 +23,7 @@ import com.intellij.openapi.project.Project;
 import com.intellij.psi.FileViewProvider;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.impl.source.xml.XmlFileImpl;
+import com.intellij.psi.tree.TokenSet;
 import com.intellij.psi.xml.XmlElementType;
 import org.jetbrains.annotations.NotNull;
 
@@ -36,6 +37,12 @@ public class XHTMLParserDefinition extends XMLParserDefinition {
     return new XHtmlLexer();
   }
 
+  @NotNull
+  public TokenSet getTextInsensitiveTokens() {
+    // embedded scripts and styles are lexed by other languages
+    return TokenSet.EMPTY;
+  }
+
   public SpaceRequirements spaceExistanceTypeBetweenTokens(ASTNode left, ASTNode right) {
     final Lexer lexer = createLexer(left.getPsi().getProject());
     return canStickTokensTogetherByLexerInXml(left, right, lexer, 0);
@@ -16,14 +16,15 @@
 package com.intellij.lang.xml;
 
 import com.intellij.lang.ASTNode;
-import com.intellij.lang.ParserDefinition;
 import com.intellij.lang.PsiParser;
+import com.intellij.lang.RelexableParserDefinition;
 import com.intellij.lexer.Lexer;
 import com.intellij.lexer.XmlLexer;
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.FileViewProvider;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.TokenType;
 import com.intellij.psi.impl.source.parsing.xml.XmlParser;
 import com.intellij.psi.impl.source.xml.XmlFileImpl;
 import com.intellij.psi.tree.IFileElementType;
@@ -36,7 +37,7 @@ import org.jetbrains.annotations.NotNull;
 /**
  * @author max
  */
-public class XMLParserDefinition implements ParserDefinition {
+public class XMLParserDefinition implements RelexableParserDefinition {
   @NotNull
   public Lexer createLexer(Project project) {
     return new XmlLexer();
@@ -61,6 +62,13 @@ public class XMLParserDefinition implements ParserDefinition {
     return TokenSet.EMPTY;
   }
 
+  @NotNull
+  public TokenSet getTextInsensitiveTokens() {
+    // tag names are not here: the parser matches the closing tag with the opening one by name
+    return TokenSet.create(XmlTokenType.XML_DATA_CHARACTERS, XmlTokenType.XML_ATTRIBUTE_VALUE_TOKEN, XmlTokenType.XML_COMMENT_CHARACTERS,
+                           XmlTokenType.XML_WHITE_SPACE, XmlTokenType.XML_REAL_WHITE_SPACE, TokenType.WHITE_SPACE);
+  }
+
   @NotNull
   public PsiParser createParser(final Project project) {
     return new XmlParser();
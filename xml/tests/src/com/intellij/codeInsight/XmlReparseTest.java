@@ -8,6 +8,7 @@
  */
 package com.intellij.codeInsight;
 
+import com.intellij.lang.ASTNode;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.fileTypes.StdFileTypes;
 import com.intellij.psi.AbstractReparseTestCase;
@@ -15,6 +16,7 @@ import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.impl.DebugUtil;
+import com.intellij.psi.impl.source.tree.TreeUtil;
 import com.intellij.psi.impl.source.xml.XmlFileImpl;
 import com.intellij.psi.xml.XmlFile;
 import com.intellij.testFramework.ParsingTestCase;
@@ -23,6 +25,8 @@ import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.util.IncorrectOperationException;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 @PlatformTestCase.WrapInCommand
 public class XmlReparseTest extends AbstractReparseTestCase {
@@ -71,6 +75,72 @@ public class XmlReparseTest extends AbstractReparseTestCase {
     assertSame(element1, ((XmlFile)myDummyFile).getDocument().getRootTag());
   }
 
+  public void testRelexTextOnly() throws Exception {
+    String s1 = "<a attr=\"value\"><!-- comment -->\n<b>\nSomeDataHere";
+    String s2 = "\n</b><c x=\"y\">more data</c></a>";
+
+    prepareFile(s1, s2);
+
+    PsiElement tagC = ((XmlFile)myDummyFile).getDocument().getRootTag().findFirstSubTag("c");
+
+    // only the text of the leaves changes, so they are replaced without reparsing
+    List<ASTNode> leaves = getLeaves();
+    insert("x");
+    assertOneLeafReplaced(leaves);
+    leaves = getLeaves();
+    insert(" ");
+    assertOneLeafReplaced(leaves);
+
+    // new tokens, so the text is reparsed
+    insert("more");
+
+    leaves = getLeaves();
+    remove(3);
+    assertOneLeafReplaced(leaves);
+    leaves = getLeaves();
+    insert("\n  ");
+    assertOneLeafReplaced(leaves);
+
+    setEditPoint(s1.indexOf("value") + 2);
+    leaves = getLeaves();
+    insert("lll");
+    assertOneLeafReplaced(leaves);
+    leaves = getLeaves();
+    remove(5);
+    assertOneLeafReplaced(leaves);
+
+    setEditPoint(myDummyFile.getText().indexOf(" -->"));
+    leaves = getLeaves();
+    insert(" again");
+    assertOneLeafReplaced(leaves);
+
+    assertSame(tagC, ((XmlFile)myDummyFile).getDocument().getRootTag().findFirstSubTag("c"));
+  }
+
+  private List<ASTNode> getLeaves() {
+    final List<ASTNode> leaves = new ArrayList<ASTNode>();
+    for (ASTNode leaf = TreeUtil.findFirstLeaf(myDummyFile.getNode()); leaf != null; leaf = TreeUtil.nextLeaf(leaf)) {
+      leaves.add(leaf);
+    }
+    return leaves;
+  }
+
+  private void assertOneLeafReplaced(List<ASTNode> oldLeaves) {
+    final List<ASTNode> newLeaves = getLeaves();
+    assertEquals(oldLeaves.size(), newLeaves.size());
+    int replaced = 0;
+    for (int i = 0; i < oldLeaves.size(); i++) {
+      final ASTNode oldLeaf = oldLeaves.get(i);
+      final ASTNode newLeaf = newLeaves.get(i);
+      if (oldLeaf != newLeaf) {
+        replaced++;
+        assertEquals(oldLeaf.getElementType(), newLeaf.getElementType());
+        assertNull("the old leaf is detached", oldLeaf.getTreeParent());
+      }
+    }
+    assertEquals(1, replaced);
+  }
+
   public void testTagInTag1() throws Exception {
     String s1 = "<a><b>";
     String s2 = "</b></a>";